@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.fitbit.bridge;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Predicate;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -28,6 +29,14 @@ public class BridgeHelper {
         return new FitBitUserIterator(clientManager, studyId);
     }
 
+    /**
+     * Gets an iterator for the FitBit users in the given study whose health codes match the given filter. Users that
+     * don't match are skipped without getting their OAuth tokens.
+     */
+    public Iterator<FitBitUser> getFitBitUsersForStudy(String studyId, Predicate<String> healthCodeFilter) {
+        return new FitBitUserIterator(clientManager, studyId, healthCodeFilter);
+    }
+
     /** Gets all study summaries (worker API, active studies only). Note that these studies only contain study ID. */
     public List<Study> getAllStudies() throws IOException {
         return clientManager.getClient(StudiesApi.class).getStudies(/* summary */true).execute().body()
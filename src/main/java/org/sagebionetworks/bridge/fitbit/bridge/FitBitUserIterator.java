@@ -2,6 +2,7 @@ package org.sagebionetworks.bridge.fitbit.bridge;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.function.Predicate;
 
 import org.sagebionetworks.bridge.fitbit.worker.Constants;
 import org.sagebionetworks.bridge.rest.ClientManager;
@@ -18,24 +19,37 @@ public class FitBitUserIterator implements Iterator<FitBitUser> {
     // Instance invariants
     private final ClientManager bridgeClientManager;
     private final String studyId;
+    private final Predicate<String> healthCodeFilter;
     private final int pageSize;
 
     // Instance state tracking
     private ForwardCursorStringList healthCodeList;
     private int nextIndex;
+    private RuntimeException pageException;
 
     /**
      * Constructs a FitBitUserIterator for the given Bridge client and study. This kicks off requests to load the first
      * page.
      */
     public FitBitUserIterator(ClientManager bridgeClientManager, String studyId) {
-        this(bridgeClientManager, studyId, DEFAULT_PAGESIZE);
+        this(bridgeClientManager, studyId, healthCode -> true);
+    }
+
+    /**
+     * Constructs a FitBitUserIterator for the given Bridge client and study, which only returns users whose health
+     * codes match the given filter. Users that don't match are skipped before we get their OAuth tokens from Bridge.
+     * This kicks off requests to load the first page.
+     */
+    public FitBitUserIterator(ClientManager bridgeClientManager, String studyId, Predicate<String> healthCodeFilter) {
+        this(bridgeClientManager, studyId, healthCodeFilter, DEFAULT_PAGESIZE);
     }
 
     // Constructor with page size, used for unit tests.
-    FitBitUserIterator(ClientManager bridgeClientManager, String studyId, int pageSize) {
+    FitBitUserIterator(ClientManager bridgeClientManager, String studyId, Predicate<String> healthCodeFilter,
+            int pageSize) {
         this.bridgeClientManager = bridgeClientManager;
         this.studyId = studyId;
+        this.healthCodeFilter = healthCodeFilter;
         this.pageSize = pageSize;
 
         // Load first page. Pass in null offsetKey to get the first page.
@@ -61,7 +75,17 @@ public class FitBitUserIterator implements Iterator<FitBitUser> {
     /** {@inheritDoc} */
     @Override
     public boolean hasNext() {
-        return hasNextItemInPage() || hasNextPage();
+        if (pageException != null) {
+            return true;
+        }
+        try {
+            skipFilteredHealthCodes();
+        } catch (RuntimeException ex) {
+            // hasNext() can't throw. Save the error for next(). The call after that tries the page again.
+            pageException = ex;
+            return true;
+        }
+        return hasNextItemInPage();
     }
 
     // Helper method to determine if there are additional items in this page.
@@ -74,14 +98,32 @@ public class FitBitUserIterator implements Iterator<FitBitUser> {
         return healthCodeList.getHasNext();
     }
 
+    // Helper method to advance past health codes that don't match the filter, loading pages as needed. Afterwards,
+    // either nextIndex points to a matching health code, or there are no more health codes.
+    private void skipFilteredHealthCodes() {
+        while (true) {
+            while (hasNextItemInPage() && !healthCodeFilter.test(healthCodeList.getItems().get(nextIndex))) {
+                nextIndex++;
+            }
+            if (hasNextItemInPage() || !hasNextPage()) {
+                return;
+            }
+            loadNextPage(healthCodeList.getNextPageOffsetKey());
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     public FitBitUser next() {
+        if (pageException != null) {
+            RuntimeException ex = pageException;
+            pageException = null;
+            throw ex;
+        }
+
+        skipFilteredHealthCodes();
         if (hasNextItemInPage()) {
             return getNextFitBitUser();
-        } else if (hasNextPage()) {
-            loadNextPage(healthCodeList.getNextPageOffsetKey());
-            return getNextFitBitUser();
         } else {
             throw new IllegalStateException("No more tokens left for study " + studyId);
         }
@@ -0,0 +1,28 @@
+package org.sagebionetworks.bridge.fitbit.checkpoint;
+
+import com.google.common.collect.Multimap;
+
+/**
+ * Records the progress of a FitBit Worker run, so that if the worker dies or the request is redelivered, the rerun
+ * skips work that's already done. Checkpoints are keyed by study and date. For range endpoints, the date is the
+ * request's date range.
+ *
+ * Checkpoints are read and written in bulk: the worker loads all checkpoints for each date once at the start of a
+ * study, and writes checkpoints in batches once tables are uploaded.
+ */
+public interface CheckpointStore {
+    /** Loads all checkpoints for the given study and date in a single read. */
+    DateCheckpoints getCheckpoints(String studyId, String date);
+
+    /**
+     * Marks the given endpoint as completed for the given users and dates. The multimap's keys are dates and its values
+     * are health codes.
+     */
+    void setEndpointCompleted(String studyId, String endpointId, Multimap<String, String> healthCodesByDate);
+
+    /**
+     * Marks the given users' data for the given dates as uploaded to the given table. The multimap's keys are dates
+     * and its values are health codes.
+     */
+    void setTableUploaded(String studyId, String tableId, Multimap<String, String> healthCodesByDate);
+}
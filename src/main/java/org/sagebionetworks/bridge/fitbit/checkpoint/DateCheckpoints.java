@@ -0,0 +1,58 @@
+package org.sagebionetworks.bridge.fitbit.checkpoint;
+
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * All checkpoints for a single study and date, loaded from the Checkpoint Store in one read. This is a snapshot, so
+ * checkpoints written after it was loaded aren't reflected. This class is immutable.
+ */
+public class DateCheckpoints {
+    private final Set<String> completedEndpointSet;
+    private final Set<String> uploadedTableSet;
+
+    // Private constructor. Use the builder.
+    private DateCheckpoints(Set<String> completedEndpointSet, Set<String> uploadedTableSet) {
+        this.completedEndpointSet = completedEndpointSet;
+        this.uploadedTableSet = uploadedTableSet;
+    }
+
+    /** True if the given endpoint was already completed for the given user. */
+    public boolean isEndpointCompleted(String healthCode, String endpointId) {
+        return completedEndpointSet.contains(makeKey(healthCode, endpointId));
+    }
+
+    /** True if the given user's data was already uploaded to the given table. */
+    public boolean isTableUploaded(String healthCode, String tableId) {
+        return uploadedTableSet.contains(makeKey(healthCode, tableId));
+    }
+
+    // Helper method to make the key for a user and an endpoint or table.
+    private static String makeKey(String healthCode, String id) {
+        return healthCode + '\t' + id;
+    }
+
+    /** Date Checkpoints builder. */
+    public static class Builder {
+        private final ImmutableSet.Builder<String> completedEndpointSetBuilder = ImmutableSet.builder();
+        private final ImmutableSet.Builder<String> uploadedTableSetBuilder = ImmutableSet.builder();
+
+        /** Adds a completed endpoint for the given user. */
+        public Builder addCompletedEndpoint(String healthCode, String endpointId) {
+            completedEndpointSetBuilder.add(makeKey(healthCode, endpointId));
+            return this;
+        }
+
+        /** Adds an uploaded table for the given user. */
+        public Builder addUploadedTable(String healthCode, String tableId) {
+            uploadedTableSetBuilder.add(makeKey(healthCode, tableId));
+            return this;
+        }
+
+        /** Builds the Date Checkpoints. */
+        public DateCheckpoints build() {
+            return new DateCheckpoints(completedEndpointSetBuilder.build(), uploadedTableSetBuilder.build());
+        }
+    }
+}
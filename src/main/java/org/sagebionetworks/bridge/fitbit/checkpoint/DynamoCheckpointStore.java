@@ -0,0 +1,154 @@
+package org.sagebionetworks.bridge.fitbit.checkpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.joda.time.DateTimeUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Checkpoint Store backed by DynamoDB. The hash key is the study ID and date. The range key identifies the endpoint or
+ * table and the user. Checkpoints expire after 30 days, using DynamoDB's TTL.
+ *
+ * All checkpoints for a study and date share a hash key, so they're loaded with a single query. Checkpoints are written
+ * with BatchWriteItem, 25 items per batch.
+ */
+@Component
+public class DynamoCheckpointStore implements CheckpointStore {
+    // Visible for testing
+    static final String DDB_KEY_CHECKPOINT_KEY = "checkpointKey";
+    static final String DDB_KEY_EXPIRES_ON = "expiresOn";
+    static final String DDB_KEY_STUDY_DATE = "studyDate";
+    static final long EXPIRATION_SECONDS = TimeUnit.DAYS.toSeconds(30);
+    static final int MAX_BATCH_WRITE_ATTEMPTS = 5;
+    static final int MAX_BATCH_WRITE_ITEMS = 25;
+
+    private static final String ENDPOINT_KEY_PREFIX = "endpoint:";
+    private static final String TABLE_KEY_PREFIX = "table:";
+
+    private Table ddbCheckpointTable;
+    private DynamoDB ddbClient;
+    private long batchWriteRetryDelayMillis = 100;
+
+    // Delay before re-sending unprocessed items from a batch write, multiplied by the attempt number.
+    // Visible for testing
+    final void setBatchWriteRetryDelayMillis(long batchWriteRetryDelayMillis) {
+        this.batchWriteRetryDelayMillis = batchWriteRetryDelayMillis;
+    }
+
+    /** DynamoDB table that holds checkpoints. */
+    @Resource(name = "ddbCheckpointTable")
+    public final void setDdbCheckpointTable(Table ddbCheckpointTable) {
+        this.ddbCheckpointTable = ddbCheckpointTable;
+    }
+
+    /** DynamoDB client, used for batch writes, which aren't available on the table. */
+    @Autowired
+    public final void setDdbClient(DynamoDB ddbClient) {
+        this.ddbClient = ddbClient;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public DateCheckpoints getCheckpoints(String studyId, String date) {
+        // The item collection fetches the query's pages as we iterate.
+        DateCheckpoints.Builder checkpointsBuilder = new DateCheckpoints.Builder();
+        for (Item oneItem : ddbCheckpointTable.query(DDB_KEY_STUDY_DATE, makeStudyDateKey(studyId, date))) {
+            String checkpointKey = oneItem.getString(DDB_KEY_CHECKPOINT_KEY);
+            if (checkpointKey.startsWith(ENDPOINT_KEY_PREFIX)) {
+                String[] healthCodeAndId = splitCheckpointKey(checkpointKey, ENDPOINT_KEY_PREFIX);
+                checkpointsBuilder.addCompletedEndpoint(healthCodeAndId[0], healthCodeAndId[1]);
+            } else if (checkpointKey.startsWith(TABLE_KEY_PREFIX)) {
+                String[] healthCodeAndId = splitCheckpointKey(checkpointKey, TABLE_KEY_PREFIX);
+                checkpointsBuilder.addUploadedTable(healthCodeAndId[0], healthCodeAndId[1]);
+            }
+        }
+        return checkpointsBuilder.build();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setEndpointCompleted(String studyId, String endpointId, Multimap<String, String> healthCodesByDate) {
+        List<Item> itemList = new ArrayList<>();
+        for (Map.Entry<String, String> oneEntry : healthCodesByDate.entries()) {
+            itemList.add(makeCheckpointItem(studyId, oneEntry.getKey(), makeEndpointCheckpointKey(
+                    oneEntry.getValue(), endpointId)));
+        }
+        writeCheckpointItems(itemList);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setTableUploaded(String studyId, String tableId, Multimap<String, String> healthCodesByDate) {
+        List<Item> itemList = new ArrayList<>();
+        for (Map.Entry<String, String> oneEntry : healthCodesByDate.entries()) {
+            itemList.add(makeCheckpointItem(studyId, oneEntry.getKey(), makeTableCheckpointKey(oneEntry.getValue(),
+                    tableId)));
+        }
+        writeCheckpointItems(itemList);
+    }
+
+    // Helper method to split a checkpoint key into its health code and its endpoint or table ID. Endpoint and table IDs
+    // never contain colons, so the ID starts after the last colon.
+    private static String[] splitCheckpointKey(String checkpointKey, String prefix) {
+        int separatorIdx = checkpointKey.lastIndexOf(':');
+        return new String[] { checkpointKey.substring(prefix.length(), separatorIdx),
+                checkpointKey.substring(separatorIdx + 1) };
+    }
+
+    // Helper method to make a checkpoint item.
+    private static Item makeCheckpointItem(String studyId, String date, String checkpointKey) {
+        long expiresOn = TimeUnit.MILLISECONDS.toSeconds(DateTimeUtils.currentTimeMillis()) + EXPIRATION_SECONDS;
+        return new Item().withString(DDB_KEY_STUDY_DATE, makeStudyDateKey(studyId, date))
+                .withString(DDB_KEY_CHECKPOINT_KEY, checkpointKey).withLong(DDB_KEY_EXPIRES_ON, expiresOn);
+    }
+
+    // Helper method to write checkpoint items in batches. DynamoDB may return some items in a batch as unprocessed if
+    // the table is throttled, so we re-send those with a backoff. If items are still unprocessed after the last
+    // attempt, this throws.
+    private void writeCheckpointItems(List<Item> itemList) {
+        String tableName = ddbCheckpointTable.getTableName();
+        for (List<Item> oneBatch : Iterables.partition(itemList, MAX_BATCH_WRITE_ITEMS)) {
+            BatchWriteItemOutcome outcome = ddbClient.batchWriteItem(new TableWriteItems(tableName)
+                    .withItemsToPut(oneBatch));
+            Map<String, List<WriteRequest>> unprocessedItems = outcome.getUnprocessedItems();
+            for (int attempt = 1; unprocessedItems != null && !unprocessedItems.isEmpty(); attempt++) {
+                if (attempt >= MAX_BATCH_WRITE_ATTEMPTS) {
+                    throw new IllegalStateException("Checkpoints were still unprocessed after " +
+                            MAX_BATCH_WRITE_ATTEMPTS + " attempts");
+                }
+                Uninterruptibles.sleepUninterruptibly(batchWriteRetryDelayMillis * attempt, TimeUnit.MILLISECONDS);
+                unprocessedItems = ddbClient.batchWriteItemUnprocessed(unprocessedItems).getUnprocessedItems();
+            }
+        }
+    }
+
+    // Visible for testing
+    static String makeStudyDateKey(String studyId, String date) {
+        return studyId + ':' + date;
+    }
+
+    // Visible for testing
+    static String makeEndpointCheckpointKey(String healthCode, String endpointId) {
+        return ENDPOINT_KEY_PREFIX + healthCode + ':' + endpointId;
+    }
+
+    // Visible for testing
+    static String makeTableCheckpointKey(String healthCode, String tableId) {
+        return TABLE_KEY_PREFIX + healthCode + ':' + tableId;
+    }
+}
@@ -0,0 +1,101 @@
+package org.sagebionetworks.bridge.fitbit.checkpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.Multimap;
+
+/**
+ * Checkpoint Store backed by a local file, for tests and local runs. Checkpoints are appended to the file, one per
+ * line, and read back in when the store is created, so a new store on the same file resumes where the last one
+ * stopped.
+ */
+public class FileCheckpointStore implements CheckpointStore {
+    private static final String TYPE_ENDPOINT = "endpoint";
+    private static final String TYPE_TABLE = "table";
+
+    private final File checkpointFile;
+    private final Set<String> checkpointSet = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * Constructs a File Checkpoint Store. If the file already exists, its checkpoints are loaded.
+     *
+     * @param checkpointFile
+     *         file to read and write checkpoints
+     */
+    public FileCheckpointStore(File checkpointFile) throws IOException {
+        this.checkpointFile = checkpointFile;
+        if (checkpointFile.exists()) {
+            checkpointSet.addAll(Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public DateCheckpoints getCheckpoints(String studyId, String date) {
+        DateCheckpoints.Builder checkpointsBuilder = new DateCheckpoints.Builder();
+        for (String oneCheckpoint : checkpointSet) {
+            String[] fields = oneCheckpoint.split("\t", -1);
+            if (fields.length != 5 || !fields[0].equals(studyId) || !fields[1].equals(date)) {
+                continue;
+            }
+            if (fields[2].equals(TYPE_ENDPOINT)) {
+                checkpointsBuilder.addCompletedEndpoint(fields[3], fields[4]);
+            } else if (fields[2].equals(TYPE_TABLE)) {
+                checkpointsBuilder.addUploadedTable(fields[3], fields[4]);
+            }
+        }
+        return checkpointsBuilder.build();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setEndpointCompleted(String studyId, String endpointId, Multimap<String, String> healthCodesByDate) {
+        addCheckpoints(studyId, TYPE_ENDPOINT, endpointId, healthCodesByDate);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setTableUploaded(String studyId, String tableId, Multimap<String, String> healthCodesByDate) {
+        addCheckpoints(studyId, TYPE_TABLE, tableId, healthCodesByDate);
+    }
+
+    // Helper method to add checkpoints and append them to the file in a single write. Synchronized so lines from
+    // different threads don't interleave.
+    private synchronized void addCheckpoints(String studyId, String type, String id,
+            Multimap<String, String> healthCodesByDate) {
+        List<String> newCheckpointList = new ArrayList<>();
+        for (Map.Entry<String, String> oneEntry : healthCodesByDate.entries()) {
+            String checkpoint = makeCheckpoint(studyId, oneEntry.getKey(), type, oneEntry.getValue(), id);
+            if (checkpointSet.add(checkpoint)) {
+                newCheckpointList.add(checkpoint);
+            }
+        }
+        if (newCheckpointList.isEmpty()) {
+            // Already recorded.
+            return;
+        }
+        try {
+            Files.write(checkpointFile.toPath(), newCheckpointList, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // Helper method to make a single-line checkpoint.
+    private static String makeCheckpoint(String studyId, String date, String type, String healthCode,
+            String id) {
+        return studyId + '\t' + date + '\t' + type + '\t' + healthCode + '\t' + id;
+    }
+}
@@ -29,6 +29,13 @@ public class SpringConfig {
         return ImmutableList.copyOf(value);
     }
 
+    @Bean(name = "ddbCheckpointTable")
+    @Autowired
+    public Table ddbCheckpointTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("FitBitCheckpoints");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
     @Bean(name = "ddbTablesMap")
     @Autowired
     public Table ddbTablesMap(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
@@ -52,6 +52,16 @@ public class EndpointSchema {
         return urlParameters;
     }
 
+    /**
+     * True if this endpoint uses a multi-day range URL (START_DATE and END_DATE URL parameters). Range endpoints are
+     * called once for the whole date range. Other endpoints are called once per date.
+     */
+    @JsonIgnore
+    public boolean isDateRange() {
+        return urlParameters.contains(UrlParameterType.START_DATE) || urlParameters.contains(
+                UrlParameterType.END_DATE);
+    }
+
     /** List of top-level keys to parse and the columns they represent. */
     public List<TableSchema> getTables() {
         return tables;
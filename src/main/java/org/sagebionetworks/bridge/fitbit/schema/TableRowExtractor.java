@@ -0,0 +1,237 @@
+package org.sagebionetworks.bridge.fitbit.schema;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.joda.time.DateTime;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+/**
+ * Row extractor for a table, compiled once from the table schema. Columns have a fixed index, in the same order as
+ * the table schema's columns, and each column has a converter, chosen from its column type when the extractor is
+ * compiled. Converters read values straight from a JSON parser, so extracting a row needs no map lookups, no column
+ * type switch, and no JSON nodes.
+ *
+ * This class is immutable and thread-safe.
+ */
+public class TableRowExtractor {
+    private static final Logger LOG = LoggerFactory.getLogger(TableRowExtractor.class);
+
+    /** Writes a JSON value to a file, uploads the file as a file handle, and returns the file handle ID. */
+    @FunctionalInterface
+    public interface FileHandleUploader {
+        /**
+         * Uploads the JSON value the parser is at. When this returns, the parser must be at the last token of the
+         * value.
+         */
+        String upload(String columnId, JsonParser parser) throws IOException, SynapseException;
+    }
+
+    // Converts the JSON value the parser is at into the string value for a column, or null if there's no value. When
+    // this returns, the parser is at the last token of the value.
+    @FunctionalInterface
+    private interface ColumnConverter {
+        String convert(JsonParser parser, FileHandleUploader fileHandleUploader) throws IOException,
+                SynapseException;
+    }
+
+    private final String[] columnIds;
+    private final ColumnConverter[] converters;
+
+    /** Compiles the row extractor for the given table columns. */
+    TableRowExtractor(List<ColumnSchema> columnList) {
+        int numColumns = columnList.size();
+        columnIds = new String[numColumns];
+        converters = new ColumnConverter[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+            ColumnSchema oneColumnSchema = columnList.get(i);
+
+            // Jackson interns field names, so interning column IDs lets us match most fields by reference.
+            columnIds[i] = oneColumnSchema.getColumnId().intern();
+            converters[i] = makeConverter(oneColumnSchema);
+        }
+    }
+
+    /** Number of columns in the table. */
+    public int getNumColumns() {
+        return columnIds.length;
+    }
+
+    /** Column ID (name) for the given column index. */
+    public String getColumnId(int columnIndex) {
+        return columnIds[columnIndex];
+    }
+
+    /**
+     * Finds the column index for the given JSON field name, or returns -1 if the table has no such column. FitBit
+     * returns fields in the same order in every row, so the search starts at the expected index, which is usually the
+     * column after the previous field's column.
+     */
+    public int findColumnIndex(String fieldName, int expectedIndex) {
+        int numColumns = columnIds.length;
+        for (int i = 0; i < numColumns; i++) {
+            int oneIndex = (expectedIndex + i) % numColumns;
+            String oneColumnId = columnIds[oneIndex];
+            if (oneColumnId == fieldName || oneColumnId.equals(fieldName)) {
+                return oneIndex;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Converts the JSON value the parser is at into the string value for the given column. Returns null if the value
+     * is null or can't be converted. When this returns, the parser is at the last token of the value.
+     */
+    public String convert(int columnIndex, JsonParser parser, FileHandleUploader fileHandleUploader)
+            throws IOException, SynapseException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        return converters[columnIndex].convert(parser, fileHandleUploader);
+    }
+
+    /**
+     * Converts a single JSON value for the given column, without compiling a whole table. This is mainly useful for
+     * testing.
+     */
+    public static String convertValue(ColumnSchema columnSchema, JsonParser parser,
+            FileHandleUploader fileHandleUploader) throws IOException, SynapseException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        return makeConverter(columnSchema).convert(parser, fileHandleUploader);
+    }
+
+    // Helper method to make the converter for the given column.
+    private static ColumnConverter makeConverter(ColumnSchema columnSchema) {
+        String columnId = columnSchema.getColumnId();
+        switch (columnSchema.getColumnType()) {
+            case BOOLEAN:
+                return (parser, uploader) -> {
+                    JsonToken token = parser.getCurrentToken();
+                    if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+                        return String.valueOf(parser.getBooleanValue());
+                    }
+                    return warnWrongType(parser, "boolean", columnId);
+                };
+            case DATE:
+                // Currently, all dates from FitBit web API are in UTC, so we can just use epoch milliseconds,
+                // which is what Synapse expects anyway.
+                return (parser, uploader) -> {
+                    if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+                        return warnWrongType(parser, "string", columnId);
+                    }
+                    String dateTimeStr = parser.getText();
+                    try {
+                        return String.valueOf(DateTime.parse(dateTimeStr).getMillis());
+                    } catch (IllegalArgumentException ex) {
+                        LOG.warn("Invalid DateTime format " + dateTimeStr);
+                        return null;
+                    }
+                };
+            case DOUBLE:
+                // Floating point numbers go through double, so they're written the same as when we parsed the
+                // response into a tree of JsonNodes (for example, 1.50 is written as 1.5).
+                return (parser, uploader) -> {
+                    JsonToken token = parser.getCurrentToken();
+                    if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                        return BigDecimal.valueOf(parser.getDoubleValue()).toPlainString();
+                    } else if (token == JsonToken.VALUE_NUMBER_INT) {
+                        return parser.getDecimalValue().toPlainString();
+                    }
+                    return warnWrongType(parser, "number", columnId);
+                };
+            case FILEHANDLEID:
+                return (parser, uploader) -> uploader.upload(columnId, parser);
+            case INTEGER:
+                return (parser, uploader) -> {
+                    if (parser.getCurrentToken().isNumeric()) {
+                        return String.valueOf(parser.getLongValue());
+                    }
+                    return warnWrongType(parser, "number", columnId);
+                };
+            case LARGETEXT:
+                // LargeText is used for when the value is an array or an object. In this case, we want to write the
+                // JSON verbatim to Synapse.
+                return (parser, uploader) -> writeJsonToString(parser);
+            case STRING:
+                Integer maxLength = columnSchema.getMaxLength();
+                return (parser, uploader) -> {
+                    // Numbers are written as their parsed value, not their raw text, to match how JsonNodes write
+                    // them (for example, 1e2 is written as 100.0).
+                    JsonToken token = parser.getCurrentToken();
+                    String textValue;
+                    if (token.isNumeric()) {
+                        textValue = parser.getNumberValue().toString();
+                    } else if (token.isScalarValue()) {
+                        textValue = parser.getText();
+                    } else {
+                        textValue = writeJsonToString(parser);
+                    }
+
+                    // Strings have a max length. If the string is too long, truncate it.
+                    int valueLength = textValue.length();
+                    if (valueLength > maxLength) {
+                        LOG.warn("Truncating value of length " + valueLength + " to max length " + maxLength +
+                                " for column " + columnId);
+                        textValue = textValue.substring(0, maxLength);
+                    }
+                    return textValue;
+                };
+            default:
+                String columnTypeName = columnSchema.getColumnType().name();
+                return (parser, uploader) -> {
+                    LOG.warn("Unexpected type " + columnTypeName + " for column " + columnId);
+                    parser.skipChildren();
+                    return null;
+                };
+        }
+    }
+
+    // Helper method to log a type mismatch and skip the value.
+    private static String warnWrongType(JsonParser parser, String expectedType, String columnId) throws IOException {
+        LOG.warn("Expected " + expectedType + " for column " + columnId + ", got " + getValueTypeName(
+                parser.getCurrentToken()));
+        parser.skipChildren();
+        return null;
+    }
+
+    // Helper method to get the name of a JSON value type from its first token. These match the JSON node type names.
+    private static String getValueTypeName(JsonToken token) {
+        switch (token) {
+            case START_ARRAY:
+                return "ARRAY";
+            case START_OBJECT:
+                return "OBJECT";
+            case VALUE_FALSE:
+            case VALUE_TRUE:
+                return "BOOLEAN";
+            case VALUE_NUMBER_FLOAT:
+            case VALUE_NUMBER_INT:
+                return "NUMBER";
+            case VALUE_STRING:
+                return "STRING";
+            default:
+                return token.name();
+        }
+    }
+
+    // Helper method to copy the JSON value the parser is at into a compact JSON string.
+    private static String writeJsonToString(JsonParser parser) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = DefaultObjectMapper.INSTANCE.getFactory().createGenerator(writer)) {
+            generator.copyCurrentStructure(parser);
+        }
+        return writer.toString();
+    }
+}
@@ -19,12 +19,14 @@ public class TableSchema {
     private final String tableKey;
     private final List<ColumnSchema> columns;
     private transient final Map<String, ColumnSchema> columnsById;
+    private transient final TableRowExtractor rowExtractor;
 
     /** Private constructor. To construct, use Builder. */
     private TableSchema(String tableKey, List<ColumnSchema> columns) {
         this.tableKey = tableKey;
         this.columns = columns;
         this.columnsById = Maps.uniqueIndex(columns, ColumnSchema::getColumnId);
+        this.rowExtractor = new TableRowExtractor(columns);
     }
 
     /**
@@ -46,6 +48,12 @@ public class TableSchema {
         return columnsById;
     }
 
+    /** Row extractor for the table, compiled from the columns when the schema is built. */
+    @JsonIgnore
+    public TableRowExtractor getRowExtractor() {
+        return rowExtractor;
+    }
+
     /** {@inheritDoc} */
     @Override
     public final boolean equals(Object o) {
@@ -2,9 +2,18 @@ package org.sagebionetworks.bridge.fitbit.schema;
 
 /** Describes the type of parameters used to fill in a URL used to call a FitBit endpoint. */
 public enum UrlParameterType {
-    /** The job run date, in YYYY-MM-DD. */
+    /** The job run date, in YYYY-MM-DD. For date range requests, the endpoint is called once for each date. */
     DATE,
 
+    /**
+     * The last date of the job run, in YYYY-MM-DD. Used with START_DATE for endpoints that support FitBit's multi-day
+     * range URLs, which are called once for the whole date range.
+     */
+    END_DATE,
+
+    /** The first date of the job run, in YYYY-MM-DD. See END_DATE. */
+    START_DATE,
+
     /** The FitBit user ID. */
     USER_ID
 }
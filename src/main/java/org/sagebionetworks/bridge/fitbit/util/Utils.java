@@ -3,9 +3,12 @@ package org.sagebionetworks.bridge.fitbit.util;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.sagebionetworks.repo.model.table.ColumnModel;
 import org.sagebionetworks.repo.model.table.ColumnType;
 
@@ -62,6 +65,26 @@ public class Utils {
                 && study.getOAuthProviders().containsKey(Constants.FITBIT_VENDOR_ID);
     }
 
+    /**
+     * Creates an executor for the FitBit Worker. If useVirtualThreads is true and the JVM supports virtual threads,
+     * this returns a virtual-thread-per-task executor. Otherwise, this returns a fixed pool of numThreads daemon
+     * threads. Note that the virtual thread executor is unbounded, so callers are expected to bound the number of
+     * in-flight tasks themselves.
+     */
+    public static ExecutorService newExecutorService(String threadNamePrefix, int numThreads,
+            boolean useVirtualThreads) {
+        if (useVirtualThreads) {
+            try {
+                // Virtual threads are only available in Java 21+, so we need to use reflection.
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                // This JVM doesn't support virtual threads. Fall back to platform threads.
+            }
+        }
+        return Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat(threadNamePrefix + "-%d").build());
+    }
+
     /** Helper method, which formats and writes a row of values (represented as a String List) to the given Writer. */
     public static void writeRowToTsv(PrintWriter tsvWriter, List<String> rowValueList) {
         tsvWriter.println(JOINER_COLUMN_JOINER.join(rowValueList));
@@ -0,0 +1,191 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Circuit breaker around the FitBit Web API. Tracks the outcomes of the most recent calls. A call counts as failed if
+ * it errors (timeouts, dropped connections, 5xx) or if it takes longer than the slow call threshold. If too many
+ * recent calls failed, the circuit opens, and calls are rejected with a CircuitOpenException without calling FitBit.
+ * After the open duration, the circuit is half-open, and a single probe call is let through. If the probe succeeds,
+ * the circuit closes. Otherwise, it opens again.
+ *
+ * This class is thread-safe. All state is guarded by the circuit breaker's lock.
+ */
+@Component
+public class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    // Visible for testing
+    static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    static final int DEFAULT_MIN_CALLS = 20;
+    static final long DEFAULT_OPEN_DURATION_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final long DEFAULT_SLOW_CALL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final int DEFAULT_WINDOW_SIZE = 100;
+
+    /** Circuit breaker states. */
+    public enum State {
+        /** Calls are let through, and their outcomes are tracked. */
+        CLOSED,
+
+        /** Calls are rejected until the open duration is over. */
+        OPEN,
+
+        /** A single probe call is in flight. Other calls are rejected until the probe finishes. */
+        HALF_OPEN,
+    }
+
+    private double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private int minCalls = DEFAULT_MIN_CALLS;
+    private long openDurationMillis = DEFAULT_OPEN_DURATION_MILLIS;
+    private long slowCallMillis = DEFAULT_SLOW_CALL_MILLIS;
+
+    // Sliding window of call outcomes, as a ring buffer. True means the call failed.
+    private boolean[] window = new boolean[DEFAULT_WINDOW_SIZE];
+    private int windowCount = 0;
+    private int windowIndex = 0;
+    private int windowFailures = 0;
+
+    private State state = State.CLOSED;
+    private long openUntilMillis = 0;
+    private int numOpened = 0;
+    private long numRejected = 0;
+
+    /**
+     * Fraction of calls in the window that must fail (error or be slow) before the circuit opens, between 0 and 1.
+     * Defaults to 0.5.
+     */
+    public final synchronized void setFailureRateThreshold(double failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    /**
+     * Minimum number of calls in the window before the failure rate is checked, so a few early failures don't open the
+     * circuit. Defaults to 20.
+     */
+    public final synchronized void setMinCalls(int minCalls) {
+        this.minCalls = minCalls;
+    }
+
+    /** How long the circuit stays open before letting a probe call through, in milliseconds. Defaults to 30 seconds. */
+    public final synchronized void setOpenDurationMillis(long openDurationMillis) {
+        this.openDurationMillis = openDurationMillis;
+    }
+
+    /** Calls that take longer than this, in milliseconds, count as failed. Defaults to 30 seconds. */
+    public final synchronized void setSlowCallMillis(long slowCallMillis) {
+        this.slowCallMillis = slowCallMillis;
+    }
+
+    /** Number of most recent calls used to compute the failure rate. Defaults to 100. Clears the window. */
+    public final synchronized void setWindowSize(int windowSize) {
+        this.window = new boolean[windowSize];
+        clearWindow();
+    }
+
+    /**
+     * Call this before calling FitBit. If the circuit is open, or if it's half-open and the probe call is already in
+     * flight, this throws a CircuitOpenException. Otherwise, the caller must call FitBit, then call
+     * {@link #recordResult}.
+     */
+    public synchronized void acquirePermission() throws CircuitOpenException {
+        long now = DateTimeUtils.currentTimeMillis();
+        switch (state) {
+            case CLOSED:
+                return;
+            case OPEN:
+                if (now >= openUntilMillis) {
+                    // This call is the probe.
+                    LOG.info("FitBit circuit breaker is half-open, sending probe call");
+                    state = State.HALF_OPEN;
+                    return;
+                }
+                numRejected++;
+                throw new CircuitOpenException("FitBit circuit breaker is open until " + openUntilMillis,
+                        openUntilMillis);
+            case HALF_OPEN:
+                // Wait for the probe. If the probe fails, the circuit stays open for the whole open duration.
+                numRejected++;
+                throw new CircuitOpenException("FitBit circuit breaker is waiting for a probe call",
+                        now + openDurationMillis);
+            default:
+                throw new IllegalStateException("Unexpected state " + state);
+        }
+    }
+
+    /**
+     * Records the outcome of a call to FitBit. The call counts as failed if succeeded is false, or if the call took
+     * longer than the slow call threshold.
+     */
+    public synchronized void recordResult(boolean succeeded, long latencyMillis) {
+        boolean failed = !succeeded || latencyMillis > slowCallMillis;
+        switch (state) {
+            case CLOSED:
+                addToWindow(failed);
+                if (windowCount >= minCalls && windowFailures >= failureRateThreshold * windowCount) {
+                    open("failure rate " + windowFailures + "/" + windowCount);
+                }
+                break;
+            case OPEN:
+                // A call that started before the circuit opened. Ignore it.
+                break;
+            case HALF_OPEN:
+                if (failed) {
+                    open("probe call failed");
+                } else {
+                    LOG.info("FitBit circuit breaker closed, probe call succeeded");
+                    state = State.CLOSED;
+                    clearWindow();
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unexpected state " + state);
+        }
+    }
+
+    /** Current state of the circuit breaker. */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /** Circuit breaker state and counts, used for logging. */
+    public synchronized String getMetricsString() {
+        return "circuitBreaker[state=" + state + ", opened=" + numOpened + ", rejected=" + numRejected + "]";
+    }
+
+    // Helper method to open the circuit. Must be called with the lock held.
+    private void open(String reason) {
+        openUntilMillis = DateTimeUtils.currentTimeMillis() + openDurationMillis;
+        state = State.OPEN;
+        numOpened++;
+        LOG.warn("FitBit circuit breaker opened until " + openUntilMillis + ": " + reason);
+    }
+
+    // Helper method to add a call outcome to the window, replacing the oldest outcome if the window is full. Must be
+    // called with the lock held.
+    private void addToWindow(boolean failed) {
+        if (windowCount == window.length) {
+            if (window[windowIndex]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = failed;
+        if (failed) {
+            windowFailures++;
+        }
+        windowIndex = (windowIndex + 1) % window.length;
+    }
+
+    // Helper method to clear the window. Must be called with the lock held.
+    private void clearWindow() {
+        windowCount = 0;
+        windowIndex = 0;
+        windowFailures = 0;
+    }
+}
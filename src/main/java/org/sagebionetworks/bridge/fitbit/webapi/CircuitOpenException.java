@@ -0,0 +1,30 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the circuit breaker around the FitBit Web API is open, because too many recent calls failed or were too
+ * slow. The call was not made. It should be deferred until the circuit breaker lets calls through again.
+ */
+@SuppressWarnings("serial")
+public class CircuitOpenException extends IOException {
+    private final long retryTimeMillis;
+
+    /**
+     * Constructs a CircuitOpenException.
+     *
+     * @param message
+     *         exception message
+     * @param retryTimeMillis
+     *         time (epoch milliseconds) after which the call can be retried
+     */
+    public CircuitOpenException(String message, long retryTimeMillis) {
+        super(message);
+        this.retryTimeMillis = retryTimeMillis;
+    }
+
+    /** Time (epoch milliseconds) after which the call can be retried. Calls should be deferred until this time. */
+    public long getRetryTimeMillis() {
+        return retryTimeMillis;
+    }
+}
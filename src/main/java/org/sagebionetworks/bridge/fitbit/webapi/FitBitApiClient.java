@@ -0,0 +1,23 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Calls the FitBit Web API. The worker only depends on this interface, so that it can be pointed at something other
+ * than FitBit, such as a local stub server for load testing.
+ */
+public interface FitBitApiClient {
+    /**
+     * Makes a GET call to the given FitBit Web API URL, using the given access token. Error responses are returned
+     * rather than thrown, so that callers can read the rate limit headers. The endpoint ID identifies the endpoint for
+     * metrics.
+     */
+    FitBitResponse get(String endpointId, String url, String accessToken) throws IOException;
+
+    /**
+     * Non-blocking counterpart to {@link #get}. The returned future completes with the response, or completes
+     * exceptionally if the call couldn't be made.
+     */
+    CompletableFuture<FitBitResponse> getAsync(String endpointId, String url, String accessToken);
+}
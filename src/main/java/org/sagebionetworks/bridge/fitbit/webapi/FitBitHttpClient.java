@@ -0,0 +1,399 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * HTTP client for the FitBit Web API, and the default implementation of {@link FitBitApiClient}. Connections are
+ * pooled and kept alive between calls, so that concurrent calls to FitBit reuse connections (and their TLS sessions)
+ * instead of opening a new connection for every call. Idle connections are evicted in the background, so we don't try
+ * to reuse connections that FitBit has already closed.
+ *
+ * Calls can be made blocking, with {@link #get}, or non-blocking, with {@link #getAsync}. Non-blocking calls go
+ * through a separate NIO client, where a few I/O threads serve all in-flight calls, so the number of calls in flight
+ * isn't limited by the number of threads.
+ *
+ * Responses are requested gzipped. Successful JSON responses are kept compressed, as they came off the wire, and are
+ * only decompressed as callers parse them, so the decompressed body is never held in memory. The compressed body is
+ * buffered, since responses are parsed on the worker's parse stage (and copied into the response cache) after the
+ * connection has been returned to the pool. To bound that buffer, bodies larger than the max body size are rejected.
+ * Bytes received are counted for each endpoint as they're read off the wire, and bytes decompressed are counted as the
+ * body is actually decompressed.
+ */
+@Component
+public class FitBitHttpClient implements FitBitApiClient {
+    private static final Logger LOG = LoggerFactory.getLogger(FitBitHttpClient.class);
+
+    // Visible for testing
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10_000;
+    static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS = 30_000;
+    static final long DEFAULT_MAX_BODY_BYTES = 32L * 1024 * 1024;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 16;
+    static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 32;
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = 60_000;
+    static final String ENCODING_GZIP = "gzip";
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private final CloseableHttpAsyncClient asyncHttpClient;
+    private final ConcurrentMap<String, ByteCounts> byteCountsByEndpointId = new ConcurrentHashMap<>();
+    private final AtomicLong numAsyncRequests = new AtomicLong();
+    private final AtomicLong numRequests = new AtomicLong();
+    private final AtomicInteger maxLeasedConnections = new AtomicInteger();
+    private ScheduledExecutorService evictionExecutor;
+
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private long idleConnectionTimeoutMillis = DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS;
+    private long maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+    private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    /** Constructs the FitBit HTTP Client, with the default connection pool sizes. */
+    public FitBitHttpClient() {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+        connectionManager.setMaxTotal(DEFAULT_MAX_CONNECTIONS_TOTAL);
+        // We handle gzip ourselves, so that we can count bytes on the wire and stream the decompressed body into the
+        // JSON parser.
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager).disableContentCompression().build();
+
+        try {
+            asyncConnectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+        } catch (IOReactorException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        asyncConnectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+        asyncConnectionManager.setMaxTotal(DEFAULT_MAX_CONNECTIONS_TOTAL);
+        asyncHttpClient = HttpAsyncClients.custom().setConnectionManager(asyncConnectionManager).build();
+    }
+
+    /** Timeout for establishing a connection to FitBit, in milliseconds. Defaults to 10 seconds. */
+    public final void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Pooled connections that have been idle for longer than this are closed, in milliseconds. Defaults to 30
+     * seconds.
+     */
+    public final void setIdleConnectionTimeoutMillis(long idleConnectionTimeoutMillis) {
+        this.idleConnectionTimeoutMillis = idleConnectionTimeoutMillis;
+    }
+
+    /**
+     * Max size of a response body, in bytes, as it comes off the wire (before decompression). Responses with larger
+     * bodies fail with an HttpResponseException, which isn't retried. With the blocking client, the body is rejected
+     * as soon as it crosses the max. The NIO client receives the whole body before we see it, so the max only keeps
+     * oversized bodies from going further. Defaults to 32 MB.
+     */
+    public final void setMaxBodyBytes(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Max number of pooled connections to a single host. All calls go to the FitBit Web API, so this is effectively
+     * the max number of concurrent calls. Defaults to 16.
+     */
+    public final void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        asyncConnectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    }
+
+    /** Max number of pooled connections across all hosts. Defaults to 32. */
+    public final void setMaxConnectionsTotal(int maxConnectionsTotal) {
+        connectionManager.setMaxTotal(maxConnectionsTotal);
+        asyncConnectionManager.setMaxTotal(maxConnectionsTotal);
+    }
+
+    /** Timeout waiting for data from FitBit, in milliseconds. Defaults to 60 seconds. */
+    public final void setReadTimeoutMillis(int readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /** Starts the NIO client and the background thread that evicts idle connections from the pools. */
+    @PostConstruct
+    public void init() {
+        startAsyncClient();
+
+        evictionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("fitbit-http-eviction-%d").build());
+        long evictionPeriodMillis = Math.max(idleConnectionTimeoutMillis / 2, 1);
+        evictionExecutor.scheduleWithFixedDelay(this::evictIdleConnections, evictionPeriodMillis,
+                evictionPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops the eviction thread and closes all pooled connections. */
+    @PreDestroy
+    public void close() throws IOException {
+        if (evictionExecutor != null) {
+            evictionExecutor.shutdownNow();
+        }
+        httpClient.close();
+        asyncHttpClient.close();
+    }
+
+    /**
+     * Makes a GET call to the given FitBit Web API URL, using the given access token. Error responses are returned
+     * rather than thrown, so that callers can read the rate limit headers. The response body is read fully, so the
+     * connection is returned to the pool before this method returns. The endpoint ID is only used to count bytes.
+     */
+    @Override
+    public FitBitResponse get(String endpointId, String url, String accessToken) throws IOException {
+        numRequests.incrementAndGet();
+        try (CloseableHttpResponse response = httpClient.execute(makeRequest(url, accessToken))) {
+            maxLeasedConnections.accumulateAndGet(connectionManager.getTotalStats().getLeased(), Math::max);
+            return toFitBitResponse(endpointId, response);
+        }
+    }
+
+    /**
+     * Non-blocking counterpart to {@link #get}. The call is made on the NIO client, and the returned future completes
+     * on one of the client's I/O threads once the whole response has been received. Callers should hand off any
+     * slow or blocking work on the response to their own executor, so they don't hold up the I/O threads.
+     *
+     * The NIO client receives the whole (compressed) body before the future completes. Decompression and JSON parsing
+     * are still streamed, when the caller parses the response. See {@link #setMaxBodyBytes}.
+     */
+    @Override
+    public CompletableFuture<FitBitResponse> getAsync(String endpointId, String url, String accessToken) {
+        startAsyncClient();
+
+        CompletableFuture<FitBitResponse> future = new CompletableFuture<>();
+        numAsyncRequests.incrementAndGet();
+        asyncHttpClient.execute(makeRequest(url, accessToken), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    future.complete(toFitBitResponse(endpointId, response));
+                } catch (IOException | RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                future.completeExceptionally(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        maxLeasedConnections.accumulateAndGet(asyncConnectionManager.getTotalStats().getLeased(), Math::max);
+        return future;
+    }
+
+    /** Number of blocking calls made through this client. */
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    /** Number of non-blocking calls made through this client. */
+    public long getNumAsyncRequests() {
+        return numAsyncRequests.get();
+    }
+
+    /** Highest number of connections that were leased from either pool at once. */
+    public int getMaxLeasedConnections() {
+        return maxLeasedConnections.get();
+    }
+
+    /** Number of response body bytes received for the given endpoint, before decompression. */
+    public long getWireBytes(String endpointId) {
+        ByteCounts byteCounts = byteCountsByEndpointId.get(endpointId);
+        return byteCounts != null ? byteCounts.wireBytes.sum() : 0;
+    }
+
+    /** Number of response body bytes for the given endpoint, after decompression. */
+    public long getDecompressedBytes(String endpointId) {
+        ByteCounts byteCounts = byteCountsByEndpointId.get(endpointId);
+        return byteCounts != null ? byteCounts.decompressedBytes.sum() : 0;
+    }
+
+    /** Bytes received and decompressed for each endpoint, used for logging. */
+    public String getByteCountsString() {
+        StringBuilder builder = new StringBuilder("responseBytes[");
+        boolean first = true;
+        for (Map.Entry<String, ByteCounts> oneEntry : new TreeMap<>(byteCountsByEndpointId).entrySet()) {
+            if (!first) {
+                builder.append(", ");
+            }
+            first = false;
+            builder.append(oneEntry.getKey()).append("=").append(oneEntry.getValue().wireBytes.sum()).append("/")
+                    .append(oneEntry.getValue().decompressedBytes.sum());
+        }
+        return builder.append("]").toString();
+    }
+
+    /** Current connection pool stats, used for logging. */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /** Current NIO connection pool stats, used for logging. */
+    public PoolStats getAsyncPoolStats() {
+        return asyncConnectionManager.getTotalStats();
+    }
+
+    /** Pool utilization, used for logging. */
+    public String getMetricsString() {
+        PoolStats poolStats = connectionManager.getTotalStats();
+        PoolStats asyncPoolStats = asyncConnectionManager.getTotalStats();
+        return "httpPool[leased=" + (poolStats.getLeased() + asyncPoolStats.getLeased()) + ", maxLeased=" +
+                maxLeasedConnections.get() + ", available=" + (poolStats.getAvailable() +
+                asyncPoolStats.getAvailable()) + ", pending=" + (poolStats.getPending() +
+                asyncPoolStats.getPending()) + ", max=" + poolStats.getMax() + ", requests=" + numRequests.get() +
+                ", asyncRequests=" + numAsyncRequests.get() + "]";
+    }
+
+    // Visible for testing
+    void evictIdleConnections() {
+        try {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleConnectionTimeoutMillis, TimeUnit.MILLISECONDS);
+            asyncConnectionManager.closeExpiredConnections();
+            asyncConnectionManager.closeIdleConnections(idleConnectionTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException ex) {
+            LOG.warn("Error evicting idle connections: " + ex.getMessage(), ex);
+        }
+    }
+
+    // Helper method to start the NIO client, if it's not already started. The NIO client starts its own I/O threads,
+    // so we only start it when we need it.
+    private synchronized void startAsyncClient() {
+        if (!asyncHttpClient.isRunning()) {
+            asyncHttpClient.start();
+        }
+    }
+
+    // Helper method to make a GET request with the access token and timeouts.
+    private HttpGet makeRequest(String url, String accessToken) {
+        HttpGet request = new HttpGet(url);
+        request.setHeader("Authorization", "Bearer " + accessToken);
+        request.setHeader(HttpHeaders.ACCEPT_ENCODING, ENCODING_GZIP);
+        request.setConfig(RequestConfig.custom().setConnectTimeout(connectTimeoutMillis)
+                .setConnectionRequestTimeout(connectTimeoutMillis).setSocketTimeout(readTimeoutMillis).build());
+        return request;
+    }
+
+    // Helper method to read an HTTP response, including the body, into a FitBit response. Successful JSON bodies are
+    // kept raw, as they came off the wire, so that they're only decompressed as they're parsed, and their decompressed
+    // bytes are counted then. Other bodies (mostly error messages) are decompressed and read as strings.
+    private FitBitResponse toFitBitResponse(String endpointId, HttpResponse response) throws IOException {
+        int statusCode = response.getStatusLine().getStatusCode();
+        Map<String, String> headerMap = new HashMap<>();
+        for (Header oneHeader : response.getAllHeaders()) {
+            headerMap.put(oneHeader.getName(), oneHeader.getValue());
+        }
+
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return new FitBitResponse(statusCode, headerMap, null);
+        }
+
+        ByteCounts byteCounts = byteCountsByEndpointId.computeIfAbsent(endpointId, key -> new ByteCounts());
+        if (entity.getContentLength() > maxBodyBytes) {
+            // Don't read the body at all. Closing the response drops the connection.
+            throw new HttpResponseException(statusCode, "Response body for endpoint " + endpointId + " is " +
+                    entity.getContentLength() + " bytes, larger than the max of " + maxBodyBytes + " bytes");
+        }
+
+        // Read one byte past the max, so we can tell if the body is too large without reading all of it.
+        CountingInputStream wireStream = new CountingInputStream(ByteStreams.limit(entity.getContent(),
+                maxBodyBytes + 1));
+        byte[] rawBody;
+        try {
+            rawBody = ByteStreams.toByteArray(wireStream);
+        } finally {
+            wireStream.close();
+            byteCounts.wireBytes.add(wireStream.getCount());
+        }
+        if (rawBody.length > maxBodyBytes) {
+            throw new HttpResponseException(statusCode, "Response body for endpoint " + endpointId +
+                    " is larger than the max of " + maxBodyBytes + " bytes");
+        }
+
+        Header contentEncoding = entity.getContentEncoding();
+        boolean isGzip = contentEncoding != null && ENCODING_GZIP.equalsIgnoreCase(contentEncoding.getValue());
+        ContentType contentType = ContentType.getOrDefault(entity);
+        if (statusCode < 300 && contentType.getMimeType().contains("json")) {
+            if (rawBody.length == 0) {
+                return new FitBitResponse(statusCode, headerMap, "");
+            }
+            return new FitBitResponse(statusCode, headerMap, rawBody, isGzip, byteCounts.decompressedBytes::add);
+        }
+
+        InputStream rawBodyStream = new ByteArrayInputStream(rawBody);
+        CountingInputStream decompressedStream = new CountingInputStream(isGzip ? new GZIPInputStream(
+                rawBodyStream) : rawBodyStream);
+        try {
+            Charset charset = contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.UTF_8;
+            String body = new String(ByteStreams.toByteArray(decompressedStream), charset);
+            return new FitBitResponse(statusCode, headerMap, body);
+        } finally {
+            byteCounts.decompressedBytes.add(decompressedStream.getCount());
+        }
+    }
+
+    // Helper method to fail the response if we read more than the max body size off the wire.
+    private void checkBodySize(String endpointId, int statusCode, long numWireBytes) throws HttpResponseException {
+        if (numWireBytes > maxBodyBytes) {
+            throw new HttpResponseException(statusCode, "Response body for endpoint " + endpointId +
+                    " is larger than the max of " + maxBodyBytes + " bytes");
+        }
+    }
+
+    // Bytes received and decompressed for a single endpoint.
+    private static class ByteCounts {
+        final LongAdder wireBytes = new LongAdder();
+        final LongAdder decompressedBytes = new LongAdder();
+    }
+}
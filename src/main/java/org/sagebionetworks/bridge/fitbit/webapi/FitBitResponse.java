@@ -0,0 +1,215 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+/**
+ * Represents a response from the FitBit Web API. Encapsulates the status code, response headers, and body. The body is
+ * either a string, a JSON node, or the raw (possibly gzipped) bytes as they were read off the wire. Raw bodies are
+ * only decompressed and parsed when they're read, so callers can stream them through {@link #getBodyParser} without
+ * building a JSON tree. Bytes decompressed from a raw body can be reported to a counter, so that callers can measure
+ * how much was actually decompressed.
+ */
+public class FitBitResponse {
+    private final int statusCode;
+    private final Map<String, String> headers;
+    private final String body;
+    private final JsonNode bodyNode;
+    private final byte[] rawBody;
+    private final boolean rawBodyGzipped;
+    private final LongConsumer decompressedByteCounter;
+    private final AtomicBoolean decompressedBytesCounted = new AtomicBoolean();
+
+    /**
+     * Constructs a FitBit Response.
+     *
+     * @param statusCode
+     *         HTTP status code
+     * @param headers
+     *         response headers, keyed by header name
+     * @param body
+     *         response body, may be null if the response has no body
+     */
+    public FitBitResponse(int statusCode, Map<String, String> headers, String body) {
+        this(statusCode, headers, body, null);
+    }
+
+    /**
+     * Constructs a FitBit Response.
+     *
+     * @param statusCode
+     *         HTTP status code
+     * @param headers
+     *         response headers, keyed by header name
+     * @param body
+     *         response body, may be null if the response has no body or if the body was already parsed
+     * @param bodyNode
+     *         parsed response body, may be null if the body wasn't parsed
+     */
+    public FitBitResponse(int statusCode, Map<String, String> headers, String body, JsonNode bodyNode) {
+        this(statusCode, headers, body, bodyNode, null, false, null);
+    }
+
+    /**
+     * Constructs a FitBit Response.
+     *
+     * @param statusCode
+     *         HTTP status code
+     * @param headers
+     *         response headers, keyed by header name
+     * @param rawBody
+     *         raw UTF-8 response body, may be null if the response has no body
+     * @param rawBodyGzipped
+     *         true if the raw body is gzipped
+     */
+    public FitBitResponse(int statusCode, Map<String, String> headers, byte[] rawBody, boolean rawBodyGzipped) {
+        this(statusCode, headers, null, null, rawBody, rawBodyGzipped, null);
+    }
+
+    /**
+     * Constructs a FitBit Response.
+     *
+     * @param statusCode
+     *         HTTP status code
+     * @param headers
+     *         response headers, keyed by header name
+     * @param rawBody
+     *         raw UTF-8 response body, may be null if the response has no body
+     * @param rawBodyGzipped
+     *         true if the raw body is gzipped
+     * @param decompressedByteCounter
+     *         called with the number of bytes decompressed from the raw body, the first time the body is read and
+     *         its stream is closed, may be null
+     */
+    public FitBitResponse(int statusCode, Map<String, String> headers, byte[] rawBody, boolean rawBodyGzipped,
+            LongConsumer decompressedByteCounter) {
+        this(statusCode, headers, null, null, rawBody, rawBodyGzipped, decompressedByteCounter);
+    }
+
+    private FitBitResponse(int statusCode, Map<String, String> headers, String body, JsonNode bodyNode,
+            byte[] rawBody, boolean rawBodyGzipped, LongConsumer decompressedByteCounter) {
+        this.statusCode = statusCode;
+        this.body = body;
+        this.bodyNode = bodyNode;
+        this.rawBody = rawBody;
+        this.rawBodyGzipped = rawBodyGzipped;
+        this.decompressedByteCounter = decompressedByteCounter;
+
+        // Header names are case-insensitive.
+        this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (headers != null) {
+            this.headers.putAll(headers);
+        }
+    }
+
+    /** HTTP status code. */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /** Gets the value of the given response header. Header names are case-insensitive. Returns null if not present. */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Response body. May be null if the response has no body. If the body was parsed as it was read, this
+     * re-serializes it. If the body is raw, this decompresses it.
+     */
+    public String getBody() throws IOException {
+        if (rawBody != null) {
+            try (InputStream bodyStream = getRawBodyStream()) {
+                return new String(ByteStreams.toByteArray(bodyStream), StandardCharsets.UTF_8);
+            }
+        }
+        if (body == null && bodyNode != null) {
+            return bodyNode.toString();
+        }
+        return body;
+    }
+
+    /** Response body as JSON. If the body wasn't already parsed, this parses it. */
+    public JsonNode getBodyNode() throws IOException {
+        if (bodyNode != null) {
+            return bodyNode;
+        }
+        if (rawBody != null) {
+            try (InputStream bodyStream = getRawBodyStream()) {
+                return DefaultObjectMapper.INSTANCE.readTree(bodyStream);
+            }
+        }
+        return DefaultObjectMapper.INSTANCE.readTree(body);
+    }
+
+    /**
+     * Streaming JSON parser over the response body. Raw bodies are decompressed and parsed as the parser is advanced,
+     * so no JSON tree or string is built. Callers must close the parser. Returns null if the response has no body.
+     */
+    public JsonParser getBodyParser() throws IOException {
+        if (bodyNode != null) {
+            return bodyNode.traverse(DefaultObjectMapper.INSTANCE);
+        }
+        if (rawBody != null) {
+            return DefaultObjectMapper.INSTANCE.getFactory().createParser(getRawBodyStream());
+        }
+        if (body != null) {
+            return DefaultObjectMapper.INSTANCE.getFactory().createParser(body);
+        }
+        return null;
+    }
+
+    /** Raw response body, as read off the wire. Null if the body isn't raw. */
+    public byte[] getRawBody() {
+        return rawBody;
+    }
+
+    /** True if the raw response body is gzipped. */
+    public boolean isRawBodyGzipped() {
+        return rawBodyGzipped;
+    }
+
+    // Helper method to get the raw body as a decompressed stream. The first time the body is read, the bytes read
+    // from the stream are reported to the decompressed byte counter when the stream is closed. Later reads (for
+    // example, parsing a body that was already copied into the response cache) aren't counted again.
+    private InputStream getRawBodyStream() throws IOException {
+        InputStream bodyStream = new ByteArrayInputStream(rawBody);
+        if (rawBodyGzipped) {
+            bodyStream = new GZIPInputStream(bodyStream);
+        }
+        if (decompressedByteCounter == null || !decompressedBytesCounted.compareAndSet(false, true)) {
+            return bodyStream;
+        }
+
+        CountingInputStream countingStream = new CountingInputStream(bodyStream);
+        return new FilterInputStream(countingStream) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!closed) {
+                        closed = true;
+                        decompressedByteCounter.accept(countingStream.getCount());
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,22 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * Thrown when FitBit rejects a user's access token, for example because the user revoked access or the token expired.
+ * This is terminal for the user. All other calls for this user will fail the same way, so they should be skipped.
+ */
+@SuppressWarnings("serial")
+public class InvalidTokenException extends HttpResponseException {
+    /**
+     * Constructs an InvalidTokenException.
+     *
+     * @param statusCode
+     *         HTTP status code
+     * @param message
+     *         exception message
+     */
+    public InvalidTokenException(int statusCode, String message) {
+        super(statusCode, message);
+    }
+}
@@ -0,0 +1,155 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tracks each FitBit user's FitBit Web API rate limit, using the rate limit headers FitBit returns with every
+ * response. Each user has a token bucket, which holds the number of calls remaining before the user's rate limit
+ * window resets. Users with plenty of quota are called without any throttling. Users who are at or near their limit
+ * are deferred until their rate limit resets.
+ */
+@Component
+public class RateLimitTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(RateLimitTracker.class);
+
+    // Visible for testing
+    static final long DEFAULT_RESET_MILLIS = 60 * 60 * 1000;
+    static final String HEADER_RATE_LIMIT_LIMIT = "Fitbit-Rate-Limit-Limit";
+    static final String HEADER_RATE_LIMIT_REMAINING = "Fitbit-Rate-Limit-Remaining";
+    static final String HEADER_RATE_LIMIT_RESET = "Fitbit-Rate-Limit-Reset";
+    static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    /** HTTP status code FitBit returns when the user is over their rate limit. */
+    public static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+    private final ConcurrentMap<String, TokenBucket> bucketsByUserId = new ConcurrentHashMap<>();
+    private int reservedCalls = 0;
+
+    /**
+     * Number of calls to hold in reserve for each user. If a user's remaining calls drops to this number, that user is
+     * deferred until their rate limit resets. Defaults to 0.
+     */
+    public final void setReservedCalls(int reservedCalls) {
+        this.reservedCalls = reservedCalls;
+    }
+
+    /**
+     * Acquires a call from the given user's token bucket. If we've never seen this user before, or if the user's rate
+     * limit window has reset, this returns immediately. If the user is out of calls, this throws a
+     * UserRateLimitedException, which includes the time the user's rate limit resets.
+     */
+    public void acquire(String userId) throws UserRateLimitedException {
+        TokenBucket bucket = bucketsByUserId.get(userId);
+        if (bucket == null) {
+            // We don't know anything about this user's rate limit, so assume they have plenty of quota.
+            return;
+        }
+
+        long now = DateTimeUtils.currentTimeMillis();
+        synchronized (bucket) {
+            if (now >= bucket.resetTimeMillis) {
+                // Rate limit window has reset. Forget this user until we get new headers from FitBit.
+                bucketsByUserId.remove(userId, bucket);
+                return;
+            }
+
+            if (bucket.remainingCalls <= reservedCalls) {
+                throw new UserRateLimitedException("User " + userId + " is rate limited until " +
+                        bucket.resetTimeMillis, bucket.resetTimeMillis);
+            }
+            bucket.remainingCalls--;
+        }
+    }
+
+    /**
+     * Gives back a call acquired with {@link #acquire}, for a call that was never made (for example, because the
+     * circuit breaker rejected it). Does nothing if we don't know anything about this user's rate limit, or if the
+     * user's rate limit window has reset since.
+     */
+    public void release(String userId) {
+        TokenBucket bucket = bucketsByUserId.get(userId);
+        if (bucket == null) {
+            return;
+        }
+
+        long now = DateTimeUtils.currentTimeMillis();
+        synchronized (bucket) {
+            if (now < bucket.resetTimeMillis) {
+                bucket.remainingCalls++;
+            }
+        }
+    }
+
+    /**
+     * Updates the given user's token bucket using the rate limit headers from the given FitBit response. If the
+     * response is a 429 Too Many Requests, the user is marked as out of calls until the rate limit resets.
+     */
+    public void update(String userId, FitBitResponse response) {
+        Integer remaining = parseIntHeader(response, HEADER_RATE_LIMIT_REMAINING);
+        Integer resetSeconds = parseIntHeader(response, HEADER_RATE_LIMIT_RESET);
+        boolean isTooManyRequests = response.getStatusCode() == STATUS_TOO_MANY_REQUESTS;
+
+        if (isTooManyRequests) {
+            // We've already exhausted our calls. If we don't know when the rate limit resets, fall back to
+            // Retry-After, and failing that, assume the hourly window.
+            remaining = 0;
+            if (resetSeconds == null) {
+                resetSeconds = parseIntHeader(response, HEADER_RETRY_AFTER);
+            }
+        }
+
+        if (remaining == null) {
+            // Not enough info to update the bucket.
+            return;
+        }
+
+        long now = DateTimeUtils.currentTimeMillis();
+        long resetTimeMillis = resetSeconds != null ? now + resetSeconds * 1000L : now + DEFAULT_RESET_MILLIS;
+        bucketsByUserId.put(userId, new TokenBucket(remaining, resetTimeMillis));
+
+        if (remaining <= reservedCalls) {
+            LOG.info("User " + userId + " is out of FitBit calls until " + resetTimeMillis + ", limit=" +
+                    response.getHeader(HEADER_RATE_LIMIT_LIMIT));
+        }
+    }
+
+    /**
+     * Returns the time (epoch milliseconds) when the given user's rate limit resets, or 0 if we don't know anything
+     * about this user's rate limit.
+     */
+    public long getResetTimeMillis(String userId) {
+        TokenBucket bucket = bucketsByUserId.get(userId);
+        return bucket != null ? bucket.resetTimeMillis : 0;
+    }
+
+    // Helper method to parse an int header. Returns null if the header doesn't exist or isn't a valid int.
+    private static Integer parseIntHeader(FitBitResponse response, String name) {
+        String value = response.getHeader(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException ex) {
+            LOG.warn("Invalid value for header " + name + ": " + value);
+            return null;
+        }
+    }
+
+    // Per-user token bucket. Access to remainingCalls is synchronized on the bucket.
+    private static class TokenBucket {
+        private final long resetTimeMillis;
+        private int remainingCalls;
+
+        TokenBucket(int remainingCalls, long resetTimeMillis) {
+            this.remainingCalls = remainingCalls;
+            this.resetTimeMillis = resetTimeMillis;
+        }
+    }
+}
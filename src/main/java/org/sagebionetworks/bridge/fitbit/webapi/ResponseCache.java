@@ -0,0 +1,272 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+/**
+ * Local on-disk cache of successful FitBit responses, so that re-running a date doesn't spend FitBit quota on data we
+ * already downloaded. Entries are keyed by the user's health code and the resolved endpoint URL, and stored as
+ * gzipped JSON, one file per entry. When the cache grows past its max size, the least recently used entries are
+ * evicted. Entries older than the max age are treated as misses and deleted.
+ *
+ * The cache is disabled until a cache directory is set. Callers are responsible for only caching data that won't
+ * change, such as data for dates that are already over.
+ */
+@Component
+public class ResponseCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
+
+    // Visible for testing
+    static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+    static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+    static final String FILE_SUFFIX = ".json.gz";
+    static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final ConcurrentMap<String, CacheEntry> entriesByKey = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final LongAdder numEvictions = new LongAdder();
+    private final LongAdder numHits = new LongAdder();
+    private final LongAdder numMisses = new LongAdder();
+
+    private File cacheDir;
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private boolean loaded = false;
+
+    /**
+     * Directory to store cached responses in. Entries already in the directory (for example, from a previous run) are
+     * used. If this is not set, the cache is disabled.
+     */
+    public final void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /** Cached responses older than this, in milliseconds, are not used. Defaults to 7 days. */
+    public final void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /** Max total size of the cache on disk, in bytes. Defaults to 1 GB. */
+    public final void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** True if the cache is enabled, that is, if a cache directory is set. */
+    public boolean isEnabled() {
+        return cacheDir != null;
+    }
+
+    /**
+     * Returns the cached response for the given user and URL, or null if it's not cached or if the cache is disabled.
+     * Errors reading the cache are logged and treated as misses.
+     */
+    public FitBitResponse get(String healthCode, String url) {
+        if (!isEnabled()) {
+            return null;
+        }
+        loadIfNeeded();
+
+        String key = makeKey(healthCode, url);
+        CacheEntry entry = entriesByKey.get(key);
+        if (entry == null) {
+            numMisses.increment();
+            return null;
+        }
+
+        long now = DateTimeUtils.currentTimeMillis();
+        if (now - entry.createdOn > maxAgeMillis) {
+            // Too old. Delete it, so we can cache a fresh copy.
+            removeEntry(key, entry);
+            numMisses.increment();
+            return null;
+        }
+
+        File file = getFile(key);
+        try {
+            // Return the body still gzipped, so it's only decompressed when it's parsed. Check the gzip stream (and its
+            // CRC) up front, so that corrupt entries are misses.
+            byte[] gzippedBody = Files.readAllBytes(file.toPath());
+            try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(gzippedBody))) {
+                ByteStreams.exhaust(inputStream);
+            }
+            entry.lastAccessedOn = now;
+            numHits.increment();
+            return new FitBitResponse(200, ImmutableMap.of(), gzippedBody, true);
+        } catch (IOException ex) {
+            LOG.warn("Error reading cached response " + file.getName() + ": " + ex.getMessage(), ex);
+            removeEntry(key, entry);
+            numMisses.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Caches the given response for the given user and URL. Does nothing if the cache is disabled. Errors writing the
+     * cache are logged and swallowed.
+     */
+    public void put(String healthCode, String url, FitBitResponse response) {
+        if (!isEnabled()) {
+            return;
+        }
+        loadIfNeeded();
+
+        String key = makeKey(healthCode, url);
+        File file = getFile(key);
+        File tempFile = new File(cacheDir, key + TEMP_FILE_SUFFIX + "." + Thread.currentThread().getId());
+        try {
+            // Copy the body token by token, so that invalid JSON isn't cached, without building a JSON tree.
+            try (JsonParser parser = response.getBodyParser();
+                    JsonGenerator generator = DefaultObjectMapper.INSTANCE.getFactory().createGenerator(
+                            new GZIPOutputStream(Files.newOutputStream(tempFile.toPath())))) {
+                if (parser == null || parser.nextToken() == null) {
+                    throw new IOException("Response has no body");
+                }
+                generator.copyCurrentStructure(parser);
+            }
+
+            // Write to a temp file and rename, so readers never see a partial file.
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOG.warn("Error caching response " + file.getName() + ": " + ex.getMessage(), ex);
+            tempFile.delete();
+            return;
+        }
+
+        long now = DateTimeUtils.currentTimeMillis();
+        CacheEntry oldEntry = entriesByKey.put(key, new CacheEntry(file.length(), now));
+        if (oldEntry != null) {
+            totalBytes.addAndGet(-oldEntry.numBytes);
+        }
+        totalBytes.addAndGet(file.length());
+        evictIfNeeded();
+    }
+
+    /** Total size of the cache on disk, in bytes. */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /** Cache hits, misses, evictions, and size, used for logging. */
+    public String getMetricsString() {
+        return "responseCache[hits=" + numHits.sum() + ", misses=" + numMisses.sum() + ", evictions=" +
+                numEvictions.sum() + ", entries=" + entriesByKey.size() + ", bytes=" + totalBytes.get() + "]";
+    }
+
+    // Helper method to load the index of existing cache entries from the cache directory, the first time the cache is
+    // used. Files are dated by their last modified time.
+    private synchronized void loadIfNeeded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            LOG.warn("Could not create response cache dir " + cacheDir);
+        }
+        File[] fileArray = cacheDir.listFiles();
+        if (fileArray == null) {
+            return;
+        }
+        for (File oneFile : fileArray) {
+            String fileName = oneFile.getName();
+            if (fileName.endsWith(FILE_SUFFIX)) {
+                String key = fileName.substring(0, fileName.length() - FILE_SUFFIX.length());
+                entriesByKey.put(key, new CacheEntry(oneFile.length(), oneFile.lastModified()));
+                totalBytes.addAndGet(oneFile.length());
+            } else if (fileName.contains(TEMP_FILE_SUFFIX)) {
+                // Left over from a crash.
+                oneFile.delete();
+            }
+        }
+        LOG.info("Loaded response cache from " + cacheDir + ": " + getMetricsString());
+        evictIfNeeded();
+    }
+
+    // Helper method to evict the least recently used entries until the cache fits in its max size.
+    private synchronized void evictIfNeeded() {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+
+        // get() updates access times without the lock, so snapshot them. Otherwise, the sort order could change in the
+        // middle of the sort.
+        Map<String, Long> lastAccessedOnByKey = new HashMap<>();
+        for (Map.Entry<String, CacheEntry> oneMapEntry : entriesByKey.entrySet()) {
+            lastAccessedOnByKey.put(oneMapEntry.getKey(), oneMapEntry.getValue().lastAccessedOn);
+        }
+        List<String> keyList = new ArrayList<>(lastAccessedOnByKey.keySet());
+        keyList.sort(Comparator.comparingLong(lastAccessedOnByKey::get));
+        for (String oneKey : keyList) {
+            if (totalBytes.get() <= maxBytes) {
+                break;
+            }
+            CacheEntry entry = entriesByKey.get(oneKey);
+            if (entry != null) {
+                removeEntry(oneKey, entry);
+                numEvictions.increment();
+            }
+        }
+    }
+
+    // Helper method to remove an entry from the index and delete its file.
+    private void removeEntry(String key, CacheEntry entry) {
+        if (entriesByKey.remove(key, entry)) {
+            totalBytes.addAndGet(-entry.numBytes);
+            getFile(key).delete();
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(cacheDir, key + FILE_SUFFIX);
+    }
+
+    // Helper method to make the cache key. URLs can be long and contain characters that aren't safe in file names, so
+    // we hash them.
+    // Visible for testing
+    static String makeKey(String healthCode, String url) {
+        return Hashing.sha256().hashString(healthCode + '\n' + url, StandardCharsets.UTF_8).toString();
+    }
+
+    // Index entry for a single cached response.
+    private static class CacheEntry {
+        final long numBytes;
+        final long createdOn;
+        volatile long lastAccessedOn;
+
+        CacheEntry(long numBytes, long createdOn) {
+            this.numBytes = numBytes;
+            this.createdOn = createdOn;
+            this.lastAccessedOn = createdOn;
+        }
+    }
+}
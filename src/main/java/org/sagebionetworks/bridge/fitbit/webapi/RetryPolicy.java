@@ -0,0 +1,168 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.client.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Retries FitBit calls that fail with transient errors, using exponential backoff with full jitter. If FitBit sends a
+ * Retry-After header, we wait that long instead. Retries are scheduled on a timer thread rather than sleeping, so a
+ * call that's backing off doesn't hold up a worker thread.
+ *
+ * Retryable errors are 408, 500, 502, 503, and 504 responses, and I/O errors like timeouts and dropped connections.
+ * Other error responses, rate limits (which are deferred until the user's rate limit resets), and malformed JSON are
+ * terminal.
+ */
+@Component
+public class RetryPolicy {
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    // Visible for testing
+    static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+    static final int DEFAULT_MAX_ATTEMPTS = 4;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 30_000;
+
+    /** Status codes that indicate a transient error. */
+    public static final Set<Integer> RETRYABLE_STATUS_CODES = ImmutableSet.of(408, 500, 502, 503, 504);
+
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fitbit-retry-%d").build());
+    private final LongAdder numRetries = new LongAdder();
+
+    private long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+    /** Backoff before the first retry, in milliseconds. Each retry doubles this. Defaults to 1 second. */
+    public final void setBaseDelayMillis(long baseDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+    }
+
+    /** Max number of attempts for each call, including the first. Defaults to 4. */
+    public final void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Max backoff, in milliseconds. If FitBit asks us to wait longer than this, we give up instead. Defaults to 30
+     * seconds.
+     */
+    public final void setMaxDelayMillis(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /** Stops the retry timer. Retries that haven't started yet are dropped. */
+    @PreDestroy
+    public void close() {
+        retryScheduler.shutdownNow();
+    }
+
+    /** Number of retries so far, used for logging. */
+    public long getNumRetries() {
+        return numRetries.sum();
+    }
+
+    /**
+     * Makes a call, retrying transient errors. The first attempt runs on the calling thread. Retries run on the given
+     * executor, once their backoff has elapsed. The returned future completes with the first successful result, or
+     * with the last error if the error is terminal or we run out of attempts.
+     */
+    public <T> CompletableFuture<T> execute(String description, Supplier<CompletableFuture<T>> attemptSupplier,
+            Executor executor) {
+        CompletableFuture<T> resultFuture = new CompletableFuture<>();
+        runAttempt(description, attemptSupplier, executor, 1, resultFuture);
+        return resultFuture;
+    }
+
+    // Helper method to run a single attempt and schedule the next attempt if it fails with a transient error.
+    private <T> void runAttempt(String description, Supplier<CompletableFuture<T>> attemptSupplier, Executor executor,
+            int attemptNum, CompletableFuture<T> resultFuture) {
+        CompletableFuture<T> attemptFuture;
+        try {
+            attemptFuture = attemptSupplier.get();
+        } catch (RuntimeException ex) {
+            attemptFuture = new CompletableFuture<>();
+            attemptFuture.completeExceptionally(ex);
+        }
+
+        attemptFuture.whenComplete((result, ex) -> {
+            if (ex == null) {
+                resultFuture.complete(result);
+                return;
+            }
+
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            long delayMillis = getRetryDelayMillis(cause, attemptNum);
+            if (delayMillis < 0) {
+                resultFuture.completeExceptionally(cause);
+                return;
+            }
+
+            numRetries.increment();
+            LOG.info("Retrying " + description + " in " + delayMillis + " milliseconds after attempt " + attemptNum +
+                    " failed: " + cause.getMessage());
+            try {
+                retryScheduler.schedule(() -> executor.execute(() -> runAttempt(description, attemptSupplier,
+                        executor, attemptNum + 1, resultFuture)), delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException scheduleEx) {
+                // Scheduler or executor was shut down.
+                resultFuture.completeExceptionally(cause);
+            }
+        });
+    }
+
+    // Returns how long to wait before retrying after the given attempt failed with the given error, in milliseconds,
+    // or -1 if we shouldn't retry.
+    // Visible for testing
+    long getRetryDelayMillis(Throwable error, int attemptNum) {
+        if (attemptNum >= maxAttempts || !isRetryable(error)) {
+            return -1;
+        }
+
+        if (error instanceof RetryableResponseException) {
+            long retryAfterMillis = ((RetryableResponseException) error).getRetryAfterMillis();
+            if (retryAfterMillis > maxDelayMillis) {
+                // Not worth waiting that long. Give up.
+                return -1;
+            } else if (retryAfterMillis > 0) {
+                return retryAfterMillis;
+            }
+        }
+
+        // Exponential backoff with full jitter. Cap the shift so it doesn't overflow.
+        long backoffMillis = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attemptNum - 1, 30));
+        return ThreadLocalRandom.current().nextLong(backoffMillis + 1);
+    }
+
+    /** True if the given error is transient, and the call should be retried. */
+    public static boolean isRetryable(Throwable error) {
+        if (error instanceof RetryableResponseException) {
+            return true;
+        } else if (error instanceof HttpResponseException || error instanceof UserRateLimitedException ||
+                error instanceof CircuitOpenException || error instanceof JsonProcessingException) {
+            // Terminal error responses, rate limits, open circuits, and malformed JSON won't go away if we retry.
+            return false;
+        } else {
+            // Other I/O errors are timeouts, dropped connections, and the like.
+            return error instanceof IOException;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * Thrown when FitBit returns an error status code that's likely to be transient, such as a 503 Service Unavailable.
+ * The call can be retried, after waiting for the Retry-After time, if FitBit specified one.
+ */
+@SuppressWarnings("serial")
+public class RetryableResponseException extends HttpResponseException {
+    private final long retryAfterMillis;
+
+    /**
+     * Constructs a RetryableResponseException.
+     *
+     * @param statusCode
+     *         HTTP status code
+     * @param message
+     *         exception message
+     * @param retryAfterMillis
+     *         how long FitBit asked us to wait before retrying, in milliseconds, or 0 if FitBit didn't say
+     */
+    public RetryableResponseException(int statusCode, String message, long retryAfterMillis) {
+        super(statusCode, message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /** How long FitBit asked us to wait before retrying, in milliseconds, or 0 if FitBit didn't say. */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
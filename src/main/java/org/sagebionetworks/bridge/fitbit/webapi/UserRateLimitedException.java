@@ -0,0 +1,30 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a FitBit user has exhausted (or nearly exhausted) their FitBit Web API rate limit. Calls for this user
+ * should be deferred until the rate limit resets.
+ */
+@SuppressWarnings("serial")
+public class UserRateLimitedException extends IOException {
+    private final long resetTimeMillis;
+
+    /**
+     * Constructs a UserRateLimitedException.
+     *
+     * @param message
+     *         exception message
+     * @param resetTimeMillis
+     *         time (epoch milliseconds) when the user's rate limit resets
+     */
+    public UserRateLimitedException(String message, long resetTimeMillis) {
+        super(message);
+        this.resetTimeMillis = resetTimeMillis;
+    }
+
+    /** Time (epoch milliseconds) when the user's rate limit resets. Calls should be deferred until this time. */
+    public long getResetTimeMillis() {
+        return resetTimeMillis;
+    }
+}
@@ -0,0 +1,65 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Counting permits that callers can wait for without holding a thread. If a permit is free, acquire() returns a future
+ * that's already complete. Otherwise, the caller is queued, and the future completes once another caller releases a
+ * permit, in the order the callers were queued. The released permit is handed directly to the next queued caller, so
+ * callers that arrive later can't take it first.
+ *
+ * Blocking callers can join() the future. Non-blocking callers should chain the rest of their work onto the future
+ * with an async method and an executor, since the future completes on the thread that released the permit.
+ *
+ * This class is thread-safe.
+ */
+class AsyncPermits {
+    // Guarded by this.
+    private int numAvailablePermits;
+    private final Queue<CompletableFuture<Void>> waiterQueue = new ArrayDeque<>();
+
+    /** Constructs Async Permits with the given number of permits. */
+    AsyncPermits(int numPermits) {
+        this.numAvailablePermits = numPermits;
+    }
+
+    /** Returns a future that completes once the caller has a permit. The caller must release the permit when done. */
+    synchronized CompletableFuture<Void> acquire() {
+        if (numAvailablePermits > 0) {
+            numAvailablePermits--;
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> waiterFuture = new CompletableFuture<>();
+        waiterQueue.add(waiterFuture);
+        return waiterFuture;
+    }
+
+    /** Releases a permit. If callers are waiting, the permit goes to the caller that's been waiting longest. */
+    void release() {
+        CompletableFuture<Void> waiterFuture;
+        synchronized (this) {
+            waiterFuture = waiterQueue.poll();
+            if (waiterFuture == null) {
+                numAvailablePermits++;
+                return;
+            }
+        }
+
+        // Complete the waiter outside the lock, since this runs the waiter's chained work if it isn't async.
+        waiterFuture.complete(null);
+    }
+
+    // Number of permits that are free right now.
+    // Visible for testing
+    synchronized int getNumAvailablePermits() {
+        return numAvailablePermits;
+    }
+
+    // Number of callers waiting for a permit.
+    // Visible for testing
+    synchronized int getNumWaiters() {
+        return waiterQueue.size();
+    }
+}
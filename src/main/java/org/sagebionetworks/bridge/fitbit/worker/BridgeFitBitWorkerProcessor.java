@@ -3,8 +3,19 @@ package org.sagebionetworks.bridge.fitbit.worker;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -12,7 +23,16 @@ import javax.annotation.Resource;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.SetMultimap;
 import com.google.common.util.concurrent.RateLimiter;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,8 +41,18 @@ import org.springframework.stereotype.Component;
 import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.fitbit.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.fitbit.bridge.FitBitUser;
+import org.sagebionetworks.bridge.fitbit.checkpoint.CheckpointStore;
+import org.sagebionetworks.bridge.fitbit.checkpoint.DateCheckpoints;
 import org.sagebionetworks.bridge.fitbit.schema.EndpointSchema;
 import org.sagebionetworks.bridge.fitbit.util.Utils;
+import org.sagebionetworks.bridge.fitbit.webapi.CircuitBreaker;
+import org.sagebionetworks.bridge.fitbit.webapi.CircuitOpenException;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitHttpClient;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitResponse;
+import org.sagebionetworks.bridge.fitbit.webapi.InvalidTokenException;
+import org.sagebionetworks.bridge.fitbit.webapi.ResponseCache;
+import org.sagebionetworks.bridge.fitbit.webapi.RetryPolicy;
+import org.sagebionetworks.bridge.fitbit.webapi.UserRateLimitedException;
 import org.sagebionetworks.bridge.rest.model.Study;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.worker.ThrowingConsumer;
@@ -32,16 +62,55 @@ import org.sagebionetworks.bridge.worker.ThrowingConsumer;
 public class BridgeFitBitWorkerProcessor implements ThrowingConsumer<JsonNode> {
     private static final Logger LOG = LoggerFactory.getLogger(BridgeFitBitWorkerProcessor.class);
 
+    private static final int DEFAULT_MAX_CONCURRENT_CALLS_PER_ENDPOINT = 4;
+    private static final int DEFAULT_MAX_DATE_RANGE_DAYS = 31;
+    private static final long DEFAULT_MAX_DEFERRAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int DEFAULT_MAX_OUTSTANDING_CALLS_PER_STUDY = 100;
+    private static final long DEFAULT_MEMORY_BUDGET_BYTES_PER_STUDY = 512L * 1024 * 1024;
+    private static final int DEFAULT_NUM_STUDY_THREADS = 2;
+    private static final int DEFAULT_NUM_PARSE_THREADS = 2;
+    private static final int DEFAULT_NUM_SINK_THREADS = 1;
+    private static final int DEFAULT_NUM_TABLE_THREADS = 4;
+    private static final int DEFAULT_NUM_UPLOAD_THREADS = 1;
+    private static final int DEFAULT_NUM_USER_THREADS = 4;
+    private static final int DEFAULT_PIPELINE_QUEUE_CAPACITY = 100;
+    private static final DateCheckpoints EMPTY_CHECKPOINTS = new DateCheckpoints.Builder().build();
     private static final int REPORTING_INTERVAL = 10;
     static final String REQUEST_PARAM_DATE = "date";
+    static final String REQUEST_PARAM_END_DATE = "endDate";
+    static final String REQUEST_PARAM_SHARD_COUNT = "shardCount";
+    static final String REQUEST_PARAM_SHARD_INDEX = "shardIndex";
+    static final String REQUEST_PARAM_START_DATE = "startDate";
     static final String REQUEST_PARAM_STUDY_WHITELIST = "studyWhitelist";
 
     private final RateLimiter perStudyRateLimiter = RateLimiter.create(1.0);
-    private final RateLimiter perUserRateLimiter = RateLimiter.create(1.0);
+
+    private final ConcurrentMap<String, AsyncPermits> endpointPermitsById = new ConcurrentHashMap<>();
+
+    private int maxConcurrentCallsPerEndpoint = DEFAULT_MAX_CONCURRENT_CALLS_PER_ENDPOINT;
+    private int maxDateRangeDays = DEFAULT_MAX_DATE_RANGE_DAYS;
+    private long maxDeferralMillis = DEFAULT_MAX_DEFERRAL_MILLIS;
+    private int maxOutstandingCallsPerStudy = DEFAULT_MAX_OUTSTANDING_CALLS_PER_STUDY;
+    private long memoryBudgetBytesPerStudy = DEFAULT_MEMORY_BUDGET_BYTES_PER_STUDY;
+    private int numStudyThreads = DEFAULT_NUM_STUDY_THREADS;
+    private int numParseThreads = DEFAULT_NUM_PARSE_THREADS;
+    private int numSinkThreads = DEFAULT_NUM_SINK_THREADS;
+    private int numTableThreads = DEFAULT_NUM_TABLE_THREADS;
+    private int numUploadThreads = DEFAULT_NUM_UPLOAD_THREADS;
+    private int numUserThreads = DEFAULT_NUM_USER_THREADS;
+    private int pipelineQueueCapacity = DEFAULT_PIPELINE_QUEUE_CAPACITY;
+    private boolean streamRowsToTsv = false;
+    private boolean useAsyncHttp = false;
+    private boolean useVirtualThreads = false;
 
     private BridgeHelper bridgeHelper;
+    private CheckpointStore checkpointStore;
+    private CircuitBreaker circuitBreaker;
+    private FitBitHttpClient fitBitHttpClient;
     private List<EndpointSchema> endpointSchemas;
     private FileHelper fileHelper;
+    private ResponseCache responseCache;
+    private RetryPolicy retryPolicy;
     private TableProcessor tableProcessor;
     private UserProcessor userProcessor;
 
@@ -51,6 +120,24 @@ public class BridgeFitBitWorkerProcessor implements ThrowingConsumer<JsonNode> {
         this.bridgeHelper = bridgeHelper;
     }
 
+    /** Checkpoint Store, used to skip work that was already done by a previous run of the same request. */
+    @Autowired
+    public final void setCheckpointStore(CheckpointStore checkpointStore) {
+        this.checkpointStore = checkpointStore;
+    }
+
+    /** Circuit breaker around the FitBit Web API. The processor only uses this to log circuit breaker metrics. */
+    @Autowired
+    public final void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /** FitBit HTTP client. The processor only uses this to log connection pool metrics. */
+    @Autowired
+    public final void setFitBitHttpClient(FitBitHttpClient fitBitHttpClient) {
+        this.fitBitHttpClient = fitBitHttpClient;
+    }
+
     /** Endpoint Schemas */
     @Resource(name = "endpointSchemas")
     public final void setEndpointSchemas(List<EndpointSchema> endpointSchemas) {
@@ -63,16 +150,140 @@ public class BridgeFitBitWorkerProcessor implements ThrowingConsumer<JsonNode> {
         this.fileHelper = fileHelper;
     }
 
+    /** Response cache. The processor only uses this to log cache metrics. */
+    @Autowired
+    public final void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /** Retry policy, used to retry FitBit calls that fail with transient errors. */
+    @Autowired
+    public final void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Max number of concurrent calls to any one endpoint, across all users and studies. This must be set before the
+     * worker starts processing requests. Defaults to 4.
+     */
+    public final void setMaxConcurrentCallsPerEndpoint(int maxConcurrentCallsPerEndpoint) {
+        this.maxConcurrentCallsPerEndpoint = maxConcurrentCallsPerEndpoint;
+    }
+
+    /**
+     * Max number of days, inclusive, that a single request's date range can cover. Requests with longer date ranges
+     * are rejected, and should be split into smaller backfills. Defaults to 31.
+     */
+    public final void setMaxDateRangeDays(int maxDateRangeDays) {
+        this.maxDateRangeDays = maxDateRangeDays;
+    }
+
+    /**
+     * Max time, in milliseconds, that the worker will wait for a rate-limited user's rate limit to reset before giving
+     * up on that user. Defaults to 1 hour, which is FitBit's rate limit window.
+     */
+    public final void setMaxDeferralMillis(long maxDeferralMillis) {
+        this.maxDeferralMillis = maxDeferralMillis;
+    }
+
+    /**
+     * Max number of endpoint calls that can be outstanding at a time within a study, including calls that are waiting
+     * to retry. Users don't wait for their own calls to finish, so once this many calls are outstanding, the fetch
+     * stage blocks until one finishes. Defaults to 100.
+     */
+    public final void setMaxOutstandingCallsPerStudy(int maxOutstandingCallsPerStudy) {
+        this.maxOutstandingCallsPerStudy = maxOutstandingCallsPerStudy;
+    }
+
+    /**
+     * Estimated memory, in bytes, that each study's tables can use to keep rows in memory. Once a study's tables cross
+     * this budget, the largest tables spill their rows to disk in the study's temp dir, and the spilled rows are
+     * merged back in when the table is uploaded. Defaults to 512 MB.
+     */
+    public final void setMemoryBudgetBytesPerStudy(long memoryBudgetBytesPerStudy) {
+        this.memoryBudgetBytesPerStudy = memoryBudgetBytesPerStudy;
+    }
+
+    /**
+     * Number of threads in each study's parse stage, which parses FitBit responses into table rows. Defaults to 2.
+     */
+    public final void setNumParseThreads(int numParseThreads) {
+        this.numParseThreads = numParseThreads;
+    }
+
+    /**
+     * Number of threads in each study's sink stage, which adds table rows to the populated tables. Defaults to 1.
+     */
+    public final void setNumSinkThreads(int numSinkThreads) {
+        this.numSinkThreads = numSinkThreads;
+    }
+
+    /** Number of studies to process concurrently. Defaults to 2. */
+    public final void setNumStudyThreads(int numStudyThreads) {
+        this.numStudyThreads = numStudyThreads;
+    }
+
+    /** Number of tables to upload concurrently within a study. Defaults to 4. */
+    public final void setNumTableThreads(int numTableThreads) {
+        this.numTableThreads = numTableThreads;
+    }
+
+    /**
+     * Number of studies whose tables are uploaded to Synapse concurrently. Uploads run in the background, overlapping
+     * with fetching the next study's users. Defaults to 1.
+     */
+    public final void setNumUploadThreads(int numUploadThreads) {
+        this.numUploadThreads = numUploadThreads;
+    }
+
+    /**
+     * Number of users to process concurrently within a study. This is the number of threads in each study's fetch
+     * stage, which calls the FitBit Web API. Defaults to 4.
+     */
+    public final void setNumUserThreads(int numUserThreads) {
+        this.numUserThreads = numUserThreads;
+    }
+
+    /**
+     * Max number of items waiting between each stage of the processing pipeline. If a stage falls behind, the stages
+     * before it block until there's room in the queue. Defaults to 100.
+     */
+    public final void setPipelineQueueCapacity(int pipelineQueueCapacity) {
+        this.pipelineQueueCapacity = pipelineQueueCapacity;
+    }
+
+    /**
+     * True if tables should write their rows to TSV files in the study's temp dir as rows are produced, instead of
+     * keeping all rows in memory until upload. Only row counts are kept in memory, so memory use doesn't grow with the
+     * size of the study. Defaults to false.
+     */
+    public final void setStreamRowsToTsv(boolean streamRowsToTsv) {
+        this.streamRowsToTsv = streamRowsToTsv;
+    }
+
+    /**
+     * True if the worker should call FitBit with the non-blocking HTTP client. Calls are then in flight on the HTTP
+     * client's I/O threads instead of each holding an endpoint thread, so the endpoint executor only needs enough
+     * threads to hand responses off to the parse stage. Defaults to false.
+     */
+    public final void setUseAsyncHttp(boolean useAsyncHttp) {
+        this.useAsyncHttp = useAsyncHttp;
+    }
+
+    /**
+     * True if the worker should use virtual threads to process studies and users, if the JVM supports virtual
+     * threads. If the JVM doesn't, the worker falls back to platform threads. In both cases, at most numStudyThreads
+     * studies and numUserThreads users per study are processed at a time. Defaults to false.
+     */
+    public final void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
     /** Set rate limit, in studies per second. */
     public final void setPerStudyRateLimit(double rate) {
         perStudyRateLimiter.setRate(rate);
     }
 
-    /** Set rate limit, in users per second. */
-    public final void setPerUserRateLimit(double rate) {
-        perUserRateLimiter.setRate(rate);
-    }
-
     /** Table Processor */
     @Autowired
     public final void setTableProcessor(TableProcessor tableProcessor) {
@@ -88,12 +299,55 @@ public class BridgeFitBitWorkerProcessor implements ThrowingConsumer<JsonNode> {
     /** This is the main entry point into the FitBit Worker. */
     @Override
     public void accept(JsonNode jsonNode) throws IOException, PollSqsWorkerBadRequestException {
-        // Get request args.
+        // Get request args. Either date is specified, for a single day, or startDate and endDate are specified, for a
+        // date range backfill.
+        String startDateString;
+        String endDateString;
         JsonNode dateNode = jsonNode.get(REQUEST_PARAM_DATE);
-        if (dateNode == null || dateNode.isNull()) {
-            throw new PollSqsWorkerBadRequestException("date must be specified");
+        JsonNode startDateNode = jsonNode.get(REQUEST_PARAM_START_DATE);
+        JsonNode endDateNode = jsonNode.get(REQUEST_PARAM_END_DATE);
+        boolean hasStartDate = startDateNode != null && !startDateNode.isNull();
+        boolean hasEndDate = endDateNode != null && !endDateNode.isNull();
+        if (hasStartDate || hasEndDate) {
+            if (!hasStartDate || !hasEndDate) {
+                throw new PollSqsWorkerBadRequestException("startDate and endDate must be specified together");
+            }
+            if (dateNode != null && !dateNode.isNull()) {
+                throw new PollSqsWorkerBadRequestException("date can't be specified with startDate and endDate");
+            }
+            if (!startDateNode.isTextual() || !endDateNode.isTextual()) {
+                throw new PollSqsWorkerBadRequestException("startDate and endDate must be strings");
+            }
+            startDateString = startDateNode.textValue();
+            endDateString = endDateNode.textValue();
+        } else {
+            if (dateNode == null || dateNode.isNull()) {
+                throw new PollSqsWorkerBadRequestException("date must be specified");
+            }
+            if (!dateNode.isTextual()) {
+                throw new PollSqsWorkerBadRequestException("date must be a string");
+            }
+            startDateString = endDateString = dateNode.textValue();
+        }
+
+        LocalDate startDate;
+        LocalDate endDate;
+        try {
+            startDate = LocalDate.parse(startDateString);
+            endDate = LocalDate.parse(endDateString);
+        } catch (IllegalArgumentException ex) {
+            throw new PollSqsWorkerBadRequestException("dates must be in YYYY-MM-DD format");
+        }
+        if (startDate.isAfter(endDate)) {
+            throw new PollSqsWorkerBadRequestException("startDate can't be after endDate");
+        }
+
+        // Every date in the range is fetched for every user, so cap the range to keep a single request bounded.
+        int numDays = Days.daysBetween(startDate, endDate).getDays() + 1;
+        if (numDays > maxDateRangeDays) {
+            throw new PollSqsWorkerBadRequestException("date range can't be more than " + maxDateRangeDays +
+                    " days");
         }
-        String dateString = dateNode.textValue();
 
         List<String> studyWhitelist = new ArrayList<>();
         JsonNode studyWhitelistNode = jsonNode.get(REQUEST_PARAM_STUDY_WHITELIST);
@@ -110,7 +364,28 @@ public class BridgeFitBitWorkerProcessor implements ThrowingConsumer<JsonNode> {
             }
         }
 
-        LOG.info("Received request for date " + dateString);
+        // Sharding params. If specified, this worker only processes users in the given shard. Both must be specified
+        // together.
+        UserShard userShard = UserShard.ALL;
+        JsonNode shardIndexNode = jsonNode.get(REQUEST_PARAM_SHARD_INDEX);
+        JsonNode shardCountNode = jsonNode.get(REQUEST_PARAM_SHARD_COUNT);
+        boolean hasShardIndex = shardIndexNode != null && !shardIndexNode.isNull();
+        boolean hasShardCount = shardCountNode != null && !shardCountNode.isNull();
+        if (hasShardIndex || hasShardCount) {
+            if (!hasShardIndex || !hasShardCount) {
+                throw new PollSqsWorkerBadRequestException("shardIndex and shardCount must be specified together");
+            }
+            if (!shardIndexNode.isInt() || !shardCountNode.isInt()) {
+                throw new PollSqsWorkerBadRequestException("shardIndex and shardCount must be integers");
+            }
+            try {
+                userShard = new UserShard(shardIndexNode.intValue(), shardCountNode.intValue());
+            } catch (IllegalArgumentException ex) {
+                throw new PollSqsWorkerBadRequestException(ex.getMessage());
+            }
+        }
+
+        LOG.info("Received request for dates " + startDateString + " to " + endDateString + ", shard " + userShard);
         Stopwatch requestStopwatch = Stopwatch.createStarted();
 
         List<String> studyIdList;
@@ -123,89 +398,647 @@ public class BridgeFitBitWorkerProcessor implements ThrowingConsumer<JsonNode> {
             studyIdList = studySummaryList.stream().map(Study::getIdentifier).collect(Collectors.toList());
         }
 
-        for (String studyId : studyIdList) {
-            perStudyRateLimiter.acquire();
+        // Each study has its own temp dir and request context, so studies can be processed independently of each
+        // other. The semaphore bounds the number of studies in flight. Once a study's users are processed, its tables
+        // are handed off to the upload stage, so the study thread can start on the next study while the tables
+        // upload.
+        ExecutorService studyExecutor = Utils.newExecutorService("fitbit-study", numStudyThreads,
+                useVirtualThreads);
+        Semaphore studyPermits = new Semaphore(numStudyThreads);
+        PipelineStage<RequestContext> uploadStage = newUploadStage();
+        try {
+            for (String studyId : studyIdList) {
+                perStudyRateLimiter.acquire();
+                UserShard finalUserShard = userShard;
+                submitTask(studyExecutor, studyPermits, () -> processStudyById(startDateString, endDateString,
+                        studyId, finalUserShard, uploadStage));
+            }
 
-            Stopwatch studyStopwatch = Stopwatch.createStarted();
-            try {
-                // Study summary only contains ID. Get full study summary from details.
-                Study study = bridgeHelper.getStudy(studyId);
+            // Wait for all in-flight studies to finish.
+            awaitTasks(studyPermits, numStudyThreads);
+        } finally {
+            studyExecutor.shutdown();
 
-                if (Utils.isStudyConfigured(study)) {
-                    LOG.info("Processing study " + studyId);
-                    processStudy(dateString, study);
-                } else {
-                    LOG.info("Skipping study " + studyId);
-                }
-            } catch (Exception ex) {
-                LOG.error("Error processing study " + studyId + ": " + ex.getMessage(), ex);
-            } finally {
-                LOG.info("Finished processing study " + studyId + " in " +
-                        studyStopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+            // Wait for all uploads to finish.
+            uploadStage.finish();
+        }
+        LOG.info("Finished processing request for dates " + startDateString + " to " + endDateString + " in " +
+                requestStopwatch.elapsed(TimeUnit.SECONDS) + " seconds, " + uploadStage.getMetricsString());
+    }
+
+    // Visible for testing
+    PipelineStage<RequestContext> newUploadStage() {
+        // The upload stage's queue holds studies that are done fetching but haven't started uploading. Each of these
+        // holds all of its rows in memory, so keep the queue short.
+        return new PipelineStage<>("fitbit-upload", numUploadThreads, numUploadThreads, useVirtualThreads,
+                this::uploadTables);
+    }
+
+    // Helper method to process a single study. Errors are logged and swallowed, so that one study failing doesn't
+    // affect the other studies. This is called concurrently from multiple threads.
+    private void processStudyById(String startDate, String endDate, String studyId, UserShard userShard,
+            PipelineStage<RequestContext> uploadStage) {
+        Stopwatch studyStopwatch = Stopwatch.createStarted();
+        try {
+            // Study summary only contains ID. Get full study summary from details.
+            Study study = bridgeHelper.getStudy(studyId);
+
+            if (Utils.isStudyConfigured(study)) {
+                LOG.info("Processing study " + studyId);
+                processStudy(startDate, endDate, study, userShard, uploadStage);
+            } else {
+                LOG.info("Skipping study " + studyId);
             }
+        } catch (Exception ex) {
+            LOG.error("Error processing study " + studyId + ": " + ex.getMessage(), ex);
+        } finally {
+            LOG.info("Finished processing study " + studyId + " in " +
+                    studyStopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
         }
-        LOG.info("Finished processing request for date " + dateString + " in " +
-                requestStopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
     }
 
     // Visible for testing
-    void processStudy(String dateString, Study study) {
+    void processStudy(String startDate, String endDate, Study study, UserShard userShard,
+            PipelineStage<RequestContext> uploadStage) {
         String studyId = study.getIdentifier();
 
         // Set up request context
         File tmpDir = fileHelper.createTempDir();
+        boolean uploadStarted = false;
+
+        // All dates go into the same request context, so each table gets a single TSV upload for the whole date range.
+        RequestContext ctx = new RequestContext(startDate, endDate, study, tmpDir, streamRowsToTsv);
+        TableMemoryBudget tableMemoryBudget = new TableMemoryBudget(memoryBudgetBytesPerStudy, fileHelper, tmpDir);
         try {
-            RequestContext ctx = new RequestContext(dateString, study, tmpDir);
+            loadCheckpoints(ctx);
 
-            // Get list of users (and their keys)
-            Iterator<FitBitUser> fitBitUserIter = bridgeHelper.getFitBitUsersForStudy(study.getIdentifier());
+            // Get list of users (and their keys). Users in other shards are skipped before we get their keys, since
+            // another worker is processing them.
+            Iterator<FitBitUser> fitBitUserIter = bridgeHelper.getFitBitUsersForStudy(study.getIdentifier(),
+                    userShard::containsHealthCode);
             LOG.info("Processing users in study " + studyId);
             int numUsers = 0;
             Stopwatch userStopwatch = Stopwatch.createStarted();
-            while (fitBitUserIter.hasNext()) {
-                perUserRateLimiter.acquire();
+
+            // Users flow through a pipeline of stages: enumeration (on this thread, since the iterator isn't
+            // thread-safe), fetch, parse, and sink. Stages are connected by bounded queues, so a slow stage applies
+            // back pressure to the stages before it. The fetch stage starts each user's endpoint calls and moves on to
+            // the next user without waiting for them, so calls for all users in flight share the endpoint executor,
+            // which is sized for all endpoints for all users in the fetch stage. With the non-blocking HTTP client,
+            // the endpoint executor only runs completion callbacks, so it needs far fewer threads.
+            int numEndpointThreads = useAsyncHttp ? numUserThreads : numUserThreads * Math.max(1,
+                    endpointSchemas.size());
+            ExecutorService endpointExecutor = Utils.newExecutorService("fitbit-endpoint-" + studyId,
+                    numEndpointThreads, useVirtualThreads);
+            PipelineStage<ListMultimap<PopulatedTable, Map<String, String>>> sinkStage = new PipelineStage<>(
+                    "fitbit-sink-" + studyId, numSinkThreads, pipelineQueueCapacity, useVirtualThreads,
+                    rowsByTable -> sinkRows(ctx, tableMemoryBudget, rowsByTable));
+            PipelineStage<EndpointResponse> parseStage = new PipelineStage<>("fitbit-parse-" + studyId,
+                    numParseThreads, pipelineQueueCapacity, useVirtualThreads,
+                    endpointResponse -> parseEndpointResponse(ctx, endpointResponse, sinkStage));
+            Semaphore outstandingCallPermits = new Semaphore(maxOutstandingCallsPerStudy);
+            DeferredCallScheduler deferredCallScheduler = new DeferredCallScheduler("fitbit-deferred-fetch-" +
+                    studyId, numUserThreads, pipelineQueueCapacity, useVirtualThreads, maxDeferralMillis,
+                    (deferredCall, scheduler) -> fetchDeferredEndpointCall(endpointExecutor, ctx, deferredCall,
+                            parseStage, scheduler));
+            PipelineStage<FitBitUser> fetchStage = new PipelineStage<>("fitbit-fetch-" + studyId, numUserThreads,
+                    pipelineQueueCapacity, useVirtualThreads,
+                    user -> fetchUser(endpointExecutor, ctx, user, parseStage, deferredCallScheduler,
+                            outstandingCallPermits));
+            List<PipelineStage<?>> stageList = ImmutableList.of(fetchStage, deferredCallScheduler.getStage(),
+                    parseStage, sinkStage);
+            try {
+                // Users aren't paced here. FitBit's quota is per user, so the rate limit tracker paces each user, and
+                // the bounded pipeline queues pace enumeration.
+                while (fitBitUserIter.hasNext()) {
+                    try {
+                        FitBitUser oneUser = fitBitUserIter.next();
+                        fetchStage.put(oneUser);
+                    } catch (Exception ex) {
+                        LOG.error("Error getting next user: " + ex.getMessage(), ex);
+                    }
+
+                    // Reporting
+                    numUsers++;
+                    if (numUsers % REPORTING_INTERVAL == 0) {
+                        LOG.info("Processing users in progress: " + numUsers + " users in " +
+                                userStopwatch.elapsed(TimeUnit.SECONDS) + " seconds, " +
+                                getPipelineMetricsString(stageList) + ", " + fitBitHttpClient.getMetricsString() +
+                                ", " + circuitBreaker.getMetricsString() + ", " +
+                                deferredCallScheduler.getMetricsString());
+                    }
+                }
+            } finally {
+                // Stages are finished in pipeline order, so that each stage has received all of its input before
+                // we wait for it. Once all users are fetched, we wait for their outstanding endpoint calls, which
+                // hand their responses to the parse stage and their deferred calls to the scheduler. Deferred calls
+                // are retried as they come due, so then we wait for the remaining deferred calls.
+                fetchStage.finish();
                 try {
-                    FitBitUser oneUser = fitBitUserIter.next();
-
-                    // Call and process endpoints.
-                    for (EndpointSchema oneEndpointSchema : endpointSchemas) {
-                        try {
-                            userProcessor.processEndpointForUser(ctx, oneUser, oneEndpointSchema);
-                        } catch (Exception ex) {
-                            LOG.error("Error processing user for healthCode " + oneUser.getHealthCode() +
-                                    " on endpoint " + oneEndpointSchema.getEndpointId() + ": " + ex.getMessage(), ex);
-                        }
+                    awaitTasks(outstandingCallPermits, maxOutstandingCallsPerStudy);
+                    deferredCallScheduler.finish();
+                } finally {
+                    endpointExecutor.shutdown();
+                    parseStage.finish();
+                    sinkStage.finish();
+                }
+            }
+            LOG.info("Finished processing users: " + numUsers + " users in " +
+                    userStopwatch.elapsed(TimeUnit.SECONDS) + " seconds, skipped " +
+                    ctx.getNumSkippedEndpointCalls().get() + " completed endpoint calls, " +
+                    ctx.getInvalidTokenHealthCodeSet().size() + " users with invalid tokens, " +
+                    retryPolicy.getNumRetries() + " retries so far, " + deferredCallScheduler.getMetricsString() +
+                    ", " + getPipelineMetricsString(stageList) + ", " +
+                    fitBitHttpClient.getByteCountsString() + ", " + responseCache.getMetricsString() + ", " +
+                    circuitBreaker.getMetricsString() + ", " + tableMemoryBudget.getMetricsString() + ", " +
+                    getCommonColumnSavingsString(ctx));
+
+            // Hand off the tables to the upload stage. The upload stage deletes the temp dir once the tables are
+            // uploaded.
+            uploadStage.put(ctx);
+            uploadStarted = true;
+        } finally {
+            if (!uploadStarted) {
+                discardTableFiles(ctx);
+                fileHelper.deleteDir(tmpDir);
+            }
+        }
+    }
+
+    // Helper method to report the memory saved by storing the common columns once per run of rows, for the run summary.
+    private static String getCommonColumnSavingsString(RequestContext ctx) {
+        long savedBytes = 0;
+        for (PopulatedTable onePopulatedTable : ctx.getPopulatedTablesById().values()) {
+            savedBytes += onePopulatedTable.getCommonColumnSavedBytes();
+        }
+        return "saved about " + savedBytes + " bytes by storing common columns once per run of rows";
+    }
+
+    // Helper method to close and delete the files of tables that won't be uploaded: streamed TSVs and spilled
+    // segments. Errors are logged and swallowed, since the files are thrown away anyway.
+    private void discardTableFiles(RequestContext ctx) {
+        for (PopulatedTable onePopulatedTable : ctx.getPopulatedTablesById().values()) {
+            try {
+                if (onePopulatedTable.isStreamingTsv()) {
+                    onePopulatedTable.closeTsvWriter();
+                    fileHelper.deleteFile(onePopulatedTable.getTsvFile());
+                } else {
+                    for (File oneSegmentFile : onePopulatedTable.getSpilledSegmentList()) {
+                        fileHelper.deleteFile(oneSegmentFile);
                     }
-                } catch (Exception ex) {
-                    LOG.error("Error getting next user: " + ex.getMessage(), ex);
                 }
+            } catch (IOException | RuntimeException ex) {
+                LOG.error("Error discarding files for table " + onePopulatedTable.getTableId() + ": " +
+                        ex.getMessage(), ex);
+            }
+        }
+    }
 
-                // Reporting
-                numUsers++;
-                if (numUsers % REPORTING_INTERVAL == 0) {
-                    LOG.info("Processing users in progress: " + numUsers + " users in " +
-                            userStopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+    // Upload stage handler. Processes and uploads each table for the study, then cleans up the study's temp dir.
+    // Tables are independent of each other, so we upload them concurrently and wait for all of them to finish. Once
+    // the tables are uploaded, endpoint calls whose tables all uploaded successfully are marked as completed.
+    private void uploadTables(RequestContext ctx) {
+        String studyId = ctx.getStudy().getIdentifier();
+        LOG.info("Uploading tables for study " + studyId);
+        Stopwatch uploadStopwatch = Stopwatch.createStarted();
+        ExecutorService tableExecutor = Utils.newExecutorService("fitbit-table-" + studyId, numTableThreads,
+                useVirtualThreads);
+        try {
+            Set<String> uploadedTableIdSet = ConcurrentHashMap.newKeySet();
+            CompletableFuture<?>[] tableFutures = ctx.getPopulatedTablesById().values().stream()
+                    .map(onePopulatedTable -> CompletableFuture.runAsync(() -> {
+                        if (uploadTable(ctx, onePopulatedTable)) {
+                            uploadedTableIdSet.add(onePopulatedTable.getTableId());
+                        }
+                    }, tableExecutor))
+                    .toArray(CompletableFuture<?>[]::new);
+            CompletableFuture.allOf(tableFutures).join();
+
+            // Group the completed calls by endpoint, so each endpoint's checkpoints are written in batches.
+            Map<String, SetMultimap<String, String>> healthCodesByDateByEndpointId = new HashMap<>();
+            for (FetchedEndpointCall oneCall : ctx.getFetchedEndpointCallQueue()) {
+                if (uploadedTableIdSet.containsAll(oneCall.getTableIds())) {
+                    healthCodesByDateByEndpointId.computeIfAbsent(oneCall.getEndpointId(),
+                            endpointId -> HashMultimap.create()).put(oneCall.getCheckpointDate(),
+                            oneCall.getHealthCode());
                 }
             }
-            LOG.info("Finished processing users: " + numUsers + " users in " +
-                    userStopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+            for (Map.Entry<String, SetMultimap<String, String>> oneEntry : healthCodesByDateByEndpointId.entrySet()) {
+                try {
+                    checkpointStore.setEndpointCompleted(studyId, oneEntry.getKey(), oneEntry.getValue());
+                } catch (RuntimeException ex) {
+                    LOG.error("Error writing checkpoints for endpoint " + oneEntry.getKey() + ": " + ex.getMessage(),
+                            ex);
+                }
+            }
+        } finally {
+            tableExecutor.shutdown();
+            fileHelper.deleteDir(ctx.getTmpDir());
+            LOG.info("Finished uploading tables for study " + studyId + " in " +
+                    uploadStopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+        }
+    }
 
-            // Process and upload each table
-            for (PopulatedTable onePopulatedTable : ctx.getPopulatedTablesById().values()) {
-                String tableId = onePopulatedTable.getTableId();
-                LOG.info("Processing table " + tableId);
-                Stopwatch tableStopwatch = Stopwatch.createStarted();
+    // Helper method to process and upload a single table. Errors are logged and swallowed, so that one table failing
+    // doesn't affect the other tables. Returns true if the table was uploaded successfully.
+    private boolean uploadTable(RequestContext ctx, PopulatedTable populatedTable) {
+        String studyId = ctx.getStudy().getIdentifier();
+        String tableId = populatedTable.getTableId();
+        LOG.info("Processing table " + tableId);
+        Stopwatch tableStopwatch = Stopwatch.createStarted();
+        try {
+            tableProcessor.processTable(ctx, populatedTable);
+        } catch (Exception ex) {
+            LOG.error("Error processing table " + tableId + ": " + ex.getMessage(), ex);
+            return false;
+        } finally {
+            LOG.info("Finished processing table " + tableId + " in " +
+                    tableStopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+        }
+
+        // Checkpoint each user's data in this table, so a rerun doesn't upload it again. The table was uploaded, so
+        // even if writing the checkpoint fails, the table still counts as uploaded.
+        try {
+            checkpointStore.setTableUploaded(studyId, tableId, ImmutableSetMultimap.copyOf(
+                    populatedTable.getHealthCodesByDate()));
+        } catch (RuntimeException ex) {
+            LOG.error("Error writing checkpoints for table " + tableId + ": " + ex.getMessage(), ex);
+        }
+        return true;
+    }
+
+    // Helper method to run the given task on the given executor. This blocks until a permit is available, and the
+    // permit is released when the task is finished.
+    private static void submitTask(ExecutorService executor, Semaphore permits, Runnable task) {
+        permits.acquireUninterruptibly();
+        try {
+            executor.execute(() -> {
                 try {
-                    tableProcessor.processTable(ctx, onePopulatedTable);
-                } catch (Exception ex) {
-                    LOG.error("Error processing table " + tableId + ": " + ex.getMessage(), ex);
+                    task.run();
                 } finally {
-                    LOG.info("Finished processing table " + tableId + " in " +
-                            tableStopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+                    permits.release();
                 }
+            });
+        } catch (RuntimeException ex) {
+            // Executor rejected the task. Give back the permit, or we'll wait forever for the task to finish.
+            permits.release();
+            throw ex;
+        }
+    }
+
+    // Helper method to wait for all tasks submitted with submitTask() to finish. Once all permits are available, we
+    // know all tasks are done. The permits are given back, so the semaphore can be reused.
+    private static void awaitTasks(Semaphore permits, int numPermits) {
+        permits.acquireUninterruptibly(numPermits);
+        permits.release(numPermits);
+    }
+
+    // Helper method to format the metrics of all pipeline stages, for logging.
+    private static String getPipelineMetricsString(List<PipelineStage<?>> stageList) {
+        return "pipeline=" + stageList.stream().map(PipelineStage::getMetricsString).collect(Collectors.joining(
+                ", "));
+    }
+
+    // Fetch stage handler. Starts all endpoint calls for a single user. Range endpoints are called once for the whole
+    // date range. Other endpoints are called once per date. Calls are independent of each other, so we make them
+    // concurrently. We don't wait for them to finish, so the fetch thread moves on to the next user while calls are in
+    // flight or backing off. Each call holds one of the study's outstanding call permits until it's finished, which
+    // bounds the calls in flight and lets processStudy() wait for all of them. Each response is handed off to the
+    // parse stage.
+    private void fetchUser(ExecutorService endpointExecutor, RequestContext ctx, FitBitUser user,
+            PipelineStage<EndpointResponse> parseStage, DeferredCallScheduler deferredCallScheduler,
+            Semaphore outstandingCallPermits) {
+        for (EndpointSchema oneEndpointSchema : endpointSchemas) {
+            List<String> dateList = oneEndpointSchema.isDateRange() ? ImmutableList.of(ctx.getStartDate()) :
+                    ctx.getDateList();
+            for (String oneDate : dateList) {
+                outstandingCallPermits.acquireUninterruptibly();
+                try {
+                    fetchEndpointAsync(endpointExecutor, ctx, user, oneEndpointSchema, oneDate, parseStage,
+                            deferredCallScheduler).whenComplete((result, ex) -> outstandingCallPermits.release());
+                } catch (RuntimeException ex) {
+                    // The call never started. Give back the permit, or we'll wait forever for the call to finish.
+                    outstandingCallPermits.release();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    // Helper method to call a single endpoint for a single user and date on the endpoint executor. Transient errors are
+    // retried with backoff. If the user is rate limited, or if the circuit breaker is open because FitBit is down, the
+    // call is deferred. If the user's token is invalid, the user's remaining calls are skipped. Other errors are
+    // logged.
+    private CompletableFuture<?> fetchEndpointAsync(ExecutorService endpointExecutor, RequestContext ctx,
+            FitBitUser user, EndpointSchema endpointSchema, String date, PipelineStage<EndpointResponse> parseStage,
+            DeferredCallScheduler deferredCallScheduler) {
+        String description = "healthCode " + user.getHealthCode() + " on endpoint " + endpointSchema.getEndpointId() +
+                " for date " + date;
+        CompletableFuture<FitBitResponse> responseFuture = retryPolicy.execute(description, () -> {
+            if (useAsyncHttp) {
+                return fetchEndpointNonBlocking(endpointExecutor, ctx, user, endpointSchema, date);
+            } else {
+                return CompletableFuture.supplyAsync(() -> {
+                    if (isEndpointCompleted(ctx, user, endpointSchema, date)) {
+                        // A previous run already fetched and uploaded this.
+                        ctx.getNumSkippedEndpointCalls().incrementAndGet();
+                        return null;
+                    }
+                    return fetchEndpoint(ctx, user, endpointSchema, date);
+                }, endpointExecutor);
             }
+        }, endpointExecutor);
+        return responseFuture
+                .thenAccept(response -> {
+                    if (response != null) {
+                        parseStage.put(new EndpointResponse(user, endpointSchema, date, response));
+                    }
+                })
+                .exceptionally(ex -> {
+                    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() :
+                            ex;
+                    if (cause instanceof UserRateLimitedException) {
+                        // Don't hold up the other users. Come back to this user after their rate limit resets.
+                        long resetTimeMillis = ((UserRateLimitedException) cause).getResetTimeMillis();
+                        LOG.info("Deferring healthCode " + user.getHealthCode() + " on endpoint " +
+                                endpointSchema.getEndpointId() + " for date " + date + " until " + resetTimeMillis);
+                        deferEndpointCall(deferredCallScheduler, new DeferredEndpointCall(user, endpointSchema, date,
+                                resetTimeMillis));
+                    } else if (cause instanceof CircuitOpenException) {
+                        // FitBit is down. Come back to this call after the circuit breaker lets calls through again.
+                        // Don't log each call, since this happens to every call during an outage. The circuit breaker
+                        // logs when it opens and closes.
+                        deferEndpointCall(deferredCallScheduler, new DeferredEndpointCall(user, endpointSchema, date,
+                                ((CircuitOpenException) cause).getRetryTimeMillis()));
+                    } else if (cause instanceof InvalidTokenException) {
+                        markTokenInvalid(ctx, user, endpointSchema);
+                    } else {
+                        LOG.error("Error processing user for healthCode " + user.getHealthCode() + " on endpoint " +
+                                endpointSchema.getEndpointId() + " for date " + date + ": " + cause.getMessage(),
+                                cause);
+                    }
+                    return null;
+                });
+    }
+
+    // Helper method to call a single endpoint for a single user with the non-blocking HTTP client. If the per-endpoint
+    // concurrency cap is full, the call is queued instead of blocking the calling thread, and starts on the endpoint
+    // executor once an earlier call releases its permit. The permit is released when the call completes, so neither
+    // queued nor in-flight calls hold any threads. The response is handed to the endpoint executor, so that the rest
+    // of the pipeline doesn't run on the HTTP client's I/O threads. Completes with null if the call was already
+    // completed by a previous run, or if the user's token turned out to be invalid while waiting for the concurrency
+    // cap.
+    private CompletableFuture<FitBitResponse> fetchEndpointNonBlocking(ExecutorService endpointExecutor,
+            RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema, String date) {
+        if (isEndpointCompleted(ctx, user, endpointSchema, date)) {
+            // A previous run already fetched and uploaded this.
+            ctx.getNumSkippedEndpointCalls().incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        AsyncPermits endpointPermits = getEndpointPermits(endpointSchema);
+        CompletableFuture<Void> permitFuture = endpointPermits.acquire();
+        if (permitFuture.isDone()) {
+            // We got a permit right away. Start the call on this thread.
+            return fetchEndpointWithPermit(endpointExecutor, endpointPermits, ctx, user, endpointSchema, date);
+        }
+        return permitFuture.thenComposeAsync(permit -> fetchEndpointWithPermit(endpointExecutor, endpointPermits,
+                ctx, user, endpointSchema, date), endpointExecutor);
+    }
+
+    // Helper method to start a non-blocking call once we have a permit for the per-endpoint concurrency cap. The
+    // permit is released when the call completes.
+    private CompletableFuture<FitBitResponse> fetchEndpointWithPermit(ExecutorService endpointExecutor,
+            AsyncPermits endpointPermits, RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema,
+            String date) {
+        if (isTokenInvalid(ctx, user)) {
+            endpointPermits.release();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<FitBitResponse> responseFuture;
+        try {
+            responseFuture = userProcessor.fetchEndpointForUserAsync(ctx, user, endpointSchema, date,
+                    endpointExecutor);
+        } catch (RuntimeException ex) {
+            endpointPermits.release();
+            CompletableFuture<FitBitResponse> failedFuture = new CompletableFuture<>();
+            failedFuture.completeExceptionally(ex);
+            return failedFuture;
+        }
+        return responseFuture.whenComplete((response, ex) -> {
+            // Mark the token as invalid before releasing the permit, so the calls waiting for the permit see it.
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof InvalidTokenException) {
+                markTokenInvalid(ctx, user, endpointSchema);
+            }
+            endpointPermits.release();
+        });
+    }
+
+    // Helper method to schedule a deferred endpoint call to be retried once it's due. If it isn't due for too long, we
+    // give up on that call.
+    private static void deferEndpointCall(DeferredCallScheduler deferredCallScheduler,
+            DeferredEndpointCall deferredCall) {
+        if (!deferredCallScheduler.schedule(deferredCall)) {
+            LOG.error("Giving up on healthCode " + deferredCall.getUser().getHealthCode() + " on endpoint " +
+                    deferredCall.getEndpointSchema().getEndpointId() + " for date " + deferredCall.getDate() +
+                    ", deferred until " + deferredCall.getNotBeforeMillis());
+        }
+    }
+
+    // Deferred fetch stage handler. Starts the retry of a single deferred endpoint call and hands the response off to
+    // the parse stage. With the non-blocking HTTP client, the retry doesn't hold any threads while it waits for the
+    // per-endpoint concurrency cap or for FitBit. Otherwise, it runs on the endpoint executor. Transient errors are
+    // retried with backoff, like the first call, since FitBit is most likely to return 503s right after an outage,
+    // when the deferred calls go first. If the user is still rate limited (for example, a 429 right at the reset, or
+    // several of the user's calls due at the same reset) or FitBit is still down, the call is deferred again, until it
+    // succeeds or has been deferred for too long. Returns a future that completes once the retry is done, including
+    // deferring it again.
+    private CompletableFuture<?> fetchDeferredEndpointCall(ExecutorService endpointExecutor, RequestContext ctx,
+            DeferredEndpointCall deferredCall, PipelineStage<EndpointResponse> parseStage,
+            DeferredCallScheduler deferredCallScheduler) {
+        FitBitUser user = deferredCall.getUser();
+        EndpointSchema endpointSchema = deferredCall.getEndpointSchema();
+        String date = deferredCall.getDate();
+        String description = "deferred call for healthCode " + user.getHealthCode() + " on endpoint " +
+                endpointSchema.getEndpointId() + " for date " + date;
+        CompletableFuture<FitBitResponse> responseFuture = retryPolicy.execute(description, () -> {
+            if (useAsyncHttp) {
+                return fetchEndpointNonBlocking(endpointExecutor, ctx, user, endpointSchema, date);
+            } else {
+                return CompletableFuture.supplyAsync(() -> fetchEndpoint(ctx, user, endpointSchema, date),
+                        endpointExecutor);
+            }
+        }, endpointExecutor);
+        return responseFuture
+                .thenAccept(response -> {
+                    if (response != null) {
+                        parseStage.put(new EndpointResponse(user, endpointSchema, date, response));
+                    }
+                })
+                .exceptionally(ex -> {
+                    Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() :
+                            ex;
+                    if (cause instanceof InvalidTokenException) {
+                        markTokenInvalid(ctx, user, endpointSchema);
+                    } else if (cause instanceof UserRateLimitedException) {
+                        deferEndpointCall(deferredCallScheduler, new DeferredEndpointCall(deferredCall,
+                                ((UserRateLimitedException) cause).getResetTimeMillis()));
+                    } else if (cause instanceof CircuitOpenException) {
+                        // FitBit is still down. Try again after the circuit breaker lets calls through again.
+                        deferEndpointCall(deferredCallScheduler, new DeferredEndpointCall(deferredCall,
+                                ((CircuitOpenException) cause).getRetryTimeMillis()));
+                    } else {
+                        LOG.error("Error processing deferred call for healthCode " + user.getHealthCode() +
+                                " on endpoint " + endpointSchema.getEndpointId() + " for date " + date + ": " +
+                                cause.getMessage(), cause);
+                    }
+                    return null;
+                });
+    }
+
+    // Helper method to call a single endpoint for a single user, limited by the per-endpoint concurrency cap. Returns
+    // null without calling FitBit if the user's token turned out to be invalid while waiting for the concurrency cap.
+    private FitBitResponse fetchEndpoint(RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema,
+            String date) {
+        AsyncPermits endpointPermits = getEndpointPermits(endpointSchema);
+        endpointPermits.acquire().join();
+        try {
+            if (isTokenInvalid(ctx, user)) {
+                return null;
+            }
+            return userProcessor.fetchEndpointForUser(ctx, user, endpointSchema, date);
+        } catch (Exception ex) {
+            if (ex instanceof InvalidTokenException) {
+                // Mark the token as invalid before releasing the permit, so the calls waiting for the permit see it.
+                markTokenInvalid(ctx, user, endpointSchema);
+            }
+            throw new CompletionException(ex);
         } finally {
-            fileHelper.deleteDir(tmpDir);
+            endpointPermits.release();
+        }
+    }
+
+    // Helper method to check if a previous call for this user found that the user's token is invalid.
+    private static boolean isTokenInvalid(RequestContext ctx, FitBitUser user) {
+        return ctx.getInvalidTokenHealthCodeSet().contains(user.getHealthCode());
+    }
+
+    // Helper method to remember that the user's token is invalid, so we skip the user's remaining calls. Only the first
+    // failure for each user is logged, so that one bad token doesn't flood the logs.
+    private static void markTokenInvalid(RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema) {
+        if (ctx.getInvalidTokenHealthCodeSet().add(user.getHealthCode())) {
+            LOG.warn("Invalid access token for healthCode " + user.getHealthCode() + " on endpoint " +
+                    endpointSchema.getEndpointId() + ", skipping the user's remaining endpoint calls");
+        }
+    }
+
+    // Helper method to get the permits for the per-endpoint concurrency cap. The blocking and non-blocking fetch paths
+    // share the same permits, so the cap holds across both.
+    private AsyncPermits getEndpointPermits(EndpointSchema endpointSchema) {
+        return endpointPermitsById.computeIfAbsent(endpointSchema.getEndpointId(),
+                key -> new AsyncPermits(maxConcurrentCallsPerEndpoint));
+    }
+
+    // Parse stage handler. Parses a single endpoint response into table rows and hands the rows off to the sink stage
+    // as a single batch.
+    private void parseEndpointResponse(RequestContext ctx, EndpointResponse endpointResponse,
+            PipelineStage<ListMultimap<PopulatedTable, Map<String, String>>> sinkStage) {
+        FitBitUser user = endpointResponse.getUser();
+        EndpointSchema endpointSchema = endpointResponse.getEndpointSchema();
+        String date = endpointResponse.getDate();
+        ListMultimap<PopulatedTable, Map<String, String>> rowsByTable = ArrayListMultimap.create();
+        try {
+            userProcessor.processResponseForUser(ctx, user, endpointSchema, date, endpointResponse.getResponse(),
+                    rowsByTable::put);
+        } catch (Exception ex) {
+            LOG.error("Error processing user for healthCode " + user.getHealthCode() + " on endpoint " +
+                    endpointSchema.getEndpointId() + " for date " + date + ": " + ex.getMessage(), ex);
+            return;
+        }
+
+        // Drop rows for tables that a previous run already uploaded for this user. Remember which tables this call's
+        // rows go to, so we can mark the call as completed once those tables are uploaded.
+        String healthCode = user.getHealthCode();
+        String checkpointDate = getCheckpointDate(ctx, endpointSchema, date);
+        Set<String> tableIdSet = new HashSet<>();
+        for (PopulatedTable onePopulatedTable : ImmutableSet.copyOf(rowsByTable.keySet())) {
+            String tableId = onePopulatedTable.getTableId();
+            if (getCheckpoints(ctx, checkpointDate).isTableUploaded(healthCode, tableId)) {
+                rowsByTable.removeAll(onePopulatedTable);
+            } else {
+                tableIdSet.add(tableId);
+                onePopulatedTable.getHealthCodesByDate().put(checkpointDate, healthCode);
+            }
+        }
+        ctx.getFetchedEndpointCallQueue().add(new FetchedEndpointCall(healthCode, endpointSchema.getEndpointId(),
+                checkpointDate, tableIdSet));
+
+        if (!rowsByTable.isEmpty()) {
+            sinkStage.put(rowsByTable);
+        }
+    }
+
+    // Helper method to get the date used to key checkpoints. Range endpoints are called once for the whole date range,
+    // so they're keyed by the date range.
+    private static String getCheckpointDate(RequestContext ctx, EndpointSchema endpointSchema, String date) {
+        return endpointSchema.isDateRange() ? ctx.getStartDate() + ".." + ctx.getEndDate() : date;
+    }
+
+    // Helper method to load the checkpoints for each of the request's dates, plus the date range if any endpoint is
+    // called for the whole range. This is one read per date, so the fetch and parse stages check checkpoints in memory
+    // instead of calling the checkpoint store for each endpoint call and table. If the checkpoint store fails, we
+    // assume nothing for that date was completed, since it's better to re-fetch than to lose data.
+    private void loadCheckpoints(RequestContext ctx) {
+        String studyId = ctx.getStudy().getIdentifier();
+        Set<String> checkpointDateSet = new LinkedHashSet<>();
+        for (EndpointSchema oneEndpointSchema : endpointSchemas) {
+            if (oneEndpointSchema.isDateRange()) {
+                checkpointDateSet.add(getCheckpointDate(ctx, oneEndpointSchema, ctx.getStartDate()));
+            } else {
+                checkpointDateSet.addAll(ctx.getDateList());
+            }
+        }
+
+        for (String oneCheckpointDate : checkpointDateSet) {
+            try {
+                ctx.getCheckpointsByDate().put(oneCheckpointDate, checkpointStore.getCheckpoints(studyId,
+                        oneCheckpointDate));
+            } catch (RuntimeException ex) {
+                LOG.warn("Error reading checkpoints for study " + studyId + " on date " + oneCheckpointDate + ": " +
+                        ex.getMessage(), ex);
+            }
+        }
+    }
+
+    // Helper method to get the loaded checkpoints for the given checkpoint date, or no checkpoints if they couldn't be
+    // loaded.
+    private static DateCheckpoints getCheckpoints(RequestContext ctx, String checkpointDate) {
+        return ctx.getCheckpointsByDate().getOrDefault(checkpointDate, EMPTY_CHECKPOINTS);
+    }
+
+    // Helper method to check the loaded checkpoints for a completed endpoint call.
+    private static boolean isEndpointCompleted(RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema,
+            String date) {
+        return getCheckpoints(ctx, getCheckpointDate(ctx, endpointSchema, date)).isEndpointCompleted(
+                user.getHealthCode(), endpointSchema.getEndpointId());
+    }
+
+    // Sink stage handler. Adds a batch of rows to their populated tables, then enforces the study's memory budget.
+    private void sinkRows(RequestContext ctx, TableMemoryBudget tableMemoryBudget,
+            ListMultimap<PopulatedTable, Map<String, String>> rowsByTable) {
+        for (PopulatedTable onePopulatedTable : rowsByTable.keySet()) {
+            onePopulatedTable.addRows(rowsByTable.get(onePopulatedTable));
+        }
+
+        // If the study's tables are over the memory budget, spill the largest tables to disk. If spilling fails, the
+        // rows stay in memory, so we don't lose any data.
+        try {
+            tableMemoryBudget.enforce(ctx.getPopulatedTablesById().values());
+        } catch (IOException ex) {
+            LOG.error("Error spilling tables for study " + ctx.getStudy().getIdentifier() + ": " + ex.getMessage(),
+                    ex);
         }
     }
 }
@@ -0,0 +1,397 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sagebionetworks.bridge.fitbit.schema.ColumnSchema;
+
+/**
+ * Append-only columnar store for table rows. Each column is stored in a primitive-typed buffer based on its column
+ * type, so rows don't need a map or a String per value.
+ * <ul>
+ *     <li>INTEGER and DATE values are stored as longs.</li>
+ *     <li>BOOLEAN values are stored as bits.</li>
+ *     <li>STRING values are dictionary-encoded, since they repeat a lot (activity names, units).</li>
+ *     <li>Leading run-length columns, used for the common healthCode and createdDate columns, store each value once
+ *     per run of consecutive rows with the same value. Rows from one user's response are usually added in a
+ *     batch, so these columns cost next to nothing per row. If several sink threads interleave their batches, runs
+ *     just get shorter. Values are expanded only when rows are read.</li>
+ *     <li>Everything else (DOUBLE, LARGETEXT, FILEHANDLEID) is stored as UTF-8 text. DOUBLE is kept as the exact
+ *     decimal text we got from FitBit, so values aren't changed by a round trip through double.</li>
+ * </ul>
+ * Nulls are tracked with a bitset per column. Buffers grow in fixed-size chunks, so growing never copies the values
+ * already stored.
+ *
+ * Values are added and returned as strings in the same format the row extractors produce. The store also keeps a
+ * rough estimate of its heap footprint, so callers can decide when to spill rows to disk. This class is not
+ * thread-safe. Callers must synchronize.
+ */
+class ColumnarRowStore {
+    // Number of values in each chunk of a column buffer.
+    // Visible for testing
+    static final int CHUNK_SIZE = 1024;
+
+    // Size of each chunk of UTF-8 text. Values larger than this get a chunk to themselves.
+    private static final int TEXT_CHUNK_SIZE = 64 * 1024;
+
+    // Rough per-entry overhead of a dictionary value: the String and its array headers, the list slot, and the hash
+    // map entry and its boxed code.
+    private static final int DICTIONARY_ENTRY_OVERHEAD_BYTES = 96;
+
+    // Rough per-run overhead of a run-length column: the run start and the reference to the run's value. The value
+    // itself is shared with the rows that produced it.
+    private static final int RUN_OVERHEAD_BYTES = Integer.BYTES + 8;
+
+    private final Column[] columns;
+    private final int numRunLengthColumns;
+    private int numRows = 0;
+
+    /** Creates a row store with the given columns. Rows are added and read in this column order. */
+    ColumnarRowStore(List<ColumnSchema> columnList) {
+        this(columnList, 0);
+    }
+
+    /**
+     * Creates a row store with the given columns. The first numRunLengthColumns columns are run-length encoded,
+     * regardless of their column type. Rows are added and read in this column order.
+     */
+    ColumnarRowStore(List<ColumnSchema> columnList, int numRunLengthColumns) {
+        this.numRunLengthColumns = numRunLengthColumns;
+        int numColumns = columnList.size();
+        columns = new Column[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+            columns[i] = i < numRunLengthColumns ? new RunLengthColumn() : makeColumn(columnList.get(i));
+        }
+    }
+
+    /** Number of columns in the store. */
+    int getNumColumns() {
+        return columns.length;
+    }
+
+    /** Number of rows in the store. */
+    int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * Rough estimate of the heap used by the stored rows, in bytes. This counts the column buffers and dictionaries,
+     * but not object headers of the store itself, so it's a lower bound that's good enough for memory budgeting.
+     */
+    long getEstimatedBytes() {
+        long estimatedBytes = 0;
+        for (Column oneColumn : columns) {
+            estimatedBytes += oneColumn.getEstimatedBytes();
+        }
+        return estimatedBytes;
+    }
+
+    /** Rough estimate of the heap used by the run-length columns, in bytes. This is included in the estimated bytes. */
+    long getRunLengthEstimatedBytes() {
+        long estimatedBytes = 0;
+        for (int i = 0; i < numRunLengthColumns; i++) {
+            estimatedBytes += columns[i].getEstimatedBytes();
+        }
+        return estimatedBytes;
+    }
+
+    /**
+     * Adds a row. Values are in column order, and may be null. Throws an IllegalArgumentException if a value can't be
+     * stored in its column's type, in which case the row isn't added.
+     */
+    void addRow(String[] values) {
+        if (values.length != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " values, got " + values.length);
+        }
+
+        // Validate all values first, so we never add a partial row.
+        for (int i = 0; i < columns.length; i++) {
+            if (values[i] != null) {
+                columns[i].validate(values[i]);
+            }
+        }
+        for (int i = 0; i < columns.length; i++) {
+            columns[i].add(numRows, values[i]);
+        }
+        numRows++;
+    }
+
+    /** Gets the value for the given row and column. May be null. */
+    String getValue(int rowIndex, int columnIndex) {
+        if (rowIndex < 0 || rowIndex >= numRows) {
+            throw new IndexOutOfBoundsException("Row " + rowIndex + " out of " + numRows);
+        }
+        return columns[columnIndex].get(rowIndex);
+    }
+
+    // Helper method to make the column buffer for the given column type.
+    private static Column makeColumn(ColumnSchema columnSchema) {
+        switch (columnSchema.getColumnType()) {
+            case BOOLEAN:
+                return new BooleanColumn(columnSchema.getColumnId());
+            case DATE:
+            case INTEGER:
+                return new LongColumn(columnSchema.getColumnId());
+            case STRING:
+                return new DictionaryColumn();
+            default:
+                return new TextColumn();
+        }
+    }
+
+    // Buffer for a single column. Values are added in row order.
+    private static abstract class Column {
+        // Throws IllegalArgumentException if the value can't be stored in this column.
+        void validate(String value) {
+            // By default, any value can be stored.
+        }
+
+        // Adds the value for the given row. Value may be null.
+        abstract void add(int rowIndex, String value);
+
+        // Gets the value for the given row. May be null.
+        abstract String get(int rowIndex);
+
+        // Rough estimate of the heap used by this column, in bytes.
+        abstract long getEstimatedBytes();
+    }
+
+    // Column with a value slot for every row. Nulls are tracked in a bitset, so subclasses only store non-null values.
+    private static abstract class TypedColumn extends Column {
+        // Set bits are nulls.
+        final BitSet nullSet = new BitSet();
+
+        @Override
+        void add(int rowIndex, String value) {
+            if (value == null) {
+                nullSet.set(rowIndex);
+            }
+            addValue(rowIndex, value);
+        }
+
+        @Override
+        String get(int rowIndex) {
+            return nullSet.get(rowIndex) ? null : getValue(rowIndex);
+        }
+
+        @Override
+        long getEstimatedBytes() {
+            return nullSet.size() / Byte.SIZE + getEstimatedValueBytes();
+        }
+
+        // Rough estimate of the heap used by the column's values, in bytes.
+        abstract long getEstimatedValueBytes();
+
+        // Stores the value for the given row. Value is null for null rows, so that the row still takes up a slot.
+        abstract void addValue(int rowIndex, String value);
+
+        // Gets the value for a non-null row.
+        abstract String getValue(int rowIndex);
+    }
+
+    // INTEGER and DATE columns. DATE values are epoch milliseconds.
+    private static class LongColumn extends TypedColumn {
+        private final String columnId;
+        private final List<long[]> chunkList = new ArrayList<>();
+
+        LongColumn(String columnId) {
+            this.columnId = columnId;
+        }
+
+        @Override
+        void validate(String value) {
+            try {
+                Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid integer " + value + " for column " + columnId);
+            }
+        }
+
+        @Override
+        void addValue(int rowIndex, String value) {
+            if (rowIndex % CHUNK_SIZE == 0) {
+                chunkList.add(new long[CHUNK_SIZE]);
+            }
+            if (value != null) {
+                chunkList.get(rowIndex / CHUNK_SIZE)[rowIndex % CHUNK_SIZE] = Long.parseLong(value);
+            }
+        }
+
+        @Override
+        String getValue(int rowIndex) {
+            return String.valueOf(chunkList.get(rowIndex / CHUNK_SIZE)[rowIndex % CHUNK_SIZE]);
+        }
+
+        @Override
+        long getEstimatedValueBytes() {
+            return (long) chunkList.size() * CHUNK_SIZE * Long.BYTES;
+        }
+    }
+
+    // BOOLEAN columns. Bitsets grow by themselves, so these don't need chunks.
+    private static class BooleanColumn extends TypedColumn {
+        private final String columnId;
+        private final BitSet valueSet = new BitSet();
+
+        BooleanColumn(String columnId) {
+            this.columnId = columnId;
+        }
+
+        @Override
+        void validate(String value) {
+            if (!"true".equals(value) && !"false".equals(value)) {
+                throw new IllegalArgumentException("Invalid boolean " + value + " for column " + columnId);
+            }
+        }
+
+        @Override
+        void addValue(int rowIndex, String value) {
+            if ("true".equals(value)) {
+                valueSet.set(rowIndex);
+            }
+        }
+
+        @Override
+        String getValue(int rowIndex) {
+            return String.valueOf(valueSet.get(rowIndex));
+        }
+
+        @Override
+        long getEstimatedValueBytes() {
+            return valueSet.size() / Byte.SIZE;
+        }
+    }
+
+    // STRING columns. Each distinct value is stored once, and rows store an int code into the dictionary.
+    private static class DictionaryColumn extends TypedColumn {
+        private final List<String> dictionary = new ArrayList<>();
+        private final Map<String, Integer> codesByValue = new HashMap<>();
+        private final List<int[]> chunkList = new ArrayList<>();
+        private long dictionaryBytes = 0;
+
+        @Override
+        void addValue(int rowIndex, String value) {
+            if (rowIndex % CHUNK_SIZE == 0) {
+                chunkList.add(new int[CHUNK_SIZE]);
+            }
+            if (value != null) {
+                int code = codesByValue.computeIfAbsent(value, key -> {
+                    dictionary.add(key);
+                    dictionaryBytes += (long) key.length() * Character.BYTES + DICTIONARY_ENTRY_OVERHEAD_BYTES;
+                    return dictionary.size() - 1;
+                });
+                chunkList.get(rowIndex / CHUNK_SIZE)[rowIndex % CHUNK_SIZE] = code;
+            }
+        }
+
+        @Override
+        String getValue(int rowIndex) {
+            return dictionary.get(chunkList.get(rowIndex / CHUNK_SIZE)[rowIndex % CHUNK_SIZE]);
+        }
+
+        @Override
+        long getEstimatedValueBytes() {
+            return (long) chunkList.size() * CHUNK_SIZE * Integer.BYTES + dictionaryBytes;
+        }
+    }
+
+    // Run-length encoded columns. Each run of consecutive rows with the same value (including null) is stored as the
+    // run's first row index and its value. Reading a row binary searches the run starts.
+    private static class RunLengthColumn extends Column {
+        private final List<String> runValueList = new ArrayList<>();
+        private int[] runStarts = new int[16];
+
+        @Override
+        void add(int rowIndex, String value) {
+            // Nulls are stored as runs too, so we don't need a bit per row for nulls.
+            int numRuns = runValueList.size();
+            if (numRuns > 0) {
+                String lastValue = runValueList.get(numRuns - 1);
+                if (lastValue == value || (lastValue != null && lastValue.equals(value))) {
+                    // Same run.
+                    return;
+                }
+            }
+
+            if (numRuns == runStarts.length) {
+                runStarts = Arrays.copyOf(runStarts, numRuns * 2);
+            }
+            runStarts[numRuns] = rowIndex;
+            runValueList.add(value);
+        }
+
+        @Override
+        String get(int rowIndex) {
+            int runIndex = Arrays.binarySearch(runStarts, 0, runValueList.size(), rowIndex);
+            if (runIndex < 0) {
+                // Not a run start. The row is in the run before the insertion point.
+                runIndex = -runIndex - 2;
+            }
+            return runValueList.get(runIndex);
+        }
+
+        @Override
+        long getEstimatedBytes() {
+            return (long) runStarts.length * RUN_OVERHEAD_BYTES;
+        }
+    }
+
+    // DOUBLE, LARGETEXT, and FILEHANDLEID columns. Values are stored back to back as UTF-8 in large byte chunks. Each
+    // row stores the value's position (chunk index in the high int, offset in the low int) and length.
+    private static class TextColumn extends TypedColumn {
+        private final List<byte[]> textChunkList = new ArrayList<>();
+        private int textChunkOffset = 0;
+        private long textChunkBytes = 0;
+        private final List<long[]> positionChunkList = new ArrayList<>();
+        private final List<int[]> lengthChunkList = new ArrayList<>();
+
+        @Override
+        void addValue(int rowIndex, String value) {
+            if (rowIndex % CHUNK_SIZE == 0) {
+                positionChunkList.add(new long[CHUNK_SIZE]);
+                lengthChunkList.add(new int[CHUNK_SIZE]);
+            }
+            if (value == null) {
+                return;
+            }
+
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            byte[] textChunk;
+            if (textChunkList.isEmpty() || valueBytes.length > TEXT_CHUNK_SIZE - textChunkOffset) {
+                // Doesn't fit in the current chunk. Start a new chunk.
+                textChunk = new byte[Math.max(TEXT_CHUNK_SIZE, valueBytes.length)];
+                textChunkList.add(textChunk);
+                textChunkOffset = 0;
+                textChunkBytes += textChunk.length;
+            } else {
+                textChunk = textChunkList.get(textChunkList.size() - 1);
+            }
+            System.arraycopy(valueBytes, 0, textChunk, textChunkOffset, valueBytes.length);
+
+            long position = ((long) (textChunkList.size() - 1) << 32) | textChunkOffset;
+            positionChunkList.get(rowIndex / CHUNK_SIZE)[rowIndex % CHUNK_SIZE] = position;
+            lengthChunkList.get(rowIndex / CHUNK_SIZE)[rowIndex % CHUNK_SIZE] = valueBytes.length;
+
+            // If the value got its own oversized chunk, the chunk is full. Otherwise, move past the value.
+            textChunkOffset = Math.min(textChunkOffset + valueBytes.length, TEXT_CHUNK_SIZE);
+        }
+
+        @Override
+        String getValue(int rowIndex) {
+            long position = positionChunkList.get(rowIndex / CHUNK_SIZE)[rowIndex % CHUNK_SIZE];
+            int length = lengthChunkList.get(rowIndex / CHUNK_SIZE)[rowIndex % CHUNK_SIZE];
+            byte[] textChunk = textChunkList.get((int) (position >>> 32));
+            return new String(textChunk, (int) position, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        long getEstimatedValueBytes() {
+            return (long) positionChunkList.size() * CHUNK_SIZE * (Long.BYTES + Integer.BYTES) + textChunkBytes;
+        }
+    }
+}
@@ -6,6 +6,9 @@ public class Constants {
     public static final String COLUMN_HEALTH_CODE = "healthCode";
     public static final String COLUMN_CREATED_DATE = "createdDate";
 
+    // Key in FitBit range responses that holds the date of each row. Range responses have one row per date.
+    public static final String FITBIT_KEY_DATE_TIME = "dateTime";
+
     // FitBit vendor ID, as configured in Bridge Server
     public static final String FITBIT_VENDOR_ID = "fitbit";
 }
@@ -0,0 +1,142 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.DateTimeUtils;
+
+/**
+ * Retries a study's deferred endpoint calls once they're due. Each deferred call waits on a timer, then goes to the
+ * scheduler's pipeline stage, which starts the retry. No thread sleeps while calls wait, and calls are retried as soon
+ * as they're due, even while other users are still being fetched. A retry can finish later, for example after backing
+ * off from a transient error, and a retry that fails for a transient reason can be scheduled again from the handler.
+ * The scheduler counts the calls that are waiting or being retried, so that the study can wait for all of them before
+ * finishing the rest of the pipeline.
+ *
+ * This class is thread-safe.
+ */
+class DeferredCallScheduler {
+    // Instance invariants
+    private final long maxDeferralMillis;
+    private final PipelineStage<DeferredEndpointCall> stage;
+    private final ScheduledExecutorService timer;
+
+    // Instance state tracking. Guarded by this.
+    private int numPendingCalls = 0;
+    private int numScheduledCalls = 0;
+    private int numAbandonedCalls = 0;
+
+    /**
+     * Constructs a Deferred Call Scheduler and starts its pipeline stage.
+     *
+     * @param name
+     *         stage name, used for logging and thread names
+     * @param parallelism
+     *         number of threads that retry calls
+     * @param queueCapacity
+     *         max number of due calls waiting to be retried
+     * @param useVirtualThreads
+     *         true if the stage's workers should be virtual threads, if the JVM supports it
+     * @param maxDeferralMillis
+     *         calls that aren't due until longer than this, in milliseconds, after they were first deferred are dropped
+     *         instead of scheduled
+     * @param handler
+     *         starts the retry of each call once it's due, and returns a future that completes once the retry is done;
+     *         the handler is passed this scheduler so it can schedule the call again; exceptions are logged and don't
+     *         stop the scheduler
+     */
+    DeferredCallScheduler(String name, int parallelism, int queueCapacity, boolean useVirtualThreads,
+            long maxDeferralMillis,
+            BiFunction<DeferredEndpointCall, DeferredCallScheduler, CompletableFuture<?>> handler) {
+        this.maxDeferralMillis = maxDeferralMillis;
+        this.stage = new PipelineStage<>(name, parallelism, queueCapacity, useVirtualThreads, deferredCall -> {
+            // Calls the handler schedules again are counted before the retry's future completes and this call is
+            // finished, so finish() doesn't return early.
+            boolean started = false;
+            try {
+                handler.apply(deferredCall, this).whenComplete((result, ex) -> finishCall());
+                started = true;
+            } finally {
+                if (!started) {
+                    finishCall();
+                }
+            }
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat(name + "-timer-%d").build());
+    }
+
+    /** Pipeline stage that retries calls once they're due, used for metrics. */
+    PipelineStage<DeferredEndpointCall> getStage() {
+        return stage;
+    }
+
+    /**
+     * Schedules the given call to be retried once it's due. Returns false if the call isn't due until longer than the
+     * max deferral after it was first deferred, in which case the call is dropped, and the caller should log it.
+     */
+    boolean schedule(DeferredEndpointCall deferredCall) {
+        long delayMillis = deferredCall.getNotBeforeMillis() - DateTimeUtils.currentTimeMillis();
+        synchronized (this) {
+            if (deferredCall.getNotBeforeMillis() - deferredCall.getFirstDeferredMillis() > maxDeferralMillis) {
+                numAbandonedCalls++;
+                return false;
+            }
+            numPendingCalls++;
+            numScheduledCalls++;
+        }
+
+        try {
+            // If the stage's queue is full, this blocks the timer, which applies back pressure to the calls behind it.
+            timer.schedule(() -> stage.put(deferredCall), Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // Timer was shut down. Don't wait for a call that will never be retried.
+            finishCall();
+            throw ex;
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until all scheduled calls have been retried, including calls that are scheduled while we wait. Then
+     * finishes the pipeline stage and stops the timer.
+     */
+    void finish() {
+        boolean interrupted = false;
+        synchronized (this) {
+            while (numPendingCalls > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // Keep waiting. Restore the interrupt once we're done, like Uninterruptibles.
+                    interrupted = true;
+                }
+            }
+        }
+        try {
+            stage.finish();
+        } finally {
+            timer.shutdown();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Returns a summary of the scheduler's metrics, for logging. */
+    synchronized String getMetricsString() {
+        return "deferredCalls[scheduled=" + numScheduledCalls + ", abandoned=" + numAbandonedCalls + ", pending=" +
+                numPendingCalls + "]";
+    }
+
+    // Helper method to mark a call as retried (or dropped) and wake up finish().
+    private synchronized void finishCall() {
+        numPendingCalls--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,82 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import org.joda.time.DateTimeUtils;
+
+import org.sagebionetworks.bridge.fitbit.bridge.FitBitUser;
+import org.sagebionetworks.bridge.fitbit.schema.EndpointSchema;
+
+/**
+ * Represents a call to a FitBit endpoint for a user that couldn't be made because the user was rate limited or because
+ * the circuit breaker around FitBit was open. The call should be retried after the user's rate limit resets or after
+ * the circuit breaker lets calls through again. If the retry is deferred again, the new call remembers when the call
+ * was first deferred, so that a call can't be deferred forever.
+ */
+public class DeferredEndpointCall {
+    private final FitBitUser user;
+    private final EndpointSchema endpointSchema;
+    private final String date;
+    private final long notBeforeMillis;
+    private final long firstDeferredMillis;
+
+    /**
+     * Constructs a Deferred Endpoint Call.
+     *
+     * @param user
+     *         user to call the endpoint for
+     * @param endpointSchema
+     *         endpoint to call
+     * @param date
+     *         date to call the endpoint for
+     * @param notBeforeMillis
+     *         earliest time (epoch milliseconds) the call can be retried
+     */
+    public DeferredEndpointCall(FitBitUser user, EndpointSchema endpointSchema, String date,
+            long notBeforeMillis) {
+        this.user = user;
+        this.endpointSchema = endpointSchema;
+        this.date = date;
+        this.notBeforeMillis = notBeforeMillis;
+        this.firstDeferredMillis = DateTimeUtils.currentTimeMillis();
+    }
+
+    /**
+     * Constructs a Deferred Endpoint Call for a deferred call whose retry was deferred again.
+     *
+     * @param previousCall
+     *         deferred call whose retry was deferred
+     * @param notBeforeMillis
+     *         earliest time (epoch milliseconds) the call can be retried again
+     */
+    public DeferredEndpointCall(DeferredEndpointCall previousCall, long notBeforeMillis) {
+        this.user = previousCall.user;
+        this.endpointSchema = previousCall.endpointSchema;
+        this.date = previousCall.date;
+        this.notBeforeMillis = notBeforeMillis;
+        this.firstDeferredMillis = previousCall.firstDeferredMillis;
+    }
+
+    /** User to call the endpoint for. */
+    public FitBitUser getUser() {
+        return user;
+    }
+
+    /** Endpoint to call. */
+    public EndpointSchema getEndpointSchema() {
+        return endpointSchema;
+    }
+
+    /** Date to call the endpoint for. For range endpoints, this is the request's start date. */
+    public String getDate() {
+        return date;
+    }
+
+    /** Earliest time (epoch milliseconds) the call can be retried. */
+    public long getNotBeforeMillis() {
+        return notBeforeMillis;
+    }
+
+    /** Time (epoch milliseconds) the call was first deferred. */
+    public long getFirstDeferredMillis() {
+        return firstDeferredMillis;
+    }
+}
@@ -0,0 +1,56 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import org.sagebionetworks.bridge.fitbit.bridge.FitBitUser;
+import org.sagebionetworks.bridge.fitbit.schema.EndpointSchema;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitResponse;
+
+/**
+ * Represents a response from a FitBit endpoint for a particular user. This is passed from the fetch stage to the parse
+ * stage of the processing pipeline.
+ */
+public class EndpointResponse {
+    private final FitBitUser user;
+    private final EndpointSchema endpointSchema;
+    private final String date;
+    private final FitBitResponse response;
+
+    /**
+     * Constructs an Endpoint Response.
+     *
+     * @param user
+     *         user the endpoint was called for
+     * @param endpointSchema
+     *         endpoint that was called
+     * @param date
+     *         date the endpoint was called for
+     * @param response
+     *         response from the FitBit Web API
+     */
+    public EndpointResponse(FitBitUser user, EndpointSchema endpointSchema, String date,
+            FitBitResponse response) {
+        this.user = user;
+        this.endpointSchema = endpointSchema;
+        this.date = date;
+        this.response = response;
+    }
+
+    /** User the endpoint was called for. */
+    public FitBitUser getUser() {
+        return user;
+    }
+
+    /** Endpoint that was called. */
+    public EndpointSchema getEndpointSchema() {
+        return endpointSchema;
+    }
+
+    /** Date the endpoint was called for. For range endpoints, this is the request's start date. */
+    public String getDate() {
+        return date;
+    }
+
+    /** Response from the FitBit Web API. */
+    public FitBitResponse getResponse() {
+        return response;
+    }
+}
@@ -0,0 +1,55 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Represents an endpoint call for a user that was fetched and parsed, but whose data hasn't been uploaded yet. Once all
+ * of the call's tables are uploaded, the call is marked as completed in the checkpoint store.
+ */
+public class FetchedEndpointCall {
+    private final String healthCode;
+    private final String endpointId;
+    private final String checkpointDate;
+    private final Set<String> tableIds;
+
+    /**
+     * Constructs a Fetched Endpoint Call.
+     *
+     * @param healthCode
+     *         health code of the user the endpoint was called for
+     * @param endpointId
+     *         endpoint that was called
+     * @param checkpointDate
+     *         date used to key the checkpoint
+     * @param tableIds
+     *         tables that the call's data was added to
+     */
+    public FetchedEndpointCall(String healthCode, String endpointId, String checkpointDate, Set<String> tableIds) {
+        this.healthCode = healthCode;
+        this.endpointId = endpointId;
+        this.checkpointDate = checkpointDate;
+        this.tableIds = ImmutableSet.copyOf(tableIds);
+    }
+
+    /** Health code of the user the endpoint was called for. */
+    public String getHealthCode() {
+        return healthCode;
+    }
+
+    /** Endpoint that was called. */
+    public String getEndpointId() {
+        return endpointId;
+    }
+
+    /** Date used to key the checkpoint. For range endpoints, this is the request's date range. */
+    public String getCheckpointDate() {
+        return checkpointDate;
+    }
+
+    /** Tables that the call's data was added to. */
+    public Set<String> getTableIds() {
+        return tableIds;
+    }
+}
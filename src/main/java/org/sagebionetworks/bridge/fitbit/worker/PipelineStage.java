@@ -0,0 +1,172 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.fitbit.util.Utils;
+
+/**
+ * A single stage in the FitBit Worker's processing pipeline. Each stage has a bounded input queue and a fixed number of
+ * worker threads, which take items from the queue and pass them to the stage's handler. Because the queue is bounded,
+ * a slow stage applies back pressure to the stages before it. The stage keeps track of its queue depth, so we can see
+ * which stage is the bottleneck.
+ *
+ * @param <T>
+ *         type of item processed by this stage
+ */
+public class PipelineStage<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelineStage.class);
+
+    // How long workers wait on an empty queue before checking if the stage is finished.
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    // Instance invariants
+    private final String name;
+    private final int parallelism;
+    private final Consumer<T> handler;
+    private final BlockingQueue<T> queue;
+    private final ExecutorService executor;
+
+    // Instance state tracking
+    private final CountDownLatch workersDoneLatch;
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicInteger numProcessed = new AtomicInteger();
+    private volatile boolean inputDone = false;
+
+    /**
+     * Constructs and starts a pipeline stage.
+     *
+     * @param name
+     *         stage name, used for logging and thread names
+     * @param parallelism
+     *         number of worker threads
+     * @param queueCapacity
+     *         max number of items waiting in the input queue
+     * @param useVirtualThreads
+     *         true if the workers should be virtual threads, if the JVM supports it
+     * @param handler
+     *         processes each item; exceptions and errors are logged and don't stop the stage
+     */
+    public PipelineStage(String name, int parallelism, int queueCapacity, boolean useVirtualThreads,
+            Consumer<T> handler) {
+        this.name = name;
+        this.parallelism = parallelism;
+        this.handler = handler;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.executor = Utils.newExecutorService(name, parallelism, useVirtualThreads);
+        this.workersDoneLatch = new CountDownLatch(parallelism);
+
+        for (int i = 0; i < parallelism; i++) {
+            executor.execute(this::runWorker);
+        }
+    }
+
+    /** Stage name. */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds an item to this stage's input queue. Blocks if the queue is full. If the queue is full and the stage has no
+     * workers left to drain it, throws an IllegalStateException instead of blocking forever.
+     */
+    public void put(T item) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (queue.offer(item, POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                } catch (InterruptedException ex) {
+                    // Like putUninterruptibly(), keep waiting, and restore the interrupt when we're done.
+                    interrupted = true;
+                    continue;
+                }
+
+                if (workersDoneLatch.getCount() == 0) {
+                    throw new IllegalStateException("Pipeline stage " + name + " has no workers left");
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    /**
+     * Signals that no more items will be added to this stage, and blocks until the workers have processed all items in
+     * the queue.
+     */
+    public void finish() {
+        inputDone = true;
+        Uninterruptibles.awaitUninterruptibly(workersDoneLatch);
+        executor.shutdown();
+    }
+
+    /** Current number of items waiting in the input queue. */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /** Max number of items that were ever waiting in the input queue. */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /** Number of items this stage has processed. */
+    public int getNumProcessed() {
+        return numProcessed.get();
+    }
+
+    /** Returns a summary of this stage's metrics, for logging. */
+    public String getMetricsString() {
+        return name + "[parallelism=" + parallelism + ", queueDepth=" + getQueueDepth() + ", maxQueueDepth=" +
+                getMaxQueueDepth() + ", processed=" + getNumProcessed() + "]";
+    }
+
+    // Worker loop. Workers exit once the input is done and the queue is drained, and not before, since producers
+    // block on the queue until a worker takes their item. An interrupt or a handler error is logged, and the worker
+    // moves on to the next item.
+    private void runWorker() {
+        try {
+            while (true) {
+                T item;
+                try {
+                    item = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    LOG.error("Pipeline stage " + name + " interrupted, continuing");
+                    continue;
+                }
+
+                if (item == null) {
+                    if (inputDone && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+
+                try {
+                    handler.accept(item);
+                } catch (Throwable t) {
+                    LOG.error("Error in pipeline stage " + name + ": " + t.getMessage(), t);
+                } finally {
+                    numProcessed.incrementAndGet();
+                }
+            }
+        } finally {
+            workersDoneLatch.countDown();
+        }
+    }
+}
@@ -1,22 +1,84 @@
 package org.sagebionetworks.bridge.fitbit.worker;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+
+import org.sagebionetworks.bridge.fitbit.schema.ColumnSchema;
+import org.sagebionetworks.bridge.fitbit.schema.TableRowExtractor;
 import org.sagebionetworks.bridge.fitbit.schema.TableSchema;
+import org.sagebionetworks.bridge.fitbit.util.Utils;
 
 /**
  * Represents a particular table for a particular job run. This keeps track of the state of this particular table as we
  * call the FitBit Web API and download data.
+ *
+ * Rows are kept in a columnar store, in the same column order as {@link Utils#getAllColumnsForTable}, so a big study
+ * doesn't hold a map of strings for every row. When a study goes over its memory budget, the rows in memory can be
+ * spilled to a gzipped TSV segment on disk, and the TSV writer merges the segments back in at upload time.
+ * Alternatively, a table can stream its rows to a TSV file as they're added, in which case only the row count is kept
+ * in memory, and the rows can't be read back. All row methods are synchronized, so rows from multiple users can be
+ * added concurrently.
  */
 public class PopulatedTable {
+    // healthCode and createdDate come before the table's own columns. They're the same for every row from a single
+    // response, so the row store run-length encodes them.
+    private static final int NUM_COMMON_COLUMNS = 2;
+
+    // Rough per-row cost of a common column if every row kept it in its own row map: the hash map entry and its table
+    // slot, plus the value String and its char array headers. The chars are 2 bytes each on top of this.
+    private static final int ROW_MAP_ENTRY_BYTES = 48;
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
     // Instance invariants
     private final String tableId;
     private final TableSchema tableSchema;
 
     // Instance state tracking
-    private final List<Map<String, String>> rowList = new ArrayList<>();
+    private final SetMultimap<String, String> healthCodesByDate = Multimaps.synchronizedSetMultimap(
+            HashMultimap.create());
+    private final List<ColumnSchema> allColumnList;
+    private final List<String> columnIdList;
+    private final List<Map<String, String>> rowListView = new RowListView();
+    private final Object rowLock = new Object();
+
+    // Rows in memory, or null if rows are streamed to a TSV. Replaced with an empty store when rows are spilled.
+    // Guarded by the row lock.
+    private ColumnarRowStore rowStore;
+
+    // Segments of rows spilled to disk, in row order. Spilled rows come before the rows in memory. Guarded by the
+    // row lock.
+    private final List<File> spilledSegmentList = new ArrayList<>();
+    private int numSpilledRows = 0;
+
+    // Rough bytes the common columns would have used if every row added so far kept them in a row map, including rows
+    // that were since spilled to disk or that were streamed to a TSV. Guarded by the row lock.
+    private long commonColumnRowMapBytes = 0;
+
+    // Only used if rows are streamed to a TSV. Guarded by the row lock.
+    private final File tsvFile;
+    private final PrintWriter tsvWriter;
+    private int numStreamedRows = 0;
+    private boolean tsvWriterClosed = false;
 
     /**
      * Constructs a Populated Table
@@ -29,6 +91,39 @@ public class PopulatedTable {
     public PopulatedTable(String tableId, TableSchema tableSchema) {
         this.tableId = tableId;
         this.tableSchema = tableSchema;
+
+        this.allColumnList = Utils.getAllColumnsForTable(this);
+        this.columnIdList = allColumnList.stream().map(ColumnSchema::getColumnId).collect(Collectors.toList());
+        this.rowStore = new ColumnarRowStore(allColumnList, NUM_COMMON_COLUMNS);
+        this.tsvFile = null;
+        this.tsvWriter = null;
+    }
+
+    /**
+     * Constructs a Populated Table that streams its rows to a TSV file. The headers are written immediately, and each
+     * row is written as soon as it's added. Call {@link #closeTsvWriter} before uploading the file.
+     *
+     * @param tableId
+     *         table ID (table name in Synapse)
+     * @param tableSchema
+     *         table schema
+     * @param tsvFile
+     *         TSV file the rows are written to
+     * @param writer
+     *         writer for the TSV file, owned by this table from now on
+     */
+    public PopulatedTable(String tableId, TableSchema tableSchema, File tsvFile, Writer writer) {
+        this.tableId = tableId;
+        this.tableSchema = tableSchema;
+
+        this.allColumnList = Utils.getAllColumnsForTable(this);
+        this.columnIdList = allColumnList.stream().map(ColumnSchema::getColumnId).collect(Collectors.toList());
+        this.rowStore = null;
+        this.tsvFile = tsvFile;
+        this.tsvWriter = new PrintWriter(writer);
+
+        // Write headers. (Headers also include healthCode and createdDate.)
+        Utils.writeRowToTsv(tsvWriter, columnIdList);
     }
 
     /** Table ID, used to uniquely identify a table withiin a study. Also used as the table name in Synapse. */
@@ -41,8 +136,281 @@ public class PopulatedTable {
         return tableSchema;
     }
 
-    /** List of table rows. Each row is represented as a map from column name to column value. */
+    /**
+     * Health codes of the users whose data is in this table, keyed by checkpoint date. Once the table is uploaded,
+     * these are written to the checkpoint store. This multimap is synchronized.
+     */
+    public SetMultimap<String, String> getHealthCodesByDate() {
+        return healthCodesByDate;
+    }
+
+    /** True if rows are streamed to a TSV file instead of kept in memory. */
+    public boolean isStreamingTsv() {
+        return tsvWriter != null;
+    }
+
+    /** TSV file the rows are streamed to, or null if rows are kept in memory. */
+    public File getTsvFile() {
+        return tsvFile;
+    }
+
+    /**
+     * Flushes and closes the TSV writer, so the TSV file is complete and can be uploaded. No rows can be added
+     * afterwards. Calling this more than once does nothing. Throws if any row failed to write.
+     */
+    public void closeTsvWriter() throws IOException {
+        if (!isStreamingTsv()) {
+            throw new IllegalStateException("Table " + tableId + " doesn't stream rows to a TSV");
+        }
+        synchronized (rowLock) {
+            if (tsvWriterClosed) {
+                return;
+            }
+            tsvWriterClosed = true;
+
+            // PrintWriter swallows IOExceptions, so we need to check for errors ourselves.
+            tsvWriter.close();
+            if (tsvWriter.checkError()) {
+                throw new IOException("Error writing TSV for table " + tableId);
+            }
+        }
+    }
+
+    /**
+     * Adds a row to the table. The row is a map from column name to column value. Columns not in the table are
+     * ignored. If rows are kept in memory, throws an IllegalArgumentException if a value can't be stored in its
+     * column's type. If rows are streamed to a TSV, throws an IllegalStateException if the TSV writer is closed.
+     */
+    public void addRow(Map<String, String> row) {
+        String[] values = getValuesForRow(row);
+        synchronized (rowLock) {
+            addValuesForRow(values);
+        }
+    }
+
+    /**
+     * Adds rows to the table, in order, taking the row lock once for the whole batch. Rows from the same user are kept
+     * together, so the common columns compress well. Throws the same exceptions as {@link #addRow}, in which case the
+     * rows before the bad row are still added.
+     */
+    public void addRows(List<Map<String, String>> rowList) {
+        List<String[]> valuesList = new ArrayList<>(rowList.size());
+        for (Map<String, String> oneRow : rowList) {
+            valuesList.add(getValuesForRow(oneRow));
+        }
+
+        synchronized (rowLock) {
+            for (String[] oneValues : valuesList) {
+                addValuesForRow(oneValues);
+            }
+        }
+    }
+
+    // Helper method to convert a row map into values in column order.
+    private String[] getValuesForRow(Map<String, String> row) {
+        String[] values = new String[columnIdList.size()];
+        TableRowExtractor rowExtractor = tableSchema.getRowExtractor();
+        if (row instanceof TableRow && ((TableRow) row).getRowExtractor() == rowExtractor) {
+            // Fast path. Rows from this table's extractor are already in column order, after the common columns.
+            TableRow tableRow = (TableRow) row;
+            values[0] = tableRow.getHealthCode();
+            values[1] = tableRow.getCreatedDate();
+            for (int i = 0; i < rowExtractor.getNumColumns(); i++) {
+                values[i + NUM_COMMON_COLUMNS] = tableRow.getValue(i);
+            }
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = row.get(columnIdList.get(i));
+            }
+        }
+        return values;
+    }
+
+    // Helper method to add a row's values to the row store or the TSV. Must be called with the row lock held.
+    private void addValuesForRow(String[] values) {
+        if (rowStore != null) {
+            rowStore.addRow(values);
+        } else {
+            if (tsvWriterClosed) {
+                throw new IllegalStateException("TSV writer for table " + tableId + " is already closed");
+            }
+            Utils.writeRowToTsv(tsvWriter, Arrays.asList(values));
+            numStreamedRows++;
+        }
+
+        for (int i = 0; i < NUM_COMMON_COLUMNS; i++) {
+            if (values[i] != null) {
+                commonColumnRowMapBytes += ROW_MAP_ENTRY_BYTES + STRING_OVERHEAD_BYTES +
+                        (long) values[i].length() * Character.BYTES;
+            }
+        }
+    }
+
+    /** Number of rows in the table, including rows spilled to disk. */
+    public int getNumRows() {
+        synchronized (rowLock) {
+            return rowStore != null ? numSpilledRows + rowStore.getNumRows() : numStreamedRows;
+        }
+    }
+
+    /** Rough estimate of the heap used by the rows in memory, in bytes. */
+    public long getEstimatedMemoryBytes() {
+        synchronized (rowLock) {
+            return rowStore != null ? rowStore.getEstimatedBytes() : 0;
+        }
+    }
+
+    /**
+     * Rough estimate of the bytes saved by storing the common healthCode and createdDate columns once per run of rows
+     * (or not at all, if rows are streamed to a TSV), compared to keeping a map entry and a String for them in every
+     * row. This counts every row added, including rows that were since spilled to disk.
+     */
+    public long getCommonColumnSavedBytes() {
+        synchronized (rowLock) {
+            long runLengthBytes = rowStore != null ? rowStore.getRunLengthEstimatedBytes() : 0;
+            return Math.max(0, commonColumnRowMapBytes - runLengthBytes);
+        }
+    }
+
+    /**
+     * Spills the rows in memory to a segment file on disk, and frees their memory. The segment is a gzipped TSV
+     * without headers, so it can be copied straight into the table's TSV at upload time. This method closes the
+     * output stream. If writing the segment fails, the rows stay in memory. Returns the number of rows spilled.
+     *
+     * @param segmentFile
+     *         segment file, which is remembered so it can be merged back in at upload time
+     * @param outputStream
+     *         output stream for the segment file
+     */
+    public int spillRows(File segmentFile, OutputStream outputStream) throws IOException {
+        checkRowsInMemory();
+        synchronized (rowLock) {
+            ColumnarRowStore spilledRowStore = rowStore;
+            int numRows = spilledRowStore.getNumRows();
+            PrintWriter segmentWriter = new PrintWriter(new OutputStreamWriter(new GZIPOutputStream(outputStream),
+                    StandardCharsets.UTF_8));
+            try {
+                for (int i = 0; i < numRows; i++) {
+                    Utils.writeRowToTsv(segmentWriter, Arrays.asList(getRowValues(spilledRowStore, i)));
+                }
+            } finally {
+                segmentWriter.close();
+            }
+
+            // PrintWriter swallows IOExceptions, so we need to check for errors ourselves.
+            if (segmentWriter.checkError()) {
+                throw new IOException("Error spilling rows for table " + tableId);
+            }
+
+            spilledSegmentList.add(segmentFile);
+            numSpilledRows += numRows;
+            rowStore = new ColumnarRowStore(allColumnList, NUM_COMMON_COLUMNS);
+            return numRows;
+        }
+    }
+
+    /**
+     * Segment files of rows spilled to disk, in row order. These rows come before the rows in memory. Each segment is
+     * a gzipped TSV without headers.
+     */
+    public List<File> getSpilledSegmentList() {
+        synchronized (rowLock) {
+            return ImmutableList.copyOf(spilledSegmentList);
+        }
+    }
+
+    /**
+     * Iterates the rows that are in memory when this is called. Each row is a list of values, in the same column order
+     * as {@link Utils#getAllColumnsForTable}. Values may be null. Rows are decoded as they're iterated. Rows spilled
+     * to disk aren't included. See {@link #getSpilledSegmentList}. Throws an IllegalStateException if rows are
+     * streamed to a TSV.
+     */
+    public Iterator<List<String>> rowIterator() {
+        checkRowsInMemory();
+        ColumnarRowStore iteratedRowStore;
+        int numRows;
+        synchronized (rowLock) {
+            // If rows are spilled while iterating, the old store is never modified again, so we can keep reading it.
+            iteratedRowStore = rowStore;
+            numRows = iteratedRowStore.getNumRows();
+        }
+        return new Iterator<List<String>>() {
+            private int nextRowIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return nextRowIndex < numRows;
+            }
+
+            @Override
+            public List<String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return Arrays.asList(getRowValues(iteratedRowStore, nextRowIndex++));
+            }
+        };
+    }
+
+    /**
+     * List of table rows, as a view over the row store. Each row is represented as a map from column name to column
+     * value, which is decoded every time the row is read. Adding a row to this list calls {@link #addRow}. Prefer
+     * {@link #rowIterator} for reading all rows. Rows spilled to disk, or streamed to a TSV, can be counted, but not
+     * read.
+     */
     public List<Map<String, String>> getRowList() {
-        return rowList;
+        return rowListView;
+    }
+
+    // Helper method to make sure rows are kept in memory, and not streamed to a TSV.
+    private void checkRowsInMemory() {
+        if (isStreamingTsv()) {
+            throw new IllegalStateException("Rows for table " + tableId + " are streamed to a TSV and can't be read");
+        }
+    }
+
+    // Helper method to decode the values of a single row from the given row store, in column order.
+    private String[] getRowValues(ColumnarRowStore fromRowStore, int rowIndex) {
+        String[] values = new String[columnIdList.size()];
+        synchronized (rowLock) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = fromRowStore.getValue(rowIndex, i);
+            }
+        }
+        return values;
+    }
+
+    // List view of the rows. Each row is decoded into a map with no null values.
+    private class RowListView extends AbstractList<Map<String, String>> {
+        @Override
+        public Map<String, String> get(int index) {
+            checkRowsInMemory();
+            String[] values;
+            synchronized (rowLock) {
+                if (index >= 0 && index < numSpilledRows) {
+                    throw new IllegalStateException("Row " + index + " for table " + tableId +
+                            " is spilled to disk and can't be read");
+                }
+                values = getRowValues(rowStore, index - numSpilledRows);
+            }
+            Map<String, String> row = new LinkedHashMap<>();
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    row.put(columnIdList.get(i), values[i]);
+                }
+            }
+            return row;
+        }
+
+        @Override
+        public int size() {
+            return getNumRows();
+        }
+
+        @Override
+        public boolean add(Map<String, String> row) {
+            addRow(row);
+            return true;
+        }
     }
 }
@@ -1,36 +1,89 @@
 package org.sagebionetworks.bridge.fitbit.worker;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.collect.ImmutableList;
+import org.joda.time.LocalDate;
+
+import org.sagebionetworks.bridge.fitbit.checkpoint.DateCheckpoints;
 import org.sagebionetworks.bridge.rest.model.Study;
 
-/** Represents the context needed to run a FitBit export for the given date and study. */
+/** Represents the context needed to run a FitBit export for the given date range and study. */
 public class RequestContext {
     // Instance invariants
-    private final String date;
+    private final String startDate;
+    private final String endDate;
+    private final List<String> dateList;
     private final Study study;
     private final File tmpDir;
+    private final boolean streamRowsToTsv;
 
     // Instance state tracking
-    private final Map<String, PopulatedTable> populatedTablesById = new HashMap<>();
+    private final Map<String, DateCheckpoints> checkpointsByDate = new ConcurrentHashMap<>();
+    private final Queue<FetchedEndpointCall> fetchedEndpointCallQueue = new ConcurrentLinkedQueue<>();
+    private final Set<String> invalidTokenHealthCodeSet = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger numSkippedEndpointCalls = new AtomicInteger();
+    private final Map<String, PopulatedTable> populatedTablesById = new ConcurrentHashMap<>();
 
     /**
      * Constructs a Request Context
-     * @param date request date
+     * @param startDate first date of the request date range, inclusive
+     * @param endDate last date of the request date range, inclusive
      * @param study request study
      * @param tmpDir temp directory
      */
-    public RequestContext(String date, Study study, File tmpDir) {
-        this.date = date;
+    public RequestContext(String startDate, String endDate, Study study, File tmpDir) {
+        this(startDate, endDate, study, tmpDir, false);
+    }
+
+    /**
+     * Constructs a Request Context
+     * @param startDate first date of the request date range, inclusive
+     * @param endDate last date of the request date range, inclusive
+     * @param study request study
+     * @param tmpDir temp directory
+     * @param streamRowsToTsv true if populated tables should stream their rows to TSVs in the temp directory
+     */
+    public RequestContext(String startDate, String endDate, Study study, File tmpDir, boolean streamRowsToTsv) {
+        this.startDate = startDate;
+        this.endDate = endDate;
         this.study = study;
         this.tmpDir = tmpDir;
+        this.streamRowsToTsv = streamRowsToTsv;
+
+        List<String> dateList = new ArrayList<>();
+        LocalDate endLocalDate = LocalDate.parse(endDate);
+        for (LocalDate oneDate = LocalDate.parse(startDate); !oneDate.isAfter(endLocalDate);
+                oneDate = oneDate.plusDays(1)) {
+            dateList.add(oneDate.toString());
+        }
+        this.dateList = ImmutableList.copyOf(dateList);
     }
 
-    /** Date that the worker should download data for, in YYYY-MM-DD format. */
-    public String getDate() {
-        return date;
+    /**
+     * First date that the worker should download data for, in YYYY-MM-DD format. For single-day requests, this is the
+     * same as the end date.
+     */
+    public String getStartDate() {
+        return startDate;
+    }
+
+    /** Last date that the worker should download data for, in YYYY-MM-DD format. */
+    public String getEndDate() {
+        return endDate;
+    }
+
+    /** All dates from the start date to the end date, inclusive, in YYYY-MM-DD format. */
+    public List<String> getDateList() {
+        return dateList;
     }
 
     /** Study that the worker should download data for. */
@@ -43,9 +96,47 @@ public class RequestContext {
         return tmpDir;
     }
 
+    /**
+     * True if populated tables should write their rows to TSV files in the temp directory as the rows are added,
+     * instead of keeping them in memory until upload.
+     */
+    public boolean isStreamRowsToTsv() {
+        return streamRowsToTsv;
+    }
+
+    /**
+     * Checkpoints left by previous runs of this request, keyed by checkpoint date. These are loaded once at the start
+     * of the study, so that checking a checkpoint doesn't call the checkpoint store. This map is thread-safe.
+     */
+    public Map<String, DateCheckpoints> getCheckpointsByDate() {
+        return checkpointsByDate;
+    }
+
+    /**
+     * Queue of endpoint calls that were fetched and parsed. Once their tables are uploaded, these are marked as
+     * completed in the checkpoint store. This queue is thread-safe.
+     */
+    public Queue<FetchedEndpointCall> getFetchedEndpointCallQueue() {
+        return fetchedEndpointCallQueue;
+    }
+
+    /**
+     * Health codes of users whose access token FitBit rejected. The token won't become valid again during this run, so
+     * the remaining endpoint calls for these users are skipped. This set is thread-safe.
+     */
+    public Set<String> getInvalidTokenHealthCodeSet() {
+        return invalidTokenHealthCodeSet;
+    }
+
+    /** Number of endpoint calls skipped because they were already completed by a previous run. */
+    public AtomicInteger getNumSkippedEndpointCalls() {
+        return numSkippedEndpointCalls;
+    }
+
     /**
      * Map of populated tables. The key is the table ID, which is unique per study. The values are populated tables,
-     * which are used to tabulate data to be exported to Synapse.
+     * which are used to tabulate data to be exported to Synapse. This map is thread-safe, since users are processed
+     * concurrently.
      */
     public Map<String, PopulatedTable> getPopulatedTablesById() {
         return populatedTablesById;
@@ -0,0 +1,117 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * Memory budget for the populated tables of a single study. Tables stay in memory while the study is under budget.
+ * Once the estimated footprint of all tables crosses the budget, the largest tables spill their rows to segment files
+ * in the study's temp dir, until the study is back under budget. Small studies never spill, so they keep the fast
+ * in-memory path.
+ *
+ * This class is thread-safe. Only one thread spills at a time, so sink threads don't spill the same table twice.
+ */
+class TableMemoryBudget {
+    private static final Logger LOG = LoggerFactory.getLogger(TableMemoryBudget.class);
+
+    private final long budgetBytes;
+    private final FileHelper fileHelper;
+    private final File tmpDir;
+
+    // Guarded by this.
+    private int numSpills = 0;
+    private long numSpilledBytes = 0;
+    private long numSpilledRows = 0;
+
+    /**
+     * Constructs a Table Memory Budget
+     *
+     * @param budgetBytes
+     *         max estimated bytes that tables in the study can keep in memory
+     * @param fileHelper
+     *         file helper, used to write segment files
+     * @param tmpDir
+     *         study temp dir, where segment files are written
+     */
+    TableMemoryBudget(long budgetBytes, FileHelper fileHelper, File tmpDir) {
+        this.budgetBytes = budgetBytes;
+        this.fileHelper = fileHelper;
+        this.tmpDir = tmpDir;
+    }
+
+    /**
+     * Checks the estimated footprint of the given tables against the budget. If the tables are over budget, spills
+     * the largest tables to disk until they're back under budget.
+     */
+    synchronized void enforce(Collection<PopulatedTable> tableCollection) throws IOException {
+        // Other threads keep adding rows while we check, so snapshot each table's footprint. Tables that stream their
+        // rows to a TSV have nothing in memory to spill.
+        List<PopulatedTable> tableList = new ArrayList<>();
+        Map<PopulatedTable, Long> bytesByTable = new HashMap<>();
+        long totalBytes = 0;
+        for (PopulatedTable oneTable : tableCollection) {
+            if (!oneTable.isStreamingTsv()) {
+                long tableBytes = oneTable.getEstimatedMemoryBytes();
+                tableList.add(oneTable);
+                bytesByTable.put(oneTable, tableBytes);
+                totalBytes += tableBytes;
+            }
+        }
+        if (totalBytes <= budgetBytes) {
+            return;
+        }
+
+        // Spill the largest tables first, since they free the most memory for each segment file.
+        tableList.sort((table1, table2) -> Long.compare(bytesByTable.get(table2), bytesByTable.get(table1)));
+        for (PopulatedTable oneTable : tableList) {
+            if (totalBytes <= budgetBytes) {
+                break;
+            }
+            long tableBytes = bytesByTable.get(oneTable);
+            if (tableBytes == 0) {
+                continue;
+            }
+
+            File segmentFile = fileHelper.newFile(tmpDir, oneTable.getTableId() + ".spill-" + numSpills + ".tsv.gz");
+            int numRows;
+            try (OutputStream segmentOutputStream = fileHelper.getOutputStream(segmentFile)) {
+                numRows = oneTable.spillRows(segmentFile, segmentOutputStream);
+            } catch (IOException ex) {
+                // The rows are still in memory. Clean up the partial segment.
+                if (fileHelper.fileExists(segmentFile)) {
+                    fileHelper.deleteFile(segmentFile);
+                }
+                throw ex;
+            }
+            LOG.info("Spilled " + numRows + " rows (about " + tableBytes + " bytes) from table " +
+                    oneTable.getTableId() + " to disk");
+
+            numSpills++;
+            numSpilledBytes += tableBytes;
+            numSpilledRows += numRows;
+            totalBytes -= tableBytes;
+        }
+    }
+
+    /** Number of times a table was spilled to disk. */
+    synchronized int getNumSpills() {
+        return numSpills;
+    }
+
+    /** Metrics string for the run summary. */
+    synchronized String getMetricsString() {
+        return "spilled " + numSpills + " table segments (" + numSpilledRows + " rows, about " + numSpilledBytes +
+                " bytes) to disk with a memory budget of " + budgetBytes + " bytes";
+    }
+}
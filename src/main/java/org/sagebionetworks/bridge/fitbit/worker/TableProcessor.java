@@ -1,17 +1,21 @@
 package org.sagebionetworks.bridge.fitbit.worker;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import javax.annotation.Resource;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.google.common.io.CharStreams;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
 import org.sagebionetworks.repo.model.table.ColumnModel;
@@ -71,17 +75,36 @@ public class TableProcessor {
     /** Processes the table for the given Request Context. This is the main entry point for the Table Processor. */
     public void processTable(RequestContext ctx, PopulatedTable table) throws BridgeSynapseException,
             IOException, SynapseException {
-        if (table.getRowList().isEmpty()) {
+        if (table.isStreamingTsv()) {
+            // Rows were written to the TSV as they were added. Close the writer so the file is complete. (Do this
+            // even if there are no rows, so we don't leak the writer.)
+            table.closeTsvWriter();
+        }
+        if (table.getNumRows() == 0) {
             // No data. Skip.
+            if (table.isStreamingTsv()) {
+                // The TSV only has headers. Clean it up.
+                fileHelper.deleteFile(table.getTsvFile());
+            }
             return;
         }
 
-        File tsvFile = fileHelper.newFile(ctx.getTmpDir(), table.getTableId() + ".tsv");
-        convertInMemoryTableToTsv(table, tsvFile);
+        File tsvFile;
+        if (table.isStreamingTsv()) {
+            tsvFile = table.getTsvFile();
+        } else {
+            tsvFile = fileHelper.newFile(ctx.getTmpDir(), table.getTableId() + ".tsv");
+            convertInMemoryTableToTsv(table, tsvFile);
+
+            // Spilled segments are merged into the TSV. We don't need them anymore.
+            for (File oneSegmentFile : table.getSpilledSegmentList()) {
+                fileHelper.deleteFile(oneSegmentFile);
+            }
+        }
         String synapseTableId = verifySynapseTable(ctx, table);
 
         long linesProcessed = synapseHelper.uploadTsvFileToTable(synapseTableId, tsvFile);
-        int expectedLineCount = table.getRowList().size();
+        int expectedLineCount = table.getNumRows();
         if (linesProcessed != expectedLineCount) {
             throw new BridgeSynapseException("Wrong number of lines processed importing to table=" + synapseTableId +
                     ", expected=" + expectedLineCount + ", actual=" + linesProcessed);
@@ -92,8 +115,8 @@ public class TableProcessor {
     }
 
     // Helper method to convert the in-memory PopulatedTable into a TSV file in the file system. Includes writing
-    // headers. Visible for testing.
-    void convertInMemoryTableToTsv(PopulatedTable table, File tsvFile) throws FileNotFoundException {
+    // headers. Rows spilled to disk are merged back in, in row order. Visible for testing.
+    void convertInMemoryTableToTsv(PopulatedTable table, File tsvFile) throws IOException {
         // Combine common columns with table-specific columns.
         List<ColumnSchema> allColumnList = Utils.getAllColumnsForTable(table);
         List<String> allColumnNameList = allColumnList.stream().map(ColumnSchema::getColumnId).collect(Collectors
@@ -104,11 +127,18 @@ public class TableProcessor {
             // Write headers. (Headers also include healthCode and createdDate.)
             Utils.writeRowToTsv(tsvWriter, allColumnNameList);
 
-            // Each table row is a map. Go in order of columns and write TSV rows.
-            for (Map<String, String> oneRowValueMap : table.getRowList()) {
-                List<String> oneRowValueList = allColumnNameList.stream().map(oneRowValueMap::get).collect(Collectors
-                        .toList());
-                Utils.writeRowToTsv(tsvWriter, oneRowValueList);
+            // Spilled segments are already TSV rows, and they come before the rows in memory. Copy them verbatim.
+            for (File oneSegmentFile : table.getSpilledSegmentList()) {
+                try (Reader segmentReader = new InputStreamReader(new GZIPInputStream(fileHelper.getInputStream(
+                        oneSegmentFile)), StandardCharsets.UTF_8)) {
+                    CharStreams.copy(segmentReader, tsvWriter);
+                }
+            }
+
+            // Rows are already in order of columns. Decode and write TSV rows.
+            Iterator<List<String>> rowIter = table.rowIterator();
+            while (rowIter.hasNext()) {
+                Utils.writeRowToTsv(tsvWriter, rowIter.next());
             }
         }
     }
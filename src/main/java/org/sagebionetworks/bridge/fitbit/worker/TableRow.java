@@ -0,0 +1,138 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.sagebionetworks.bridge.fitbit.schema.TableRowExtractor;
+
+/**
+ * A table row extracted by a {@link TableRowExtractor}. Values are stored in an array, in the extractor's column
+ * layout, alongside the user's health code and the created date, so a row costs one small array instead of a hash
+ * map. The row can still be read as an unmodifiable map from column name to column value. Null values are treated as
+ * absent.
+ */
+public class TableRow extends AbstractMap<String, String> {
+    private final TableRowExtractor rowExtractor;
+    private final String healthCode;
+    private final String createdDate;
+    private final String[] values;
+
+    /**
+     * Constructs a Table Row.
+     *
+     * @param rowExtractor
+     *         row extractor, which defines the column layout
+     * @param healthCode
+     *         health code of the user the row belongs to
+     * @param createdDate
+     *         date of the row's data, as YYYY-MM-DD
+     * @param values
+     *         column values, indexed by the extractor's column index, may contain nulls
+     */
+    public TableRow(TableRowExtractor rowExtractor, String healthCode, String createdDate, String[] values) {
+        this.rowExtractor = rowExtractor;
+        this.healthCode = healthCode;
+        this.createdDate = createdDate;
+        this.values = values;
+    }
+
+    /** Row extractor that extracted this row. */
+    public TableRowExtractor getRowExtractor() {
+        return rowExtractor;
+    }
+
+    /** Health code of the user the row belongs to. */
+    public String getHealthCode() {
+        return healthCode;
+    }
+
+    /** Date of the row's data, as YYYY-MM-DD. */
+    public String getCreatedDate() {
+        return createdDate;
+    }
+
+    /** Value for the given column index in the extractor's column layout. May be null. */
+    public String getValue(int columnIndex) {
+        return values[columnIndex];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String get(Object key) {
+        if (Constants.COLUMN_HEALTH_CODE.equals(key)) {
+            return healthCode;
+        } else if (Constants.COLUMN_CREATED_DATE.equals(key)) {
+            return createdDate;
+        } else if (key instanceof String) {
+            int columnIndex = rowExtractor.findColumnIndex((String) key, 0);
+            return columnIndex >= 0 ? values[columnIndex] : null;
+        } else {
+            return null;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                int size = 2;
+                for (String oneValue : values) {
+                    if (oneValue != null) {
+                        size++;
+                    }
+                }
+                return size;
+            }
+        };
+    }
+
+    // Iterates the health code, the created date, then the non-null column values.
+    private class EntryIterator implements Iterator<Entry<String, String>> {
+        // -2 is the health code, -1 is the created date, and the rest are column indices.
+        private int nextIndex = -2;
+
+        @Override
+        public boolean hasNext() {
+            skipNulls();
+            return nextIndex < values.length;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int index = nextIndex++;
+            if (index == -2) {
+                return new SimpleImmutableEntry<>(Constants.COLUMN_HEALTH_CODE, healthCode);
+            } else if (index == -1) {
+                return new SimpleImmutableEntry<>(Constants.COLUMN_CREATED_DATE, createdDate);
+            } else {
+                return new SimpleImmutableEntry<>(rowExtractor.getColumnId(index), values[index]);
+            }
+        }
+
+        // Helper method to move past null column values.
+        private void skipNulls() {
+            while (nextIndex >= 0 && nextIndex < values.length && values[nextIndex] == null) {
+                nextIndex++;
+            }
+        }
+    }
+}
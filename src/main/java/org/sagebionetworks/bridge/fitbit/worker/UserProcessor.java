@@ -3,16 +3,26 @@ package org.sagebionetworks.bridge.fitbit.worker;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Stopwatch;
 import org.apache.commons.lang3.RandomStringUtils;
-import org.apache.http.client.fluent.Request;
-import org.joda.time.DateTime;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.HttpResponseException;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.repo.model.file.FileHandle;
 import org.slf4j.Logger;
@@ -24,8 +34,19 @@ import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.fitbit.bridge.FitBitUser;
 import org.sagebionetworks.bridge.fitbit.schema.ColumnSchema;
 import org.sagebionetworks.bridge.fitbit.schema.EndpointSchema;
+import org.sagebionetworks.bridge.fitbit.schema.TableRowExtractor;
 import org.sagebionetworks.bridge.fitbit.schema.TableSchema;
 import org.sagebionetworks.bridge.fitbit.schema.UrlParameterType;
+import org.sagebionetworks.bridge.fitbit.webapi.CircuitBreaker;
+import org.sagebionetworks.bridge.fitbit.webapi.CircuitOpenException;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitApiClient;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitResponse;
+import org.sagebionetworks.bridge.fitbit.webapi.InvalidTokenException;
+import org.sagebionetworks.bridge.fitbit.webapi.RateLimitTracker;
+import org.sagebionetworks.bridge.fitbit.webapi.ResponseCache;
+import org.sagebionetworks.bridge.fitbit.webapi.RetryPolicy;
+import org.sagebionetworks.bridge.fitbit.webapi.RetryableResponseException;
+import org.sagebionetworks.bridge.fitbit.webapi.UserRateLimitedException;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.synapse.SynapseHelper;
 
@@ -34,214 +55,435 @@ import org.sagebionetworks.bridge.synapse.SynapseHelper;
 public class UserProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(UserProcessor.class);
 
+    // Length of a YYYY-MM-DD date.
+    private static final int CREATED_DATE_LENGTH = 10;
+
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    // FitBit returns 401 Unauthorized for revoked, expired, and otherwise invalid access tokens.
+    private static final int STATUS_UNAUTHORIZED = 401;
+
+    private CircuitBreaker circuitBreaker;
     private FileHelper fileHelper;
+    private FitBitApiClient fitBitApiClient;
+    private RateLimitTracker rateLimitTracker;
+    private ResponseCache responseCache;
     private SynapseHelper synapseHelper;
 
+    /** Circuit breaker, used to stop calling FitBit during FitBit outages. */
+    @Autowired
+    public final void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
     /** File Helper, used to write files to the temp directory before uploading as file handles. */
     @Autowired
     public final void setFileHelper(FileHelper fileHelper) {
         this.fileHelper = fileHelper;
     }
 
+    /** FitBit API client, used to call the FitBit Web API. */
+    @Autowired
+    public final void setFitBitApiClient(FitBitApiClient fitBitApiClient) {
+        this.fitBitApiClient = fitBitApiClient;
+    }
+
+    /** Rate limit tracker, used to track each user's FitBit rate limit and defer users who are out of calls. */
+    @Autowired
+    public final void setRateLimitTracker(RateLimitTracker rateLimitTracker) {
+        this.rateLimitTracker = rateLimitTracker;
+    }
+
+    /** Local response cache, used to avoid calling FitBit again for data we already downloaded. */
+    @Autowired
+    public final void setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
     /** Synapse Helper, used to upload files as file handles to Synapse. */
     @Autowired
     public final void setSynapseHelper(SynapseHelper synapseHelper) {
         this.synapseHelper = synapseHelper;
     }
 
-    /** Processes the given endpoint for the given user. This is the main entry point into the User Processor. */
-    public void processEndpointForUser(RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema)
-            throws IOException, SynapseException {
+    /**
+     * Processes the given endpoint for the given user and date. This is the main entry point into the User Processor.
+     * This fetches the endpoint, then processes the response, adding rows directly to the populated tables in the
+     * request context. Throws a UserRateLimitedException if the user is out of FitBit calls, in which case the caller
+     * should try again after the user's rate limit resets.
+     */
+    public void processEndpointForUser(RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema,
+            String date) throws IOException, SynapseException {
+        FitBitResponse response = fetchEndpointForUser(ctx, user, endpointSchema, date);
+        processResponseForUser(ctx, user, endpointSchema, date, response, PopulatedTable::addRow);
+    }
+
+    /**
+     * Calls the given endpoint in the FitBit Web API for the given user and date and returns the response. For range
+     * endpoints, the date is ignored, and the endpoint is called for the request context's whole date range. Throws a
+     * UserRateLimitedException if the user is out of FitBit calls, in which case the caller should try again after
+     * the user's rate limit resets. Throws a CircuitOpenException if the circuit breaker is open, in which case the
+     * caller should try again after the circuit breaker's retry time.
+     *
+     * If the response cache is enabled and the date is closed, cached responses are returned without calling FitBit,
+     * and successful responses are cached.
+     */
+    public FitBitResponse fetchEndpointForUser(RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema,
+            String date) throws IOException {
+        String url = makeUrl(ctx, user, endpointSchema, date);
+        boolean cacheable = isCacheable(ctx, endpointSchema, date);
+        if (cacheable) {
+            FitBitResponse cachedResponse = responseCache.get(user.getHealthCode(), url);
+            if (cachedResponse != null) {
+                return cachedResponse;
+            }
+        }
+
+        String userId = user.getUserId();
+        acquireRateLimitAndCircuitBreaker(userId);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        FitBitResponse response;
+        try {
+            response = fitBitApiClient.get(endpointSchema.getEndpointId(), url, user.getAccessToken());
+        } catch (IOException | RuntimeException ex) {
+            circuitBreaker.recordResult(false, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+            throw ex;
+        }
+        circuitBreaker.recordResult(isApiAvailable(response), stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        handleResponse(user, endpointSchema, response);
+        if (cacheable) {
+            cacheResponse(user, url, response);
+        }
+        return response;
+    }
+
+    /**
+     * Non-blocking counterpart to {@link #fetchEndpointForUser}. The response is checked and cached on the given
+     * executor, so that disk writes don't hold up the HTTP client's I/O threads, and the returned future completes on
+     * that executor. If the user is out of FitBit calls, the future completes exceptionally with a
+     * UserRateLimitedException, without calling FitBit. Similarly, if the circuit breaker is open, the future completes
+     * exceptionally with a CircuitOpenException. Cache hits complete immediately on the calling thread.
+     */
+    public CompletableFuture<FitBitResponse> fetchEndpointForUserAsync(RequestContext ctx, FitBitUser user,
+            EndpointSchema endpointSchema, String date, Executor executor) {
+        String url = makeUrl(ctx, user, endpointSchema, date);
+        boolean cacheable = isCacheable(ctx, endpointSchema, date);
+        if (cacheable) {
+            FitBitResponse cachedResponse = responseCache.get(user.getHealthCode(), url);
+            if (cachedResponse != null) {
+                return CompletableFuture.completedFuture(cachedResponse);
+            }
+        }
+
+        try {
+            acquireRateLimitAndCircuitBreaker(user.getUserId());
+        } catch (UserRateLimitedException | CircuitOpenException ex) {
+            CompletableFuture<FitBitResponse> failedFuture = new CompletableFuture<>();
+            failedFuture.completeExceptionally(ex);
+            return failedFuture;
+        }
+
+        String endpointId = endpointSchema.getEndpointId();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        CompletableFuture<FitBitResponse> responseFuture;
+        try {
+            responseFuture = fitBitApiClient.getAsync(endpointId, url, user.getAccessToken());
+        } catch (RuntimeException ex) {
+            circuitBreaker.recordResult(false, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+            throw ex;
+        }
+        responseFuture = responseFuture.whenComplete((response, ex) -> circuitBreaker.recordResult(
+                ex == null && isApiAvailable(response), stopwatch.elapsed(TimeUnit.MILLISECONDS)));
+        return responseFuture.thenApplyAsync(response -> {
+            try {
+                handleResponse(user, endpointSchema, response);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+            if (cacheable) {
+                cacheResponse(user, url, response);
+            }
+            return response;
+        }, executor);
+    }
+
+    // Helper method to acquire a call from the user's rate limit, then permission from the circuit breaker. The rate
+    // limit goes first, so that a probe call the circuit breaker lets through is always made and recorded. If the
+    // circuit breaker rejects the call, the user's call is given back, since we never called FitBit.
+    private void acquireRateLimitAndCircuitBreaker(String userId) throws UserRateLimitedException,
+            CircuitOpenException {
+        rateLimitTracker.acquire(userId);
+        try {
+            circuitBreaker.acquirePermission();
+        } catch (CircuitOpenException ex) {
+            rateLimitTracker.release(userId);
+            throw ex;
+        }
+    }
+
+    // Helper method to determine if the response for the given endpoint and date can be cached. Only closed dates can
+    // be cached, since FitBit may still be syncing data for an open date. Range endpoints are closed if the whole
+    // range is closed. FitBit dates are in the user's local time zone, which may be as far as UTC-12, so a date is
+    // only closed everywhere once it's at least 2 days ago in UTC.
+    private boolean isCacheable(RequestContext ctx, EndpointSchema endpointSchema, String date) {
+        if (responseCache == null || !responseCache.isEnabled()) {
+            return false;
+        }
+        String lastDate = endpointSchema.isDateRange() ? ctx.getEndDate() : date;
+        try {
+            return LocalDate.parse(lastDate).isBefore(LocalDate.now(DateTimeZone.UTC).minusDays(1));
+        } catch (IllegalArgumentException ex) {
+            LOG.warn("Invalid date " + lastDate + ", not caching response");
+            return false;
+        }
+    }
+
+    // Helper method to cache the given response. We only cache 200 OK, since other success codes (like 204 No
+    // Content) don't have bodies worth caching.
+    private void cacheResponse(FitBitUser user, String url, FitBitResponse response) {
+        if (response.getStatusCode() == 200) {
+            responseCache.put(user.getHealthCode(), url, response);
+        }
+    }
+
+    // Helper method to determine if the response means the FitBit Web API is up, for the circuit breaker. Client errors
+    // like 401 and 429 are specific to the user, so they don't count against FitBit.
+    private static boolean isApiAvailable(FitBitResponse response) {
+        return !RetryPolicy.RETRYABLE_STATUS_CODES.contains(response.getStatusCode());
+    }
+
+    // Helper method to make the URL for the given endpoint, user, and date.
+    private static String makeUrl(RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema, String date) {
         // Generate url parameters
         List<String> resolvedUrlParamList = new ArrayList<>();
         for (UrlParameterType oneUrlParam : endpointSchema.getUrlParameters()) {
             switch (oneUrlParam) {
                 case DATE:
-                    resolvedUrlParamList.add(ctx.getDate());
+                    resolvedUrlParamList.add(date);
+                    break;
+                case END_DATE:
+                    resolvedUrlParamList.add(ctx.getEndDate());
+                    break;
+                case START_DATE:
+                    resolvedUrlParamList.add(ctx.getStartDate());
                     break;
                 case USER_ID:
                     resolvedUrlParamList.add(user.getUserId());
                     break;
             }
         }
+        return String.format(endpointSchema.getUrl(), resolvedUrlParamList.toArray());
+    }
+
+    // Helper method to update the user's rate limit from the response, and to throw if the response is an error.
+    private void handleResponse(FitBitUser user, EndpointSchema endpointSchema, FitBitResponse response)
+            throws IOException {
+        String userId = user.getUserId();
+        rateLimitTracker.update(userId, response);
 
-        // Get data from FitBit
-        String url = String.format(endpointSchema.getUrl(), resolvedUrlParamList.toArray());
-        String response = makeHttpRequest(url, user.getAccessToken());
-        JsonNode responseNode = DefaultObjectMapper.INSTANCE.readTree(response);
+        int statusCode = response.getStatusCode();
+        if (statusCode == RateLimitTracker.STATUS_TOO_MANY_REQUESTS) {
+            throw new UserRateLimitedException("User " + userId + " was rate limited calling endpoint " +
+                    endpointSchema.getEndpointId(), rateLimitTracker.getResetTimeMillis(userId));
+        } else if (statusCode == STATUS_UNAUTHORIZED) {
+            throw new InvalidTokenException(statusCode, "Invalid access token for user " + userId +
+                    " calling endpoint " + endpointSchema.getEndpointId());
+        } else if (RetryPolicy.RETRYABLE_STATUS_CODES.contains(statusCode)) {
+            throw new RetryableResponseException(statusCode, "Transient error calling endpoint " +
+                    endpointSchema.getEndpointId() + " for user " + userId, getRetryAfterMillis(response));
+        } else if (statusCode >= 300) {
+            throw new HttpResponseException(statusCode, "Error calling endpoint " + endpointSchema.getEndpointId() +
+                    " for user " + userId);
+        }
+    }
 
-        // Process each key (top-level table) in the response
-        Iterator<String> responseKeyIter = responseNode.fieldNames();
-        while (responseKeyIter.hasNext()) {
-            String oneResponseKey = responseKeyIter.next();
-            String tableId = endpointSchema.getEndpointId() + '.' + oneResponseKey;
-            JsonNode dataNode = responseNode.get(oneResponseKey);
+    // Helper method to get the Retry-After header in milliseconds. FitBit sends this in seconds. Returns 0 if the
+    // header is missing or invalid.
+    private static long getRetryAfterMillis(FitBitResponse response) {
+        String retryAfter = response.getHeader(HEADER_RETRY_AFTER);
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException ex) {
+            LOG.warn("Invalid value for header " + HEADER_RETRY_AFTER + ": " + retryAfter);
+            return 0;
+        }
+    }
 
-            TableSchema oneTableSchema = endpointSchema.getTablesByKey().get(oneResponseKey);
-            if (oneTableSchema != null) {
-                ctx.getPopulatedTablesById().computeIfAbsent(tableId, key -> new PopulatedTable(tableId,
-                        oneTableSchema));
+    /**
+     * Parses the given FitBit response and extracts table rows. Each row is passed to the row sink, along with the
+     * populated table it belongs to. Populated tables are created in the request context as needed. Rows are dated
+     * with the given date, except for range endpoints, where each row is dated with its own dateTime.
+     *
+     * The response is parsed as a stream. Each top-level key is dispatched to its table as soon as it's parsed, and
+     * each row is passed to the row sink as soon as it's parsed, so we never build a JSON tree for the whole response.
+     * Keys that don't map to a table and columns that aren't in the table schema are skipped token by token, so we
+     * never build JSON nodes for data we throw away.
+     */
+    public void processResponseForUser(RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema,
+            String date, FitBitResponse response, BiConsumer<PopulatedTable, Map<String, String>> rowSink)
+            throws IOException, SynapseException {
+        try (JsonParser parser = response.getBodyParser()) {
+            if (parser == null || parser.nextToken() != JsonToken.START_OBJECT) {
+                // No tables in the response.
+                return;
+            }
+            TableRowExtractor.FileHandleUploader fileHandleUploader = (columnId, valueParser) ->
+                    uploadJsonAsFileHandle(ctx, columnId, valueParser);
 
-                if (dataNode.isArray()) {
-                    // dataNode is a list of rows
-                    for (JsonNode rowNode : dataNode) {
-                        processTableRowForUser(ctx, user, endpointSchema, oneTableSchema, rowNode);
+            // Process each key (top-level table) in the response
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String oneResponseKey = parser.getCurrentName();
+                String tableId = endpointSchema.getEndpointId() + '.' + oneResponseKey;
+                JsonToken dataToken = parser.nextToken();
+
+                TableSchema oneTableSchema = endpointSchema.getTablesByKey().get(oneResponseKey);
+                if (oneTableSchema != null) {
+                    ctx.getPopulatedTablesById().computeIfAbsent(tableId, key -> newPopulatedTable(ctx, tableId,
+                            oneTableSchema));
+
+                    if (dataToken == JsonToken.START_ARRAY) {
+                        // dataNode is a list of rows. Elements that aren't objects have no columns, so they're
+                        // skipped.
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+                                processTableRowForUser(ctx, user, endpointSchema, date, oneTableSchema, parser,
+                                        fileHandleUploader, rowSink);
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    } else if (dataToken == JsonToken.START_OBJECT) {
+                        // The object is the row we need to process.
+                        processTableRowForUser(ctx, user, endpointSchema, date, oneTableSchema, parser,
+                                fileHandleUploader, rowSink);
+                    } else {
+                        warnWrapper("Table " + tableId + " is neither array nor object for user " +
+                                user.getHealthCode());
                     }
-                } else if (dataNode.isObject()) {
-                    // The object is the row we need to process.
-                    processTableRowForUser(ctx, user, endpointSchema, oneTableSchema, dataNode);
                 } else {
-                    warnWrapper("Table " + tableId + " is neither array nor object for user " +
-                            user.getHealthCode());
+                    if (!endpointSchema.getIgnoredKeys().contains(oneResponseKey)) {
+                        warnWrapper("Unexpected table " + tableId + " for user " + user.getHealthCode());
+                    }
+                    parser.skipChildren();
                 }
-            } else if (!endpointSchema.getIgnoredKeys().contains(oneResponseKey)) {
-                warnWrapper("Unexpected table " + tableId + " for user " + user.getHealthCode());
             }
         }
     }
 
-    // Helper to process a single row of FitBit data.
+    // Helper method to make the populated table for a table ID the first time we see it. If the request streams rows
+    // to TSVs, the table's TSV file is opened in the request's temp dir.
+    private PopulatedTable newPopulatedTable(RequestContext ctx, String tableId, TableSchema tableSchema) {
+        if (!ctx.isStreamRowsToTsv()) {
+            return new PopulatedTable(tableId, tableSchema);
+        }
+
+        File tsvFile = fileHelper.newFile(ctx.getTmpDir(), tableId + ".tsv");
+        try {
+            return new PopulatedTable(tableId, tableSchema, tsvFile, fileHelper.getWriter(tsvFile));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // Helper to process a single row of FitBit data. The parser must be at the start of the row object. When this
+    // returns, the parser is at the end of the row object. Values are extracted with the table's precompiled row
+    // extractor, so the only per-row allocations are the value array and the row itself.
     private void processTableRowForUser(RequestContext ctx, FitBitUser user, EndpointSchema endpointSchema,
-            TableSchema tableSchema, JsonNode rowNode) throws IOException, SynapseException {
+            String date, TableSchema tableSchema, JsonParser parser,
+            TableRowExtractor.FileHandleUploader fileHandleUploader,
+            BiConsumer<PopulatedTable, Map<String, String>> rowSink) throws IOException, SynapseException {
         String tableId = endpointSchema.getEndpointId() + '.' + tableSchema.getTableKey();
         PopulatedTable populatedTable = ctx.getPopulatedTablesById().get(tableId);
-        Map<String, String> rowValueMap = new HashMap<>();
+        TableRowExtractor rowExtractor = tableSchema.getRowExtractor();
+        String[] rowValues = new String[rowExtractor.getNumColumns()];
+        boolean hasValues = false;
+        int expectedColumnIndex = 0;
+        String rowDateTime = null;
 
-        // Iterate through all values in the node. Serialize the values into the PopulatedTable.
-        Iterator<String> columnNameIter = rowNode.fieldNames();
-        while (columnNameIter.hasNext()) {
-            String oneColumnName = columnNameIter.next();
-            JsonNode columnValueNode = rowNode.get(oneColumnName);
+        // Iterate through all values in the row. Serialize the values into the PopulatedTable.
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String oneColumnName = parser.getCurrentName();
+            JsonToken valueToken = parser.nextToken();
+            if (Constants.FITBIT_KEY_DATE_TIME.equals(oneColumnName) && valueToken == JsonToken.VALUE_STRING) {
+                // Keep the row's dateTime for the created date, even if it's not a column in this table.
+                rowDateTime = parser.getText();
+            }
 
-            ColumnSchema columnSchema = tableSchema.getColumnsById().get(oneColumnName);
-            if (columnSchema == null) {
+            int columnIndex = rowExtractor.findColumnIndex(oneColumnName, expectedColumnIndex);
+            if (columnIndex < 0) {
                 warnWrapper("Unexpected column " + oneColumnName + " in table " + tableId + " for user " +
                         user.getHealthCode());
+                parser.skipChildren();
             } else {
-                Object value = serializeJsonForColumn(ctx, columnValueNode, columnSchema);
+                String value = rowExtractor.convert(columnIndex, parser, fileHandleUploader);
                 if (value != null) {
-                    rowValueMap.put(oneColumnName, value.toString());
+                    rowValues[columnIndex] = value;
+                    hasValues = true;
                 }
+                expectedColumnIndex = columnIndex + 1;
             }
         }
 
-        if (!rowValueMap.isEmpty()) {
+        if (hasValues) {
             // Always include the user's health code and the created date.
-            rowValueMap.put(Constants.COLUMN_HEALTH_CODE, user.getHealthCode());
-            rowValueMap.put(Constants.COLUMN_CREATED_DATE, ctx.getDate());
+            String createdDate = getCreatedDateForRow(endpointSchema, date, rowDateTime);
 
             // Add the row to the table
-            populatedTable.getRowList().add(rowValueMap);
+            rowSink.accept(populatedTable, new TableRow(rowExtractor, user.getHealthCode(), createdDate,
+                    rowValues));
+        }
+    }
+
+    // Helper method to get the created date for a row. Range endpoints return multiple dates in a single response, so
+    // we use the row's dateTime, if it has one. Otherwise, this is the date the endpoint was called for.
+    private static String getCreatedDateForRow(EndpointSchema endpointSchema, String date, String rowDateTime) {
+        if (endpointSchema.isDateRange() && rowDateTime != null) {
+            // dateTime may include a time. createdDate is just the YYYY-MM-DD.
+            return StringUtils.left(rowDateTime, CREATED_DATE_LENGTH);
         }
+        return date;
     }
 
-    // Helper method to serialize a JsonNode to write to the given Column.
+    // Helper method to serialize a JsonNode to write to the given Column. Rows are extracted with the table's row
+    // extractor. This converts a single node the same way.
     // Visible for testing.
     String serializeJsonForColumn(RequestContext ctx, JsonNode node, ColumnSchema columnSchema)
             throws IOException, SynapseException {
-        String columnId = columnSchema.getColumnId();
-
         // Short-cut: null check.
         if (node == null || node.isNull()) {
             return null;
         }
 
-        // Canonicalize into an object.
-        Object value = null;
-        switch (columnSchema.getColumnType()) {
-            case BOOLEAN:
-                if (node.isBoolean()) {
-                    value = node.booleanValue();
-                } else {
-                    LOG.warn("Expected boolean for column " + columnId + ", got " + node.getNodeType().name());
-                }
-                break;
-            case DATE:
-                // Currently, all dates from FitBit web API are in UTC, so we can just use epoch milliseconds,
-                // which is what Synapse expects anyway.
-                if (node.isTextual()) {
-                    String dateTimeStr = node.textValue();
-                    try {
-                        value = DateTime.parse(dateTimeStr).getMillis();
-                    } catch (IllegalArgumentException ex) {
-                        LOG.warn("Invalid DateTime format " + dateTimeStr);
-                    }
-                } else {
-                    LOG.warn("Expected string for column " + columnId + ", got " + node.getNodeType().name());
-                }
-                break;
-            case DOUBLE:
-                if (node.isNumber()) {
-                    value = node.decimalValue().toPlainString();
-                } else {
-                    LOG.warn("Expected number for column " + columnId + ", got " + node.getNodeType().name());
-                }
-                break;
-            case FILEHANDLEID:
-                // Write value to temp file on disk.
-                String tempFileName = columnId + RandomStringUtils.randomAlphabetic(4);
-                File fileToUpload = fileHelper.newFile(ctx.getTmpDir(), tempFileName);
-                try (OutputStream fileOutputStream = fileHelper.getOutputStream(fileToUpload)) {
-                    DefaultObjectMapper.INSTANCE.writeValue(fileOutputStream, node);
-                }
-
-                // Upload file handle. Value is the file handle ID.
-                FileHandle fileHandle = synapseHelper.createFileHandleWithRetry(fileToUpload);
-                value = fileHandle.getId();
-
-                // Finally, delete the temp file.
-                fileHelper.deleteFile(fileToUpload);
-                break;
-            case INTEGER:
-                if (node.isNumber()) {
-                    value = node.longValue();
-                } else {
-                    LOG.warn("Expected number for column " + columnId + ", got " + node.getNodeType().name());
-                }
-                break;
-            case LARGETEXT:
-                // LargeText is used for when the value is an array or an object. In this case, we want to
-                // write the JSON verbatim to Synapse.
-                value = node;
-                break;
-            case STRING:
-                String textValue;
-                if (node.isTextual()) {
-                    textValue = node.textValue();
-                } else {
-                    textValue = node.toString();
-                }
-
-                // Strings have a max length. If the string is too long, truncate it.
-                int valueLength = textValue.length();
-                int maxLength = columnSchema.getMaxLength();
-                if (valueLength > maxLength) {
-                    LOG.warn("Truncating value of length " + valueLength + " to max length " + maxLength +
-                            " for column " + columnId);
-                    textValue = textValue.substring(0, maxLength);
-                }
-                value = textValue;
-                break;
-            default:
-                LOG.warn("Unexpected type " + columnSchema.getColumnType().name() + " for column " + columnId);
-                break;
+        try (JsonParser parser = node.traverse(DefaultObjectMapper.INSTANCE)) {
+            parser.nextToken();
+            return TableRowExtractor.convertValue(columnSchema, parser, (columnId, valueParser) ->
+                    uploadJsonAsFileHandle(ctx, columnId, valueParser));
         }
+    }
 
-        // If the canonicalized value is null (possibly because of type errors), return null instead of converting to
-        // a string.
-        if (value == null) {
-            return null;
+    // Helper method to write the JSON value the parser is at to a temp file and upload it as a file handle. The value
+    // is copied token by token, so large values (like intraday data) are never held in memory. Returns the file
+    // handle ID.
+    private String uploadJsonAsFileHandle(RequestContext ctx, String columnId, JsonParser parser)
+            throws IOException, SynapseException {
+        // Write value to temp file on disk.
+        String tempFileName = columnId + RandomStringUtils.randomAlphabetic(4);
+        File fileToUpload = fileHelper.newFile(ctx.getTmpDir(), tempFileName);
+        try (OutputStream fileOutputStream = fileHelper.getOutputStream(fileToUpload);
+                JsonGenerator generator = DefaultObjectMapper.INSTANCE.getFactory().createGenerator(
+                        fileOutputStream)) {
+            generator.copyCurrentStructure(parser);
         }
 
-        // Convert to string.
-        return String.valueOf(value);
-    }
+        // Upload file handle. Value is the file handle ID.
+        FileHandle fileHandle = synapseHelper.createFileHandleWithRetry(fileToUpload);
 
-    // Abstracts away the HTTP call to FitBit Web API.
-    // Visible for testing.
-    String makeHttpRequest(String url, String accessToken) throws IOException {
-        return Request.Get(url).setHeader("Authorization", "Bearer " + accessToken).execute()
-                .returnContent().asString();
+        // Finally, delete the temp file.
+        fileHelper.deleteFile(fileToUpload);
+        return fileHandle.getId();
     }
 
     // Warn wrapper, so that we can use mocks and spies to verify that we're handling unusual cases.
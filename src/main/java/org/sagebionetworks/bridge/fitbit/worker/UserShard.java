@@ -0,0 +1,64 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Represents one shard of the FitBit users in a study. Users are assigned to shards deterministically by the hash of
+ * their health code, so that a daily run can be split across multiple worker nodes, each of which processes one shard.
+ */
+public class UserShard {
+    /** Shard that contains all users. This is used when the request doesn't specify sharding. */
+    public static final UserShard ALL = new UserShard(0, 1);
+
+    // Murmur3 is stable across JVMs and releases, unlike String.hashCode(), which is only stable by convention.
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+    private final int shardIndex;
+    private final int shardCount;
+
+    /**
+     * Constructs a User Shard.
+     *
+     * @param shardIndex
+     *         index of this shard, from 0 to shardCount-1
+     * @param shardCount
+     *         total number of shards
+     */
+    public UserShard(int shardIndex, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("shardIndex must be between 0 and shardCount-1");
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    /** Index of this shard, from 0 to shardCount-1. */
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /** Total number of shards. */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /** True if the user with the given health code belongs to this shard. */
+    public boolean containsHealthCode(String healthCode) {
+        if (shardCount == 1) {
+            return true;
+        }
+        int hash = HASH_FUNCTION.hashString(healthCode, StandardCharsets.UTF_8).asInt();
+        return Math.floorMod(hash, shardCount) == shardIndex;
+    }
+
+    @Override
+    public String toString() {
+        return shardIndex + "/" + shardCount;
+    }
+}
@@ -3,9 +3,11 @@ package org.sagebionetworks.bridge.fitbit.bridge;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 
 import java.util.Iterator;
@@ -57,6 +59,25 @@ public class BridgeHelperTest {
         verify(mockApi).getHealthCodesGrantingOAuthAccess(eq(STUDY_ID), any(), any(), any());
     }
 
+    @Test
+    public void getFitBitUsersForStudyWithFilter() throws Exception {
+        // Mock a page with a single user, who doesn't match the filter.
+        ForWorkersApi mockApi = mock(ForWorkersApi.class);
+        when(mockClientManager.getClient(ForWorkersApi.class)).thenReturn(mockApi);
+
+        ForwardCursorStringList healthCodeList = new ForwardCursorStringList();
+        healthCodeList.setItems(ImmutableList.of("filtered-health-code"));
+        healthCodeList.setHasNext(false);
+        Call<ForwardCursorStringList> mockCall = mockCallForValue(healthCodeList);
+        when(mockApi.getHealthCodesGrantingOAuthAccess(any(), any(), any(), any())).thenReturn(mockCall);
+
+        // Execute and verify we never got the user's token.
+        Iterator<FitBitUser> fitBitUserIter = bridgeHelper.getFitBitUsersForStudy(STUDY_ID, healthCode -> false);
+        assertFalse(fitBitUserIter.hasNext());
+        verify(mockApi).getHealthCodesGrantingOAuthAccess(eq(STUDY_ID), any(), any(), any());
+        verify(mockApi, never()).getOAuthAccessToken(any(), any(), any());
+    }
+
     @Test
     public void getAllStudies() throws Exception {
         // Mock client manager call to getAllStudies(). Note that study summaries only include study ID.
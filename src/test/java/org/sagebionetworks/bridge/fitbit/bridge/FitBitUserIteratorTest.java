@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.fitbit.bridge;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -105,6 +106,38 @@ public class FitBitUserIteratorTest {
         assertFitBitUserForIndex(0, firstUser);
     }
 
+    @Test
+    public void filteredUsersAreSkippedWithoutTokenCalls() throws Exception {
+        // 3 pages. Only even users match the filter. The second page has no matching users.
+        mockApiWithPage(null, 0, 1, "page2", 2);
+        mockApiWithPage("page2", 3, 3, "page3", 2);
+        mockApiWithPage("page3", 4, 5, null, 2);
+
+        FitBitUserIterator iter = new FitBitUserIterator(mockClientManager, STUDY_ID, healthCode -> {
+            int idx = Integer.parseInt(healthCode.substring(HEALTH_CODE_PREFIX.length()));
+            return idx % 2 == 0;
+        }, 2);
+        assertTrue(iter.hasNext());
+        assertFitBitUserForIndex(0, iter.next());
+        assertTrue(iter.hasNext());
+        assertFitBitUserForIndex(4, iter.next());
+        assertFalse(iter.hasNext());
+
+        // We never got tokens for the users that didn't match.
+        verify(mockApi, never()).getOAuthAccessToken(STUDY_ID, Constants.FITBIT_VENDOR_ID, HEALTH_CODE_PREFIX + 1);
+        verify(mockApi, never()).getOAuthAccessToken(STUDY_ID, Constants.FITBIT_VENDOR_ID, HEALTH_CODE_PREFIX + 3);
+        verify(mockApi, never()).getOAuthAccessToken(STUDY_ID, Constants.FITBIT_VENDOR_ID, HEALTH_CODE_PREFIX + 5);
+    }
+
+    @Test
+    public void noUsersMatchFilter() throws Exception {
+        mockApiWithPage(null, 0, 1, "page2", 2);
+        mockApiWithPage("page2", 2, 3, null, 2);
+
+        FitBitUserIterator iter = new FitBitUserIterator(mockClientManager, STUDY_ID, healthCode -> false, 2);
+        assertFalse(iter.hasNext());
+    }
+
     @Test(expectedExceptions = RuntimeException.class)
     public void errorGettingFirstPage() throws Exception {
         // Mock page call to throw
@@ -198,7 +231,8 @@ public class FitBitUserIteratorTest {
         // User 1 always fails. Depending on test setup, we might retry on the next loop, or we might skip.
 
         // Create iterator
-        FitBitUserIterator iter = new FitBitUserIterator(mockClientManager, STUDY_ID, pageSize);
+        FitBitUserIterator iter = new FitBitUserIterator(mockClientManager, STUDY_ID, healthCode -> true,
+                pageSize);
 
         // User 0
         assertTrue(iter.hasNext());
@@ -0,0 +1,182 @@
+package org.sagebionetworks.bridge.fitbit.checkpoint;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.internal.IteratorSupport;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DynamoCheckpointStoreTest {
+    private static final String DATE = "2017-12-11";
+    private static final String HEALTH_CODE = "my-health-code";
+    private static final long MOCK_NOW_MILLIS = DateTime.parse("2017-12-12T18:56:51.098Z").getMillis();
+    private static final String STUDY_ID = "my-study";
+    private static final String TABLE_NAME = "my-checkpoint-table";
+
+    private static final String EXPECTED_STUDY_DATE = "my-study:2017-12-11";
+    private static final long EXPECTED_EXPIRES_ON = MOCK_NOW_MILLIS / 1000 + DynamoCheckpointStore.EXPIRATION_SECONDS;
+
+    private DynamoDB mockDdbClient;
+    private Table mockTable;
+    private DynamoCheckpointStore store;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        mockTable = mock(Table.class);
+        when(mockTable.getTableName()).thenReturn(TABLE_NAME);
+        mockDdbClient = mock(DynamoDB.class);
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(makeOutcome(ImmutableMap.of()));
+
+        store = new DynamoCheckpointStore();
+        store.setBatchWriteRetryDelayMillis(0);
+        store.setDdbCheckpointTable(mockTable);
+        store.setDdbClient(mockDdbClient);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void getCheckpoints() {
+        // Mock query.
+        IteratorSupport<Item, QueryOutcome> mockIterator = mock(IteratorSupport.class);
+        when(mockIterator.hasNext()).thenReturn(true, true, true, false);
+        when(mockIterator.next()).thenReturn(makeQueryItem("endpoint:my-health-code:my-endpoint"),
+                makeQueryItem("table:my-health-code:my-table"), makeQueryItem("table:other-health-code:my-table"));
+
+        ItemCollection<QueryOutcome> mockItemCollection = mock(ItemCollection.class);
+        when(mockItemCollection.iterator()).thenReturn(mockIterator);
+        when(mockTable.query(DynamoCheckpointStore.DDB_KEY_STUDY_DATE, EXPECTED_STUDY_DATE)).thenReturn(
+                mockItemCollection);
+
+        // Execute and validate.
+        DateCheckpoints checkpoints = store.getCheckpoints(STUDY_ID, DATE);
+        assertTrue(checkpoints.isEndpointCompleted(HEALTH_CODE, "my-endpoint"));
+        assertFalse(checkpoints.isEndpointCompleted(HEALTH_CODE, "other-endpoint"));
+        assertFalse(checkpoints.isEndpointCompleted(HEALTH_CODE, "my-table"));
+        assertTrue(checkpoints.isTableUploaded(HEALTH_CODE, "my-table"));
+        assertTrue(checkpoints.isTableUploaded("other-health-code", "my-table"));
+        assertFalse(checkpoints.isTableUploaded(HEALTH_CODE, "other-table"));
+
+        // Only one query, no matter how many checkpoints.
+        verify(mockTable).query(DynamoCheckpointStore.DDB_KEY_STUDY_DATE, EXPECTED_STUDY_DATE);
+        verify(mockTable, never()).getItem(any(), any(), any(), any());
+    }
+
+    @Test
+    public void setEndpointCompleted() {
+        store.setEndpointCompleted(STUDY_ID, "my-endpoint", ImmutableSetMultimap.of(DATE, HEALTH_CODE));
+        List<Item> itemList = verifyBatchWrites(1);
+        assertEquals(itemList.size(), 1);
+        assertCheckpointItem(itemList.get(0), EXPECTED_STUDY_DATE, "endpoint:my-health-code:my-endpoint");
+    }
+
+    @Test
+    public void setTableUploaded() {
+        store.setTableUploaded(STUDY_ID, "my-table", ImmutableSetMultimap.of(DATE, HEALTH_CODE, "2017-12-12",
+                HEALTH_CODE));
+        List<Item> itemList = verifyBatchWrites(1);
+        assertEquals(itemList.size(), 2);
+        assertCheckpointItem(itemList.get(0), EXPECTED_STUDY_DATE, "table:my-health-code:my-table");
+        assertCheckpointItem(itemList.get(1), "my-study:2017-12-12", "table:my-health-code:my-table");
+    }
+
+    @Test
+    public void writesAreSplitIntoBatches() {
+        // 30 users is more than one batch.
+        ImmutableSetMultimap.Builder<String, String> healthCodesByDateBuilder = ImmutableSetMultimap.builder();
+        for (int i = 0; i < 30; i++) {
+            healthCodesByDateBuilder.put(DATE, "health-code-" + i);
+        }
+        store.setTableUploaded(STUDY_ID, "my-table", healthCodesByDateBuilder.build());
+
+        List<Item> itemList = verifyBatchWrites(2);
+        assertEquals(itemList.size(), 30);
+        for (int i = 0; i < 30; i++) {
+            assertCheckpointItem(itemList.get(i), EXPECTED_STUDY_DATE, "table:health-code-" + i + ":my-table");
+        }
+    }
+
+    @Test
+    public void unprocessedItemsAreRetried() {
+        Map<String, List<WriteRequest>> unprocessedItems = ImmutableMap.of(TABLE_NAME, ImmutableList.of(
+                new WriteRequest()));
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(makeOutcome(unprocessedItems));
+        when(mockDdbClient.batchWriteItemUnprocessed(unprocessedItems)).thenReturn(makeOutcome(unprocessedItems),
+                makeOutcome(ImmutableMap.of()));
+
+        store.setTableUploaded(STUDY_ID, "my-table", ImmutableSetMultimap.of(DATE, HEALTH_CODE));
+        verify(mockDdbClient, times(2)).batchWriteItemUnprocessed(unprocessedItems);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void unprocessedItemsAfterLastAttemptThrows() {
+        Map<String, List<WriteRequest>> unprocessedItems = ImmutableMap.of(TABLE_NAME, ImmutableList.of(
+                new WriteRequest()));
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(makeOutcome(unprocessedItems));
+        when(mockDdbClient.batchWriteItemUnprocessed(unprocessedItems)).thenReturn(makeOutcome(unprocessedItems));
+
+        store.setTableUploaded(STUDY_ID, "my-table", ImmutableSetMultimap.of(DATE, HEALTH_CODE));
+    }
+
+    private static Item makeQueryItem(String checkpointKey) {
+        return new Item().withString(DynamoCheckpointStore.DDB_KEY_STUDY_DATE, EXPECTED_STUDY_DATE)
+                .withString(DynamoCheckpointStore.DDB_KEY_CHECKPOINT_KEY, checkpointKey);
+    }
+
+    private static BatchWriteItemOutcome makeOutcome(Map<String, List<WriteRequest>> unprocessedItems) {
+        return new BatchWriteItemOutcome(new BatchWriteItemResult().withUnprocessedItems(unprocessedItems));
+    }
+
+    // Verifies the expected number of batch writes, and returns all items written, in order.
+    private List<Item> verifyBatchWrites(int expectedNumBatches) {
+        ArgumentCaptor<TableWriteItems> writeItemsCaptor = ArgumentCaptor.forClass(TableWriteItems.class);
+        verify(mockDdbClient, times(expectedNumBatches)).batchWriteItem(writeItemsCaptor.capture());
+
+        List<Item> itemList = new ArrayList<>();
+        for (TableWriteItems oneWriteItems : writeItemsCaptor.getAllValues()) {
+            assertEquals(oneWriteItems.getTableName(), TABLE_NAME);
+            assertTrue(oneWriteItems.getItemsToPut().size() <= DynamoCheckpointStore.MAX_BATCH_WRITE_ITEMS);
+            itemList.addAll(oneWriteItems.getItemsToPut());
+        }
+        return itemList;
+    }
+
+    private static void assertCheckpointItem(Item item, String expectedStudyDate, String expectedCheckpointKey) {
+        assertEquals(item.getString(DynamoCheckpointStore.DDB_KEY_STUDY_DATE), expectedStudyDate);
+        assertEquals(item.getString(DynamoCheckpointStore.DDB_KEY_CHECKPOINT_KEY), expectedCheckpointKey);
+        assertEquals(item.getLong(DynamoCheckpointStore.DDB_KEY_EXPIRES_ON), EXPECTED_EXPIRES_ON);
+    }
+}
@@ -0,0 +1,85 @@
+package org.sagebionetworks.bridge.fitbit.checkpoint;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.google.common.collect.ImmutableSetMultimap;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FileCheckpointStoreTest {
+    private static final String DATE = "2017-12-11";
+    private static final String HEALTH_CODE = "my-health-code";
+    private static final String STUDY_ID = "my-study";
+
+    private File checkpointFile;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        checkpointFile = File.createTempFile("checkpoints", ".tsv");
+        assertTrue(checkpointFile.delete());
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        checkpointFile.delete();
+    }
+
+    @Test
+    public void emptyStore() throws Exception {
+        FileCheckpointStore store = new FileCheckpointStore(checkpointFile);
+        DateCheckpoints checkpoints = store.getCheckpoints(STUDY_ID, DATE);
+        assertFalse(checkpoints.isEndpointCompleted(HEALTH_CODE, "my-endpoint"));
+        assertFalse(checkpoints.isTableUploaded(HEALTH_CODE, "my-table"));
+        assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void endpointAndTableCheckpointsAreSeparate() throws Exception {
+        FileCheckpointStore store = new FileCheckpointStore(checkpointFile);
+        store.setEndpointCompleted(STUDY_ID, "foo", ImmutableSetMultimap.of(DATE, HEALTH_CODE));
+        DateCheckpoints checkpoints = store.getCheckpoints(STUDY_ID, DATE);
+        assertTrue(checkpoints.isEndpointCompleted(HEALTH_CODE, "foo"));
+        assertFalse(checkpoints.isTableUploaded(HEALTH_CODE, "foo"));
+
+        // Different study, date, and health code don't match.
+        assertFalse(store.getCheckpoints("other-study", DATE).isEndpointCompleted(HEALTH_CODE, "foo"));
+        assertFalse(store.getCheckpoints(STUDY_ID, "2017-12-12").isEndpointCompleted(HEALTH_CODE, "foo"));
+        assertFalse(checkpoints.isEndpointCompleted("other-health-code", "foo"));
+    }
+
+    @Test
+    public void multipleUsersAndDates() throws Exception {
+        FileCheckpointStore store = new FileCheckpointStore(checkpointFile);
+        store.setTableUploaded(STUDY_ID, "my-table", ImmutableSetMultimap.of(DATE, HEALTH_CODE, DATE,
+                "other-health-code", "2017-12-12", HEALTH_CODE));
+        assertEquals(Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8).size(), 3);
+
+        DateCheckpoints checkpoints = store.getCheckpoints(STUDY_ID, DATE);
+        assertTrue(checkpoints.isTableUploaded(HEALTH_CODE, "my-table"));
+        assertTrue(checkpoints.isTableUploaded("other-health-code", "my-table"));
+        assertTrue(store.getCheckpoints(STUDY_ID, "2017-12-12").isTableUploaded(HEALTH_CODE, "my-table"));
+    }
+
+    @Test
+    public void newStoreReadsExistingCheckpoints() throws Exception {
+        FileCheckpointStore store = new FileCheckpointStore(checkpointFile);
+        store.setEndpointCompleted(STUDY_ID, "my-endpoint", ImmutableSetMultimap.of(DATE, HEALTH_CODE));
+        store.setTableUploaded(STUDY_ID, "my-table", ImmutableSetMultimap.of(DATE, HEALTH_CODE));
+
+        // Setting a checkpoint twice only writes it once.
+        store.setTableUploaded(STUDY_ID, "my-table", ImmutableSetMultimap.of(DATE, HEALTH_CODE));
+        assertEquals(Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8).size(), 2);
+
+        FileCheckpointStore store2 = new FileCheckpointStore(checkpointFile);
+        DateCheckpoints checkpoints = store2.getCheckpoints(STUDY_ID, DATE);
+        assertTrue(checkpoints.isEndpointCompleted(HEALTH_CODE, "my-endpoint"));
+        assertTrue(checkpoints.isTableUploaded(HEALTH_CODE, "my-table"));
+    }
+}
@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.fitbit.schema;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
 
@@ -62,6 +63,15 @@ public class EndpointSchemaTest {
         assertEquals(endpointSchema.getTables(), TABLE_SCHEMA_LIST);
         // tablesByKey is already tested above. Just test that it exists.
         assertNotNull(endpointSchema.getTablesByKey());
+        assertFalse(endpointSchema.isDateRange());
+    }
+
+    @Test
+    public void dateRange() {
+        EndpointSchema endpointSchema = new EndpointSchema.Builder().withEndpointId(ENDPOINT_ID).withUrl(URL)
+                .withUrlParameters(ImmutableList.of(UrlParameterType.USER_ID, UrlParameterType.START_DATE,
+                        UrlParameterType.END_DATE)).withTables(TABLE_SCHEMA_LIST).build();
+        assertTrue(endpointSchema.isDateRange());
     }
 
     @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp =
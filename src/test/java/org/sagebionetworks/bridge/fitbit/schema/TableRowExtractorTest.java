@@ -0,0 +1,146 @@
+package org.sagebionetworks.bridge.fitbit.schema;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.collect.ImmutableList;
+import org.sagebionetworks.repo.model.table.ColumnType;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+public class TableRowExtractorTest {
+    private static final TableSchema TABLE_SCHEMA = new TableSchema.Builder().withTableKey("my-table")
+            .withColumns(ImmutableList.of(
+                    new ColumnSchema.Builder().withColumnId("int").withColumnType(ColumnType.INTEGER).build(),
+                    new ColumnSchema.Builder().withColumnId("str").withColumnType(ColumnType.STRING)
+                            .withMaxLength(5).build(),
+                    new ColumnSchema.Builder().withColumnId("text").withColumnType(ColumnType.LARGETEXT).build(),
+                    new ColumnSchema.Builder().withColumnId("file").withColumnType(ColumnType.FILEHANDLEID)
+                            .build()))
+            .build();
+
+    @Test
+    public void compiledFromSchema() {
+        TableRowExtractor rowExtractor = TABLE_SCHEMA.getRowExtractor();
+        assertEquals(rowExtractor.getNumColumns(), 4);
+        assertEquals(rowExtractor.getColumnId(0), "int");
+        assertEquals(rowExtractor.getColumnId(3), "file");
+    }
+
+    @Test
+    public void findColumnIndex() {
+        TableRowExtractor rowExtractor = TABLE_SCHEMA.getRowExtractor();
+
+        // Expected index is right.
+        assertEquals(rowExtractor.findColumnIndex("str", 1), 1);
+
+        // Expected index is wrong, including past the end.
+        assertEquals(rowExtractor.findColumnIndex("int", 2), 0);
+        assertEquals(rowExtractor.findColumnIndex("text", 4), 2);
+
+        // Field names that aren't interned still match.
+        assertEquals(rowExtractor.findColumnIndex(new String("file"), 0), 3);
+
+        // No such column.
+        assertEquals(rowExtractor.findColumnIndex("wrong", 0), -1);
+    }
+
+    @Test
+    public void convertRow() throws Exception {
+        TableRowExtractor rowExtractor = TABLE_SCHEMA.getRowExtractor();
+        String json = "{\"int\":42, \"str\":\"abcdefgh\", \"text\":{\"foo\":[1, 2]}, \"file\":[3, 4], \"int2\":7}";
+        try (JsonParser parser = DefaultObjectMapper.INSTANCE.getFactory().createParser(json)) {
+            assertEquals(parser.nextToken(), JsonToken.START_OBJECT);
+            assertEquals(convertNextField(rowExtractor, parser, 0), "42");
+
+            // Strings are truncated to the max length.
+            assertEquals(convertNextField(rowExtractor, parser, 1), "abcde");
+
+            // Large text is written verbatim.
+            assertEquals(convertNextField(rowExtractor, parser, 2), "{\"foo\":[1,2]}");
+
+            // File handles are uploaded. The parser is left at the end of the value.
+            assertEquals(convertNextField(rowExtractor, parser, 3), "file-handle-[3,4]");
+
+            // Wrong type is null, and the parser picks up with the next field.
+            assertEquals(parser.nextToken(), JsonToken.FIELD_NAME);
+            assertEquals(parser.getCurrentName(), "int2");
+        }
+    }
+
+    @Test
+    public void convertNull() throws Exception {
+        TableRowExtractor rowExtractor = TABLE_SCHEMA.getRowExtractor();
+        try (JsonParser parser = DefaultObjectMapper.INSTANCE.getFactory().createParser("null")) {
+            parser.nextToken();
+            assertNull(rowExtractor.convert(0, parser, null));
+        }
+    }
+
+    @Test
+    public void wrongTypeIsSkipped() throws Exception {
+        TableRowExtractor rowExtractor = TABLE_SCHEMA.getRowExtractor();
+        try (JsonParser parser = DefaultObjectMapper.INSTANCE.getFactory().createParser("[{\"int\":[1]}, 2]")) {
+            parser.nextToken();
+            parser.nextToken();
+            assertNull(rowExtractor.convert(0, parser, null));
+            assertEquals(parser.getCurrentToken(), JsonToken.END_OBJECT);
+            assertEquals(parser.nextToken(), JsonToken.VALUE_NUMBER_INT);
+        }
+    }
+
+    @Test
+    public void convertDouble() throws Exception {
+        ColumnSchema columnSchema = new ColumnSchema.Builder().withColumnId("double").withColumnType(ColumnType.DOUBLE)
+                .build();
+
+        // Floating point numbers are written the same as a JsonNode's decimal value.
+        assertEquals(convertJson(columnSchema, "1.50"), "1.5");
+        assertEquals(convertJson(columnSchema, "1e2"), "100.0");
+        assertEquals(convertJson(columnSchema, "0.1"), "0.1");
+
+        // Integers are written as is.
+        assertEquals(convertJson(columnSchema, "3"), "3");
+        assertEquals(convertJson(columnSchema, "12345678901234567890"), "12345678901234567890");
+
+        // Wrong type.
+        assertNull(convertJson(columnSchema, "\"1.5\""));
+    }
+
+    @Test
+    public void convertNumberToString() throws Exception {
+        ColumnSchema columnSchema = new ColumnSchema.Builder().withColumnId("str").withColumnType(ColumnType.STRING)
+                .withMaxLength(100).build();
+
+        // Numbers are written the same as a JsonNode's toString(), not as their raw text.
+        assertEquals(convertJson(columnSchema, "1e2"), "100.0");
+        assertEquals(convertJson(columnSchema, "1.50"), "1.5");
+        assertEquals(convertJson(columnSchema, "42"), "42");
+
+        // Other scalars are written as their text.
+        assertEquals(convertJson(columnSchema, "true"), "true");
+        assertEquals(convertJson(columnSchema, "\"1e2\""), "1e2");
+    }
+
+    // Helper method to convert a single JSON value for the given column.
+    private static String convertJson(ColumnSchema columnSchema, String json) throws Exception {
+        try (JsonParser parser = DefaultObjectMapper.INSTANCE.getFactory().createParser(json)) {
+            parser.nextToken();
+            return TableRowExtractor.convertValue(columnSchema, parser, null);
+        }
+    }
+
+    // Helper method to advance to the next field and convert its value, using a fake file handle uploader.
+    private static String convertNextField(TableRowExtractor rowExtractor, JsonParser parser, int expectedIndex)
+            throws Exception {
+        assertEquals(parser.nextToken(), JsonToken.FIELD_NAME);
+        int columnIndex = rowExtractor.findColumnIndex(parser.getCurrentName(), expectedIndex);
+        assertEquals(columnIndex, expectedIndex);
+        parser.nextToken();
+        return rowExtractor.convert(columnIndex, parser, (columnId, valueParser) -> "file-handle-" +
+                valueParser.readValueAsTree().toString());
+    }
+}
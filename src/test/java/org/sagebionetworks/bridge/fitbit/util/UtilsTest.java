@@ -8,6 +8,8 @@ import static org.testng.Assert.assertTrue;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -119,4 +121,28 @@ public class UtilsTest {
         assertEquals(lines[1], "qwerty\tasdf\tjkl;");
         assertEquals(lines[2], "AAA\tBBB\tCCC");
     }
+
+    @Test
+    public void newExecutorServicePlatformThreads() throws Exception {
+        ExecutorService executor = Utils.newExecutorService("test", 2, false);
+        try {
+            Future<String> future = executor.submit(() -> Thread.currentThread().getName());
+            assertTrue(future.get().startsWith("test-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void newExecutorServiceVirtualThreads() throws Exception {
+        // Depending on the JVM, this is either a virtual thread executor or a fallback to platform threads. Either
+        // way, it should be able to run tasks.
+        ExecutorService executor = Utils.newExecutorService("test", 2, true);
+        try {
+            Future<String> future = executor.submit(() -> "foo");
+            assertEquals(future.get(), "foo");
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
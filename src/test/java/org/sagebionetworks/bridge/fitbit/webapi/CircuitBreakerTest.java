@@ -0,0 +1,168 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CircuitBreakerTest {
+    private static final long MOCK_NOW_MILLIS = 1513104000000L;
+    private static final long OPEN_DURATION_MILLIS = 1000;
+
+    private CircuitBreaker circuitBreaker;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+
+        circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setFailureRateThreshold(0.5);
+        circuitBreaker.setMinCalls(4);
+        circuitBreaker.setOpenDurationMillis(OPEN_DURATION_MILLIS);
+        circuitBreaker.setSlowCallMillis(100);
+        circuitBreaker.setWindowSize(10);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void staysClosedBelowThreshold() throws Exception {
+        // 1 failure out of 4 is under the threshold.
+        recordCall(false, 0);
+        recordCall(true, 0);
+        recordCall(true, 0);
+        recordCall(true, 0);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        circuitBreaker.acquirePermission();
+    }
+
+    @Test
+    public void staysClosedUntilMinCalls() throws Exception {
+        // 3 out of 3 calls failed, but we need at least 4 calls.
+        recordCall(false, 0);
+        recordCall(false, 0);
+        recordCall(false, 0);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void opensOnFailureRate() throws Exception {
+        recordCall(true, 0);
+        recordCall(true, 0);
+        recordCall(false, 0);
+        recordCall(false, 0);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        assertRejected(MOCK_NOW_MILLIS + OPEN_DURATION_MILLIS);
+        assertEquals(circuitBreaker.getMetricsString(), "circuitBreaker[state=OPEN, opened=1, rejected=1]");
+    }
+
+    @Test
+    public void slowCallsCountAsFailures() throws Exception {
+        recordCall(true, 50);
+        recordCall(true, 50);
+        recordCall(true, 101);
+        recordCall(true, 101);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void oldOutcomesLeaveTheWindow() throws Exception {
+        circuitBreaker.setWindowSize(4);
+
+        // 1 failure out of 4.
+        recordCall(false, 0);
+        recordCall(true, 0);
+        recordCall(true, 0);
+        recordCall(true, 0);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+
+        // This pushes out the first failure, so we still only have 1 failure.
+        recordCall(false, 0);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+
+        recordCall(false, 0);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void probeSuccessCloses() throws Exception {
+        openCircuit();
+
+        // After the open duration, one probe call is let through. Other calls are rejected while it's in flight.
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + OPEN_DURATION_MILLIS);
+        circuitBreaker.acquirePermission();
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.HALF_OPEN);
+        assertRejected(MOCK_NOW_MILLIS + 2 * OPEN_DURATION_MILLIS);
+
+        // Probe succeeds. Circuit closes and starts over with an empty window.
+        circuitBreaker.recordResult(true, 0);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+        circuitBreaker.acquirePermission();
+
+        recordCall(false, 0);
+        recordCall(false, 0);
+        recordCall(false, 0);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void probeFailureReopens() throws Exception {
+        openCircuit();
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + OPEN_DURATION_MILLIS);
+        circuitBreaker.acquirePermission();
+        circuitBreaker.recordResult(false, 0);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+        assertRejected(MOCK_NOW_MILLIS + 2 * OPEN_DURATION_MILLIS);
+        assertEquals(circuitBreaker.getMetricsString(), "circuitBreaker[state=OPEN, opened=2, rejected=1]");
+    }
+
+    @Test
+    public void slowProbeReopens() throws Exception {
+        openCircuit();
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + OPEN_DURATION_MILLIS);
+        circuitBreaker.acquirePermission();
+        circuitBreaker.recordResult(true, 101);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void resultsWhileOpenAreIgnored() throws Exception {
+        openCircuit();
+
+        // A call that started before the circuit opened finishes successfully. This doesn't close the circuit.
+        circuitBreaker.recordResult(true, 0);
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    // Helper method to open the circuit at MOCK_NOW_MILLIS.
+    private void openCircuit() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            recordCall(false, 0);
+        }
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    // Helper method to record a call that was let through the circuit breaker.
+    private void recordCall(boolean succeeded, long latencyMillis) throws Exception {
+        circuitBreaker.acquirePermission();
+        circuitBreaker.recordResult(succeeded, latencyMillis);
+    }
+
+    // Helper method to verify that calls are rejected with the given retry time.
+    private void assertRejected(long expectedRetryTimeMillis) {
+        try {
+            circuitBreaker.acquirePermission();
+            fail("expected exception");
+        } catch (CircuitOpenException ex) {
+            assertEquals(ex.getRetryTimeMillis(), expectedRetryTimeMillis);
+        }
+    }
+}
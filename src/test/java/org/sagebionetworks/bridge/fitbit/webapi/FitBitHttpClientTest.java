@@ -0,0 +1,393 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.HttpResponseException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FitBitHttpClientTest {
+    private static final String ACCESS_TOKEN = "my-access-token";
+    private static final String ENDPOINT_ID = "my-endpoint";
+
+    // Intraday heart rate data, which is large and repetitive.
+    private static final String GZIP_BODY;
+    static {
+        StringBuilder builder = new StringBuilder("{\"activities-heart-intraday\":{\"dataset\":[");
+        for (int i = 0; i < 1000; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"time\":\"00:00:").append(i % 60).append("\",\"value\":").append(60 + i % 20)
+                    .append('}');
+        }
+        GZIP_BODY = builder.append("]}}").toString();
+    }
+
+    private String acceptEncoding;
+    private FitBitHttpClient client;
+    private Set<Integer> clientPortSet;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String baseUrl;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        clientPortSet = ConcurrentHashMap.newKeySet();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ok", exchange -> {
+            clientPortSet.add(exchange.getRemoteAddress().getPort());
+            String body = "{\"auth\":\"" + exchange.getRequestHeaders().getFirst("Authorization") + "\"}";
+            exchange.getResponseHeaders().add("Fitbit-Rate-Limit-Remaining", "149");
+            writeResponse(exchange, 200, body);
+        });
+        server.createContext("/gzip", exchange -> {
+            acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            exchange.getResponseHeaders().add("Content-Type", "application/json;charset=utf-8");
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            byte[] gzippedBytes = gzip(GZIP_BODY);
+            exchange.sendResponseHeaders(200, gzippedBytes.length);
+            try (OutputStream responseStream = exchange.getResponseBody()) {
+                responseStream.write(gzippedBytes);
+            }
+        });
+        server.createContext("/gzip-error", exchange -> {
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            byte[] gzippedBytes = gzip("server error");
+            exchange.sendResponseHeaders(500, gzippedBytes.length);
+            try (OutputStream responseStream = exchange.getResponseBody()) {
+                responseStream.write(gzippedBytes);
+            }
+        });
+        server.createContext("/too-many-requests", exchange -> writeResponse(exchange, 429, "slow down"));
+        server.createContext("/no-content", exchange -> {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            writeResponse(exchange, 200, "too late");
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+        client = new FitBitHttpClient();
+    }
+
+    @AfterMethod
+    public void cleanup() throws Exception {
+        client.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void normalCase() throws Exception {
+        FitBitResponse response = client.get(ENDPOINT_ID, baseUrl + "/ok", ACCESS_TOKEN);
+        assertEquals(response.getStatusCode(), 200);
+        assertEquals(response.getBody(), "{\"auth\":\"Bearer my-access-token\"}");
+        assertEquals(response.getHeader("Fitbit-Rate-Limit-Remaining"), "149");
+        assertEquals(client.getNumRequests(), 1);
+        assertEquals(client.getMaxLeasedConnections(), 1);
+
+        // Connection was returned to the pool.
+        assertEquals(client.getPoolStats().getLeased(), 0);
+        assertEquals(client.getPoolStats().getAvailable(), 1);
+    }
+
+    @Test
+    public void errorResponsesAreReturned() throws Exception {
+        FitBitResponse response = client.get(ENDPOINT_ID, baseUrl + "/too-many-requests", ACCESS_TOKEN);
+        assertEquals(response.getStatusCode(), 429);
+        assertEquals(response.getBody(), "slow down");
+        assertEquals(client.getPoolStats().getLeased(), 0);
+    }
+
+    @Test
+    public void noContent() throws Exception {
+        FitBitResponse response = client.get(ENDPOINT_ID, baseUrl + "/no-content", ACCESS_TOKEN);
+        assertEquals(response.getStatusCode(), 204);
+        assertNull(response.getBody());
+    }
+
+    @Test
+    public void connectionsAreReused() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            client.get(ENDPOINT_ID, baseUrl + "/ok", ACCESS_TOKEN);
+        }
+
+        // All calls went over the same kept-alive connection.
+        assertEquals(clientPortSet.size(), 1);
+        assertEquals(client.getNumRequests(), 5);
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws Exception {
+        client.setIdleConnectionTimeoutMillis(0);
+        client.get(ENDPOINT_ID, baseUrl + "/ok", ACCESS_TOKEN);
+        assertEquals(client.getPoolStats().getAvailable(), 1);
+
+        client.evictIdleConnections();
+        assertEquals(client.getPoolStats().getAvailable(), 0);
+
+        // Next call opens a new connection.
+        client.get(ENDPOINT_ID, baseUrl + "/ok", ACCESS_TOKEN);
+        assertEquals(clientPortSet.size(), 2);
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        client.setReadTimeoutMillis(100);
+        try {
+            client.get(ENDPOINT_ID, baseUrl + "/slow", ACCESS_TOKEN);
+            fail("expected exception");
+        } catch (SocketTimeoutException ex) {
+            // expected exception
+        }
+        assertEquals(client.getPoolStats().getLeased(), 0);
+    }
+
+    @Test
+    public void metricsString() throws Exception {
+        client.setMaxConnectionsTotal(8);
+        client.get(ENDPOINT_ID, baseUrl + "/ok", ACCESS_TOKEN);
+        String metricsString = client.getMetricsString();
+        assertEquals(metricsString, "httpPool[leased=0, maxLeased=1, available=1, pending=0, max=8, requests=1, " +
+                "asyncRequests=0]");
+    }
+
+    @Test
+    public void asyncNormalCase() throws Exception {
+        FitBitResponse response = client.getAsync(ENDPOINT_ID, baseUrl + "/ok", ACCESS_TOKEN).get(10, TimeUnit.SECONDS);
+        assertEquals(response.getStatusCode(), 200);
+        assertEquals(response.getBody(), "{\"auth\":\"Bearer my-access-token\"}");
+        assertEquals(response.getHeader("Fitbit-Rate-Limit-Remaining"), "149");
+        assertEquals(client.getNumAsyncRequests(), 1);
+        assertEquals(client.getNumRequests(), 0);
+    }
+
+    @Test
+    public void asyncErrorResponsesAreReturned() throws Exception {
+        FitBitResponse response = client.getAsync(ENDPOINT_ID, baseUrl + "/too-many-requests", ACCESS_TOKEN).get(10,
+                TimeUnit.SECONDS);
+        assertEquals(response.getStatusCode(), 429);
+        assertEquals(response.getBody(), "slow down");
+    }
+
+    @Test
+    public void asyncReadTimeout() throws Exception {
+        client.setReadTimeoutMillis(100);
+        try {
+            client.getAsync(ENDPOINT_ID, baseUrl + "/slow", ACCESS_TOKEN).get(10, TimeUnit.SECONDS);
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    public void asyncCallsShareIoThreads() throws Exception {
+        // Each call blocks on the server until all calls are in flight. If each call needed its own thread, we'd need
+        // 20 threads.
+        int numCalls = 20;
+        CountDownLatch inFlightLatch = new CountDownLatch(numCalls);
+        server.createContext("/wait-for-all", exchange -> {
+            inFlightLatch.countDown();
+            try {
+                inFlightLatch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            writeResponse(exchange, 200, "done");
+        });
+        client.setMaxConnectionsPerRoute(numCalls);
+
+        List<CompletableFuture<FitBitResponse>> futureList = new ArrayList<>();
+        for (int i = 0; i < numCalls; i++) {
+            futureList.add(client.getAsync(ENDPOINT_ID, baseUrl + "/wait-for-all", ACCESS_TOKEN));
+        }
+        for (CompletableFuture<FitBitResponse> oneFuture : futureList) {
+            assertEquals(oneFuture.get(10, TimeUnit.SECONDS).getBody(), "done");
+        }
+        assertEquals(inFlightLatch.getCount(), 0);
+        assertEquals(client.getNumAsyncRequests(), numCalls);
+    }
+
+    @Test
+    public void gzip() throws Exception {
+        FitBitResponse response = client.get(ENDPOINT_ID, baseUrl + "/gzip", ACCESS_TOKEN);
+        assertEquals(acceptEncoding, "gzip");
+        validateGzipResponse(response);
+    }
+
+    @Test
+    public void gzipAsync() throws Exception {
+        FitBitResponse response = client.getAsync(ENDPOINT_ID, baseUrl + "/gzip", ACCESS_TOKEN).get(10,
+                TimeUnit.SECONDS);
+        assertEquals(acceptEncoding, "gzip");
+        validateGzipResponse(response);
+    }
+
+    private void validateGzipResponse(FitBitResponse response) throws Exception {
+        assertEquals(response.getStatusCode(), 200);
+
+        // The body is kept as it came off the wire, and is only decompressed when it's read.
+        assertTrue(response.isRawBodyGzipped());
+        assertEquals(response.getRawBody(), gzip(GZIP_BODY));
+        assertEquals(client.getDecompressedBytes(ENDPOINT_ID), 0);
+
+        JsonNode bodyNode = response.getBodyNode();
+        assertEquals(bodyNode.get("activities-heart-intraday").get("dataset").size(), 1000);
+
+        // Reading the body again doesn't count the decompressed bytes again.
+        assertEquals(response.getBody(), GZIP_BODY);
+
+        // The body compresses well, so fewer bytes went over the wire than were decompressed.
+        long decompressedBytes = client.getDecompressedBytes(ENDPOINT_ID);
+        assertEquals(decompressedBytes, GZIP_BODY.getBytes(StandardCharsets.UTF_8).length);
+        assertEquals(client.getWireBytes(ENDPOINT_ID), gzip(GZIP_BODY).length);
+        assertTrue(client.getWireBytes(ENDPOINT_ID) < decompressedBytes / 10);
+        assertEquals(client.getByteCountsString(), "responseBytes[" + ENDPOINT_ID + "=" +
+                client.getWireBytes(ENDPOINT_ID) + "/" + decompressedBytes + "]");
+    }
+
+    @Test
+    public void decompressedBytesAreCountedAsTheBodyIsParsed() throws Exception {
+        FitBitResponse response = client.get(ENDPOINT_ID, baseUrl + "/gzip", ACCESS_TOKEN);
+
+        // Stop partway through the body. Only the bytes decompressed so far are counted.
+        try (JsonParser parser = response.getBodyParser()) {
+            parser.nextToken();
+        }
+        long decompressedBytes = client.getDecompressedBytes(ENDPOINT_ID);
+        assertTrue(decompressedBytes > 0);
+        assertTrue(decompressedBytes < GZIP_BODY.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void bodyLargerThanMaxIsRejected() throws Exception {
+        // The gzipped body is smaller than the body, so the max applies to the body as it comes off the wire.
+        long wireLength = gzip(GZIP_BODY).length;
+        client.setMaxBodyBytes(wireLength - 1);
+        try {
+            client.get(ENDPOINT_ID, baseUrl + "/gzip", ACCESS_TOKEN);
+            fail("expected exception");
+        } catch (HttpResponseException ex) {
+            assertEquals(ex.getStatusCode(), 200);
+            assertFalse(RetryPolicy.isRetryable(ex));
+        }
+
+        // Exactly the max is fine.
+        client.setMaxBodyBytes(wireLength);
+        assertEquals(client.get(ENDPOINT_ID, baseUrl + "/gzip", ACCESS_TOKEN).getBody(), GZIP_BODY);
+    }
+
+    @Test
+    public void chunkedBodyLargerThanMaxIsRejected() throws Exception {
+        // No Content-Length, so we only find out the body is too large as we read it.
+        server.createContext("/chunked", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream responseStream = exchange.getResponseBody()) {
+                responseStream.write(GZIP_BODY.getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        client.setMaxBodyBytes(100);
+        try {
+            client.get(ENDPOINT_ID, baseUrl + "/chunked", ACCESS_TOKEN);
+            fail("expected exception");
+        } catch (HttpResponseException ex) {
+            assertEquals(ex.getStatusCode(), 200);
+        }
+    }
+
+    @Test
+    public void asyncBodyLargerThanMaxIsRejected() throws Exception {
+        client.setMaxBodyBytes(100);
+        try {
+            client.getAsync(ENDPOINT_ID, baseUrl + "/gzip", ACCESS_TOKEN).get(10, TimeUnit.SECONDS);
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof HttpResponseException);
+        }
+    }
+
+    @Test
+    public void gzipErrorIsReadAsString() throws Exception {
+        FitBitResponse response = client.get(ENDPOINT_ID, baseUrl + "/gzip-error", ACCESS_TOKEN);
+        assertEquals(response.getStatusCode(), 500);
+        assertEquals(response.getBody(), "server error");
+        assertEquals(client.getDecompressedBytes(ENDPOINT_ID), "server error".length());
+    }
+
+    @Test
+    public void bytesAreCountedPerEndpoint() throws Exception {
+        client.get("endpoint-A", baseUrl + "/too-many-requests", ACCESS_TOKEN);
+        client.get("endpoint-B", baseUrl + "/too-many-requests", ACCESS_TOKEN);
+        client.get("endpoint-B", baseUrl + "/too-many-requests", ACCESS_TOKEN);
+
+        // Uncompressed responses count the same bytes on the wire and decompressed.
+        assertEquals(client.getWireBytes("endpoint-A"), "slow down".length());
+        assertEquals(client.getWireBytes("endpoint-B"), 2 * "slow down".length());
+        assertEquals(client.getDecompressedBytes("endpoint-B"), 2 * "slow down".length());
+        assertEquals(client.getWireBytes("endpoint-C"), 0);
+        assertEquals(client.getByteCountsString(), "responseBytes[endpoint-A=9/9, endpoint-B=18/18]");
+    }
+
+    @Test
+    public void initAndClose() throws Exception {
+        // Init starts the eviction thread and close stops it. Neither should throw.
+        client.init();
+        client.get(ENDPOINT_ID, baseUrl + "/ok", ACCESS_TOKEN);
+        client.close();
+    }
+
+    private static byte[] gzip(String body) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
+            gzipOutputStream.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static void writeResponse(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(statusCode, bodyBytes.length);
+        try (OutputStream responseStream = exchange.getResponseBody()) {
+            responseStream.write(bodyBytes);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+/**
+ * In-process stub of the FitBit Web API, for testing and load testing the worker offline. Serves synthetic
+ * DailyActivitySummary and HeartRate (1-second intraday) payloads for any user and date, with configurable latency,
+ * error rate, per-user rate limits, and revoked access tokens. Responses include FitBit's rate limit headers, and are
+ * gzipped if the client asks for gzip.
+ *
+ * Use {@link #newApiClient} to wrap a real FitBitApiClient (such as FitBitHttpClient), so that calls to FitBit URLs
+ * go to the stub instead.
+ */
+public class FitBitStubServer implements AutoCloseable {
+    /** Base URL of the real FitBit Web API. URLs starting with this are redirected to the stub. */
+    public static final String FITBIT_BASE_URL = "https://api.fitbit.com";
+
+    private static final Pattern ACTIVITIES_PATH = Pattern.compile("/1/user/([^/]+)/activities/date/([0-9-]+)\\.json");
+    private static final Pattern HEART_RATE_PATH = Pattern.compile(
+            "/1/user/([^/]+)/activities/heart/date/([0-9-]+)/1d/1sec\\.json");
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final Set<String> invalidAccessTokenSet = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, AtomicInteger> remainingCallsByUserId = new ConcurrentHashMap<>();
+    private final AtomicLong numErrors = new AtomicLong();
+    private final AtomicLong numRateLimited = new AtomicLong();
+    private final AtomicLong numRequests = new AtomicLong();
+    private final HttpServer server;
+    private final ExecutorService serverExecutor;
+
+    private volatile double errorRate = 0.0;
+    private volatile int heartRateSamples = SECONDS_PER_DAY;
+    private volatile long latencyMillis = 0;
+    private volatile int rateLimit = 150;
+    private volatile int rateLimitResetSeconds = 3600;
+
+    /** Creates and starts the stub server on a random local port. */
+    public FitBitStubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    /** Calls with the given access token fail with a 401 Unauthorized, as if the user revoked access. */
+    public void addInvalidAccessToken(String accessToken) {
+        invalidAccessTokenSet.add(accessToken);
+    }
+
+    /** Fraction of calls, between 0 and 1, that fail with a 503 Service Unavailable. Defaults to 0. */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Number of samples in the intraday heart rate dataset, one per second starting at midnight. Defaults to a full
+     * day (86400 samples).
+     */
+    public void setHeartRateSamples(int heartRateSamples) {
+        this.heartRateSamples = heartRateSamples;
+    }
+
+    /** How long each call takes, in milliseconds. Defaults to 0. */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Number of calls each user can make before getting a 429 Too Many Requests. Defaults to 150, like FitBit. The
+     * stub's rate limit window never resets on its own. Call {@link #resetRateLimits} to reset it.
+     */
+    public void setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /** Value of the Fitbit-Rate-Limit-Reset header, in seconds. Defaults to 3600. */
+    public void setRateLimitResetSeconds(int rateLimitResetSeconds) {
+        this.rateLimitResetSeconds = rateLimitResetSeconds;
+    }
+
+    /** Resets all users' rate limits. */
+    public void resetRateLimits() {
+        remainingCallsByUserId.clear();
+    }
+
+    /** Base URL of the stub server, such as http://localhost:12345. */
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /** Number of calls that failed with a 503 because of the error rate. */
+    public long getNumErrors() {
+        return numErrors.get();
+    }
+
+    /** Number of calls that failed with a 429 because the user was over their rate limit. */
+    public long getNumRateLimited() {
+        return numRateLimited.get();
+    }
+
+    /** Total number of calls received. */
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    /**
+     * Returns an API client that redirects calls for FitBit URLs to this stub server, using the given client to make
+     * the actual HTTP calls.
+     */
+    public FitBitApiClient newApiClient(FitBitApiClient delegate) {
+        return new FitBitApiClient() {
+            @Override
+            public FitBitResponse get(String endpointId, String url, String accessToken) throws IOException {
+                return delegate.get(endpointId, rewriteUrl(url), accessToken);
+            }
+
+            @Override
+            public CompletableFuture<FitBitResponse> getAsync(String endpointId, String url, String accessToken) {
+                return delegate.getAsync(endpointId, rewriteUrl(url), accessToken);
+            }
+        };
+    }
+
+    /** Stops the stub server. */
+    @Override
+    public void close() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    // Helper method to point a FitBit URL at the stub server.
+    private String rewriteUrl(String url) {
+        if (url.startsWith(FITBIT_BASE_URL)) {
+            return getBaseUrl() + url.substring(FITBIT_BASE_URL.length());
+        }
+        return url;
+    }
+
+    // Request handler. Checks auth, rate limits, and the error rate, then serves the payload for the request path.
+    private void handle(HttpExchange exchange) throws IOException {
+        numRequests.incrementAndGet();
+        if (latencyMillis > 0) {
+            Uninterruptibles.sleepUninterruptibly(latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        Matcher activitiesMatcher = ACTIVITIES_PATH.matcher(path);
+        Matcher heartRateMatcher = HEART_RATE_PATH.matcher(path);
+        Matcher matcher;
+        if (activitiesMatcher.matches()) {
+            matcher = activitiesMatcher;
+        } else if (heartRateMatcher.matches()) {
+            matcher = heartRateMatcher;
+        } else {
+            writeResponse(exchange, 404, "{\"errors\":[{\"errorType\":\"not_found\"}]}");
+            return;
+        }
+        String userId = matcher.group(1);
+        String date = matcher.group(2);
+
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ") || invalidAccessTokenSet.contains(
+                authorization.substring("Bearer ".length()))) {
+            writeResponse(exchange, 401, "{\"errors\":[{\"errorType\":\"invalid_token\"}]}");
+            return;
+        }
+
+        // Rate limit headers are sent with every response, like FitBit.
+        int remainingCalls = remainingCallsByUserId.computeIfAbsent(userId, key -> new AtomicInteger(rateLimit))
+                .decrementAndGet();
+        exchange.getResponseHeaders().add("Fitbit-Rate-Limit-Limit", String.valueOf(rateLimit));
+        exchange.getResponseHeaders().add("Fitbit-Rate-Limit-Remaining", String.valueOf(Math.max(0,
+                remainingCalls)));
+        exchange.getResponseHeaders().add("Fitbit-Rate-Limit-Reset", String.valueOf(rateLimitResetSeconds));
+        if (remainingCalls < 0) {
+            numRateLimited.incrementAndGet();
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(rateLimitResetSeconds));
+            writeResponse(exchange, 429, "{\"errors\":[{\"errorType\":\"system\"}]}");
+            return;
+        }
+
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            numErrors.incrementAndGet();
+            writeResponse(exchange, 503, "{\"errors\":[{\"errorType\":\"system\"}]}");
+            return;
+        }
+
+        // Same user and date always get the same data.
+        Random random = new Random((userId + date).hashCode());
+        ObjectNode body = matcher == activitiesMatcher ? makeActivitiesBody(date, random) : makeHeartRateBody(date,
+                random);
+        exchange.getResponseHeaders().add("Content-Type", "application/json;charset=UTF-8");
+        writeResponse(exchange, 200, DefaultObjectMapper.INSTANCE.writeValueAsString(body));
+    }
+
+    // Helper method to make a DailyActivitySummary payload, with one activity, goals, and a summary.
+    private static ObjectNode makeActivitiesBody(String date, Random random) {
+        ObjectNode body = DefaultObjectMapper.INSTANCE.createObjectNode();
+        int steps = 2000 + random.nextInt(10000);
+
+        ObjectNode activity = body.putArray("activities").addObject();
+        activity.put("activityId", 90013);
+        activity.put("activityParentId", 90013);
+        activity.put("activityParentName", "Walk");
+        activity.put("calories", 100 + random.nextInt(200));
+        activity.put("description", "Walking less than 2 mph, strolling very slowly");
+        activity.put("distance", random.nextInt(500) / 100.0);
+        activity.put("duration", 600000 + random.nextInt(3000000));
+        activity.put("hasStartTime", true);
+        activity.put("isFavorite", false);
+        activity.put("lastModified", date + "T18:00:00.000Z");
+        activity.put("logId", random.nextInt(Integer.MAX_VALUE));
+        activity.put("name", "Walk");
+        activity.put("startDate", date);
+        activity.put("startTime", "08:00");
+        activity.put("steps", steps / 4);
+
+        ObjectNode goals = body.putObject("goals");
+        goals.put("activeMinutes", 30);
+        goals.put("caloriesOut", 2500);
+        goals.put("distance", 8.05);
+        goals.put("floors", 10);
+        goals.put("steps", 10000);
+
+        ObjectNode summary = body.putObject("summary");
+        summary.put("activeScore", -1);
+        summary.put("activityCalories", 500 + random.nextInt(1000));
+        summary.put("caloriesBMR", 1500 + random.nextInt(300));
+        summary.put("caloriesOut", 2000 + random.nextInt(1000));
+        ObjectNode distance = summary.putArray("distances").addObject();
+        distance.put("activity", "total");
+        distance.put("distance", steps / 1300.0);
+        summary.put("elevation", random.nextInt(3000) / 100.0);
+        summary.put("fairlyActiveMinutes", random.nextInt(60));
+        summary.put("floors", random.nextInt(20));
+        summary.set("heartRateZones", makeHeartRateZones(random));
+        summary.put("lightlyActiveMinutes", random.nextInt(300));
+        summary.put("marginalCalories", random.nextInt(500));
+        summary.put("restingHeartRate", 55 + random.nextInt(20));
+        summary.put("sedentaryMinutes", 600 + random.nextInt(300));
+        summary.put("steps", steps);
+        summary.put("veryActiveMinutes", random.nextInt(60));
+        return body;
+    }
+
+    // Helper method to make a HeartRate payload, with a daily summary and 1-second intraday data.
+    private ObjectNode makeHeartRateBody(String date, Random random) {
+        ObjectNode body = DefaultObjectMapper.INSTANCE.createObjectNode();
+
+        ObjectNode daily = body.putArray("activities-heart").addObject();
+        daily.put("dateTime", date);
+        ObjectNode value = daily.putObject("value");
+        value.putArray("customHeartRateZones");
+        value.set("heartRateZones", makeHeartRateZones(random));
+        value.put("restingHeartRate", 55 + random.nextInt(20));
+
+        ObjectNode intraday = body.putObject("activities-heart-intraday");
+        ArrayNode dataset = intraday.putArray("dataset");
+        int numSamples = Math.min(heartRateSamples, SECONDS_PER_DAY);
+        int heartRate = 60 + random.nextInt(20);
+        for (int i = 0; i < numSamples; i++) {
+            // Random walk, so consecutive samples look like heart rate data.
+            heartRate = Math.max(40, Math.min(180, heartRate + random.nextInt(3) - 1));
+            ObjectNode sample = dataset.addObject();
+            sample.put("time", String.format("%02d:%02d:%02d", i / 3600, i / 60 % 60, i % 60));
+            sample.put("value", heartRate);
+        }
+        intraday.put("datasetInterval", 1);
+        intraday.put("datasetType", "second");
+        return body;
+    }
+
+    // Helper method to make the heart rate zones, which are part of both payloads.
+    private static ArrayNode makeHeartRateZones(Random random) {
+        ArrayNode zones = DefaultObjectMapper.INSTANCE.createArrayNode();
+        String[] names = { "Out of Range", "Fat Burn", "Cardio", "Peak" };
+        int[] mins = { 30, 94, 131, 159 };
+        int[] maxes = { 94, 131, 159, 220 };
+        for (int i = 0; i < names.length; i++) {
+            ObjectNode zone = zones.addObject();
+            zone.put("name", names[i]);
+            zone.put("min", mins[i]);
+            zone.put("max", maxes[i]);
+            zone.put("minutes", random.nextInt(600));
+            zone.put("caloriesOut", random.nextInt(1000) / 10.0);
+        }
+        return zones;
+    }
+
+    // Helper method to write the response. The body is gzipped if the client asked for gzip.
+    private static void writeResponse(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            try (OutputStream gzipStream = new GZIPOutputStream(byteArrayOutputStream)) {
+                gzipStream.write(bodyBytes);
+            }
+            bodyBytes = byteArrayOutputStream.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+
+        exchange.sendResponseHeaders(statusCode, bodyBytes.length);
+        try (OutputStream responseStream = exchange.getResponseBody()) {
+            responseStream.write(bodyBytes);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FitBitStubServerTest {
+    private static final String ACCESS_TOKEN = "my-access-token";
+    private static final String ACTIVITIES_URL = FitBitStubServer.FITBIT_BASE_URL +
+            "/1/user/my-user/activities/date/2017-12-12.json";
+    private static final String HEART_RATE_URL = FitBitStubServer.FITBIT_BASE_URL +
+            "/1/user/my-user/activities/heart/date/2017-12-12/1d/1sec.json";
+
+    private FitBitApiClient apiClient;
+    private FitBitHttpClient httpClient;
+    private FitBitStubServer stubServer;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        stubServer = new FitBitStubServer();
+        httpClient = new FitBitHttpClient();
+        apiClient = stubServer.newApiClient(httpClient);
+    }
+
+    @AfterMethod
+    public void cleanup() throws Exception {
+        httpClient.close();
+        stubServer.close();
+    }
+
+    @Test
+    public void activities() throws Exception {
+        FitBitResponse response = apiClient.get("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN);
+        assertEquals(response.getStatusCode(), 200);
+        assertEquals(response.getHeader("Fitbit-Rate-Limit-Limit"), "150");
+        assertEquals(response.getHeader("Fitbit-Rate-Limit-Remaining"), "149");
+        assertEquals(response.getHeader("Fitbit-Rate-Limit-Reset"), "3600");
+
+        JsonNode bodyNode = response.getBodyNode();
+        assertEquals(bodyNode.get("activities").size(), 1);
+        assertEquals(bodyNode.get("activities").get(0).get("startDate").textValue(), "2017-12-12");
+        assertTrue(bodyNode.get("goals").isObject());
+        assertTrue(bodyNode.get("summary").get("steps").isInt());
+
+        // Responses are gzipped.
+        assertTrue(httpClient.getWireBytes("DailyActivitySummary") < httpClient.getDecompressedBytes(
+                "DailyActivitySummary"));
+        assertEquals(stubServer.getNumRequests(), 1);
+    }
+
+    @Test
+    public void heartRate() throws Exception {
+        stubServer.setHeartRateSamples(100);
+        FitBitResponse response = apiClient.get("HeartRate", HEART_RATE_URL, ACCESS_TOKEN);
+        assertEquals(response.getStatusCode(), 200);
+
+        JsonNode bodyNode = response.getBodyNode();
+        assertEquals(bodyNode.get("activities-heart").get(0).get("dateTime").textValue(), "2017-12-12");
+        JsonNode intradayNode = bodyNode.get("activities-heart-intraday");
+        assertEquals(intradayNode.get("datasetInterval").intValue(), 1);
+        assertEquals(intradayNode.get("datasetType").textValue(), "second");
+        JsonNode datasetNode = intradayNode.get("dataset");
+        assertEquals(datasetNode.size(), 100);
+        assertEquals(datasetNode.get(0).get("time").textValue(), "00:00:00");
+        assertEquals(datasetNode.get(99).get("time").textValue(), "00:01:39");
+    }
+
+    @Test
+    public void sameUserAndDateGetSameData() throws Exception {
+        String body1 = apiClient.get("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN).getBody();
+        String body2 = apiClient.get("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN).getBody();
+        assertEquals(body1, body2);
+    }
+
+    @Test
+    public void async() throws Exception {
+        FitBitResponse response = apiClient.getAsync("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN).get();
+        assertEquals(response.getStatusCode(), 200);
+        assertTrue(response.getBodyNode().has("summary"));
+    }
+
+    @Test
+    public void rateLimit() throws Exception {
+        stubServer.setRateLimit(2);
+        stubServer.setRateLimitResetSeconds(60);
+        assertEquals(apiClient.get("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN).getStatusCode(), 200);
+        assertEquals(apiClient.get("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN).getStatusCode(), 200);
+
+        FitBitResponse response = apiClient.get("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN);
+        assertEquals(response.getStatusCode(), 429);
+        assertEquals(response.getHeader("Fitbit-Rate-Limit-Remaining"), "0");
+        assertEquals(response.getHeader("Retry-After"), "60");
+        assertEquals(stubServer.getNumRateLimited(), 1);
+
+        // Other users have their own rate limit.
+        assertEquals(apiClient.get("DailyActivitySummary", ACTIVITIES_URL.replace("my-user", "other-user"),
+                ACCESS_TOKEN).getStatusCode(), 200);
+
+        // Reset.
+        stubServer.resetRateLimits();
+        assertEquals(apiClient.get("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN).getStatusCode(), 200);
+    }
+
+    @Test
+    public void errorRate() throws Exception {
+        stubServer.setErrorRate(1.0);
+        assertEquals(apiClient.get("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN).getStatusCode(), 503);
+        assertEquals(stubServer.getNumErrors(), 1);
+    }
+
+    @Test
+    public void latency() throws Exception {
+        stubServer.setLatencyMillis(100);
+        long startMillis = System.currentTimeMillis();
+        apiClient.get("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN);
+        assertTrue(System.currentTimeMillis() - startMillis >= 100);
+    }
+
+    @Test
+    public void invalidAccessToken() throws Exception {
+        stubServer.addInvalidAccessToken("revoked-token");
+        assertEquals(apiClient.get("DailyActivitySummary", ACTIVITIES_URL, "revoked-token").getStatusCode(), 401);
+        assertEquals(apiClient.get("DailyActivitySummary", ACTIVITIES_URL, ACCESS_TOKEN).getStatusCode(), 200);
+    }
+
+    @Test
+    public void unknownPath() throws Exception {
+        assertEquals(apiClient.get("unknown", FitBitStubServer.FITBIT_BASE_URL + "/1/user/my-user/sleep.json",
+                ACCESS_TOKEN).getStatusCode(), 404);
+    }
+}
@@ -0,0 +1,149 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RateLimitTrackerTest {
+    private static final long MOCK_NOW_MILLIS = DateTime.parse("2017-12-12T18:56:51.098Z").getMillis();
+    private static final long RESET_TIME_MILLIS = MOCK_NOW_MILLIS + 600_000L;
+    private static final String USER_ID = "my-user";
+
+    private RateLimitTracker tracker;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        tracker = new RateLimitTracker();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void unknownUserIsNotThrottled() throws Exception {
+        // We can call acquire() as many times as we want.
+        for (int i = 0; i < 1000; i++) {
+            tracker.acquire(USER_ID);
+        }
+        assertEquals(tracker.getResetTimeMillis(USER_ID), 0);
+    }
+
+    @Test
+    public void usesUpRemainingCalls() throws Exception {
+        // User has 2 calls left.
+        tracker.update(USER_ID, makeResponse(200, "2", "600"));
+        assertEquals(tracker.getResetTimeMillis(USER_ID), RESET_TIME_MILLIS);
+
+        // First 2 calls succeed. Third call throws.
+        tracker.acquire(USER_ID);
+        tracker.acquire(USER_ID);
+        assertRateLimited();
+    }
+
+    @Test
+    public void releaseGivesBackCall() throws Exception {
+        // User has 1 call left. Acquire it, then give it back.
+        tracker.update(USER_ID, makeResponse(200, "1", "600"));
+        tracker.acquire(USER_ID);
+        tracker.release(USER_ID);
+
+        // The user can still make 1 call.
+        tracker.acquire(USER_ID);
+        assertRateLimited();
+    }
+
+    @Test
+    public void releaseUnknownUser() throws Exception {
+        tracker.release(USER_ID);
+        assertEquals(tracker.getResetTimeMillis(USER_ID), 0);
+    }
+
+    @Test
+    public void reservedCalls() throws Exception {
+        // User has 2 calls left, but we hold 1 call in reserve.
+        tracker.setReservedCalls(1);
+        tracker.update(USER_ID, makeResponse(200, "2", "600"));
+
+        tracker.acquire(USER_ID);
+        assertRateLimited();
+    }
+
+    @Test
+    public void resetsAfterWindow() throws Exception {
+        // User is out of calls.
+        tracker.update(USER_ID, makeResponse(200, "0", "600"));
+        assertRateLimited();
+
+        // After the reset time, the user can be called again.
+        DateTimeUtils.setCurrentMillisFixed(RESET_TIME_MILLIS);
+        tracker.acquire(USER_ID);
+        assertEquals(tracker.getResetTimeMillis(USER_ID), 0);
+    }
+
+    @Test
+    public void tooManyRequestsWithRateLimitHeaders() throws Exception {
+        // Remaining header is wrong, but 429 means we're out of calls regardless.
+        tracker.update(USER_ID, makeResponse(429, "10", "600"));
+        assertRateLimited();
+    }
+
+    @Test
+    public void tooManyRequestsWithRetryAfter() throws Exception {
+        tracker.update(USER_ID, new FitBitResponse(429, ImmutableMap.of("Retry-After", "600"), null));
+        assertRateLimited();
+    }
+
+    @Test
+    public void tooManyRequestsWithNoHeaders() throws Exception {
+        tracker.update(USER_ID, new FitBitResponse(429, ImmutableMap.of(), null));
+        assertEquals(tracker.getResetTimeMillis(USER_ID), MOCK_NOW_MILLIS + RateLimitTracker.DEFAULT_RESET_MILLIS);
+    }
+
+    @Test
+    public void noRateLimitHeaders() throws Exception {
+        tracker.update(USER_ID, new FitBitResponse(200, ImmutableMap.of(), null));
+        tracker.acquire(USER_ID);
+        assertEquals(tracker.getResetTimeMillis(USER_ID), 0);
+    }
+
+    @Test
+    public void invalidHeaders() throws Exception {
+        tracker.update(USER_ID, makeResponse(200, "not a number", "600"));
+        tracker.acquire(USER_ID);
+        assertEquals(tracker.getResetTimeMillis(USER_ID), 0);
+    }
+
+    @Test
+    public void headersAreCaseInsensitive() throws Exception {
+        tracker.update(USER_ID, new FitBitResponse(200, ImmutableMap.of("fitbit-rate-limit-remaining", "0",
+                "FITBIT-RATE-LIMIT-RESET", "600"), null));
+        assertRateLimited();
+    }
+
+    private void assertRateLimited() {
+        try {
+            tracker.acquire(USER_ID);
+            fail("expected exception");
+        } catch (UserRateLimitedException ex) {
+            assertEquals(ex.getResetTimeMillis(), RESET_TIME_MILLIS);
+        }
+    }
+
+    private static FitBitResponse makeResponse(int statusCode, String remaining, String reset) {
+        Map<String, String> headerMap = ImmutableMap.of(RateLimitTracker.HEADER_RATE_LIMIT_LIMIT, "150",
+                RateLimitTracker.HEADER_RATE_LIMIT_REMAINING, remaining,
+                RateLimitTracker.HEADER_RATE_LIMIT_RESET, reset);
+        return new FitBitResponse(statusCode, headerMap, null);
+    }
+}
@@ -0,0 +1,178 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ResponseCacheTest {
+    private static final String HEALTH_CODE = "my-health-code";
+    private static final long MOCK_NOW_MILLIS = 1513104000000L;
+    private static final String URL = "https://api.fitbit.com/1/user/my-user/activities/date/2017-12-12.json";
+
+    private File cacheDir;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        cacheDir = Files.createTempDirectory("response-cache").toFile();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+        File[] fileArray = cacheDir.listFiles();
+        if (fileArray != null) {
+            for (File oneFile : fileArray) {
+                oneFile.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        ResponseCache cache = new ResponseCache();
+        assertFalse(cache.isEnabled());
+
+        cache.put(HEALTH_CODE, URL, makeResponse("{\"foo\":1}"));
+        assertNull(cache.get(HEALTH_CODE, URL));
+        assertEquals(cacheDir.listFiles().length, 0);
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        ResponseCache cache = makeCache();
+        assertTrue(cache.isEnabled());
+        assertNull(cache.get(HEALTH_CODE, URL));
+
+        cache.put(HEALTH_CODE, URL, makeResponse("{\"foo\":1}"));
+        FitBitResponse cachedResponse = cache.get(HEALTH_CODE, URL);
+        assertNotNull(cachedResponse);
+        assertEquals(cachedResponse.getStatusCode(), 200);
+        assertEquals(cachedResponse.getBodyNode().get("foo").intValue(), 1);
+
+        // Cached bodies are returned still gzipped, so they're only decompressed as they're parsed.
+        assertTrue(cachedResponse.isRawBodyGzipped());
+
+        // Stored compressed, one file per entry.
+        File[] fileArray = cacheDir.listFiles();
+        assertEquals(fileArray.length, 1);
+        assertTrue(fileArray[0].getName().endsWith(ResponseCache.FILE_SUFFIX));
+        assertEquals(cache.getTotalBytes(), fileArray[0].length());
+
+        // Different health code or URL is a miss.
+        assertNull(cache.get("other-health-code", URL));
+        assertNull(cache.get(HEALTH_CODE, URL + "?foo=bar"));
+
+        assertEquals(cache.getMetricsString(), "responseCache[hits=1, misses=3, evictions=0, entries=1, bytes=" +
+                cache.getTotalBytes() + "]");
+    }
+
+    @Test
+    public void putReplacesExistingEntry() throws Exception {
+        ResponseCache cache = makeCache();
+        cache.put(HEALTH_CODE, URL, makeResponse("{\"foo\":1}"));
+        cache.put(HEALTH_CODE, URL, makeResponse("{\"foo\":2}"));
+        assertEquals(cache.get(HEALTH_CODE, URL).getBodyNode().get("foo").intValue(), 2);
+        assertEquals(cacheDir.listFiles().length, 1);
+        assertEquals(cache.getTotalBytes(), cacheDir.listFiles()[0].length());
+    }
+
+    @Test
+    public void newCacheReadsExistingEntries() throws Exception {
+        makeCache().put(HEALTH_CODE, URL, makeResponse("{\"foo\":1}"));
+
+        // Leftover temp files are cleaned up.
+        File tempFile = new File(cacheDir, "leftover" + ResponseCache.TEMP_FILE_SUFFIX + ".1");
+        Files.write(tempFile.toPath(), "partial".getBytes(StandardCharsets.UTF_8));
+
+        ResponseCache cache = makeCache();
+        assertEquals(cache.get(HEALTH_CODE, URL).getBodyNode().get("foo").intValue(), 1);
+        assertFalse(tempFile.exists());
+    }
+
+    @Test
+    public void expiredEntryIsDeleted() throws Exception {
+        ResponseCache cache = makeCache();
+        cache.setMaxAgeMillis(1000);
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        cache.put(HEALTH_CODE, URL, makeResponse("{\"foo\":1}"));
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + 1000);
+        assertNotNull(cache.get(HEALTH_CODE, URL));
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + 1001);
+        assertNull(cache.get(HEALTH_CODE, URL));
+        assertEquals(cacheDir.listFiles().length, 0);
+        assertEquals(cache.getTotalBytes(), 0);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        ResponseCache cache = makeCache();
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        cache.put(HEALTH_CODE, "url-a", makeResponse("{\"foo\":\"a\"}"));
+        long entryBytes = cache.getTotalBytes();
+        cache.setMaxBytes(entryBytes * 2);
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + 1);
+        cache.put(HEALTH_CODE, "url-b", makeResponse("{\"foo\":\"b\"}"));
+
+        // Read A, so B is the least recently used.
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + 2);
+        assertNotNull(cache.get(HEALTH_CODE, "url-a"));
+
+        // Adding C puts us over the limit and evicts B.
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + 3);
+        cache.put(HEALTH_CODE, "url-c", makeResponse("{\"foo\":\"c\"}"));
+        assertNotNull(cache.get(HEALTH_CODE, "url-a"));
+        assertNull(cache.get(HEALTH_CODE, "url-b"));
+        assertNotNull(cache.get(HEALTH_CODE, "url-c"));
+        assertEquals(cacheDir.listFiles().length, 2);
+        assertEquals(cache.getTotalBytes(), entryBytes * 2);
+        assertTrue(cache.getMetricsString().contains("evictions=1"));
+    }
+
+    @Test
+    public void corruptEntryIsMiss() throws Exception {
+        ResponseCache cache = makeCache();
+        cache.put(HEALTH_CODE, URL, makeResponse("{\"foo\":1}"));
+
+        File file = cacheDir.listFiles()[0];
+        Files.write(file.toPath(), "not gzip".getBytes(StandardCharsets.UTF_8));
+
+        assertNull(cache.get(HEALTH_CODE, URL));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void invalidJsonIsNotCached() throws Exception {
+        ResponseCache cache = makeCache();
+        cache.put(HEALTH_CODE, URL, makeResponse("not json"));
+        assertNull(cache.get(HEALTH_CODE, URL));
+        assertEquals(cacheDir.listFiles().length, 0);
+    }
+
+    private ResponseCache makeCache() {
+        ResponseCache cache = new ResponseCache();
+        cache.setCacheDir(cacheDir);
+        return cache;
+    }
+
+    private static FitBitResponse makeResponse(String body) {
+        return new FitBitResponse(200, ImmutableMap.of(), body);
+    }
+}
@@ -0,0 +1,167 @@
+package org.sagebionetworks.bridge.fitbit.webapi;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.apache.http.client.HttpResponseException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class RetryPolicyTest {
+    private RetryPolicy retryPolicy;
+
+    @BeforeMethod
+    public void setup() {
+        retryPolicy = new RetryPolicy();
+        retryPolicy.setBaseDelayMillis(100);
+        retryPolicy.setMaxAttempts(4);
+        retryPolicy.setMaxDelayMillis(250);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        retryPolicy.close();
+    }
+
+    @DataProvider(name = "retryableErrorProvider")
+    public Object[][] retryableErrorProvider() {
+        return new Object[][] {
+                { new RetryableResponseException(503, "test exception", 0), true },
+                { new SocketTimeoutException("test exception"), true },
+                { new IOException("test exception"), true },
+                { new HttpResponseException(404, "test exception"), false },
+                { new UserRateLimitedException("test exception", 0), false },
+                { new CircuitOpenException("test exception", 0), false },
+                { new JsonParseException(null, "test exception"), false },
+                { new RuntimeException("test exception"), false },
+        };
+    }
+
+    @Test(dataProvider = "retryableErrorProvider")
+    public void isRetryable(Throwable error, boolean expected) {
+        assertEquals(RetryPolicy.isRetryable(error), expected);
+    }
+
+    @Test
+    public void backoffIsExponentialWithJitter() {
+        IOException error = new IOException("test exception");
+        for (int i = 0; i < 100; i++) {
+            long delay1 = retryPolicy.getRetryDelayMillis(error, 1);
+            assertTrue(delay1 >= 0 && delay1 <= 100, "delay1=" + delay1);
+            long delay2 = retryPolicy.getRetryDelayMillis(error, 2);
+            assertTrue(delay2 >= 0 && delay2 <= 200, "delay2=" + delay2);
+
+            // Capped at max delay.
+            long delay3 = retryPolicy.getRetryDelayMillis(error, 3);
+            assertTrue(delay3 >= 0 && delay3 <= 250, "delay3=" + delay3);
+        }
+    }
+
+    @Test
+    public void noRetryAfterMaxAttempts() {
+        assertEquals(retryPolicy.getRetryDelayMillis(new IOException("test exception"), 4), -1);
+    }
+
+    @Test
+    public void noRetryForTerminalError() {
+        assertEquals(retryPolicy.getRetryDelayMillis(new HttpResponseException(400, "test exception"), 1), -1);
+    }
+
+    @Test
+    public void retryAfterIsHonored() {
+        assertEquals(retryPolicy.getRetryDelayMillis(new RetryableResponseException(503, "test exception", 200), 1),
+                200);
+    }
+
+    @Test
+    public void retryAfterTooLongGivesUp() {
+        assertEquals(retryPolicy.getRetryDelayMillis(new RetryableResponseException(503, "test exception", 1000), 1),
+                -1);
+    }
+
+    @Test
+    public void executeSucceedsAfterRetries() throws Exception {
+        retryPolicy.setBaseDelayMillis(1);
+
+        // Fails twice, then succeeds.
+        AtomicInteger numAttempts = new AtomicInteger();
+        CompletableFuture<String> future = retryPolicy.execute("test call", () -> {
+            if (numAttempts.incrementAndGet() < 3) {
+                return failedFuture(new SocketTimeoutException("test exception"));
+            }
+            return CompletableFuture.completedFuture("success");
+        }, Runnable::run);
+
+        assertEquals(future.get(10, TimeUnit.SECONDS), "success");
+        assertEquals(numAttempts.get(), 3);
+        assertEquals(retryPolicy.getNumRetries(), 2);
+    }
+
+    @Test
+    public void executeFailsWithLastError() throws Exception {
+        retryPolicy.setBaseDelayMillis(1);
+        AtomicInteger numAttempts = new AtomicInteger();
+        IOException error = new IOException("test exception");
+        CompletableFuture<String> future = retryPolicy.execute("test call", () -> {
+            numAttempts.incrementAndGet();
+            return failedFuture(error);
+        }, Runnable::run);
+
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertSame(ex.getCause(), error);
+        }
+        assertEquals(numAttempts.get(), 4);
+    }
+
+    @Test
+    public void executeDoesntBlockWhileBackingOff() throws Exception {
+        // Backoff is long, but execute() returns right away.
+        retryPolicy.setBaseDelayMillis(10_000);
+        retryPolicy.setMaxDelayMillis(10_000);
+        AtomicInteger numAttempts = new AtomicInteger();
+        CompletableFuture<String> future = retryPolicy.execute("test call", () -> {
+            numAttempts.incrementAndGet();
+            return failedFuture(new RetryableResponseException(503, "test exception", 10_000));
+        }, Runnable::run);
+
+        assertFalse(future.isDone());
+        assertEquals(numAttempts.get(), 1);
+        assertEquals(retryPolicy.getNumRetries(), 1);
+    }
+
+    @Test
+    public void supplierThrows() throws Exception {
+        CompletableFuture<String> future = retryPolicy.execute("test call", () -> {
+            throw new IllegalStateException("test exception");
+        }, Runnable::run);
+
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+}
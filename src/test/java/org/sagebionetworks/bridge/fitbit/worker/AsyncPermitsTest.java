@@ -0,0 +1,60 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.testng.annotations.Test;
+
+public class AsyncPermitsTest {
+    @Test
+    public void freePermitIsAcquiredImmediately() {
+        AsyncPermits permits = new AsyncPermits(2);
+        assertTrue(permits.acquire().isDone());
+        assertTrue(permits.acquire().isDone());
+        assertEquals(permits.getNumAvailablePermits(), 0);
+        assertEquals(permits.getNumWaiters(), 0);
+    }
+
+    @Test
+    public void waitersGetReleasedPermitsInOrder() {
+        AsyncPermits permits = new AsyncPermits(1);
+        assertTrue(permits.acquire().isDone());
+
+        // No free permits, so both callers wait.
+        CompletableFuture<Void> waiter1 = permits.acquire();
+        CompletableFuture<Void> waiter2 = permits.acquire();
+        assertFalse(waiter1.isDone());
+        assertFalse(waiter2.isDone());
+        assertEquals(permits.getNumWaiters(), 2);
+
+        // Each release goes straight to the caller that's been waiting longest.
+        permits.release();
+        assertTrue(waiter1.isDone());
+        assertFalse(waiter2.isDone());
+        assertEquals(permits.getNumAvailablePermits(), 0);
+
+        permits.release();
+        assertTrue(waiter2.isDone());
+        assertEquals(permits.getNumAvailablePermits(), 0);
+        assertEquals(permits.getNumWaiters(), 0);
+
+        // With no one waiting, the permit is freed.
+        permits.release();
+        assertEquals(permits.getNumAvailablePermits(), 1);
+    }
+
+    @Test
+    public void releasedPermitIsNotTakenByLaterCaller() {
+        AsyncPermits permits = new AsyncPermits(1);
+        permits.acquire();
+        CompletableFuture<Void> waiter = permits.acquire();
+
+        // The released permit goes to the waiter, so a caller that arrives afterwards has to wait.
+        permits.release();
+        assertTrue(waiter.isDone());
+        assertFalse(permits.acquire().isDone());
+    }
+}
@@ -1,32 +1,70 @@
 package org.sagebionetworks.bridge.fitbit.worker;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
+import java.io.File;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.http.client.HttpResponseException;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 import org.sagebionetworks.bridge.fitbit.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.fitbit.bridge.FitBitUser;
+import org.sagebionetworks.bridge.fitbit.checkpoint.CheckpointStore;
+import org.sagebionetworks.bridge.fitbit.checkpoint.DateCheckpoints;
+import org.sagebionetworks.bridge.fitbit.checkpoint.FileCheckpointStore;
 import org.sagebionetworks.bridge.fitbit.schema.EndpointSchema;
 import org.sagebionetworks.bridge.fitbit.schema.TableSchema;
+import org.sagebionetworks.bridge.fitbit.webapi.CircuitBreaker;
+import org.sagebionetworks.bridge.fitbit.webapi.CircuitOpenException;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitHttpClient;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitResponse;
+import org.sagebionetworks.bridge.fitbit.webapi.InvalidTokenException;
+import org.sagebionetworks.bridge.fitbit.webapi.ResponseCache;
+import org.sagebionetworks.bridge.fitbit.webapi.RetryPolicy;
+import org.sagebionetworks.bridge.fitbit.webapi.RetryableResponseException;
+import org.sagebionetworks.bridge.fitbit.webapi.UserRateLimitedException;
 import org.sagebionetworks.bridge.rest.model.Study;
 
 public class BridgeFitBitWorkerProcessorProcessStudyTest {
@@ -38,25 +76,52 @@ public class BridgeFitBitWorkerProcessorProcessStudyTest {
     private BridgeHelper mockBridgeHelper;
     private TableProcessor mockTableProcessor;
     private UserProcessor mockUserProcessor;
+    private FitBitResponse mockResponse;
+    private File checkpointFile;
+    private CheckpointStore checkpointStore;
+    private RetryPolicy retryPolicy;
     private BridgeFitBitWorkerProcessor processor;
 
     @BeforeMethod
-    public void setup() {
+    public void setup() throws Exception {
         // Mock back-ends
         fileHelper = new InMemoryFileHelper();
         mockBridgeHelper = mock(BridgeHelper.class);
         mockTableProcessor = mock(TableProcessor.class);
         mockUserProcessor = mock(UserProcessor.class);
+        mockResponse = mock(FitBitResponse.class);
+
+        checkpointFile = File.createTempFile("checkpoints", ".tsv");
+        assertTrue(checkpointFile.delete());
+        checkpointStore = new FileCheckpointStore(checkpointFile);
 
         // Set up FitBit Worker Processor.
         processor = new BridgeFitBitWorkerProcessor();
         processor.setBridgeHelper(mockBridgeHelper);
+        processor.setCheckpointStore(checkpointStore);
+        processor.setCircuitBreaker(new CircuitBreaker());
         processor.setFileHelper(fileHelper);
+        processor.setFitBitHttpClient(mock(FitBitHttpClient.class));
+        processor.setResponseCache(new ResponseCache());
+
+        // Retry quickly, so tests don't have to wait.
+        retryPolicy = new RetryPolicy();
+        retryPolicy.setBaseDelayMillis(1);
+        processor.setRetryPolicy(retryPolicy);
         processor.setTableProcessor(mockTableProcessor);
         processor.setUserProcessor(mockUserProcessor);
 
-        // Set rate limit to 1000 so tests aren't bottlenecked by the rate limiter.
-        processor.setPerUserRateLimit(1000.0);
+        // Single-threaded, so we can verify calls in order.
+        processor.setNumParseThreads(1);
+        processor.setNumSinkThreads(1);
+        processor.setNumTableThreads(1);
+        processor.setNumUserThreads(1);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        checkpointFile.delete();
+        retryPolicy.close();
     }
 
     @Test
@@ -67,21 +132,25 @@ public class BridgeFitBitWorkerProcessorProcessStudyTest {
         FitBitUser user0 = makeUser(0);
         FitBitUser user1 = makeUser(1);
         FitBitUser user2 = makeUser(2);
-        when(mockBridgeHelper.getFitBitUsersForStudy(STUDY_ID)).thenReturn(Iterators.forArray(user0, user1, user2));
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0, user1,
+                user2));
 
         // Mock endpoint schema, so we don't have to construct the whole thing.
 
         EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
         processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
 
-        // Mock user processor to set up one table in the context.
+        // Mock user processor. Fetching user-0 throws.
         doAnswer(invocation -> {
-            // user-0 throws
             FitBitUser user = invocation.getArgumentAt(1, FitBitUser.class);
             if ("user-0".equals(user.getUserId())) {
                 throw new RuntimeException("test exception");
             }
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
 
+        // Processing the response sets up one table in the context.
+        doAnswer(invocation -> {
             // Ensure that there's a PopulatedTable for this endpoint.
             RequestContext ctx = invocation.getArgumentAt(0, RequestContext.class);
             EndpointSchema endpointSchema = invocation.getArgumentAt(2, EndpointSchema.class);
@@ -91,22 +160,22 @@ public class BridgeFitBitWorkerProcessorProcessStudyTest {
 
             // Required return value.
             return null;
-        }).when(mockUserProcessor).processEndpointForUser(any(), any(), any());
+        }).when(mockUserProcessor).processResponseForUser(any(), any(), any(), any(), any(), any());
 
         // Execute
-        processor.processStudy(DATE_STRING, STUDY);
+        processStudy();
 
         // Verify User Processor
         ArgumentCaptor<RequestContext> contextCaptor = ArgumentCaptor.forClass(RequestContext.class);
         ArgumentCaptor<FitBitUser> userCaptor = ArgumentCaptor.forClass(FitBitUser.class);
-        verify(mockUserProcessor, times(3)).processEndpointForUser(contextCaptor.capture(),
-                userCaptor.capture(), same(mockEndpointSchema0));
+        verify(mockUserProcessor, times(3)).fetchEndpointForUser(contextCaptor.capture(),
+                userCaptor.capture(), same(mockEndpointSchema0), any());
 
         // RequestContext contains date and studyID
         List<RequestContext> contextList = contextCaptor.getAllValues();
         assertEquals(contextList.size(), 3);
         RequestContext context0 = contextList.get(0);
-        assertEquals(context0.getDate(), DATE_STRING);
+        assertEquals(context0.getStartDate(), DATE_STRING);
         assertSame(context0.getStudy(), STUDY);
 
         // All contexts within the study are the same context.
@@ -120,6 +189,13 @@ public class BridgeFitBitWorkerProcessorProcessStudyTest {
         assertSame(userList.get(1), user1);
         assertSame(userList.get(2), user2);
 
+        // Only user-1 and user-2 are parsed.
+        verify(mockUserProcessor).processResponseForUser(same(context0), same(user1), same(mockEndpointSchema0),
+                eq(DATE_STRING), same(mockResponse), any());
+        verify(mockUserProcessor).processResponseForUser(same(context0), same(user2), same(mockEndpointSchema0),
+                eq(DATE_STRING), same(mockResponse), any());
+        verify(mockUserProcessor, never()).processResponseForUser(any(), same(user0), any(), any(), any(), any());
+
         // Verify Table Processor
         ArgumentCaptor<PopulatedTable> tableCaptor = ArgumentCaptor.forClass(PopulatedTable.class);
         verify(mockTableProcessor, times(1)).processTable(same(context0),
@@ -130,6 +206,26 @@ public class BridgeFitBitWorkerProcessorProcessStudyTest {
         assertTrue(fileHelper.isEmpty());
     }
 
+    @Test
+    public void streamRowsToTsv() throws Exception {
+        processor.setStreamRowsToTsv(true);
+
+        // Mock BridgeHelper to return a single user.
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(makeUser(0)));
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema(0)));
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenReturn(mockResponse);
+
+        // Execute
+        processStudy();
+
+        // The request context tells the User Processor to stream rows to TSVs.
+        ArgumentCaptor<RequestContext> contextCaptor = ArgumentCaptor.forClass(RequestContext.class);
+        verify(mockUserProcessor).processResponseForUser(contextCaptor.capture(), any(), any(), any(),
+                same(mockResponse), any());
+        assertTrue(contextCaptor.getValue().isStreamRowsToTsv());
+        assertTrue(fileHelper.isEmpty());
+    }
+
     @Test
     public void multipleEndpointsAndTables() throws Exception {
         // Test cases:
@@ -138,7 +234,7 @@ public class BridgeFitBitWorkerProcessorProcessStudyTest {
 
         // Mock BridgeHelper to return users.
         FitBitUser user0 = makeUser(0);
-        when(mockBridgeHelper.getFitBitUsersForStudy(STUDY_ID)).thenReturn(Iterators.forArray(user0));
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
 
         // Mock endpoint schemas, so we don't have to construct the whole thing.
         EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
@@ -146,15 +242,21 @@ public class BridgeFitBitWorkerProcessorProcessStudyTest {
         EndpointSchema mockEndpointSchema2 = mockEndpointSchema(2);
         processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0, mockEndpointSchema1, mockEndpointSchema2));
 
-        // Mock user processor to set up one table in the context.
+        // Mock user processor. Fetching endpoint-0 throws.
+        doAnswer(invocation -> {
+            EndpointSchema endpointSchema = invocation.getArgumentAt(2, EndpointSchema.class);
+            if ("endpoint-0".equals(endpointSchema.getEndpointId())) {
+                throw new RuntimeException("test exception");
+            }
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Processing the response sets up tables in the context.
         doAnswer(invocation -> {
             // Process endpoints for test.
             EndpointSchema endpointSchema = invocation.getArgumentAt(2, EndpointSchema.class);
             List<String> tableIdList = new ArrayList<>();
             switch (endpointSchema.getEndpointId()) {
-                case "endpoint-0":
-                    // Throws
-                    throw new RuntimeException("test exception");
                 case "endpoint-1":
                     // Has 2 tables
                     tableIdList.add("table-1A");
@@ -175,7 +277,7 @@ public class BridgeFitBitWorkerProcessorProcessStudyTest {
 
             // Required return value
             return null;
-        }).when(mockUserProcessor).processEndpointForUser(any(), any(), any());
+        }).when(mockUserProcessor).processResponseForUser(any(), any(), any(), any(), any(), any());
 
         // Mock table processor. table-1A throws.
         doAnswer(invocation -> {
@@ -189,31 +291,30 @@ public class BridgeFitBitWorkerProcessorProcessStudyTest {
         }).when(mockTableProcessor).processTable(any(), any());
 
         // Execute
-        processor.processStudy(DATE_STRING, STUDY);
+        processStudy();
 
         // Verify User Processor
         ArgumentCaptor<RequestContext> contextCaptor = ArgumentCaptor.forClass(RequestContext.class);
         ArgumentCaptor<EndpointSchema> endpointSchemaCaptor = ArgumentCaptor.forClass(EndpointSchema.class);
-        verify(mockUserProcessor, times(3)).processEndpointForUser(contextCaptor.capture(),
-                same(user0), endpointSchemaCaptor.capture());
+        verify(mockUserProcessor, times(3)).fetchEndpointForUser(contextCaptor.capture(),
+                same(user0), endpointSchemaCaptor.capture(), any());
 
         // RequestContext contains date and studyID
         List<RequestContext> contextList = contextCaptor.getAllValues();
         assertEquals(contextList.size(), 3);
         RequestContext context0 = contextList.get(0);
-        assertEquals(context0.getDate(), DATE_STRING);
+        assertEquals(context0.getStartDate(), DATE_STRING);
         assertSame(context0.getStudy(), STUDY);
 
         // All contexts within the study are the same context.
         assertSame(contextList.get(1), context0);
         assertSame(contextList.get(2), context0);
 
-        // Validate endpoint schemas
+        // Validate endpoint schemas. Endpoints are called concurrently, so order is not guaranteed.
         List<EndpointSchema> endpointSchemaList = endpointSchemaCaptor.getAllValues();
         assertEquals(endpointSchemaList.size(), 3);
-        assertEquals(endpointSchemaList.get(0), mockEndpointSchema0);
-        assertEquals(endpointSchemaList.get(1), mockEndpointSchema1);
-        assertEquals(endpointSchemaList.get(2), mockEndpointSchema2);
+        assertEquals(ImmutableSet.copyOf(endpointSchemaList), ImmutableSet.of(mockEndpointSchema0,
+                mockEndpointSchema1, mockEndpointSchema2));
 
         // Verify Table Processor
         ArgumentCaptor<PopulatedTable> tableCaptor = ArgumentCaptor.forClass(PopulatedTable.class);
@@ -231,11 +332,991 @@ public class BridgeFitBitWorkerProcessorProcessStudyTest {
         assertTrue(fileHelper.isEmpty());
     }
 
+    @Test
+    public void concurrentUsers() throws Exception {
+        // Test cases: Many users processed concurrently all append rows to the same table.
+        processor.setNumUserThreads(4);
+
+        // Mock BridgeHelper to return users.
+        int numUsers = 50;
+        List<FitBitUser> userList = new ArrayList<>();
+        for (int i = 0; i < numUsers; i++) {
+            userList.add(makeUser(i));
+        }
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(userList.iterator());
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // Mock user processor to add a row for each user.
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenReturn(mockResponse);
+        doAnswer(invocation -> {
+            RequestContext ctx = invocation.getArgumentAt(0, RequestContext.class);
+            FitBitUser user = invocation.getArgumentAt(1, FitBitUser.class);
+            PopulatedTable table = ctx.getPopulatedTablesById().computeIfAbsent("table", key -> new PopulatedTable(
+                    "table", mock(TableSchema.class)));
+            BiConsumer<PopulatedTable, Map<String, String>> rowSink = getRowSink(invocation);
+            rowSink.accept(table, ImmutableMap.of(Constants.COLUMN_HEALTH_CODE, user.getHealthCode()));
+
+            // Required return value.
+            return null;
+        }).when(mockUserProcessor).processResponseForUser(any(), any(), any(), any(), any(), any());
+
+        // Execute
+        processStudy();
+
+        // Verify all users were processed before the table was processed, and that no rows were lost.
+        verify(mockUserProcessor, times(numUsers)).fetchEndpointForUser(any(), any(), same(mockEndpointSchema0), any());
+
+        ArgumentCaptor<PopulatedTable> tableCaptor = ArgumentCaptor.forClass(PopulatedTable.class);
+        verify(mockTableProcessor).processTable(any(), tableCaptor.capture());
+
+        Set<String> healthCodeSet = tableCaptor.getValue().getRowList().stream().map(row -> row.get(
+                Constants.COLUMN_HEALTH_CODE)).collect(Collectors.toSet());
+        assertEquals(healthCodeSet.size(), numUsers);
+
+        // Validate we cleaned up the file helper
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void endpointsCalledConcurrently() throws Exception {
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        EndpointSchema mockEndpointSchema1 = mockEndpointSchema(1);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0, mockEndpointSchema1));
+
+        // Each endpoint waits for the other endpoint to start. If endpoints were called serially, this would time
+        // out.
+        CountDownLatch startedLatch = new CountDownLatch(2);
+        AtomicInteger numTimeouts = new AtomicInteger();
+        doAnswer(invocation -> {
+            startedLatch.countDown();
+            if (!startedLatch.await(10, TimeUnit.SECONDS)) {
+                numTimeouts.incrementAndGet();
+            }
+
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute and verify.
+        processStudy();
+        assertEquals(numTimeouts.get(), 0);
+        verify(mockUserProcessor).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0), any());
+        verify(mockUserProcessor).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema1), any());
+    }
+
+    @Test
+    public void fetchStageDoesNotWaitForUsersCalls() throws Exception {
+        // One fetch thread, and enough endpoint threads for both users' calls.
+        processor.setNumUserThreads(1);
+        FitBitUser user0 = makeUser(0);
+        FitBitUser user1 = makeUser(1);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0, user1));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        EndpointSchema mockEndpointSchema1 = mockEndpointSchema(1);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0, mockEndpointSchema1));
+
+        // user-0's call on endpoint-0 waits for user-1's calls to start. If the fetch thread waited for user-0's calls
+        // before moving on to user-1, this would time out.
+        CountDownLatch user1StartedLatch = new CountDownLatch(1);
+        AtomicInteger numTimeouts = new AtomicInteger();
+        doAnswer(invocation -> {
+            FitBitUser user = invocation.getArgumentAt(1, FitBitUser.class);
+            EndpointSchema endpointSchema = invocation.getArgumentAt(2, EndpointSchema.class);
+            if (user == user1) {
+                user1StartedLatch.countDown();
+            } else if (endpointSchema == mockEndpointSchema0 && !user1StartedLatch.await(10, TimeUnit.SECONDS)) {
+                numTimeouts.incrementAndGet();
+            }
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute and verify. The study still waits for all calls before it finishes.
+        processStudy();
+        assertEquals(numTimeouts.get(), 0);
+        verify(mockUserProcessor, times(4)).processResponseForUser(any(), any(), any(), any(), same(mockResponse),
+                any());
+    }
+
+    @Test
+    public void maxOutstandingCallsPerStudy() throws Exception {
+        processor.setMaxOutstandingCallsPerStudy(1);
+        processor.setNumUserThreads(4);
+
+        List<FitBitUser> userList = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            userList.add(makeUser(i));
+        }
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(userList.iterator());
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // Track the max number of concurrent calls.
+        AtomicInteger numConcurrentCalls = new AtomicInteger();
+        AtomicInteger maxConcurrentCalls = new AtomicInteger();
+        doAnswer(invocation -> {
+            maxConcurrentCalls.accumulateAndGet(numConcurrentCalls.incrementAndGet(), Math::max);
+            Uninterruptibles.sleepUninterruptibly(5, TimeUnit.MILLISECONDS);
+            numConcurrentCalls.decrementAndGet();
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute and verify.
+        processStudy();
+        assertEquals(maxConcurrentCalls.get(), 1);
+        verify(mockUserProcessor, times(10)).fetchEndpointForUser(any(), any(), same(mockEndpointSchema0), any());
+    }
+
+    @Test
+    public void perEndpointConcurrencyCap() throws Exception {
+        processor.setNumUserThreads(4);
+        processor.setMaxConcurrentCallsPerEndpoint(2);
+
+        // Mock BridgeHelper to return users.
+        List<FitBitUser> userList = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            userList.add(makeUser(i));
+        }
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(userList.iterator());
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // Track the max number of concurrent calls to the endpoint.
+        AtomicInteger numConcurrentCalls = new AtomicInteger();
+        AtomicInteger maxConcurrentCalls = new AtomicInteger();
+        doAnswer(invocation -> {
+            int curConcurrentCalls = numConcurrentCalls.incrementAndGet();
+            maxConcurrentCalls.accumulateAndGet(curConcurrentCalls, Math::max);
+            Thread.sleep(10);
+            numConcurrentCalls.decrementAndGet();
+
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute and verify.
+        processStudy();
+        verify(mockUserProcessor, times(20)).fetchEndpointForUser(any(), any(), same(mockEndpointSchema0), any());
+        assertTrue(maxConcurrentCalls.get() <= 2);
+    }
+
+    @Test
+    public void asyncHttp() throws Exception {
+        processor.setUseAsyncHttp(true);
+
+        FitBitUser user0 = makeUser(0);
+        FitBitUser user1 = makeUser(1);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0, user1));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        EndpointSchema mockEndpointSchema1 = mockEndpointSchema(1);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0, mockEndpointSchema1));
+
+        // Calls complete on a separate thread, like the HTTP client's I/O threads.
+        when(mockUserProcessor.fetchEndpointForUserAsync(any(), any(), any(), any(), any())).thenAnswer(
+                invocation -> CompletableFuture.supplyAsync(() -> mockResponse));
+        mockProcessResponse("table-A");
+
+        // Execute and verify. All calls go through the non-blocking client and are parsed.
+        processStudy();
+        verify(mockUserProcessor, times(4)).fetchEndpointForUserAsync(any(), any(), any(), eq(DATE_STRING), any());
+        verify(mockUserProcessor, never()).fetchEndpointForUser(any(), any(), any(), any());
+        verify(mockUserProcessor, times(4)).processResponseForUser(any(), any(), any(), eq(DATE_STRING),
+                same(mockResponse), any());
+
+        ArgumentCaptor<PopulatedTable> tableCaptor = ArgumentCaptor.forClass(PopulatedTable.class);
+        verify(mockTableProcessor).processTable(any(), tableCaptor.capture());
+        assertEquals(tableCaptor.getValue().getRowList().size(), 4);
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void asyncHttpPerEndpointConcurrencyCap() throws Exception {
+        processor.setUseAsyncHttp(true);
+        processor.setNumUserThreads(4);
+        processor.setMaxConcurrentCallsPerEndpoint(2);
+
+        List<FitBitUser> userList = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            userList.add(makeUser(i));
+        }
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(userList.iterator());
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // Track the max number of calls in flight. Each call completes after a short delay on another thread.
+        AtomicInteger numConcurrentCalls = new AtomicInteger();
+        AtomicInteger maxConcurrentCalls = new AtomicInteger();
+        when(mockUserProcessor.fetchEndpointForUserAsync(any(), any(), any(), any(), any())).thenAnswer(invocation -> {
+            int curConcurrentCalls = numConcurrentCalls.incrementAndGet();
+            maxConcurrentCalls.accumulateAndGet(curConcurrentCalls, Math::max);
+            return CompletableFuture.supplyAsync(() -> {
+                Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+                numConcurrentCalls.decrementAndGet();
+                return mockResponse;
+            });
+        });
+
+        // Execute and verify.
+        processStudy();
+        verify(mockUserProcessor, times(20)).fetchEndpointForUserAsync(any(), any(), same(mockEndpointSchema0),
+                any(), any());
+        assertTrue(maxConcurrentCalls.get() <= 2);
+    }
+
+    @Test
+    public void asyncHttpFullConcurrencyCapDoesNotBlockFetchStage() throws Exception {
+        processor.setUseAsyncHttp(true);
+        processor.setNumUserThreads(1);
+        processor.setMaxConcurrentCallsPerEndpoint(1);
+
+        FitBitUser user0 = makeUser(0);
+        FitBitUser user1 = makeUser(1);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0, user1));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        EndpointSchema mockEndpointSchema1 = mockEndpointSchema(1);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0, mockEndpointSchema1));
+
+        // user-0's call on endpoint-0 holds endpoint-0's only permit until user-1's call on endpoint-1 starts. user-1's
+        // call on endpoint-0 comes first and has to wait for the permit. If it blocked the fetch thread, user-1's call
+        // on endpoint-1 would never start, and this would time out.
+        CountDownLatch user1Endpoint1StartedLatch = new CountDownLatch(1);
+        AtomicInteger numTimeouts = new AtomicInteger();
+        when(mockUserProcessor.fetchEndpointForUserAsync(any(), any(), any(), any(), any())).thenAnswer(
+                invocation -> {
+                    FitBitUser user = invocation.getArgumentAt(1, FitBitUser.class);
+                    EndpointSchema endpointSchema = invocation.getArgumentAt(2, EndpointSchema.class);
+                    if (user == user1 && endpointSchema == mockEndpointSchema1) {
+                        user1Endpoint1StartedLatch.countDown();
+                    } else if (user == user0 && endpointSchema == mockEndpointSchema0) {
+                        return CompletableFuture.supplyAsync(() -> {
+                            if (!Uninterruptibles.awaitUninterruptibly(user1Endpoint1StartedLatch, 10,
+                                    TimeUnit.SECONDS)) {
+                                numTimeouts.incrementAndGet();
+                            }
+                            return mockResponse;
+                        });
+                    }
+                    return CompletableFuture.completedFuture(mockResponse);
+                });
+
+        // Execute and verify. The queued call still runs once the permit is released.
+        processStudy();
+        assertEquals(numTimeouts.get(), 0);
+        verify(mockUserProcessor, times(4)).fetchEndpointForUserAsync(any(), any(), any(), any(), any());
+        verify(mockUserProcessor, times(4)).processResponseForUser(any(), any(), any(), any(), same(mockResponse),
+                any());
+    }
+
+    @Test
+    public void asyncHttpRateLimitedUserIsDeferred() throws Exception {
+        processor.setUseAsyncHttp(true);
+
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // The async call is rate limited. The rate limit resets immediately, so the deferred call is retried, also
+        // with the non-blocking client.
+        CompletableFuture<FitBitResponse> rateLimitedFuture = new CompletableFuture<>();
+        rateLimitedFuture.completeExceptionally(new UserRateLimitedException("test exception",
+                System.currentTimeMillis()));
+        when(mockUserProcessor.fetchEndpointForUserAsync(any(), any(), any(), any(), any())).thenReturn(
+                rateLimitedFuture, CompletableFuture.completedFuture(mockResponse));
+
+        // Execute and verify.
+        processStudy();
+        verify(mockUserProcessor, times(2)).fetchEndpointForUserAsync(any(), same(user0), same(mockEndpointSchema0),
+                any(), any());
+        verify(mockUserProcessor, never()).fetchEndpointForUser(any(), any(), any(), any());
+        verify(mockUserProcessor).processResponseForUser(any(), same(user0), same(mockEndpointSchema0), any(),
+                same(mockResponse), any());
+    }
+
+    @Test
+    public void transientErrorIsRetried() throws Exception {
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // FitBit returns a 503 twice, then succeeds.
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any()))
+                .thenThrow(new RetryableResponseException(503, "test exception", 0))
+                .thenThrow(new RetryableResponseException(503, "test exception", 0))
+                .thenReturn(mockResponse);
+
+        // Execute and verify.
+        processStudy();
+        verify(mockUserProcessor, times(3)).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0),
+                any());
+        verify(mockUserProcessor).processResponseForUser(any(), same(user0), same(mockEndpointSchema0), any(),
+                same(mockResponse), any());
+        assertEquals(retryPolicy.getNumRetries(), 2);
+    }
+
+    @Test
+    public void transientErrorGivesUpAfterMaxAttempts() throws Exception {
+        retryPolicy.setMaxAttempts(3);
+
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenThrow(
+                new RetryableResponseException(503, "test exception", 0));
+
+        // Execute and verify.
+        processStudy();
+        verify(mockUserProcessor, times(3)).fetchEndpointForUser(any(), any(), any(), any());
+        verify(mockUserProcessor, never()).processResponseForUser(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void terminalErrorIsNotRetried() throws Exception {
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenThrow(
+                new HttpResponseException(404, "test exception"));
+
+        // Execute and verify.
+        processStudy();
+        verify(mockUserProcessor, times(1)).fetchEndpointForUser(any(), any(), any(), any());
+        assertEquals(retryPolicy.getNumRetries(), 0);
+    }
+
+    @Test
+    public void invalidTokenSkipsUsersRemainingCalls() throws Exception {
+        // One call at a time, so the first call's 401 is seen before the user's other calls.
+        processor.setMaxConcurrentCallsPerEndpoint(1);
+
+        // user-0's token was revoked. user-1 is fine.
+        FitBitUser user0 = makeUser(0);
+        FitBitUser user1 = makeUser(1);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0, user1));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+        doAnswer(invocation -> {
+            FitBitUser user = invocation.getArgumentAt(1, FitBitUser.class);
+            if ("user-0".equals(user.getUserId())) {
+                throw new InvalidTokenException(401, "test exception");
+            }
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute over 3 days.
+        PipelineStage<RequestContext> uploadStage = processor.newUploadStage();
+        processor.processStudy("2017-12-10", "2017-12-12", STUDY, UserShard.ALL, uploadStage);
+        uploadStage.finish();
+
+        // user-0 is only called once, and isn't retried. user-1 is called for every date.
+        ArgumentCaptor<RequestContext> contextCaptor = ArgumentCaptor.forClass(RequestContext.class);
+        verify(mockUserProcessor, times(1)).fetchEndpointForUser(contextCaptor.capture(), same(user0),
+                same(mockEndpointSchema0), any());
+        verify(mockUserProcessor, times(3)).fetchEndpointForUser(any(), same(user1), same(mockEndpointSchema0),
+                any());
+        verify(mockUserProcessor, never()).processResponseForUser(any(), same(user0), any(), any(), any(), any());
+        assertEquals(retryPolicy.getNumRetries(), 0);
+        assertEquals(contextCaptor.getValue().getInvalidTokenHealthCodeSet(), ImmutableSet.of("health-code-0"));
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void asyncHttpInvalidTokenSkipsUsersRemainingCalls() throws Exception {
+        processor.setUseAsyncHttp(true);
+        processor.setMaxConcurrentCallsPerEndpoint(1);
+
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // Each call completes after a short delay on another thread, so the user's other calls are waiting on the
+        // concurrency cap when the 401 comes back.
+        when(mockUserProcessor.fetchEndpointForUserAsync(any(), any(), any(), any(), any())).thenAnswer(invocation ->
+                CompletableFuture.supplyAsync(() -> {
+                    Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+                    throw new CompletionException(new InvalidTokenException(401, "test exception"));
+                }));
+
+        // Execute over 3 days and verify.
+        PipelineStage<RequestContext> uploadStage = processor.newUploadStage();
+        processor.processStudy("2017-12-10", "2017-12-12", STUDY, UserShard.ALL, uploadStage);
+        uploadStage.finish();
+        verify(mockUserProcessor, times(1)).fetchEndpointForUserAsync(any(), same(user0), any(), any(), any());
+        verify(mockUserProcessor, never()).processResponseForUser(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void asyncHttpTransientErrorIsRetried() throws Exception {
+        processor.setUseAsyncHttp(true);
+
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // The first call times out. The second call succeeds.
+        CompletableFuture<FitBitResponse> timedOutFuture = new CompletableFuture<>();
+        timedOutFuture.completeExceptionally(new SocketTimeoutException("test exception"));
+        when(mockUserProcessor.fetchEndpointForUserAsync(any(), any(), any(), any(), any())).thenReturn(timedOutFuture,
+                CompletableFuture.completedFuture(mockResponse));
+
+        // Execute and verify.
+        processStudy();
+        verify(mockUserProcessor, times(2)).fetchEndpointForUserAsync(any(), same(user0), same(mockEndpointSchema0),
+                any(), any());
+        verify(mockUserProcessor).processResponseForUser(any(), same(user0), same(mockEndpointSchema0), any(),
+                same(mockResponse), any());
+    }
+
+    @Test
+    public void rateLimitedUserIsDeferred() throws Exception {
+        // user-0 is rate limited the first time, and succeeds the second time. user-1 always succeeds.
+        FitBitUser user0 = makeUser(0);
+        FitBitUser user1 = makeUser(1);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0, user1));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // The rate limit resets immediately, so we don't have to wait in the test.
+        List<String> calledUserIdList = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            FitBitUser user = invocation.getArgumentAt(1, FitBitUser.class);
+            calledUserIdList.add(user.getUserId());
+            if ("user-0".equals(user.getUserId()) && calledUserIdList.size() == 1) {
+                throw new UserRateLimitedException("test exception", System.currentTimeMillis());
+            }
+
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute and verify. user-0 is retried as soon as the rate limit resets, which may be before or after user-1.
+        processStudy();
+        assertEquals(calledUserIdList.get(0), "user-0");
+        assertEquals(ImmutableMultiset.copyOf(calledUserIdList), ImmutableMultiset.of("user-0", "user-0", "user-1"));
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void circuitOpenCallsAreDeferred() throws Exception {
+        // FitBit is down for the first pass over both users. The circuit lets calls through again immediately, so we
+        // don't have to wait in the test.
+        FitBitUser user0 = makeUser(0);
+        FitBitUser user1 = makeUser(1);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0, user1));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // Deferred calls are retried as soon as they're due, which may be before the other user's first call, so the
+        // circuit is open for each user's first call.
+        Set<String> calledUserIdSet = ConcurrentHashMap.newKeySet();
+        doAnswer(invocation -> {
+            FitBitUser user = invocation.getArgumentAt(1, FitBitUser.class);
+            if (calledUserIdSet.add(user.getUserId())) {
+                throw new CircuitOpenException("test exception", System.currentTimeMillis());
+            }
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute and verify. Both users are retried, without retrying through the retry policy.
+        processStudy();
+        verify(mockUserProcessor, times(2)).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0),
+                any());
+        verify(mockUserProcessor, times(2)).fetchEndpointForUser(any(), same(user1), same(mockEndpointSchema0),
+                any());
+        verify(mockUserProcessor).processResponseForUser(any(), same(user0), any(), any(), same(mockResponse),
+                any());
+        verify(mockUserProcessor).processResponseForUser(any(), same(user1), any(), any(), same(mockResponse),
+                any());
+        assertEquals(retryPolicy.getNumRetries(), 0);
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void deferredCallIsDeferredAgainIfCircuitIsStillOpen() throws Exception {
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // FitBit is down for the first call and the first retry. The circuit lets calls through again immediately.
+        AtomicInteger numCalls = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (numCalls.incrementAndGet() <= 2) {
+                throw new CircuitOpenException("test exception", System.currentTimeMillis());
+            }
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute and verify. The call is retried until the circuit closes.
+        processStudy();
+        verify(mockUserProcessor, times(3)).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0),
+                any());
+        verify(mockUserProcessor).processResponseForUser(any(), same(user0), any(), any(), same(mockResponse),
+                any());
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void rateLimitedUserGivesUpIfResetIsTooFarAway() throws Exception {
+        processor.setMaxDeferralMillis(1000);
+
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // Rate limit resets in an hour.
+        doThrow(new UserRateLimitedException("test exception", System.currentTimeMillis() +
+                TimeUnit.HOURS.toMillis(1))).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute and verify. We only call user-0 once.
+        processStudy();
+        verify(mockUserProcessor, times(1)).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0), any());
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void deferredCallIsDeferredAgainIfUserIsStillRateLimited() throws Exception {
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // Rate limited for the first call and the first retry. The rate limit resets immediately.
+        AtomicInteger numCalls = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (numCalls.incrementAndGet() <= 2) {
+                throw new UserRateLimitedException("test exception", System.currentTimeMillis());
+            }
+            return mockResponse;
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute and verify. The call is retried until the user's rate limit lets it through.
+        processStudy();
+        verify(mockUserProcessor, times(3)).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0),
+                any());
+        verify(mockUserProcessor).processResponseForUser(any(), same(user0), any(), any(), same(mockResponse),
+                any());
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void deferredCallTransientErrorIsRetried() throws Exception {
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // The first call is rate limited, and the rate limit resets immediately. The deferred call gets a 503, and
+        // the retry succeeds.
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any()))
+                .thenThrow(new UserRateLimitedException("test exception", System.currentTimeMillis()))
+                .thenThrow(new RetryableResponseException(503, "test exception", 0))
+                .thenReturn(mockResponse);
+
+        // Execute and verify.
+        processStudy();
+        verify(mockUserProcessor, times(3)).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0),
+                any());
+        verify(mockUserProcessor).processResponseForUser(any(), same(user0), any(), any(), same(mockResponse),
+                any());
+        assertEquals(retryPolicy.getNumRetries(), 1);
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void rateLimitedUserGivesUpAfterMaxDeferral() throws Exception {
+        processor.setMaxDeferralMillis(200);
+
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // Always rate limited. Each rate limit resets in 50ms.
+        doAnswer(invocation -> {
+            throw new UserRateLimitedException("test exception", System.currentTimeMillis() + 50);
+        }).when(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+
+        // Execute and verify. user-0 is deferred again until the max deferral since the first deferral runs out.
+        processStudy();
+        verify(mockUserProcessor, atLeast(2)).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0),
+                any());
+        verify(mockUserProcessor, never()).processResponseForUser(any(), any(), any(), any(), any(), any());
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void tablesUploadedConcurrently() throws Exception {
+        processor.setNumTableThreads(2);
+
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // The endpoint has 2 tables.
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenReturn(mockResponse);
+        doAnswer(invocation -> {
+            RequestContext ctx = invocation.getArgumentAt(0, RequestContext.class);
+            for (String oneTableId : ImmutableList.of("table-A", "table-B")) {
+                ctx.getPopulatedTablesById().computeIfAbsent(oneTableId, key -> new PopulatedTable(oneTableId,
+                        mock(TableSchema.class)));
+            }
+
+            // Required return value.
+            return null;
+        }).when(mockUserProcessor).processResponseForUser(any(), any(), any(), any(), any(), any());
+
+        // Each table waits for the other table to start. If tables were uploaded serially, this would time out.
+        CountDownLatch startedLatch = new CountDownLatch(2);
+        AtomicInteger numTimeouts = new AtomicInteger();
+        doAnswer(invocation -> {
+            startedLatch.countDown();
+            if (!startedLatch.await(10, TimeUnit.SECONDS)) {
+                numTimeouts.incrementAndGet();
+            }
+
+            // Required return value.
+            return null;
+        }).when(mockTableProcessor).processTable(any(), any());
+
+        // Execute and verify.
+        processStudy();
+        assertEquals(numTimeouts.get(), 0);
+        verify(mockTableProcessor, times(2)).processTable(any(), any());
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void onlyUsersInShardAreProcessed() throws Exception {
+        // Mock BridgeHelper to return users.
+        List<FitBitUser> userList = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            userList.add(makeUser(i));
+        }
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenAnswer(invocation -> {
+            // BridgeHelper applies the shard's filter before getting the users' keys.
+            Predicate<String> healthCodeFilter = getHealthCodeFilter(invocation);
+            return userList.stream().filter(user -> healthCodeFilter.test(user.getHealthCode())).iterator();
+        });
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenReturn(mockResponse);
+
+        // Execute
+        UserShard userShard = new UserShard(1, 3);
+        PipelineStage<RequestContext> uploadStage = processor.newUploadStage();
+        processor.processStudy(DATE_STRING, DATE_STRING, STUDY, userShard, uploadStage);
+        uploadStage.finish();
+
+        // Verify we only fetched users in the shard.
+        ArgumentCaptor<FitBitUser> userCaptor = ArgumentCaptor.forClass(FitBitUser.class);
+        verify(mockUserProcessor, atLeastOnce()).fetchEndpointForUser(any(), userCaptor.capture(), any(), any());
+        Set<FitBitUser> expectedUserSet = userList.stream().filter(user -> userShard.containsHealthCode(
+                user.getHealthCode())).collect(Collectors.toSet());
+        assertEquals(ImmutableSet.copyOf(userCaptor.getAllValues()), expectedUserSet);
+        assertTrue(expectedUserSet.size() < userList.size());
+    }
+
+    @Test
+    public void dateRange() throws Exception {
+        // One user, one per-date endpoint and one range endpoint, over 3 days.
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        EndpointSchema mockRangeEndpointSchema = mockEndpointSchema(1);
+        when(mockRangeEndpointSchema.isDateRange()).thenReturn(true);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0, mockRangeEndpointSchema));
+
+        // Each response adds one row for the call date to the endpoint's table.
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenReturn(mockResponse);
+        doAnswer(invocation -> {
+            RequestContext ctx = invocation.getArgumentAt(0, RequestContext.class);
+            EndpointSchema endpointSchema = invocation.getArgumentAt(2, EndpointSchema.class);
+            String date = invocation.getArgumentAt(3, String.class);
+            String tableId = endpointSchema.getEndpointId() + "-table";
+            PopulatedTable table = ctx.getPopulatedTablesById().computeIfAbsent(tableId, key -> new PopulatedTable(
+                    tableId, mock(TableSchema.class)));
+            BiConsumer<PopulatedTable, Map<String, String>> rowSink = getRowSink(invocation);
+            rowSink.accept(table, ImmutableMap.of(Constants.COLUMN_CREATED_DATE, date));
+
+            // Required return value.
+            return null;
+        }).when(mockUserProcessor).processResponseForUser(any(), any(), any(), any(), any(), any());
+
+        // Execute
+        PipelineStage<RequestContext> uploadStage = processor.newUploadStage();
+        processor.processStudy("2017-12-10", "2017-12-12", STUDY, UserShard.ALL, uploadStage);
+        uploadStage.finish();
+
+        // The per-date endpoint is called once per date. The range endpoint is called once.
+        verify(mockUserProcessor).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0),
+                eq("2017-12-10"));
+        verify(mockUserProcessor).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0),
+                eq("2017-12-11"));
+        verify(mockUserProcessor).fetchEndpointForUser(any(), same(user0), same(mockEndpointSchema0),
+                eq("2017-12-12"));
+        verify(mockUserProcessor).fetchEndpointForUser(any(), same(user0), same(mockRangeEndpointSchema),
+                eq("2017-12-10"));
+        verify(mockUserProcessor, times(4)).fetchEndpointForUser(any(), any(), any(), any());
+
+        // All dates are uploaded together, one upload per table.
+        ArgumentCaptor<PopulatedTable> tableCaptor = ArgumentCaptor.forClass(PopulatedTable.class);
+        verify(mockTableProcessor, times(2)).processTable(any(), tableCaptor.capture());
+        for (PopulatedTable onePopulatedTable : tableCaptor.getAllValues()) {
+            Set<String> dateSet = onePopulatedTable.getRowList().stream().map(row -> row.get(
+                    Constants.COLUMN_CREATED_DATE)).collect(Collectors.toSet());
+            if ("endpoint-0-table".equals(onePopulatedTable.getTableId())) {
+                assertEquals(dateSet, ImmutableSet.of("2017-12-10", "2017-12-11", "2017-12-12"));
+            } else {
+                assertEquals(onePopulatedTable.getTableId(), "endpoint-1-table");
+                assertEquals(dateSet, ImmutableSet.of("2017-12-10"));
+            }
+        }
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void uploadOverlapsNextStudy() throws Exception {
+        Study study2 = new Study().identifier("test-study-2");
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(makeUser(0)));
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq("test-study-2"), any())).thenReturn(Iterators.forArray(
+                makeUser(1)));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+
+        // Each study has one table.
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenReturn(mockResponse);
+        doAnswer(invocation -> {
+            RequestContext ctx = invocation.getArgumentAt(0, RequestContext.class);
+            ctx.getPopulatedTablesById().computeIfAbsent("table", key -> new PopulatedTable("table", mock(
+                    TableSchema.class)));
+
+            // Required return value.
+            return null;
+        }).when(mockUserProcessor).processResponseForUser(any(), any(), any(), any(), any(), any());
+
+        // Uploads block until we release them.
+        CountDownLatch uploadLatch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            uploadLatch.await(10, TimeUnit.SECONDS);
+
+            // Required return value.
+            return null;
+        }).when(mockTableProcessor).processTable(any(), any());
+
+        // Execute. Both studies finish fetching while the first study's upload is still blocked.
+        PipelineStage<RequestContext> uploadStage = processor.newUploadStage();
+        processor.processStudy(DATE_STRING, DATE_STRING, STUDY, UserShard.ALL, uploadStage);
+        processor.processStudy(DATE_STRING, DATE_STRING, study2, UserShard.ALL, uploadStage);
+        verify(mockUserProcessor, times(2)).processResponseForUser(any(), any(), any(), any(), any(), any());
+
+        // Temp dirs aren't cleaned up until the uploads finish.
+        assertFalse(fileHelper.isEmpty());
+
+        // Release the uploads and wait for them to finish.
+        uploadLatch.countDown();
+        uploadStage.finish();
+        verify(mockTableProcessor, times(2)).processTable(any(), any());
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void rerunSkipsCompletedEndpoints() throws Exception {
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0),
+                Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenReturn(mockResponse);
+        mockProcessResponse("table-A");
+
+        // Execute twice. The second run skips the endpoint call, since it was already fetched and uploaded.
+        processStudy();
+        processStudy();
+        verify(mockUserProcessor, times(1)).fetchEndpointForUser(any(), any(), any(), any());
+        verify(mockTableProcessor, times(1)).processTable(any(), any());
+        assertTrue(checkpointStore.getCheckpoints(STUDY_ID, DATE_STRING).isEndpointCompleted("health-code-0",
+                "endpoint-0"));
+        assertTrue(checkpointStore.getCheckpoints(STUDY_ID, DATE_STRING).isTableUploaded("health-code-0", "table-A"));
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void rerunAfterTableFailureOnlyUploadsFailedTable() throws Exception {
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0),
+                Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenReturn(mockResponse);
+        mockProcessResponse("table-A", "table-B");
+
+        // table-B fails the first time only. Record how many rows each table upload had.
+        AtomicInteger numTableBCalls = new AtomicInteger();
+        List<String> uploadedRowCountList = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            PopulatedTable table = invocation.getArgumentAt(1, PopulatedTable.class);
+            if ("table-B".equals(table.getTableId()) && numTableBCalls.getAndIncrement() == 0) {
+                throw new RuntimeException("test exception");
+            }
+            uploadedRowCountList.add(table.getTableId() + "=" + table.getRowList().size());
+
+            // Required return value.
+            return null;
+        }).when(mockTableProcessor).processTable(any(), any());
+
+        // First run. table-A uploads and table-B fails, so the endpoint isn't completed.
+        processStudy();
+        assertTrue(checkpointStore.getCheckpoints(STUDY_ID, DATE_STRING).isTableUploaded("health-code-0", "table-A"));
+        assertFalse(checkpointStore.getCheckpoints(STUDY_ID, DATE_STRING).isTableUploaded("health-code-0", "table-B"));
+        assertFalse(checkpointStore.getCheckpoints(STUDY_ID, DATE_STRING).isEndpointCompleted("health-code-0",
+                "endpoint-0"));
+
+        // Second run re-fetches the endpoint, but only table-B gets rows.
+        processStudy();
+        verify(mockUserProcessor, times(2)).fetchEndpointForUser(any(), any(), any(), any());
+        assertTrue(uploadedRowCountList.contains("table-A=1"));
+        assertTrue(uploadedRowCountList.contains("table-A=0"));
+        assertTrue(uploadedRowCountList.contains("table-B=1"));
+        assertEquals(uploadedRowCountList.size(), 3);
+        assertTrue(checkpointStore.getCheckpoints(STUDY_ID, DATE_STRING).isEndpointCompleted("health-code-0",
+                "endpoint-0"));
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void checkpointsAreReadAndWrittenInBulk() throws Exception {
+        CheckpointStore spyCheckpointStore = spy(checkpointStore);
+        processor.setCheckpointStore(spyCheckpointStore);
+
+        FitBitUser user0 = makeUser(0);
+        FitBitUser user1 = makeUser(1);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0,
+                user1));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        EndpointSchema mockEndpointSchema1 = mockEndpointSchema(1);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0, mockEndpointSchema1));
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenReturn(mockResponse);
+        mockProcessResponse("table-A");
+
+        // Execute and verify. Checkpoints are read once for the date, no matter how many users and endpoints there
+        // are, and written once per table and once per endpoint.
+        processStudy();
+        verify(spyCheckpointStore, times(1)).getCheckpoints(STUDY_ID, DATE_STRING);
+        verify(spyCheckpointStore, times(1)).setTableUploaded(eq(STUDY_ID), eq("table-A"), any());
+        verify(spyCheckpointStore, times(1)).setEndpointCompleted(eq(STUDY_ID), eq("endpoint-0"), any());
+        verify(spyCheckpointStore, times(1)).setEndpointCompleted(eq(STUDY_ID), eq("endpoint-1"), any());
+
+        DateCheckpoints checkpoints = checkpointStore.getCheckpoints(STUDY_ID, DATE_STRING);
+        assertTrue(checkpoints.isTableUploaded("health-code-0", "table-A"));
+        assertTrue(checkpoints.isTableUploaded("health-code-1", "table-A"));
+        assertTrue(checkpoints.isEndpointCompleted("health-code-0", "endpoint-0"));
+        assertTrue(checkpoints.isEndpointCompleted("health-code-0", "endpoint-1"));
+        assertTrue(checkpoints.isEndpointCompleted("health-code-1", "endpoint-0"));
+        assertTrue(checkpoints.isEndpointCompleted("health-code-1", "endpoint-1"));
+    }
+
+    @Test
+    public void checkpointStoreErrorsAreNotFatal() throws Exception {
+        CheckpointStore mockCheckpointStore = mock(CheckpointStore.class);
+        when(mockCheckpointStore.getCheckpoints(any(), any())).thenThrow(RuntimeException.class);
+        doThrow(RuntimeException.class).when(mockCheckpointStore).setEndpointCompleted(any(), any(), any());
+        doThrow(RuntimeException.class).when(mockCheckpointStore).setTableUploaded(any(), any(), any());
+        processor.setCheckpointStore(mockCheckpointStore);
+
+        FitBitUser user0 = makeUser(0);
+        when(mockBridgeHelper.getFitBitUsersForStudy(eq(STUDY_ID), any())).thenReturn(Iterators.forArray(user0));
+
+        EndpointSchema mockEndpointSchema0 = mockEndpointSchema(0);
+        processor.setEndpointSchemas(ImmutableList.of(mockEndpointSchema0));
+        when(mockUserProcessor.fetchEndpointForUser(any(), any(), any(), any())).thenReturn(mockResponse);
+        mockProcessResponse("table-A");
+
+        // Execute and verify. The checkpoint store failing means we do all the work.
+        processStudy();
+        verify(mockUserProcessor).fetchEndpointForUser(any(), any(), any(), any());
+        ArgumentCaptor<PopulatedTable> tableCaptor = ArgumentCaptor.forClass(PopulatedTable.class);
+        verify(mockTableProcessor).processTable(any(), tableCaptor.capture());
+        assertEquals(tableCaptor.getValue().getRowList().size(), 1);
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    // Helper method to mock processing a response into one row for each of the given tables.
+    @SuppressWarnings("unchecked")
+    private void mockProcessResponse(String... tableIds) throws Exception {
+        doAnswer(invocation -> {
+            RequestContext ctx = invocation.getArgumentAt(0, RequestContext.class);
+            BiConsumer<PopulatedTable, Map<String, String>> rowSink = getRowSink(invocation);
+            for (String oneTableId : tableIds) {
+                PopulatedTable table = ctx.getPopulatedTablesById().computeIfAbsent(oneTableId,
+                        key -> new PopulatedTable(oneTableId, mock(TableSchema.class)));
+                rowSink.accept(table, ImmutableMap.of("foo", "bar"));
+            }
+
+            // Required return value.
+            return null;
+        }).when(mockUserProcessor).processResponseForUser(any(), any(), any(), any(), any(), any());
+    }
+
+    // Helper method to process the test study and wait for its tables to upload.
+    private void processStudy() {
+        PipelineStage<RequestContext> uploadStage = processor.newUploadStage();
+        processor.processStudy(DATE_STRING, DATE_STRING, STUDY, UserShard.ALL, uploadStage);
+        uploadStage.finish();
+    }
+
     private static FitBitUser makeUser(int idx) {
         return new FitBitUser.Builder().withAccessToken("access-token-" + idx).withHealthCode("health-code-" + idx)
                 .withUserId("user-" + idx).build();
     }
 
+    // Helper method to get the health code filter passed to BridgeHelper.getFitBitUsersForStudy().
+    @SuppressWarnings("unchecked")
+    private static Predicate<String> getHealthCodeFilter(InvocationOnMock invocation) {
+        return invocation.getArgumentAt(1, Predicate.class);
+    }
+
+    // Helper method to get the row sink passed to UserProcessor.processResponseForUser().
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<PopulatedTable, Map<String, String>> getRowSink(InvocationOnMock invocation) {
+        return invocation.getArgumentAt(5, BiConsumer.class);
+    }
+
     private static EndpointSchema mockEndpointSchema(int idx) {
         EndpointSchema mockEndpointSchema = mock(EndpointSchema.class);
         when(mockEndpointSchema.getEndpointId()).thenReturn("endpoint-" + idx);
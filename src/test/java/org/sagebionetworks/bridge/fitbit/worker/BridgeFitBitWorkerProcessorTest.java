@@ -2,6 +2,7 @@ package org.sagebionetworks.bridge.fitbit.worker;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
@@ -11,8 +12,12 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -40,6 +45,9 @@ public class BridgeFitBitWorkerProcessorTest {
 
         // Set rate limit to 1000 so tests aren't bottlenecked by the rate limiter.
         processor.setPerStudyRateLimit(1000.0);
+
+        // Single-threaded, so we can verify calls in order.
+        processor.setNumStudyThreads(1);
     }
 
     // branch coverage
@@ -88,14 +96,14 @@ public class BridgeFitBitWorkerProcessorTest {
         // Spy processStudy(). This is tested elsewhere.
         doAnswer(invocation -> {
             // We throw for study2. We throw a RuntimeException because the iterator can't throw checked exceptions.
-            Study study = invocation.getArgumentAt(1, Study.class);
+            Study study = invocation.getArgumentAt(2, Study.class);
             if ("study2".equals(study.getIdentifier())) {
                 throw new RuntimeException("test exception");
             }
 
             // Requred return value for doAnswer().
             return null;
-        }).when(processor).processStudy(any(), any());
+        }).when(processor).processStudy(any(), any(), any(), any(), any());
 
         // Execute
         ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
@@ -104,8 +112,8 @@ public class BridgeFitBitWorkerProcessorTest {
 
         // Verify call to processStudy().
         ArgumentCaptor<Study> processedStudyCaptor = ArgumentCaptor.forClass(Study.class);
-        verify(processor, times(3)).processStudy(eq("2017-12-11"), processedStudyCaptor
-                .capture());
+        verify(processor, times(3)).processStudy(eq("2017-12-11"), eq("2017-12-11"), processedStudyCaptor.capture(),
+                any(), any());
 
         List<Study> processedStudyList = processedStudyCaptor.getAllValues();
         assertEquals(processedStudyList.size(), 3);
@@ -114,6 +122,56 @@ public class BridgeFitBitWorkerProcessorTest {
         assertEquals(processedStudyList.get(2).getIdentifier(), "study4");
     }
 
+    @Test
+    public void slowStudyDoesntBlockOtherStudies() throws Exception {
+        processor.setNumStudyThreads(2);
+
+        // Mock get study call.
+        Study study1 = new Study().identifier("study1").synapseProjectId("project-1").synapseDataAccessTeamId(1111L)
+                .putOAuthProvidersItem(Constants.FITBIT_VENDOR_ID, new OAuthProvider());
+        Study study2 = new Study().identifier("study2").synapseProjectId("project-2").synapseDataAccessTeamId(2222L)
+                .putOAuthProvidersItem(Constants.FITBIT_VENDOR_ID, new OAuthProvider());
+        Study study3 = new Study().identifier("study3").synapseProjectId("project-3").synapseDataAccessTeamId(3333L)
+                .putOAuthProvidersItem(Constants.FITBIT_VENDOR_ID, new OAuthProvider());
+        when(mockBridgeHelper.getStudy("study1")).thenReturn(study1);
+        when(mockBridgeHelper.getStudy("study2")).thenReturn(study2);
+        when(mockBridgeHelper.getStudy("study3")).thenReturn(study3);
+
+        // study1 is slow. It doesn't finish until study2 and study3 have both finished. If studies were processed
+        // serially, study1 would time out.
+        CountDownLatch otherStudiesLatch = new CountDownLatch(2);
+        AtomicBoolean slowStudyTimedOut = new AtomicBoolean();
+        doAnswer(invocation -> {
+            Study study = invocation.getArgumentAt(2, Study.class);
+            if ("study1".equals(study.getIdentifier())) {
+                slowStudyTimedOut.set(!otherStudiesLatch.await(10, TimeUnit.SECONDS));
+            } else {
+                otherStudiesLatch.countDown();
+            }
+
+            // Required return value for doAnswer().
+            return null;
+        }).when(processor).processStudy(any(), any(), any(), any(), any());
+
+        // Create request.
+        ArrayNode studyWhitelistNode = DefaultObjectMapper.INSTANCE.createArrayNode();
+        studyWhitelistNode.add("study1");
+        studyWhitelistNode.add("study2");
+        studyWhitelistNode.add("study3");
+
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_DATE, "2017-12-11");
+        requestNode.set(BridgeFitBitWorkerProcessor.REQUEST_PARAM_STUDY_WHITELIST, studyWhitelistNode);
+
+        // Execute and verify. accept() only returns after all studies are finished.
+        processor.accept(requestNode);
+        assertFalse(slowStudyTimedOut.get());
+        assertEquals(otherStudiesLatch.getCount(), 0);
+        verify(processor).processStudy(eq("2017-12-11"), eq("2017-12-11"), same(study1), any(), any());
+        verify(processor).processStudy(eq("2017-12-11"), eq("2017-12-11"), same(study2), any(), any());
+        verify(processor).processStudy(eq("2017-12-11"), eq("2017-12-11"), same(study3), any(), any());
+    }
+
     @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
             "studyWhitelist must be an array")
     public void studyWhitelistNotArray() throws Exception {
@@ -143,7 +201,7 @@ public class BridgeFitBitWorkerProcessorTest {
         when(mockBridgeHelper.getStudy("study2")).thenReturn(study2);
 
         // Spy processStudy(). This is tested elsewhere.
-        doNothing().when(processor).processStudy(any(), any());
+        doNothing().when(processor).processStudy(any(), any(), any(), any(), any());
 
         // Create request.
         ArrayNode studyWhitelistNode = DefaultObjectMapper.INSTANCE.createArrayNode();
@@ -157,9 +215,163 @@ public class BridgeFitBitWorkerProcessorTest {
         processor.accept(requestNode);
 
         // Verify only one call to processStudy().
-        verify(processor).processStudy("2017-12-11", study2);
+        verify(processor).processStudy(eq("2017-12-11"), eq("2017-12-11"), same(study2), any(), any());
 
         // Verify we never call Bridge Helper to get the list of studies
         verify(mockBridgeHelper, never()).getAllStudies();
     }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "shardIndex and shardCount must be specified together")
+    public void shardIndexWithoutShardCount() throws Exception {
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_DATE, "2017-12-11");
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_SHARD_INDEX, 0);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "shardIndex and shardCount must be integers")
+    public void shardParamsNotIntegers() throws Exception {
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_DATE, "2017-12-11");
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_SHARD_INDEX, "0");
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_SHARD_COUNT, 2);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "shardIndex must be between 0 and shardCount-1")
+    public void shardIndexOutOfRange() throws Exception {
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_DATE, "2017-12-11");
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_SHARD_INDEX, 2);
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_SHARD_COUNT, 2);
+        processor.accept(requestNode);
+    }
+
+    @Test
+    public void shardNormalCase() throws Exception {
+        Study study2 = new Study().identifier("study2").synapseProjectId("project-2").synapseDataAccessTeamId(2222L)
+                .putOAuthProvidersItem(Constants.FITBIT_VENDOR_ID, new OAuthProvider());
+        when(mockBridgeHelper.getStudy("study2")).thenReturn(study2);
+
+        // Spy processStudy(). This is tested elsewhere.
+        doNothing().when(processor).processStudy(any(), any(), any(), any(), any());
+
+        // Create request.
+        ArrayNode studyWhitelistNode = DefaultObjectMapper.INSTANCE.createArrayNode();
+        studyWhitelistNode.add("study2");
+
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_DATE, "2017-12-11");
+        requestNode.set(BridgeFitBitWorkerProcessor.REQUEST_PARAM_STUDY_WHITELIST, studyWhitelistNode);
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_SHARD_INDEX, 1);
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_SHARD_COUNT, 3);
+
+        // Execute and verify.
+        processor.accept(requestNode);
+
+        ArgumentCaptor<UserShard> userShardCaptor = ArgumentCaptor.forClass(UserShard.class);
+        verify(processor).processStudy(eq("2017-12-11"), eq("2017-12-11"), same(study2),
+                userShardCaptor.capture(), any());
+        assertEquals(userShardCaptor.getValue().getShardIndex(), 1);
+        assertEquals(userShardCaptor.getValue().getShardCount(), 3);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "startDate and endDate must be specified together")
+    public void startDateWithoutEndDate() throws Exception {
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_START_DATE, "2017-12-11");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "date can't be specified with startDate and endDate")
+    public void dateWithDateRange() throws Exception {
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_DATE, "2017-12-11");
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_START_DATE, "2017-12-11");
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_END_DATE, "2017-12-12");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "dates must be in YYYY-MM-DD format")
+    public void malformedDate() throws Exception {
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_DATE, "December 11");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "startDate can't be after endDate")
+    public void startDateAfterEndDate() throws Exception {
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_START_DATE, "2017-12-12");
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_END_DATE, "2017-12-11");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "date must be a string")
+    public void dateNotString() throws Exception {
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_DATE, 20171211);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "startDate and endDate must be strings")
+    public void dateRangeNotStrings() throws Exception {
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_START_DATE, "2017-12-11");
+        requestNode.putObject(BridgeFitBitWorkerProcessor.REQUEST_PARAM_END_DATE);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "date range can't be more than 31 days")
+    public void dateRangeTooLong() throws Exception {
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_START_DATE, "2017-12-01");
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_END_DATE, "2018-01-01");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "date range can't be more than 7 days")
+    public void dateRangeLongerThanConfiguredMax() throws Exception {
+        processor.setMaxDateRangeDays(7);
+
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_START_DATE, "2017-12-01");
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_END_DATE, "2017-12-08");
+        processor.accept(requestNode);
+    }
+
+    @Test
+    public void dateRangeNormalCase() throws Exception {
+        Study study2 = new Study().identifier("study2").synapseProjectId("project-2").synapseDataAccessTeamId(2222L)
+                .putOAuthProvidersItem(Constants.FITBIT_VENDOR_ID, new OAuthProvider());
+        when(mockBridgeHelper.getStudy("study2")).thenReturn(study2);
+
+        // Spy processStudy(). This is tested elsewhere.
+        doNothing().when(processor).processStudy(any(), any(), any(), any(), any());
+
+        // Create request.
+        ArrayNode studyWhitelistNode = DefaultObjectMapper.INSTANCE.createArrayNode();
+        studyWhitelistNode.add("study2");
+
+        ObjectNode requestNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_START_DATE, "2017-12-01");
+        requestNode.put(BridgeFitBitWorkerProcessor.REQUEST_PARAM_END_DATE, "2017-12-31");
+        requestNode.set(BridgeFitBitWorkerProcessor.REQUEST_PARAM_STUDY_WHITELIST, studyWhitelistNode);
+
+        // Execute and verify. The whole date range is processed in a single call to processStudy(). 31 days is the
+        // longest date range allowed by default.
+        processor.accept(requestNode);
+        verify(processor).processStudy(eq("2017-12-01"), eq("2017-12-31"), same(study2), any(), any());
+    }
 }
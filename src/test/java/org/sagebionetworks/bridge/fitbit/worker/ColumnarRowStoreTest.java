@@ -0,0 +1,173 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import org.sagebionetworks.repo.model.table.ColumnType;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.fitbit.schema.ColumnSchema;
+
+public class ColumnarRowStoreTest {
+    private static final ImmutableList<ColumnSchema> COLUMN_LIST = ImmutableList.of(
+            makeColumn("bool", ColumnType.BOOLEAN),
+            makeColumn("date", ColumnType.DATE),
+            makeColumn("double", ColumnType.DOUBLE),
+            makeColumn("int", ColumnType.INTEGER),
+            makeColumn("text", ColumnType.LARGETEXT),
+            makeColumn("str", ColumnType.STRING));
+
+    @Test
+    public void allTypes() {
+        ColumnarRowStore rowStore = new ColumnarRowStore(COLUMN_LIST);
+        assertEquals(rowStore.getNumColumns(), 6);
+        assertEquals(rowStore.getNumRows(), 0);
+
+        rowStore.addRow(new String[] { "true", "1513105011098", "3.14159", "-42", "{\"foo\":[1,2]}", "foo" });
+        rowStore.addRow(new String[] { "false", "0", "0.000000001", "9223372036854775807", "", "foo" });
+        rowStore.addRow(new String[] { null, null, null, null, null, null });
+        assertEquals(rowStore.getNumRows(), 3);
+
+        assertRow(rowStore, 0, "true", "1513105011098", "3.14159", "-42", "{\"foo\":[1,2]}", "foo");
+        assertRow(rowStore, 1, "false", "0", "0.000000001", "9223372036854775807", "", "foo");
+        assertRow(rowStore, 2, null, null, null, null, null, null);
+    }
+
+    @Test
+    public void manyRowsSpanChunks() {
+        ColumnarRowStore rowStore = new ColumnarRowStore(COLUMN_LIST);
+        int numRows = ColumnarRowStore.CHUNK_SIZE * 2 + 1;
+        for (int i = 0; i < numRows; i++) {
+            String value = String.valueOf(i);
+            rowStore.addRow(new String[] { String.valueOf(i % 2 == 0), value, value, value, value,
+                    "str-" + (i % 3) });
+        }
+        assertEquals(rowStore.getNumRows(), numRows);
+
+        for (int i = 0; i < numRows; i++) {
+            String value = String.valueOf(i);
+            assertRow(rowStore, i, String.valueOf(i % 2 == 0), value, value, value, value, "str-" + (i % 3));
+        }
+    }
+
+    @Test
+    public void largeText() {
+        // Values that don't fit in a text chunk get their own chunk. Values after that go in a new chunk.
+        String smallValue = "small \u2764";
+        String largeValue = Strings.repeat("a", 100 * 1024);
+        ColumnarRowStore rowStore = new ColumnarRowStore(ImmutableList.of(makeColumn("text", ColumnType.LARGETEXT)));
+        rowStore.addRow(new String[] { smallValue });
+        rowStore.addRow(new String[] { largeValue });
+        rowStore.addRow(new String[] { smallValue });
+
+        assertEquals(rowStore.getValue(0, 0), smallValue);
+        assertEquals(rowStore.getValue(1, 0), largeValue);
+        assertEquals(rowStore.getValue(2, 0), smallValue);
+    }
+
+    @Test
+    public void invalidValueDoesNotAddRow() {
+        ColumnarRowStore rowStore = new ColumnarRowStore(COLUMN_LIST);
+        try {
+            rowStore.addRow(new String[] { "true", "not a date", null, null, null, null });
+            fail("expected exception");
+        } catch (IllegalArgumentException ex) {
+            assertEquals(ex.getMessage(), "Invalid integer not a date for column date");
+        }
+        try {
+            rowStore.addRow(new String[] { "yes", null, null, null, null, null });
+            fail("expected exception");
+        } catch (IllegalArgumentException ex) {
+            assertEquals(ex.getMessage(), "Invalid boolean yes for column bool");
+        }
+        assertEquals(rowStore.getNumRows(), 0);
+
+        // Row store is still usable.
+        rowStore.addRow(new String[] { "true", null, null, null, null, "foo" });
+        assertRow(rowStore, 0, "true", null, null, null, null, "foo");
+    }
+
+    @Test
+    public void estimatedBytes() {
+        // An empty store only has its empty bitsets.
+        ColumnarRowStore rowStore = new ColumnarRowStore(COLUMN_LIST);
+        assertTrue(rowStore.getEstimatedBytes() < 1024);
+
+        // The first row allocates a chunk for each column.
+        rowStore.addRow(new String[] { "true", "1513105011098", "3.14159", "-42", "{\"foo\":[1,2]}", "foo" });
+        long oneRowBytes = rowStore.getEstimatedBytes();
+        assertTrue(oneRowBytes > ColumnarRowStore.CHUNK_SIZE * Long.BYTES);
+
+        // More rows in the same chunk with a repeated dictionary value only add bitset growth.
+        rowStore.addRow(new String[] { "false", "0", "1", "2", "", "foo" });
+        assertTrue(rowStore.getEstimatedBytes() < oneRowBytes + 64);
+
+        // A new chunk grows the estimate.
+        for (int i = 0; i < ColumnarRowStore.CHUNK_SIZE; i++) {
+            rowStore.addRow(new String[] { null, null, null, null, null, null });
+        }
+        assertTrue(rowStore.getEstimatedBytes() > oneRowBytes + ColumnarRowStore.CHUNK_SIZE * Long.BYTES);
+    }
+
+    @Test
+    public void runLengthColumns() {
+        // The first two columns are run-length encoded. Runs can be null, and values can come back after other runs.
+        ColumnarRowStore rowStore = new ColumnarRowStore(ImmutableList.of(makeColumn("healthCode", ColumnType.STRING),
+                makeColumn("createdDate", ColumnType.STRING), makeColumn("int", ColumnType.INTEGER)), 2);
+        String[][] rows = {
+                { "health-code-0", "2017-12-11", "0" },
+                { "health-code-0", "2017-12-11", "1" },
+                { "health-code-0", "2017-12-12", "2" },
+                { "health-code-1", "2017-12-12", "3" },
+                { null, null, "4" },
+                { null, null, "5" },
+                { "health-code-0", "2017-12-11", "6" },
+        };
+        for (String[] oneRow : rows) {
+            rowStore.addRow(oneRow);
+        }
+        for (int i = 0; i < rows.length; i++) {
+            assertRow(rowStore, i, rows[i]);
+        }
+        long runLengthBytes = rowStore.getRunLengthEstimatedBytes();
+        assertTrue(runLengthBytes > 0);
+
+        // Long runs don't cost anything per row.
+        int numRows = ColumnarRowStore.CHUNK_SIZE * 4;
+        for (int i = 0; i < numRows; i++) {
+            rowStore.addRow(new String[] { "health-code-2", "2017-12-13", String.valueOf(i) });
+        }
+        assertRow(rowStore, rows.length, "health-code-2", "2017-12-13", "0");
+        assertRow(rowStore, rows.length + numRows - 1, "health-code-2", "2017-12-13", String.valueOf(numRows - 1));
+        assertEquals(rowStore.getRunLengthEstimatedBytes(), runLengthBytes);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void wrongNumberOfValues() {
+        new ColumnarRowStore(COLUMN_LIST).addRow(new String[] { "true" });
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void rowOutOfBounds() {
+        new ColumnarRowStore(COLUMN_LIST).getValue(0, 0);
+    }
+
+    private static void assertRow(ColumnarRowStore rowStore, int rowIndex, String... expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] == null) {
+                assertNull(rowStore.getValue(rowIndex, i));
+            } else {
+                assertEquals(rowStore.getValue(rowIndex, i), expected[i]);
+            }
+        }
+    }
+
+    private static ColumnSchema makeColumn(String columnId, ColumnType columnType) {
+        return new ColumnSchema.Builder().withColumnId(columnId).withColumnType(columnType).withMaxLength(100)
+                .build();
+    }
+}
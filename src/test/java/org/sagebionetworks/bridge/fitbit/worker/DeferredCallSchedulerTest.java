@@ -0,0 +1,169 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.fitbit.bridge.FitBitUser;
+import org.sagebionetworks.bridge.fitbit.schema.EndpointSchema;
+
+public class DeferredCallSchedulerTest {
+    private static final String DATE_STRING = "2017-12-12";
+    private static final long MAX_DEFERRAL_MILLIS = 60_000;
+
+    @Test
+    public void dueCallIsRetried() {
+        List<DeferredEndpointCall> retriedList = Collections.synchronizedList(new ArrayList<>());
+        DeferredCallScheduler scheduler = new DeferredCallScheduler("test-deferred", 1, 10, false,
+                MAX_DEFERRAL_MILLIS, (deferredCall, handlerScheduler) -> {
+                    retriedList.add(deferredCall);
+                    return CompletableFuture.completedFuture(null);
+                });
+
+        DeferredEndpointCall deferredCall = makeCall(System.currentTimeMillis());
+        assertTrue(scheduler.schedule(deferredCall));
+        scheduler.finish();
+
+        assertEquals(retriedList, ImmutableList.of(deferredCall));
+        assertEquals(scheduler.getMetricsString(), "deferredCalls[scheduled=1, abandoned=0, pending=0]");
+    }
+
+    @Test
+    public void finishWaitsForCallsThatArentDueYet() {
+        List<DeferredEndpointCall> retriedList = Collections.synchronizedList(new ArrayList<>());
+        DeferredCallScheduler scheduler = new DeferredCallScheduler("test-deferred", 1, 10, false,
+                MAX_DEFERRAL_MILLIS, (deferredCall, handlerScheduler) -> {
+                    retriedList.add(deferredCall);
+                    return CompletableFuture.completedFuture(null);
+                });
+
+        long notBeforeMillis = System.currentTimeMillis() + 200;
+        DeferredEndpointCall deferredCall = makeCall(notBeforeMillis);
+        assertTrue(scheduler.schedule(deferredCall));
+        scheduler.finish();
+
+        assertEquals(retriedList, ImmutableList.of(deferredCall));
+        assertTrue(System.currentTimeMillis() >= notBeforeMillis);
+    }
+
+    @Test
+    public void finishWaitsForRetriesThatCompleteLater() {
+        // The retry completes on another thread, after the handler returns.
+        AtomicBoolean retryCompleted = new AtomicBoolean();
+        DeferredCallScheduler scheduler = new DeferredCallScheduler("test-deferred", 1, 10, false,
+                MAX_DEFERRAL_MILLIS, (deferredCall, handlerScheduler) -> CompletableFuture.runAsync(() -> {
+                    Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+                    retryCompleted.set(true);
+                }));
+        assertTrue(scheduler.schedule(makeCall(System.currentTimeMillis())));
+        scheduler.finish();
+
+        assertTrue(retryCompleted.get());
+        assertEquals(scheduler.getMetricsString(), "deferredCalls[scheduled=1, abandoned=0, pending=0]");
+    }
+
+    @Test
+    public void callTooFarAwayIsDropped() {
+        List<DeferredEndpointCall> retriedList = Collections.synchronizedList(new ArrayList<>());
+        DeferredCallScheduler scheduler = new DeferredCallScheduler("test-deferred", 1, 10, false,
+                MAX_DEFERRAL_MILLIS, (deferredCall, handlerScheduler) -> {
+                    retriedList.add(deferredCall);
+                    return CompletableFuture.completedFuture(null);
+                });
+
+        assertFalse(scheduler.schedule(makeCall(System.currentTimeMillis() + MAX_DEFERRAL_MILLIS * 2)));
+        scheduler.finish();
+
+        assertTrue(retriedList.isEmpty());
+        assertEquals(scheduler.getMetricsString(), "deferredCalls[scheduled=0, abandoned=1, pending=0]");
+    }
+
+    @Test
+    public void handlerExceptionStillFinishesCall() {
+        DeferredCallScheduler scheduler = new DeferredCallScheduler("test-deferred", 1, 10, false,
+                MAX_DEFERRAL_MILLIS, (deferredCall, handlerScheduler) -> {
+                    throw new RuntimeException("test exception");
+                });
+        assertTrue(scheduler.schedule(makeCall(System.currentTimeMillis())));
+
+        // If the failed call weren't finished, this would block forever.
+        scheduler.finish();
+        assertEquals(scheduler.getStage().getNumProcessed(), 1);
+    }
+
+    @Test
+    public void callsScheduledWhileFinishingAreRetried() {
+        // The first call schedules a second call while the scheduler is finishing.
+        List<String> retriedDateList = Collections.synchronizedList(new ArrayList<>());
+        DeferredCallScheduler scheduler = new DeferredCallScheduler("test-deferred", 1, 10, false,
+                MAX_DEFERRAL_MILLIS, (deferredCall, handlerScheduler) -> {
+                    retriedDateList.add(deferredCall.getDate());
+                    if (DATE_STRING.equals(deferredCall.getDate())) {
+                        handlerScheduler.schedule(new DeferredEndpointCall(deferredCall.getUser(),
+                                deferredCall.getEndpointSchema(), "2017-12-13", System.currentTimeMillis() + 100));
+                    }
+                    return CompletableFuture.completedFuture(null);
+                });
+        assertTrue(scheduler.schedule(makeCall(System.currentTimeMillis())));
+        scheduler.finish();
+
+        assertEquals(ImmutableSet.copyOf(retriedDateList), ImmutableSet.of(DATE_STRING, "2017-12-13"));
+    }
+
+    @Test
+    public void callDeferredAgainIsRetried() {
+        List<DeferredEndpointCall> retriedList = Collections.synchronizedList(new ArrayList<>());
+        DeferredCallScheduler scheduler = new DeferredCallScheduler("test-deferred", 1, 10, false,
+                MAX_DEFERRAL_MILLIS, (deferredCall, handlerScheduler) -> {
+                    retriedList.add(deferredCall);
+                    if (retriedList.size() == 1) {
+                        assertTrue(handlerScheduler.schedule(new DeferredEndpointCall(deferredCall,
+                                System.currentTimeMillis() + 100)));
+                    }
+                    return CompletableFuture.completedFuture(null);
+                });
+        DeferredEndpointCall deferredCall = makeCall(System.currentTimeMillis());
+        assertTrue(scheduler.schedule(deferredCall));
+        scheduler.finish();
+
+        assertEquals(retriedList.size(), 2);
+        assertEquals(retriedList.get(1).getDate(), DATE_STRING);
+        assertEquals(retriedList.get(1).getFirstDeferredMillis(), deferredCall.getFirstDeferredMillis());
+        assertEquals(scheduler.getMetricsString(), "deferredCalls[scheduled=2, abandoned=0, pending=0]");
+    }
+
+    @Test
+    public void callDeferredPastMaxDeferralIsDropped() {
+        DeferredCallScheduler scheduler = new DeferredCallScheduler("test-deferred", 1, 10, false,
+                MAX_DEFERRAL_MILLIS,
+                (deferredCall, handlerScheduler) -> CompletableFuture.completedFuture(null));
+
+        // Each deferral is short, but together they add up to more than the max deferral since the first one.
+        DeferredEndpointCall firstCall = makeCall(System.currentTimeMillis());
+        DeferredEndpointCall laterCall = new DeferredEndpointCall(new DeferredEndpointCall(firstCall,
+                firstCall.getFirstDeferredMillis() + MAX_DEFERRAL_MILLIS), firstCall.getFirstDeferredMillis() +
+                MAX_DEFERRAL_MILLIS + 1);
+        assertFalse(scheduler.schedule(laterCall));
+        scheduler.finish();
+        assertEquals(scheduler.getMetricsString(), "deferredCalls[scheduled=0, abandoned=1, pending=0]");
+    }
+
+    private static DeferredEndpointCall makeCall(long notBeforeMillis) {
+        FitBitUser user = new FitBitUser.Builder().withAccessToken("access-token").withHealthCode("health-code")
+                .withUserId("user-id").build();
+        return new DeferredEndpointCall(user, mock(EndpointSchema.class), DATE_STRING, notBeforeMillis);
+    }
+}
@@ -0,0 +1,173 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+public class PipelineStageTest {
+    @Test
+    public void processesAllItems() {
+        List<Integer> processedList = Collections.synchronizedList(new ArrayList<>());
+        PipelineStage<Integer> stage = new PipelineStage<>("test-stage", 1, 10, false, processedList::add);
+        for (int i = 0; i < 5; i++) {
+            stage.put(i);
+        }
+        stage.finish();
+
+        // Single worker, so items are processed in order.
+        assertEquals(processedList, ImmutableList.of(0, 1, 2, 3, 4));
+        assertEquals(stage.getNumProcessed(), 5);
+        assertEquals(stage.getQueueDepth(), 0);
+    }
+
+    @Test
+    public void finishWithNoItems() {
+        PipelineStage<Integer> stage = new PipelineStage<>("test-stage", 2, 10, false, item -> {});
+        stage.finish();
+        assertEquals(stage.getNumProcessed(), 0);
+        assertEquals(stage.getMaxQueueDepth(), 0);
+    }
+
+    @Test
+    public void handlerExceptionDoesntStopStage() {
+        List<Integer> processedList = Collections.synchronizedList(new ArrayList<>());
+        PipelineStage<Integer> stage = new PipelineStage<>("test-stage", 1, 10, false, item -> {
+            if (item == 1) {
+                throw new RuntimeException("test exception");
+            }
+            processedList.add(item);
+        });
+        stage.put(0);
+        stage.put(1);
+        stage.put(2);
+        stage.finish();
+
+        assertEquals(processedList, ImmutableList.of(0, 2));
+        assertEquals(stage.getNumProcessed(), 3);
+    }
+
+    @Test
+    public void handlerErrorDoesntStopStage() {
+        // Use a single worker with a queue of 1, so if the worker died, the producer would block forever.
+        List<Integer> processedList = Collections.synchronizedList(new ArrayList<>());
+        PipelineStage<Integer> stage = new PipelineStage<>("test-stage", 1, 1, false, item -> {
+            if (item == 1) {
+                throw new AssertionError("test error");
+            }
+            processedList.add(item);
+        });
+        for (int i = 0; i < 5; i++) {
+            stage.put(i);
+        }
+        stage.finish();
+
+        assertEquals(processedList, ImmutableList.of(0, 2, 3, 4));
+        assertEquals(stage.getNumProcessed(), 5);
+    }
+
+    @Test
+    public void interruptDoesntStopWorker() {
+        // The handler interrupts its own thread, which used to make the worker exit on its next poll.
+        List<Integer> processedList = Collections.synchronizedList(new ArrayList<>());
+        PipelineStage<Integer> stage = new PipelineStage<>("test-stage", 1, 1, false, item -> {
+            if (item == 1) {
+                Thread.currentThread().interrupt();
+            }
+            processedList.add(item);
+        });
+        for (int i = 0; i < 5; i++) {
+            stage.put(i);
+        }
+        stage.finish();
+
+        assertEquals(processedList, ImmutableList.of(0, 1, 2, 3, 4));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp =
+            "Pipeline stage test-stage has no workers left")
+    public void putWithNoWorkersLeftFailsFast() {
+        // After finish(), the workers are gone. The first item fills the queue, and the second can never be taken.
+        PipelineStage<Integer> stage = new PipelineStage<>("test-stage", 1, 1, false, item -> {});
+        stage.finish();
+        stage.put(0);
+        stage.put(1);
+    }
+
+    @Test
+    public void workersRunConcurrently() throws Exception {
+        // Each item waits for the other item to start. If the workers ran serially, this would time out.
+        CountDownLatch startedLatch = new CountDownLatch(2);
+        AtomicInteger numTimeouts = new AtomicInteger();
+        PipelineStage<Integer> stage = new PipelineStage<>("test-stage", 2, 10, false, item -> {
+            startedLatch.countDown();
+            try {
+                if (!startedLatch.await(10, TimeUnit.SECONDS)) {
+                    numTimeouts.incrementAndGet();
+                }
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        stage.put(0);
+        stage.put(1);
+        stage.finish();
+
+        assertEquals(numTimeouts.get(), 0);
+        assertEquals(stage.getNumProcessed(), 2);
+    }
+
+    @Test
+    public void boundedQueueAppliesBackPressure() throws Exception {
+        // Block the worker, so items pile up in the queue.
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        PipelineStage<Integer> stage = new PipelineStage<>("test-stage", 1, 2, false, item -> {
+            try {
+                releaseLatch.await();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+
+        // Producer puts 5 items. The worker holds 1 and the queue holds 2, so the producer blocks on the 4th item.
+        AtomicInteger numPut = new AtomicInteger();
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 5; i++) {
+                stage.put(i);
+                numPut.incrementAndGet();
+            }
+        });
+        producer.start();
+        Thread.sleep(500);
+        assertTrue(numPut.get() <= 3);
+        assertEquals(stage.getMaxQueueDepth(), 2);
+
+        // Release the worker and finish.
+        releaseLatch.countDown();
+        producer.join();
+        stage.finish();
+        assertEquals(numPut.get(), 5);
+        assertEquals(stage.getNumProcessed(), 5);
+    }
+
+    @Test
+    public void metricsString() {
+        PipelineStage<Integer> stage = new PipelineStage<>("test-stage", 3, 10, false, item -> {});
+        stage.put(0);
+        stage.finish();
+        // Max queue depth depends on whether a worker took the item before we measured the queue.
+        String metricsString = stage.getMetricsString();
+        assertTrue(metricsString.startsWith("test-stage[parallelism=3, queueDepth=0, maxQueueDepth="),
+                metricsString);
+        assertTrue(metricsString.endsWith(", processed=1]"), metricsString);
+        assertEquals(stage.getName(), "test-stage");
+    }
+}
@@ -0,0 +1,148 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.sagebionetworks.repo.model.table.ColumnType;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.fitbit.schema.ColumnSchema;
+import org.sagebionetworks.bridge.fitbit.schema.TableSchema;
+
+public class TableMemoryBudgetTest {
+    private static final String COLUMN_ID = "my-column";
+    private static final String DATE_STRING = "2017-12-11";
+    private static final String HEALTH_CODE = "my-health-code";
+
+    // A map entry and a String for each of healthCode and createdDate.
+    private static final long EXPECTED_COMMON_COLUMN_ROW_BYTES = 2 * (48 + 40) + (HEALTH_CODE.length() +
+            DATE_STRING.length()) * Character.BYTES;
+
+    private static final TableSchema TABLE_SCHEMA = new TableSchema.Builder().withTableKey("table-key")
+            .withColumns(ImmutableList.of(new ColumnSchema.Builder().withColumnId(COLUMN_ID)
+                    .withColumnType(ColumnType.STRING).withMaxLength(100).build())).build();
+
+    private InMemoryFileHelper fileHelper;
+    private File tmpDir;
+
+    @BeforeMethod
+    public void setup() {
+        fileHelper = new InMemoryFileHelper();
+        tmpDir = fileHelper.createTempDir();
+    }
+
+    @Test
+    public void underBudget() throws Exception {
+        PopulatedTable table = makeTable("table", 10);
+        TableMemoryBudget budget = new TableMemoryBudget(Long.MAX_VALUE, fileHelper, tmpDir);
+        budget.enforce(ImmutableList.of(table));
+
+        assertEquals(budget.getNumSpills(), 0);
+        assertTrue(table.getSpilledSegmentList().isEmpty());
+        assertEquals(table.getRowList().get(9).get(COLUMN_ID), "value-9");
+    }
+
+    @Test
+    public void overBudgetSpillsLargestTable() throws Exception {
+        // The large table spans more chunks, so it's the only one that needs to spill.
+        PopulatedTable smallTable = makeTable("small-table", 10);
+        PopulatedTable largeTable = makeTable("large-table", ColumnarRowStore.CHUNK_SIZE * 3);
+        long budgetBytes = smallTable.getEstimatedMemoryBytes() + 1;
+        TableMemoryBudget budget = new TableMemoryBudget(budgetBytes, fileHelper, tmpDir);
+        budget.enforce(ImmutableList.of(smallTable, largeTable));
+
+        assertEquals(budget.getNumSpills(), 1);
+        assertTrue(smallTable.getSpilledSegmentList().isEmpty());
+        assertTrue(largeTable.getEstimatedMemoryBytes() < budgetBytes);
+
+        // Spilled rows still count. New rows go after the spilled rows.
+        assertEquals(largeTable.getNumRows(), ColumnarRowStore.CHUNK_SIZE * 3);
+        addRow(largeTable, "new-value");
+        assertEquals(largeTable.getNumRows(), ColumnarRowStore.CHUNK_SIZE * 3 + 1);
+        assertEquals(largeTable.getRowList().get(ColumnarRowStore.CHUNK_SIZE * 3).get(COLUMN_ID), "new-value");
+        try {
+            largeTable.getRowList().get(0);
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            // expected exception
+        }
+
+        // The segment is the spilled rows, as a gzipped TSV without headers.
+        List<File> segmentList = largeTable.getSpilledSegmentList();
+        assertEquals(segmentList.size(), 1);
+        assertEquals(segmentList.get(0).getParentFile(), tmpDir);
+        String[] segmentLines = readSegment(segmentList.get(0)).split("\n");
+        assertEquals(segmentLines.length, ColumnarRowStore.CHUNK_SIZE * 3);
+        assertEquals(segmentLines[0], HEALTH_CODE + '\t' + DATE_STRING + "\tvalue-0");
+        assertEquals(segmentLines[segmentLines.length - 1], HEALTH_CODE + '\t' + DATE_STRING + "\tvalue-" +
+                (ColumnarRowStore.CHUNK_SIZE * 3 - 1));
+    }
+
+    @Test
+    public void streamedTablesAreNotSpilled() throws Exception {
+        File tsvFile = fileHelper.newFile(tmpDir, "streamed.tsv");
+        PopulatedTable streamedTable = new PopulatedTable("streamed", TABLE_SCHEMA, tsvFile, fileHelper.getWriter(
+                tsvFile));
+        addRow(streamedTable, "foo");
+
+        TableMemoryBudget budget = new TableMemoryBudget(0, fileHelper, tmpDir);
+        budget.enforce(ImmutableList.of(streamedTable));
+        assertEquals(budget.getNumSpills(), 0);
+        streamedTable.closeTsvWriter();
+
+        // Streamed rows don't keep the common columns at all.
+        assertEquals(streamedTable.getCommonColumnSavedBytes(), EXPECTED_COMMON_COLUMN_ROW_BYTES);
+    }
+
+    @Test
+    public void commonColumnSavingsIncludeSpilledRows() throws Exception {
+        // A long run of rows from one user saves nearly all of the per-row map entries.
+        int numRows = ColumnarRowStore.CHUNK_SIZE * 3;
+        PopulatedTable table = makeTable("table", numRows);
+        long savedBytes = table.getCommonColumnSavedBytes();
+        assertTrue(savedBytes > (numRows - 10) * EXPECTED_COMMON_COLUMN_ROW_BYTES);
+        assertTrue(savedBytes < numRows * EXPECTED_COMMON_COLUMN_ROW_BYTES);
+
+        // Spilling the rows doesn't lose their savings.
+        TableMemoryBudget budget = new TableMemoryBudget(0, fileHelper, tmpDir);
+        budget.enforce(ImmutableList.of(table));
+        assertEquals(budget.getNumSpills(), 1);
+        assertTrue(table.getCommonColumnSavedBytes() >= savedBytes);
+
+        // New rows add to the savings.
+        addRow(table, "new-value");
+        assertTrue(table.getCommonColumnSavedBytes() > savedBytes);
+    }
+
+    private String readSegment(File segmentFile) throws IOException {
+        try (InputStream segmentInputStream = new GZIPInputStream(fileHelper.getInputStream(segmentFile))) {
+            return new String(ByteStreams.toByteArray(segmentInputStream), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static PopulatedTable makeTable(String tableId, int numRows) {
+        PopulatedTable table = new PopulatedTable(tableId, TABLE_SCHEMA);
+        for (int i = 0; i < numRows; i++) {
+            addRow(table, "value-" + i);
+        }
+        return table;
+    }
+
+    private static void addRow(PopulatedTable table, String value) {
+        table.addRow(ImmutableMap.of(Constants.COLUMN_HEALTH_CODE, HEALTH_CODE, Constants.COLUMN_CREATED_DATE,
+                DATE_STRING, COLUMN_ID, value));
+    }
+}
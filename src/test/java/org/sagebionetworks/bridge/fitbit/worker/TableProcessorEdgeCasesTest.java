@@ -53,7 +53,7 @@ public class TableProcessorEdgeCasesTest {
         processor.setSynapseHelper(mockSynapseHelper);
 
         // Make request context
-        ctx = new RequestContext(DATE_STRING, STUDY, inMemoryFileHelper.createTempDir());
+        ctx = new RequestContext(DATE_STRING, DATE_STRING, STUDY, inMemoryFileHelper.createTempDir());
     }
 
     // branch coverage
@@ -10,6 +10,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.File;
 import java.util.List;
@@ -102,7 +103,7 @@ public class TableProcessorTest {
 
         // Make request context
         tmpDir = inMemoryFileHelper.createTempDir();
-        ctx = new RequestContext(DATE_STRING, STUDY, tmpDir);
+        ctx = new RequestContext(DATE_STRING, DATE_STRING, STUDY, tmpDir);
 
         // Make populated table
         populatedTable = new PopulatedTable(TABLE_ID, TABLE_SCHEMA);
@@ -151,6 +152,59 @@ public class TableProcessorTest {
         createTableTest();
     }
 
+    @Test
+    public void spilledRowsAreMerged() throws Exception {
+        // Spill the first two rows to a segment. The last row stays in memory.
+        populatedTable = new PopulatedTable(TABLE_ID, TABLE_SCHEMA);
+        addRow("foo");
+        addRow("bar");
+        File segmentFile = inMemoryFileHelper.newFile(tmpDir, TABLE_ID + ".spill-0.tsv.gz");
+        assertEquals(populatedTable.spillRows(segmentFile, inMemoryFileHelper.getOutputStream(segmentFile)), 2);
+        addRow("baz");
+        assertEquals(populatedTable.getNumRows(), 3);
+
+        // Execute and validate. Rows are in order, and the segment is cleaned up.
+        processor.processTable(ctx, populatedTable);
+        validateTsv();
+        validateCleanFileSystem();
+    }
+
+    @Test
+    public void streamedTsv() throws Exception {
+        // Stream the rows to a TSV in the temp dir.
+        File tsvFile = inMemoryFileHelper.newFile(tmpDir, TABLE_ID + ".tsv");
+        populatedTable = new PopulatedTable(TABLE_ID, TABLE_SCHEMA, tsvFile, inMemoryFileHelper.getWriter(tsvFile));
+        addRow("foo");
+        addRow("bar");
+        addRow("baz");
+        assertEquals(populatedTable.getNumRows(), 3);
+
+        // Execute and validate. The streamed TSV is uploaded as is.
+        processor.processTable(ctx, populatedTable);
+        validateTsv();
+        validateCleanFileSystem();
+        verify(mockSynapseHelper).uploadTsvFileToTable(SYNAPSE_TABLE_ID, tsvFile);
+
+        // Can't add rows after the TSV is closed.
+        try {
+            addRow("qux");
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void streamedTsvWithNoRows() throws Exception {
+        File tsvFile = inMemoryFileHelper.newFile(tmpDir, TABLE_ID + ".tsv");
+        populatedTable = new PopulatedTable(TABLE_ID, TABLE_SCHEMA, tsvFile, inMemoryFileHelper.getWriter(tsvFile));
+
+        // Execute and validate. Nothing is uploaded, and the TSV is cleaned up.
+        processor.processTable(ctx, populatedTable);
+        validateCleanFileSystem();
+        verify(mockSynapseHelper, never()).uploadTsvFileToTable(any(), any());
+    }
+
     private void createTableTest() throws Exception {
         // Execute and validate
         processor.processTable(ctx, populatedTable);
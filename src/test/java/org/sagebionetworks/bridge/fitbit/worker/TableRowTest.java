@@ -0,0 +1,51 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.sagebionetworks.repo.model.table.ColumnType;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.fitbit.schema.ColumnSchema;
+import org.sagebionetworks.bridge.fitbit.schema.TableRowExtractor;
+import org.sagebionetworks.bridge.fitbit.schema.TableSchema;
+
+public class TableRowTest {
+    private static final TableRowExtractor ROW_EXTRACTOR = new TableSchema.Builder().withTableKey("my-table")
+            .withColumns(ImmutableList.of(
+                    new ColumnSchema.Builder().withColumnId("foo").withColumnType(ColumnType.INTEGER).build(),
+                    new ColumnSchema.Builder().withColumnId("bar").withColumnType(ColumnType.INTEGER).build(),
+                    new ColumnSchema.Builder().withColumnId("baz").withColumnType(ColumnType.INTEGER).build()))
+            .build().getRowExtractor();
+
+    @Test
+    public void mapView() {
+        TableRow row = new TableRow(ROW_EXTRACTOR, "my-health-code", "2017-12-12", new String[] { "1", null, "3" });
+        assertEquals(row.getHealthCode(), "my-health-code");
+        assertEquals(row.getCreatedDate(), "2017-12-12");
+        assertEquals(row.getValue(0), "1");
+        assertNull(row.getValue(1));
+
+        // Null values are absent from the map.
+        assertEquals(row.size(), 4);
+        assertEquals(row.get(Constants.COLUMN_HEALTH_CODE), "my-health-code");
+        assertEquals(row.get(Constants.COLUMN_CREATED_DATE), "2017-12-12");
+        assertEquals(row.get("foo"), "1");
+        assertNull(row.get("bar"));
+        assertFalse(row.containsKey("bar"));
+        assertTrue(row.containsKey("baz"));
+        assertNull(row.get("wrong"));
+        assertEquals(row, ImmutableMap.of(Constants.COLUMN_HEALTH_CODE, "my-health-code",
+                Constants.COLUMN_CREATED_DATE, "2017-12-12", "foo", "1", "baz", "3"));
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void unmodifiable() {
+        TableRow row = new TableRow(ROW_EXTRACTOR, "my-health-code", "2017-12-12", new String[3]);
+        row.put("foo", "1");
+    }
+}
@@ -0,0 +1,116 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableSet;
+import org.sagebionetworks.repo.model.file.FileHandle;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.fitbit.bridge.FitBitUser;
+import org.sagebionetworks.bridge.fitbit.config.SpringConfig;
+import org.sagebionetworks.bridge.fitbit.schema.EndpointSchema;
+import org.sagebionetworks.bridge.fitbit.webapi.CircuitBreaker;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitHttpClient;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitStubServer;
+import org.sagebionetworks.bridge.fitbit.webapi.InvalidTokenException;
+import org.sagebionetworks.bridge.fitbit.webapi.RateLimitTracker;
+import org.sagebionetworks.bridge.fitbit.webapi.ResponseCache;
+import org.sagebionetworks.bridge.rest.model.Study;
+import org.sagebionetworks.bridge.synapse.SynapseHelper;
+
+/** Runs the User Processor with the real endpoint schemas against the FitBit stub server. */
+public class UserProcessorStubServerTest {
+    private static final String DATE_STRING = "2017-12-12";
+    private static final Study STUDY = new Study().identifier("my-study");
+
+    private RequestContext ctx;
+    private List<EndpointSchema> endpointSchemaList;
+    private FitBitHttpClient httpClient;
+    private UserProcessor processor;
+    private FitBitStubServer stubServer;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        stubServer = new FitBitStubServer();
+        stubServer.setHeartRateSamples(600);
+        httpClient = new FitBitHttpClient();
+        endpointSchemaList = new SpringConfig().endpointSchemas();
+
+        InMemoryFileHelper fileHelper = new InMemoryFileHelper();
+        File tmpDir = fileHelper.createTempDir();
+        ctx = new RequestContext(DATE_STRING, DATE_STRING, STUDY, tmpDir);
+
+        // Intraday data is uploaded as a file handle.
+        FileHandle mockFileHandle = mock(FileHandle.class);
+        when(mockFileHandle.getId()).thenReturn("my-file-handle");
+        SynapseHelper mockSynapseHelper = mock(SynapseHelper.class);
+        when(mockSynapseHelper.createFileHandleWithRetry(any())).thenReturn(mockFileHandle);
+
+        // Spy processor so we can verify that there are no warnings.
+        processor = spy(new UserProcessor());
+        processor.setCircuitBreaker(new CircuitBreaker());
+        processor.setFileHelper(fileHelper);
+        processor.setFitBitApiClient(stubServer.newApiClient(httpClient));
+        processor.setRateLimitTracker(new RateLimitTracker());
+        processor.setResponseCache(new ResponseCache());
+        processor.setSynapseHelper(mockSynapseHelper);
+    }
+
+    @AfterMethod
+    public void cleanup() throws Exception {
+        httpClient.close();
+        stubServer.close();
+    }
+
+    @Test
+    public void allEndpoints() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            FitBitUser user = makeUser(i);
+            for (EndpointSchema oneEndpointSchema : endpointSchemaList) {
+                processor.processEndpointForUser(ctx, user, oneEndpointSchema, DATE_STRING);
+            }
+        }
+        assertEquals(stubServer.getNumRequests(), 3 * endpointSchemaList.size());
+
+        // Each user has one row in each table.
+        Map<String, PopulatedTable> populatedTablesById = ctx.getPopulatedTablesById();
+        assertEquals(populatedTablesById.keySet(), ImmutableSet.of("DailyActivitySummary.activities",
+                "DailyActivitySummary.summary", "HeartRate.activities-heart", "HeartRate.activities-heart-intraday"));
+        for (PopulatedTable onePopulatedTable : populatedTablesById.values()) {
+            assertEquals(onePopulatedTable.getRowList().size(), 3, onePopulatedTable.getTableId());
+        }
+
+        // The stub's payloads match the schema. Only ignored keys are skipped.
+        verify(processor, never()).warnWrapper(any());
+    }
+
+    @Test
+    public void invalidToken() throws Exception {
+        stubServer.addInvalidAccessToken("access-token-0");
+        try {
+            processor.processEndpointForUser(ctx, makeUser(0), endpointSchemaList.get(0), DATE_STRING);
+            fail("expected exception");
+        } catch (InvalidTokenException ex) {
+            assertEquals(ex.getStatusCode(), 401);
+        }
+    }
+
+    private static FitBitUser makeUser(int idx) {
+        return new FitBitUser.Builder().withAccessToken("access-token-" + idx).withHealthCode("health-code-" + idx)
+                .withUserId("user-" + idx).build();
+    }
+}
@@ -1,20 +1,33 @@
 package org.sagebionetworks.bridge.fitbit.worker;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPOutputStream;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.BooleanNode;
@@ -27,6 +40,9 @@ import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import org.apache.http.client.HttpResponseException;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 import org.mockito.ArgumentCaptor;
 import org.sagebionetworks.repo.model.file.FileHandle;
 import org.sagebionetworks.repo.model.table.ColumnType;
@@ -40,6 +56,15 @@ import org.sagebionetworks.bridge.fitbit.schema.ColumnSchema;
 import org.sagebionetworks.bridge.fitbit.schema.EndpointSchema;
 import org.sagebionetworks.bridge.fitbit.schema.TableSchema;
 import org.sagebionetworks.bridge.fitbit.schema.UrlParameterType;
+import org.sagebionetworks.bridge.fitbit.webapi.CircuitBreaker;
+import org.sagebionetworks.bridge.fitbit.webapi.CircuitOpenException;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitApiClient;
+import org.sagebionetworks.bridge.fitbit.webapi.FitBitResponse;
+import org.sagebionetworks.bridge.fitbit.webapi.InvalidTokenException;
+import org.sagebionetworks.bridge.fitbit.webapi.RateLimitTracker;
+import org.sagebionetworks.bridge.fitbit.webapi.ResponseCache;
+import org.sagebionetworks.bridge.fitbit.webapi.RetryableResponseException;
+import org.sagebionetworks.bridge.fitbit.webapi.UserRateLimitedException;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.model.Study;
 import org.sagebionetworks.bridge.synapse.SynapseHelper;
@@ -71,6 +96,8 @@ public class UserProcessorTest {
     private static final ColumnSchema UNSUPPORTED_COLUMN = new ColumnSchema.Builder().withColumnId(COLUMN_ID)
             .withColumnType(ColumnType.LINK).build();
 
+    private static final long MOCK_NOW_MILLIS = DateTime.parse("2017-12-12T18:56:51.098Z").getMillis();
+
     private static final String STUDY_ID = "my-study";
     private static final Study STUDY = new Study().identifier(STUDY_ID);
 
@@ -95,17 +122,24 @@ public class UserProcessorTest {
                 .withTables(ImmutableList.of(TABLE_SCHEMA)).build();
     }
 
+    private CircuitBreaker circuitBreaker;
     private RequestContext ctx;
     private InMemoryFileHelper inMemoryFileHelper;
     private byte[] uploadedFileBytes;
+    private FitBitApiClient mockHttpClient;
+    private Map<String, String> mockHttpHeaders;
     private String mockHttpResponse;
+    private int mockHttpStatusCode;
+    private RateLimitTracker rateLimitTracker;
     private SynapseHelper mockSynapseHelper;
     private UserProcessor processor;
 
     @BeforeMethod
     public void setup() throws Exception {
         // Reset test params, because sometimes TestNG doesn't.
+        mockHttpHeaders = ImmutableMap.of();
         mockHttpResponse = null;
+        mockHttpStatusCode = 200;
         uploadedFileBytes = null;
 
         // Create in-memory file helper with temp dir.
@@ -115,17 +149,30 @@ public class UserProcessorTest {
         // Mock Synapse Helper.
         mockSynapseHelper = mock(SynapseHelper.class);
 
-        // Spy processor so we can mock out the rest call.
+        // Mock HTTP client. Use a doAnswer(), so the tests can specify mockHttpResponse. The tests will also use
+        // verify() to validate input args.
+        mockHttpClient = mock(FitBitApiClient.class);
+        doAnswer(invocation -> new FitBitResponse(mockHttpStatusCode, mockHttpHeaders, mockHttpResponse))
+                .when(mockHttpClient).get(any(), any(), any());
+        doAnswer(invocation -> CompletableFuture.completedFuture(new FitBitResponse(mockHttpStatusCode,
+                mockHttpHeaders, mockHttpResponse))).when(mockHttpClient).getAsync(any(), any(), any());
+
+        // Circuit breaker that opens after a single failure.
+        circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setMinCalls(1);
+
+        // Spy processor so we can verify warnings.
         processor = spy(new UserProcessor());
+        processor.setCircuitBreaker(circuitBreaker);
         processor.setFileHelper(inMemoryFileHelper);
+        processor.setFitBitApiClient(mockHttpClient);
         processor.setSynapseHelper(mockSynapseHelper);
 
-        // Use a doAnswer(), so the tests can specify mockHttpResponse. The tests will also use verify() to validate
-        // input args.
-        doAnswer(invocation -> mockHttpResponse).when(processor).makeHttpRequest(any(), any());
+        rateLimitTracker = new RateLimitTracker();
+        processor.setRateLimitTracker(rateLimitTracker);
 
         // Make request context.
-        ctx = new RequestContext(DATE_STRING, STUDY, tempDir);
+        ctx = new RequestContext(DATE_STRING, DATE_STRING, STUDY, tempDir);
     }
 
     @Test
@@ -138,13 +185,13 @@ public class UserProcessorTest {
                 "}";
 
         // Execute and validate
-        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA);
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
 
         List<Map<String, String>> rowList = validatePopulatedTablesById();
         assertEquals(rowList.size(), 1);
         validateRow(rowList.get(0), "Just one value");
 
-        verify(processor).makeHttpRequest(URL, ACCESS_TOKEN);
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
         verify(processor, never()).warnWrapper(any());
     }
 
@@ -160,7 +207,7 @@ public class UserProcessorTest {
                 "}";
 
         // Execute and validate
-        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA);
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
 
         List<Map<String, String>> rowList = validatePopulatedTablesById();
         assertEquals(rowList.size(), 3);
@@ -168,7 +215,37 @@ public class UserProcessorTest {
         validateRow(rowList.get(1), "bar");
         validateRow(rowList.get(2), "baz");
 
-        verify(processor).makeHttpRequest(URL, ACCESS_TOKEN);
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
+        verify(processor, never()).warnWrapper(any());
+    }
+
+    @Test
+    public void normalCaseStreamRowsToTsv() throws Exception {
+        // Make HTTP response.
+        mockHttpResponse = "{\n" +
+                "   \"" + TABLE_KEY + "\":[\n" +
+                "       {\"" + COLUMN_ID + "\":\"foo\"},\n" +
+                "       {\"" + COLUMN_ID + "\":\"bar\"}\n" +
+                "   ]\n" +
+                "}";
+
+        // Execute
+        File tempDir = ctx.getTmpDir();
+        ctx = new RequestContext(DATE_STRING, DATE_STRING, STUDY, tempDir, true);
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+
+        // The table streams its rows into a TSV in the temp dir.
+        PopulatedTable populatedTable = ctx.getPopulatedTablesById().get(TABLE_ID);
+        assertTrue(populatedTable.isStreamingTsv());
+        assertEquals(populatedTable.getNumRows(), 2);
+        assertEquals(populatedTable.getTsvFile(), new File(tempDir, TABLE_ID + ".tsv"));
+
+        populatedTable.closeTsvWriter();
+        String tsvText = new String(inMemoryFileHelper.getBytes(populatedTable.getTsvFile()),
+                StandardCharsets.UTF_8);
+        assertEquals(tsvText, Constants.COLUMN_HEALTH_CODE + '\t' + Constants.COLUMN_CREATED_DATE + '\t' +
+                COLUMN_ID + '\n' + HEALTH_CODE + '\t' + DATE_STRING + "\tfoo\n" + HEALTH_CODE + '\t' + DATE_STRING +
+                "\tbar\n");
         verify(processor, never()).warnWrapper(any());
     }
 
@@ -194,14 +271,14 @@ public class UserProcessorTest {
                 "}";
 
         // Execute and validate
-        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA);
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
 
         List<Map<String, String>> rowList = validatePopulatedTablesById();
         assertEquals(rowList.size(), 2);
         assertEquals(rowList.get(0), previousUsersRowMap);
         validateRow(rowList.get(1), "current user's data");
 
-        verify(processor).makeHttpRequest(URL, ACCESS_TOKEN);
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
         verify(processor, never()).warnWrapper(any());
     }
 
@@ -215,9 +292,9 @@ public class UserProcessorTest {
                 "}";
 
         // Execute and validate
-        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA);
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
         assertTrue(ctx.getPopulatedTablesById().isEmpty());
-        verify(processor).makeHttpRequest(URL, ACCESS_TOKEN);
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
         verify(processor).warnWrapper("Unexpected table " + ENDPOINT_ID + ".wrong-table-key for user " +
                 HEALTH_CODE);
     }
@@ -232,9 +309,9 @@ public class UserProcessorTest {
                 "}";
 
         // Execute and validate
-        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA);
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
         assertTrue(ctx.getPopulatedTablesById().isEmpty());
-        verify(processor).makeHttpRequest(URL, ACCESS_TOKEN);
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
         verify(processor, never()).warnWrapper(any());
     }
 
@@ -246,12 +323,12 @@ public class UserProcessorTest {
                 "}";
 
         // Execute and validate
-        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA);
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
 
         List<Map<String, String>> rowList = validatePopulatedTablesById();
         assertTrue(rowList.isEmpty());
 
-        verify(processor).makeHttpRequest(URL, ACCESS_TOKEN);
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
         verify(processor).warnWrapper("Table " + TABLE_ID + " is neither array nor object for user " +
                 HEALTH_CODE);
     }
@@ -266,14 +343,38 @@ public class UserProcessorTest {
                 "}";
 
         // Execute and validate
-        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA);
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
 
         List<Map<String, String>> rowList = validatePopulatedTablesById();
         assertTrue(rowList.isEmpty());
 
-        verify(processor).makeHttpRequest(URL, ACCESS_TOKEN);
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
+        verify(processor).warnWrapper("Unexpected column wrong-column in table " + TABLE_ID + " for user " +
+                HEALTH_CODE);
+    }
+
+    @Test
+    public void edgeCaseNestedValuesAreSkipped() throws Exception {
+        // Ignored keys and unexpected columns can have nested values. These are skipped, and parsing picks up with the
+        // next key or column.
+        mockHttpResponse = "{\n" +
+                "   \"" + IGNORED_KEY + "\":{\"nested\":[{\"" + COLUMN_ID + "\":\"ignored\"}, [1, 2]]},\n" +
+                "   \"" + TABLE_KEY + "\":{\n" +
+                "       \"wrong-column\":{\"nested\":{\"" + COLUMN_ID + "\":\"wrong\"}},\n" +
+                "       \"" + COLUMN_ID + "\":\"right\"\n" +
+                "   }\n" +
+                "}";
+
+        // Execute and validate
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+
+        List<Map<String, String>> rowList = validatePopulatedTablesById();
+        assertEquals(rowList.size(), 1);
+        validateRow(rowList.get(0), "right");
+
         verify(processor).warnWrapper("Unexpected column wrong-column in table " + TABLE_ID + " for user " +
                 HEALTH_CODE);
+        verify(processor, times(1)).warnWrapper(any());
     }
 
     @Test
@@ -284,12 +385,12 @@ public class UserProcessorTest {
                 "}";
 
         // Execute and validate
-        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA);
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
 
         List<Map<String, String>> rowList = validatePopulatedTablesById();
         assertTrue(rowList.isEmpty());
 
-        verify(processor).makeHttpRequest(URL, ACCESS_TOKEN);
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
         verify(processor, never()).warnWrapper(any());
     }
 
@@ -303,15 +404,460 @@ public class UserProcessorTest {
                 "}";
 
         // Execute and validate
-        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA);
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
 
         List<Map<String, String>> rowList = validatePopulatedTablesById();
         assertTrue(rowList.isEmpty());
 
-        verify(processor).makeHttpRequest(URL, ACCESS_TOKEN);
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
+        verify(processor, never()).warnWrapper(any());
+    }
+
+    @Test
+    public void rateLimited() throws Exception {
+        // FitBit returns a 429 with a reset of 10 minutes.
+        mockHttpStatusCode = 429;
+        mockHttpHeaders = ImmutableMap.of("Fitbit-Rate-Limit-Limit", "150", "Fitbit-Rate-Limit-Remaining", "0",
+                "Fitbit-Rate-Limit-Reset", "600");
+
+        // Execute
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (UserRateLimitedException ex) {
+            assertEquals(ex.getResetTimeMillis(), MOCK_NOW_MILLIS + 600_000L);
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+
+        assertTrue(ctx.getPopulatedTablesById().isEmpty());
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
+    }
+
+    @Test
+    public void rateLimitTrackerDefersUserWithoutCallingFitBit() throws Exception {
+        // The rate limit tracker already knows this user is out of calls.
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        try {
+            rateLimitTracker.update(USER_ID, new FitBitResponse(200, ImmutableMap.of(
+                    "Fitbit-Rate-Limit-Remaining", "0", "Fitbit-Rate-Limit-Reset", "600"), null));
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (UserRateLimitedException ex) {
+            assertEquals(ex.getResetTimeMillis(), MOCK_NOW_MILLIS + 600_000L);
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+
+        verify(mockHttpClient, never()).get(any(), any(), any());
+    }
+
+    @Test
+    public void errorStatusCode() throws Exception {
+        mockHttpStatusCode = 500;
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (HttpResponseException ex) {
+            assertEquals(ex.getStatusCode(), 500);
+        }
+        assertTrue(ctx.getPopulatedTablesById().isEmpty());
+    }
+
+    @Test
+    public void invalidTokenStatusCode() throws Exception {
+        mockHttpStatusCode = 401;
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (InvalidTokenException ex) {
+            assertEquals(ex.getStatusCode(), 401);
+        }
+        assertTrue(ctx.getPopulatedTablesById().isEmpty());
+    }
+
+    @Test
+    public void serverErrorOpensCircuitBreaker() throws Exception {
+        mockHttpStatusCode = 503;
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (RetryableResponseException ex) {
+            // expected exception
+        }
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+
+        // The next call doesn't call FitBit.
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (CircuitOpenException ex) {
+            // expected exception
+        }
+        verify(mockHttpClient, times(1)).get(any(), any(), any());
+    }
+
+    @Test
+    public void openCircuitBreakerGivesBackRateLimitCall() throws Exception {
+        // User has 1 call left, and the circuit breaker is open.
+        rateLimitTracker.update(USER_ID, new FitBitResponse(200, ImmutableMap.of(
+                "Fitbit-Rate-Limit-Remaining", "1", "Fitbit-Rate-Limit-Reset", "600"), null));
+        circuitBreaker.recordResult(false, 0);
+        for (int i = 0; i < 2; i++) {
+            try {
+                processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+                fail("expected exception");
+            } catch (CircuitOpenException ex) {
+                // expected exception
+            }
+            try {
+                processor.fetchEndpointForUserAsync(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING, Runnable::run).get();
+                fail("expected exception");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof CircuitOpenException);
+            }
+        }
+
+        // The rejected calls didn't use up the user's last call.
+        rateLimitTracker.acquire(USER_ID);
+        verify(mockHttpClient, never()).get(any(), any(), any());
+        verify(mockHttpClient, never()).getAsync(any(), any(), any());
+    }
+
+    @Test
+    public void clientErrorDoesNotOpenCircuitBreaker() throws Exception {
+        mockHttpStatusCode = 401;
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (InvalidTokenException ex) {
+            // expected exception
+        }
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void connectionErrorOpensCircuitBreaker() throws Exception {
+        doThrow(new SocketTimeoutException("test exception")).when(mockHttpClient).get(any(), any(), any());
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (SocketTimeoutException ex) {
+            // expected exception
+        }
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void circuitBreakerOpenAsync() throws Exception {
+        mockHttpStatusCode = 503;
+        try {
+            processor.fetchEndpointForUserAsync(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING, Runnable::run).get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RetryableResponseException);
+        }
+        assertEquals(circuitBreaker.getState(), CircuitBreaker.State.OPEN);
+
+        try {
+            processor.fetchEndpointForUserAsync(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING, Runnable::run).get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof CircuitOpenException);
+        }
+        verify(mockHttpClient, times(1)).getAsync(any(), any(), any());
+    }
+
+    @Test
+    public void transientErrorStatusCode() throws Exception {
+        mockHttpStatusCode = 503;
+        mockHttpHeaders = ImmutableMap.of("Retry-After", "2");
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (RetryableResponseException ex) {
+            assertEquals(ex.getStatusCode(), 503);
+            assertEquals(ex.getRetryAfterMillis(), 2000);
+        }
+        assertTrue(ctx.getPopulatedTablesById().isEmpty());
+    }
+
+    @Test
+    public void transientErrorStatusCodeWithoutRetryAfter() throws Exception {
+        mockHttpStatusCode = 502;
+        mockHttpHeaders = ImmutableMap.of("Retry-After", "not a number");
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (RetryableResponseException ex) {
+            assertEquals(ex.getStatusCode(), 502);
+            assertEquals(ex.getRetryAfterMillis(), 0);
+        }
+    }
+
+    @Test
+    public void fetchEndpointAsync() throws Exception {
+        mockHttpResponse = "{\"" + TABLE_KEY + "\":{\"" + COLUMN_ID + "\":\"Just one value\"}}";
+        FitBitResponse response = processor.fetchEndpointForUserAsync(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING,
+                Runnable::run).get();
+        assertEquals(response.getBody(), mockHttpResponse);
+        verify(mockHttpClient).getAsync(ENDPOINT_ID, URL, ACCESS_TOKEN);
+        verify(mockHttpClient, never()).get(any(), any(), any());
+    }
+
+    @Test
+    public void gzippedResponseIsStreamed() throws Exception {
+        // Response body is kept gzipped, as it came off the wire.
+        String body = "{\n" +
+                "   \"" + TABLE_KEY + "\":[\n" +
+                "       {\"" + COLUMN_ID + "\":\"foo\"},\n" +
+                "       {\"" + COLUMN_ID + "\":\"bar\"}\n" +
+                "   ],\n" +
+                "   \"" + IGNORED_KEY + "\":{\"any-column\":[1, 2, 3]}\n" +
+                "}";
+        ByteArrayOutputStream gzipByteStream = new ByteArrayOutputStream();
+        try (OutputStream gzipOutputStream = new GZIPOutputStream(gzipByteStream)) {
+            gzipOutputStream.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        FitBitResponse response = spy(new FitBitResponse(200, ImmutableMap.of(), gzipByteStream.toByteArray(),
+                true));
+
+        // Execute and validate. Rows are sent to the sink in order, and the response is never parsed into a tree.
+        List<String> sinkValueList = new ArrayList<>();
+        processor.processResponseForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING, response, (table, row) -> {
+            assertEquals(table.getTableId(), TABLE_ID);
+            validateRow(row, row.get(COLUMN_ID));
+            sinkValueList.add(row.get(COLUMN_ID));
+        });
+        assertEquals(sinkValueList, ImmutableList.of("foo", "bar"));
+        assertTrue(ctx.getPopulatedTablesById().containsKey(TABLE_ID));
+
+        verify(response, never()).getBodyNode();
+        verify(processor, never()).warnWrapper(any());
+    }
+
+    @Test
+    public void emptyResponseHasNoTables() throws Exception {
+        mockHttpResponse = null;
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+        assertTrue(ctx.getPopulatedTablesById().isEmpty());
         verify(processor, never()).warnWrapper(any());
     }
 
+    @Test
+    public void rateLimitedAsync() throws Exception {
+        // FitBit returns a 429 with a reset of 10 minutes.
+        mockHttpStatusCode = 429;
+        mockHttpHeaders = ImmutableMap.of("Fitbit-Rate-Limit-Limit", "150", "Fitbit-Rate-Limit-Remaining", "0",
+                "Fitbit-Rate-Limit-Reset", "600");
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        try {
+            processor.fetchEndpointForUserAsync(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING, Runnable::run).get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            UserRateLimitedException cause = (UserRateLimitedException) ex.getCause();
+            assertEquals(cause.getResetTimeMillis(), MOCK_NOW_MILLIS + 600_000L);
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+        assertTrue(ctx.getPopulatedTablesById().isEmpty());
+    }
+
+    @Test
+    public void rateLimitTrackerDefersUserWithoutCallingFitBitAsync() throws Exception {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        try {
+            rateLimitTracker.update(USER_ID, new FitBitResponse(200, ImmutableMap.of(
+                    "Fitbit-Rate-Limit-Remaining", "0", "Fitbit-Rate-Limit-Reset", "600"), null));
+            processor.fetchEndpointForUserAsync(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING, Runnable::run).get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof UserRateLimitedException);
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+        verify(mockHttpClient, never()).getAsync(any(), any(), any());
+    }
+
+    @Test
+    public void errorStatusCodeAsync() throws Exception {
+        mockHttpStatusCode = 500;
+        try {
+            processor.fetchEndpointForUserAsync(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING, Runnable::run).get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertEquals(((HttpResponseException) ex.getCause()).getStatusCode(), 500);
+        }
+    }
+
+    @Test
+    public void dateRangeEndpoint() throws Exception {
+        // Range endpoint is called with the request's start and end date. Each row is dated with its dateTime.
+        EndpointSchema rangeEndpointSchema = new EndpointSchema.Builder().withEndpointId(ENDPOINT_ID)
+                .withUrl("http://example.com/users/%s/date/%s/%s").withUrlParameters(ImmutableList.of(
+                        UrlParameterType.USER_ID, UrlParameterType.START_DATE, UrlParameterType.END_DATE))
+                .withTables(ImmutableList.of(TABLE_SCHEMA)).build();
+        ctx = new RequestContext("2017-12-10", "2017-12-12", STUDY, ctx.getTmpDir());
+
+        // Make HTTP response. The last row has no dateTime, so it's dated with the start date.
+        mockHttpResponse = "{\n" +
+                "   \"" + TABLE_KEY + "\":[\n" +
+                "       {\"dateTime\":\"2017-12-10\", \"" + COLUMN_ID + "\":\"foo\"},\n" +
+                "       {\"dateTime\":\"2017-12-11T00:00:00\", \"" + COLUMN_ID + "\":\"bar\"},\n" +
+                "       {\"" + COLUMN_ID + "\":\"baz\"}\n" +
+                "   ]\n" +
+                "}";
+
+        // Execute and validate
+        processor.processEndpointForUser(ctx, USER, rangeEndpointSchema, "2017-12-10");
+        verify(mockHttpClient).get(ENDPOINT_ID, "http://example.com/users/my-user/date/2017-12-10/2017-12-12",
+                ACCESS_TOKEN);
+
+        List<Map<String, String>> rowList = validatePopulatedTablesById();
+        assertEquals(rowList.size(), 3);
+        assertEquals(rowList.get(0).get(Constants.COLUMN_CREATED_DATE), "2017-12-10");
+        assertEquals(rowList.get(0).get(COLUMN_ID), "foo");
+        assertEquals(rowList.get(1).get(Constants.COLUMN_CREATED_DATE), "2017-12-11");
+        assertEquals(rowList.get(1).get(COLUMN_ID), "bar");
+        assertEquals(rowList.get(2).get(Constants.COLUMN_CREATED_DATE), "2017-12-10");
+        assertEquals(rowList.get(2).get(COLUMN_ID), "baz");
+    }
+
+    @Test
+    public void perDateEndpointUsesCallDate() throws Exception {
+        // In a date range request, a per-date endpoint is called for a specific date, and rows are dated with that
+        // date.
+        ctx = new RequestContext("2017-12-10", "2017-12-12", STUDY, ctx.getTmpDir());
+        mockHttpResponse = "{\"" + TABLE_KEY + "\":{\"" + COLUMN_ID + "\":\"foo\"}}";
+
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, "2017-12-11");
+        verify(mockHttpClient).get(ENDPOINT_ID, "http://example.com/users/my-user/date/2017-12-11", ACCESS_TOKEN);
+
+        List<Map<String, String>> rowList = validatePopulatedTablesById();
+        assertEquals(rowList.size(), 1);
+        assertEquals(rowList.get(0).get(Constants.COLUMN_CREATED_DATE), "2017-12-11");
+    }
+
+    @Test
+    public void closedDateResponseIsCached() throws Exception {
+        ResponseCache mockCache = mockResponseCache();
+        mockHttpResponse = "{\"" + TABLE_KEY + "\":{\"" + COLUMN_ID + "\":\"foo\"}}";
+
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
+        verify(mockCache).get(HEALTH_CODE, URL);
+
+        ArgumentCaptor<FitBitResponse> responseCaptor = ArgumentCaptor.forClass(FitBitResponse.class);
+        verify(mockCache).put(eq(HEALTH_CODE), eq(URL), responseCaptor.capture());
+        assertEquals(responseCaptor.getValue().getBody(), mockHttpResponse);
+    }
+
+    @Test
+    public void cacheHitSkipsFitBit() throws Exception {
+        ResponseCache mockCache = mockResponseCache();
+        when(mockCache.get(HEALTH_CODE, URL)).thenReturn(new FitBitResponse(200, ImmutableMap.of(),
+                "{\"" + TABLE_KEY + "\":{\"" + COLUMN_ID + "\":\"cached\"}}"));
+
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+        verify(mockHttpClient, never()).get(any(), any(), any());
+        verify(mockCache, never()).put(any(), any(), any());
+
+        List<Map<String, String>> rowList = validatePopulatedTablesById();
+        assertEquals(rowList.size(), 1);
+        validateRow(rowList.get(0), "cached");
+    }
+
+    @Test
+    public void openDateIsNotCached() throws Exception {
+        ResponseCache mockCache = mockResponseCache();
+        mockHttpResponse = "{\"" + TABLE_KEY + "\":{\"" + COLUMN_ID + "\":\"foo\"}}";
+
+        // Yesterday (in UTC) may still be today somewhere, so it's not closed either.
+        DateTimeUtils.setCurrentMillisFixed(DateTime.parse("2017-12-13T18:56:51.098Z").getMillis());
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+        verify(mockHttpClient).get(ENDPOINT_ID, URL, ACCESS_TOKEN);
+        verify(mockCache, never()).get(anyString(), anyString());
+        verify(mockCache, never()).put(any(), any(), any());
+    }
+
+    @Test
+    public void errorResponseIsNotCached() throws Exception {
+        ResponseCache mockCache = mockResponseCache();
+        mockHttpStatusCode = 404;
+
+        try {
+            processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+            fail("expected exception");
+        } catch (HttpResponseException ex) {
+            assertEquals(ex.getStatusCode(), 404);
+        }
+        verify(mockCache, never()).put(any(), any(), any());
+    }
+
+    @Test
+    public void disabledCacheIsNotUsed() throws Exception {
+        ResponseCache mockCache = mockResponseCache();
+        when(mockCache.isEnabled()).thenReturn(false);
+        mockHttpResponse = "{\"" + TABLE_KEY + "\":{\"" + COLUMN_ID + "\":\"foo\"}}";
+
+        processor.processEndpointForUser(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING);
+        verify(mockCache, never()).get(anyString(), anyString());
+        verify(mockCache, never()).put(any(), any(), any());
+    }
+
+    @Test
+    public void cacheHitSkipsFitBitAsync() throws Exception {
+        ResponseCache mockCache = mockResponseCache();
+        FitBitResponse cachedResponse = new FitBitResponse(200, ImmutableMap.of(), "{}");
+        when(mockCache.get(HEALTH_CODE, URL)).thenReturn(cachedResponse);
+
+        FitBitResponse response = processor.fetchEndpointForUserAsync(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING,
+                Runnable::run).get();
+        assertEquals(response, cachedResponse);
+        verify(mockHttpClient, never()).getAsync(any(), any(), any());
+    }
+
+    @Test
+    public void closedDateResponseIsCachedAsync() throws Exception {
+        ResponseCache mockCache = mockResponseCache();
+        mockHttpResponse = "{}";
+
+        processor.fetchEndpointForUserAsync(ctx, USER, ENDPOINT_SCHEMA, DATE_STRING, Runnable::run).get();
+        verify(mockHttpClient).getAsync(ENDPOINT_ID, URL, ACCESS_TOKEN);
+        verify(mockCache).put(eq(HEALTH_CODE), eq(URL), any());
+    }
+
+    @Test
+    public void asyncResponseIsCachedOnExecutor() throws Exception {
+        ResponseCache mockCache = mockResponseCache();
+        mockHttpResponse = "{}";
+
+        // Hold the executor's tasks, so we can check that nothing is cached until the executor runs them.
+        List<Runnable> taskList = new ArrayList<>();
+        CompletableFuture<FitBitResponse> responseFuture = processor.fetchEndpointForUserAsync(ctx, USER,
+                ENDPOINT_SCHEMA, DATE_STRING, taskList::add);
+        assertFalse(responseFuture.isDone());
+        verify(mockCache, never()).put(any(), any(), any());
+
+        taskList.forEach(Runnable::run);
+        assertTrue(responseFuture.isDone());
+        verify(mockCache).put(eq(HEALTH_CODE), eq(URL), any());
+    }
+
+    // Helper method to add an enabled response cache with no entries to the processor.
+    private ResponseCache mockResponseCache() {
+        ResponseCache mockCache = mock(ResponseCache.class);
+        when(mockCache.isEnabled()).thenReturn(true);
+        processor.setResponseCache(mockCache);
+        return mockCache;
+    }
+
     // Validate the PopulatedTablesById is correct, and returns the row list.
     private List<Map<String, String>> validatePopulatedTablesById() {
         Map<String, PopulatedTable> populatedTablesById = ctx.getPopulatedTablesById();
@@ -0,0 +1,60 @@
+package org.sagebionetworks.bridge.fitbit.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class UserShardTest {
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp =
+            "shardCount must be positive")
+    public void zeroShardCount() {
+        new UserShard(0, 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp =
+            "shardIndex must be between 0 and shardCount-1")
+    public void negativeShardIndex() {
+        new UserShard(-1, 2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp =
+            "shardIndex must be between 0 and shardCount-1")
+    public void shardIndexTooLarge() {
+        new UserShard(2, 2);
+    }
+
+    @Test
+    public void allContainsEverything() {
+        assertTrue(UserShard.ALL.containsHealthCode("health-code-0"));
+        assertTrue(UserShard.ALL.containsHealthCode("health-code-1"));
+        assertEquals(UserShard.ALL.toString(), "0/1");
+    }
+
+    @Test
+    public void eachHealthCodeIsInExactlyOneShard() {
+        int shardCount = 4;
+        UserShard[] shards = new UserShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new UserShard(i, shardCount);
+        }
+
+        int[] numUsersByShard = new int[shardCount];
+        for (int i = 0; i < 1000; i++) {
+            String healthCode = "health-code-" + i;
+            int numShards = 0;
+            for (int j = 0; j < shardCount; j++) {
+                if (shards[j].containsHealthCode(healthCode)) {
+                    numShards++;
+                    numUsersByShard[j]++;
+                }
+            }
+            assertEquals(numShards, 1, "healthCode " + healthCode);
+        }
+
+        // Users are spread across all shards.
+        for (int j = 0; j < shardCount; j++) {
+            assertTrue(numUsersByShard[j] > 0);
+        }
+    }
+}